@@ -14,6 +14,12 @@ def main():
     print(global_results)
 
 
+def check_environment():
+    # used by pyServer.py, which checks the environment itself as it starts
+    check_libraries()
+    return global_results
+
+
 def check_libraries():
     check_min_python()
     isPython3 = sys.version_info >= (3, 0)
@@ -128,4 +134,35 @@ def append_to_results(line):
     global_results += line + '\n'
 
 
-main()
+def fingerprint():
+    # identifies the interpreter, its installed packages and this check
+    # cheaply, without importing the libraries, so that the result of the
+    # check can be remembered until something changes
+    import os
+    import site
+    import hashlib
+    lines = [sys.executable, sys.version]
+    try:
+        stat = os.stat(sys.executable)
+        lines.append(str(stat.st_size) + ' ' + str(stat.st_mtime))
+    except OSError:
+        pass
+    dirs = []
+    if hasattr(site, 'getsitepackages'):
+        dirs += site.getsitepackages()
+    if hasattr(site, 'getusersitepackages'):
+        dirs.append(site.getusersitepackages())
+    for path in sys.path:
+        if path.endswith('site-packages') or path.endswith('dist-packages'):
+            dirs.append(path)
+    for path in sorted(set(dirs)):
+        if os.path.isdir(path):
+            lines.append(path + ' ' + str(os.path.getmtime(path)))
+    digest = hashlib.sha256('\n'.join(lines).encode('utf-8'))
+    with open(os.path.splitext(__file__)[0] + '.py', 'rb') as script:
+        digest.update(script.read())
+    return digest.hexdigest()
+
+
+if __name__ == '__main__':
+    main()
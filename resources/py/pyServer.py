@@ -20,13 +20,23 @@ import socket
 import struct
 import os
 import json
+import io
+import tempfile
 import base64
 import math
 import traceback
-import pandas as pd
-import matplotlib
-import matplotlib.pyplot as plt
+import gc
+import importlib
+import signal
 import csv
+import pyCheck
+
+# numpy, pandas and matplotlib are imported by check_environment(), once the
+# environment has been checked
+np = None
+pd = None
+matplotlib = None
+plt = None
 
 _global_python3 = sys.version_info >= (3, 0)
 
@@ -44,11 +54,72 @@ try:
 except:
     import pickle
 
+# pyarrow is optional - if present, frames are transferred in Arrow IPC format
+# instead of CSV
+try:
+    import pyarrow as pa
+    _global_arrow_available = True
+except:
+    _global_arrow_available = False
+
+# msgpack is optional - if present, the client may send commands in MessagePack
+# rather than JSON
+try:
+    import msgpack
+    _global_msgpack_available = True
+except:
+    _global_msgpack_available = False
+
+# compressions that can be applied to frame payloads, by name. zlib is always
+# there; zstandard is optional
+_global_compressions = {}
+try:
+    import zlib
+    _global_compressions['zlib'] = (lambda data: zlib.compress(data, 1),
+                                    lambda data, size: zlib.decompress(data))
+except:
+    pass
+
+try:
+    import zstandard
+    _global_compressions['zstd'] = (
+        zstandard.ZstdCompressor(level=1).compress,
+        lambda data, size: zstandard.ZstdDecompressor().decompress(
+            data, max_output_size=size))
+except:
+    pass
+
 _global_connection = None
+# True while the client is sending commands in msgpack
+_global_msgpack = False
+# the globals of the current namespace. Each namespace (one per Kettle step
+# using the server) has its own, so steps sharing the server don't clobber
+# each other's frames and variables
 _global_env = {}
+_global_default_env = _global_env
+_global_namespaces = {}
+# the name of the current namespace, or None for the default one
+_global_namespace = None
+
+# scripts compiled by register_script, keyed by id. Scripts belong to the
+# namespace they were registered in, and are dropped along with it
+_global_scripts = {}
+# the ids of each namespace's scripts, keyed by script text
+_global_script_ids = {}
+_global_script_count = 0
 
 _global_startup_debug = False
 
+# the result of check_environment() in a fork server, for the servers it forks
+_global_env_checked = None
+
+# the id of the command being processed, copied into its responses so that
+# Kettle can match them up with the command
+_global_request_id = None
+
+# number of frame rows converted and sent at a time
+_global_batch_rows = 8192
+
 # _global_std_out = StringIO()
 # _global_std_err = StringIO()
 sys.stdout = StringIO()
@@ -59,19 +130,65 @@ if len(sys.argv) > 2:
         _global_startup_debug = True
 
 
+def check_environment():
+    # check the environment here rather than in a separate python process.
+    # Environments that Kettle has seen pass the check before (identified by
+    # fingerprint) are not checked again. Returns the problems found, if any -
+    # the libraries are only imported if there are none
+    global np, pd, matplotlib, plt
+    if _global_env_checked is not None:
+        # forked from a fork server, which has checked already
+        return _global_env_checked
+    fingerprint = pyCheck.fingerprint()
+    checked = os.environ.get('PENTAHO_CPYTHON_CHECKED', '').split(',')
+    problems = '' if fingerprint in checked else pyCheck.check_environment()
+    if problems == '':
+        import numpy as np
+        import pandas as pd
+        import matplotlib
+        import matplotlib.pyplot as plt
+    return fingerprint, problems
+
+
+def connect(address):
+    # 'unix:<path>' is a unix domain socket, anything else is a local TCP port
+    if address.startswith('unix:'):
+        connection = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+        connection.connect(address[len('unix:'):])
+    else:
+        connection = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+        connection.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+        connection.connect(('localhost', int(address)))
+    return connection
+
+
 def runServer():
     if _global_startup_debug == True:
         print('Python server starting...\n')
     global _global_connection
-    _global_connection = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
-    _global_connection.connect(('localhost', int(sys.argv[1])))
+    global _global_request_id
+    _global_connection = connect(sys.argv[1])
     pid_response = {}
     pid_response['response'] = 'pid_response'
     pid_response['pid'] = os.getpid()
+    # the environment is checked after connecting, so that the check overlaps
+    # with Kettle setting up the session rather than holding up the connection
+    fingerprint, problems = check_environment()
+    pid_response['env_fingerprint'] = fingerprint
+    pid_response['env_check'] = problems
+    pid_response['frame_formats'] = ['csv', 'columns']
+    pid_response['command_codecs'] = ['json']
+    if _global_msgpack_available:
+        pid_response['command_codecs'].append('msgpack')
+    if _global_arrow_available:
+        pid_response['frame_formats'].append('arrow')
+        pid_response['shared_memory'] = True
+    pid_response['compression'] = sorted(_global_compressions.keys())
     send_response(pid_response, True)
     try:
         while 1:
             message = receive_message(True)
+            _global_request_id = message.get('request_id')
             if 'command' in message:
                 command = message['command']
                 if command == 'accept_rows':
@@ -80,6 +197,20 @@ def runServer():
                     send_rows(message)
                 elif command == 'execute_script':
                     execute_script(message)
+                elif command == 'execute_and_fetch':
+                    execute_and_fetch(message)
+                elif command == 'register_script':
+                    register_script(message)
+                elif command == 'execute_script_by_id':
+                    execute_script_by_id(message)
+                elif command == 'set_namespace':
+                    set_namespace(message)
+                elif command == 'drop_namespace':
+                    drop_namespace(message)
+                elif command == 'set_kettle_vars':
+                    set_kettle_vars(message)
+                elif command == 'preload_modules':
+                    preload_modules(message)
                 elif command == 'get_variable_list':
                     send_variable_list(message)
                 elif command == 'get_variable_type':
@@ -131,34 +262,50 @@ def receive_rows(message):
         row_meta = message['row_meta']
         frame_name = row_meta['frame_name']
         num_rows = message['num_rows']
-        b64e = message['base64'];
+        frame_format = 'csv'
+        if 'frame_format' in message:
+            frame_format = message['frame_format']
         frame = None
-        if num_rows > 0:
-            # receive the CSV
-            csv_data = receive_message(False)
-            if b64e is True:
-                # For some reason decoding byte stream that has been encoded to utf-8 by Java causes
-                # the python decoder to hang when there are non-ascii characters present.
-                # Encoding to base64 on the Java side, then decoding base64 and then
-                # to utf-8 on the python side seems to rectify this. Due to the overhead of base64, we only
-                # do this when non-ascii characters are detected.
-                csv_data = base64_decode(csv_data)
-                if _global_python3 is True:
-                    csv_data = csv_data.decode('utf-8', 'ignore')
-
-            frame = pd.read_csv(StringIO(csv_data), na_values='?',
-                                quotechar='\'', escapechar='\\',
-                                index_col=None)
+        if num_rows > 0 and 'shm_path' in message:
+            # the arrow stream has been written to a memory mapped file - read it in place
+            frame = read_arrow_frame(pa.memory_map(message['shm_path'], 'r'))
+            _global_env[frame_name] = frame
+            if message_debug(message) == True:
+                print(frame.info(), '\n')
+                print (frame, '\n')
+        elif num_rows > 0:
+            # the rows arrive as a series of chunks that are parsed as they are received
+            chunks = ChunkReader(get_compression(message.get('compression')))
+            try:
+                stream = io.BufferedReader(chunks, ChunkReader.buffer_size)
+                if frame_format == 'arrow':
+                    frame = read_arrow_frame(stream)
+                elif frame_format == 'columns':
+                    frame = read_column_frame(
+                        stream, [field['name'] for field in row_meta['fields']])
+                else:
+                    frame = pd.read_csv(stream, na_values='?', encoding='utf-8',
+                                        quotechar='\'', escapechar='\\',
+                                        index_col=None)
+                    # convert any date longs to date objects and
+                    # any boolean strings to True/False
+                    for field in row_meta['fields']:
+                        field_name = field['name']
+                        field_type = field['type']
+                        if field_type == 'boolean':
+                            frame[field_name] = (frame[field_name] == 1)
+                        elif field_type == 'date':
+                            frame[field_name] = pd.to_datetime(frame[field_name],unit='ms')
+            except Exception:
+                # a reader may report the abort as an error of its own
+                if not chunks.aborted:
+                    raise
+            finally:
+                chunks.drain()
+            if chunks.aborted:
+                ack_command_err('Kettle abandoned the rows part way through')
+                return
             _global_env[frame_name] = frame
-            # convert any date longs to date objects and
-            # any boolean strings to True/False
-            for field in row_meta['fields']:
-                field_name = field['name']
-                field_type = field['type']
-                if field_type == 'boolean':
-                    frame[field_name] = (frame[field_name] == 1)
-                elif field_type == 'date':
-                    frame[field_name] = pd.to_datetime(frame[field_name],unit='ms')
             if message_debug(message) == True:
                 print(frame.info(), '\n')
                 print (frame, '\n')
@@ -180,21 +327,359 @@ def send_rows(message):
         else:
             message += ' is not a DataFrame object'
         ack_command_err(message)
+        return
     else:
         ack_command_ok()
+    frame_format = 'csv'
+    if 'frame_format' in message:
+        if message['frame_format'] == 'columns' or _global_arrow_available:
+            frame_format = message['frame_format']
     response = {}
     response['frame_name'] = frame_name
     response['response'] = 'row_meta'
     response['num_rows'] = len(frame.index)
-    response['fields'] = frame_to_fields_list(frame, include_index)
-    if message_debug(message) == True:
-        print(response)
-    send_response(response, True)
-    s = StringIO()
-    frame.to_csv(path_or_buf=s, na_rep='?', doublequote=False, index=include_index,
-                 quotechar='\'', line_terminator='#||#', quoting=csv.QUOTE_NONNUMERIC,
-                 escapechar='\\', header=False, date_format='%Y-%m-%d %H:%M:%S.%f')
-    send_response(s.getvalue(), False)
+    response['frame_format'] = frame_format
+    if frame_format == 'arrow' and 'shm_dir' in message:
+        # write the frame to a file in shared memory and just tell the client
+        # where it is. The client deletes the file once it has read it
+        schema = frame_to_arrow_table(frame.iloc[0:0], include_index).schema
+        response['fields'] = arrow_schema_to_fields_list(schema)
+        fd, path = tempfile.mkstemp(prefix='pdi-cpython-', suffix='.arrow',
+                                    dir=message['shm_dir'])
+        os.close(fd)
+        try:
+            sink = pa.OSFile(path, 'wb')
+            write_arrow_frame(frame, include_index, schema, sink)
+            sink.close()
+        except:
+            os.remove(path)
+            raise
+        response['shm_path'] = path
+        response['shm_size'] = os.path.getsize(path)
+        if message_debug(message) == True:
+            print(response)
+        send_response(response, True)
+        return
+    # the rows follow as a series of chunks, converted a slice of the frame at
+    # a time so that the client can start on them while the rest is encoded.
+    # Large frames are compressed if the client asked for it
+    compression = None
+    if 'compression' in message and len(frame.index) * len(frame.columns) * 8 \
+            > message.get('compression_threshold', 0):
+        compression = get_compression(message['compression'])
+        if compression is not None:
+            response['compression'] = message['compression']
+    chunks = ChunkWriter(compression)
+    if frame_format == 'arrow':
+        schema = frame_to_arrow_table(frame.iloc[0:0], include_index).schema
+        response['fields'] = arrow_schema_to_fields_list(schema)
+        if message_debug(message) == True:
+            print(response)
+        send_response(response, True)
+        write_arrow_frame(frame, include_index, schema, chunks)
+    elif frame_format == 'columns':
+        response['fields'] = frame_to_column_fields_list(frame, include_index)
+        if message_debug(message) == True:
+            print(response)
+        send_response(response, True)
+        write_column_frame(frame, include_index, chunks)
+    else:
+        response['fields'] = frame_to_fields_list(frame, include_index)
+        if message_debug(message) == True:
+            print(response)
+        send_response(response, True)
+        for start in range(0, len(frame.index), _global_batch_rows):
+            s = StringIO()
+            frame.iloc[start:start + _global_batch_rows].to_csv(
+                path_or_buf=s, na_rep='?', doublequote=False, index=include_index,
+                quotechar='\'', line_terminator='#||#', quoting=csv.QUOTE_NONNUMERIC,
+                escapechar='\\', header=False, date_format='%Y-%m-%d %H:%M:%S.%f')
+            value = s.getvalue()
+            if _global_python3 is True or isinstance(value, unicode):
+                value = value.encode('utf-8')
+            chunks.write(value)
+    chunks.finish()
+
+def write_arrow_frame(frame, include_index, schema, sink):
+    writer = pa.RecordBatchStreamWriter(sink, schema)
+    for start in range(0, len(frame.index), _global_batch_rows):
+        writer.write_table(frame_to_arrow_table(
+            frame.iloc[start:start + _global_batch_rows], include_index))
+    writer.close()
+
+def read_arrow_frame(stream):
+    table = pa.RecordBatchStreamReader(stream).read_all()
+    frame = table.to_pandas()
+    # missing booleans arrive as None rather than False
+    for field in table.schema:
+        if field.type == pa.bool_():
+            frame[field.name] = (frame[field.name] == True)
+    return frame
+
+# Raw column blocks, for when pyarrow is not available (see ColumnFrameEncoder
+# on the Java side). A frame is a series of batches, each a little endian int32
+# row count followed by one block per column, ending with a zero row count. A
+# block is a type byte, a flags byte (bit 0 set if a null bitmap follows) and
+# the values: float64 ('d'), int64 ('l'), int64 millis ('t'), a bitmap ('b')
+# or int32 offsets and utf-8 data ('s'), or raw bytes for Kettle binary fields
+# ('y'). Bitmaps are in numpy.packbits order.
+# Low cardinality strings are dictionary encoded ('c'): the strings added to
+# the column's dictionary by the batch, then an int32 code per row (-1 for
+# missing). The dictionary accumulates across batches and becomes the
+# categories of a pandas Categorical. Numbers Kettle read as text and never
+# parsed (lazy conversion) are sent as that text instead: float64 ('D') or
+# int64 ('L') values as an int32 length and space separated ascii, with 0 for
+# missing values.
+
+class CategoryCodes(object):
+    """The codes of a dictionary encoded block"""
+
+    def __init__(self, codes):
+        self.codes = codes
+
+def read_column_frame(stream, names):
+    columns = [[] for name in names]
+    categories = [[] for name in names]
+    while True:
+        num_rows = struct.unpack('<l', read_fully(stream, 4))[0]
+        if num_rows == 0:
+            break
+        for column, column_categories in zip(columns, categories):
+            column.append(read_column_block(stream, num_rows, column_categories))
+    data = {}
+    for name, column, column_categories in zip(names, columns, categories):
+        data[name] = join_column_blocks(column, column_categories)
+    return pd.DataFrame(data, columns=names)
+
+def join_column_blocks(blocks, categories):
+    if all(isinstance(block, CategoryCodes) for block in blocks):
+        codes = [block.codes for block in blocks]
+        codes = codes[0] if len(codes) == 1 else np.concatenate(codes)
+        return pd.Categorical.from_codes(codes, categories)
+    # the column switched to plain strings part way through
+    values = np.empty(len(categories) + 1, dtype=object)
+    values[:len(categories)] = categories
+    blocks = [values[block.codes] if isinstance(block, CategoryCodes) else block
+              for block in blocks]
+    return blocks[0] if len(blocks) == 1 else np.concatenate(blocks)
+
+def read_column_block(stream, num_rows, categories):
+    header = read_fully(stream, 2)
+    column_type = header[0:1]
+    nulls = None
+    if ord(header[1:2]) & 1:
+        nulls = read_bitmap(stream, num_rows)
+    if column_type in (b'd', b'l', b't'):
+        dtype = '<f8' if column_type == b'd' else '<i8'
+        values = np.frombuffer(read_fully(stream, num_rows * 8), dtype=dtype)
+        if column_type == b't':
+            values = values.astype('datetime64[ms]').astype('datetime64[ns]')
+            if nulls is not None:
+                values[nulls] = np.datetime64('NaT')
+        elif nulls is not None:
+            # as with csv, integers with missing values become floats
+            values = values.astype(np.float64)
+            values[nulls] = np.nan
+        return values
+    if column_type in (b'D', b'L'):
+        length = struct.unpack('<l', read_fully(stream, 4))[0]
+        text = read_fully(stream, length).decode('ascii')
+        dtype = np.float64 if column_type == b'D' else np.int64
+        values = np.fromstring(text, dtype=dtype, sep=' ')
+        if nulls is not None:
+            values = values.astype(np.float64)
+            values[nulls] = np.nan
+        return values
+    if column_type == b'b':
+        values = read_bitmap(stream, num_rows)
+        if nulls is not None:
+            # missing booleans are False, as with csv and arrow
+            values[nulls] = False
+        return values
+    if column_type == b'c':
+        num_added = struct.unpack('<l', read_fully(stream, 4))[0]
+        categories.extend(read_strings(stream, num_added, None))
+        return CategoryCodes(
+            np.frombuffer(read_fully(stream, num_rows * 4), dtype='<i4'))
+    return read_strings(stream, num_rows, nulls, column_type == b'y')
+
+def read_strings(stream, count, nulls, binary=False):
+    offsets = np.frombuffer(read_fully(stream, (count + 1) * 4),
+                            dtype='<i4').tolist()
+    data = read_fully(stream, offsets[count])
+    values = np.empty(count, dtype=object)
+    for i in range(count):
+        if nulls is None or not nulls[i]:
+            value = data[offsets[i]:offsets[i + 1]]
+            values[i] = bytes(value) if binary else value.decode('utf-8')
+    return values
+
+def read_bitmap(stream, num_rows):
+    bits = np.frombuffer(read_fully(stream, (num_rows + 7) // 8), dtype=np.uint8)
+    return np.unpackbits(bits)[:num_rows].astype(bool)
+
+def read_fully(stream, size):
+    data = stream.read(size)
+    if len(data) < size:
+        raise IOError('Unexpected end of column data')
+    return data
+
+def frame_to_column_fields_list(frame, include_index):
+    field_list = []
+    for name, series in frame_columns(frame, include_index):
+        attribute = {}
+        attribute['name'] = name
+        column_type = column_block_type(series)
+        if column_type == b'b':
+            attribute['type'] = 'boolean'
+        elif column_type == b'l':
+            attribute['type'] = 'integer'
+        elif column_type == b'd':
+            attribute['type'] = 'number'
+        elif column_type == b't':
+            attribute['type'] = 'date'
+        else:
+            # including categoricals
+            attribute['type'] = 'string'
+        field_list.append(attribute)
+    return field_list
+
+def frame_columns(frame, include_index):
+    columns = []
+    if include_index == True:
+        columns.append(('index', frame.index.to_series()))
+    for att_name in frame.columns:
+        columns.append((str(att_name), frame[att_name]))
+    return columns
+
+def column_block_type(series):
+    if str(series.dtype) == 'category':
+        return b'c'
+    kind = series.dtype.kind
+    if kind == 'b':
+        return b'b'
+    elif kind in 'iu':
+        return b'l'
+    elif kind == 'f':
+        return b'd'
+    elif kind == 'M':
+        return b't'
+    return b's'
+
+def write_column_frame(frame, include_index, sink):
+    columns = frame_columns(frame, include_index)
+    for start in range(0, len(frame.index), _global_batch_rows):
+        end = min(start + _global_batch_rows, len(frame.index))
+        sink.write(struct.pack('<l', end - start))
+        for name, series in columns:
+            write_column_block(series.iloc[start:end], start == 0, sink)
+    sink.write(struct.pack('<l', 0))
+
+def write_column_block(series, first, sink):
+    column_type = column_block_type(series)
+    nulls = None
+    if column_type == b'c':
+        # all the categories go with the first batch
+        categories = []
+        if first:
+            categories = [text_value(value) for value in series.cat.categories]
+        sink.write(struct.pack('<cBl', column_type, 0, len(categories)))
+        sink.write(strings_to_bytes(categories, np.zeros(len(categories), dtype=bool)))
+        sink.write(series.cat.codes.values.astype('<i4').tobytes())
+        return
+    if column_type == b'b':
+        values = np.packbits(series.values).tobytes()
+    elif column_type == b'l':
+        values = series.values.astype('<i8').tobytes()
+    elif column_type == b'd':
+        nulls = np.isnan(series.values)
+        values = series.values.astype('<f8').tobytes()
+    elif column_type == b't':
+        if getattr(series.dt, 'tz', None) is not None:
+            series = series.dt.tz_localize(None)
+        nulls = pd.isnull(series).values
+        values = series.values.astype('datetime64[ms]').astype('<i8').tobytes()
+    else:
+        nulls = np.array([is_missing(value) for value in series], dtype=bool)
+        values = strings_to_bytes(
+            [None if missing else text_value(value)
+             for value, missing in zip(series, nulls)], nulls)
+    if nulls is not None and nulls.any():
+        sink.write(struct.pack('<cB', column_type, 1))
+        sink.write(np.packbits(nulls).tobytes())
+    else:
+        sink.write(struct.pack('<cB', column_type, 0))
+    sink.write(values)
+
+def strings_to_bytes(values, nulls):
+    offsets = np.zeros(len(values) + 1, dtype='<i4')
+    data = bytearray()
+    for i, value in enumerate(values):
+        if not nulls[i]:
+            data += value.encode('utf-8')
+        offsets[i + 1] = len(data)
+    return offsets.tobytes() + bytes(data)
+
+def frame_to_arrow_table(frame, include_index):
+    names = []
+    arrays = []
+    if include_index == True:
+        names.append('index')
+        arrays.append(series_to_arrow(frame.index.to_series()))
+    for att_name in frame.columns:
+        names.append(str(att_name))
+        arrays.append(series_to_arrow(frame[att_name]))
+    return pa.Table.from_arrays(arrays, names)
+
+def series_to_arrow(series):
+    # normalize to the column types that the Java side decodes -
+    # int64, float64, bool, naive timestamps and utf8
+    kind = series.dtype.kind
+    if kind == 'b':
+        return pa.array(series, type=pa.bool_())
+    elif kind in 'iu':
+        return pa.array(series.astype('int64'), type=pa.int64())
+    elif kind == 'f':
+        return pa.array(series, type=pa.float64())
+    elif str(series.dtype).startswith('datetime'):
+        if getattr(series.dt, 'tz', None) is not None:
+            series = series.dt.tz_localize(None)
+        return pa.array(series).cast(pa.timestamp('ms'), safe=False)
+    values = [None if is_missing(value) else text_value(value) for value in series]
+    return pa.array(values, type=pa.string())
+
+def is_missing(value):
+    try:
+        return value is None or bool(pd.isnull(value))
+    except (TypeError, ValueError):
+        return False
+
+def text_value(value):
+    if _global_python3 is True:
+        return str(value)
+    if isinstance(value, unicode):
+        return value
+    if isinstance(value, str):
+        return value.decode('utf-8', 'replace')
+    return unicode(value)
+
+def arrow_schema_to_fields_list(schema):
+    field_list = []
+    for field in schema:
+        attribute = {}
+        attribute['name'] = field.name
+        if field.type == pa.bool_():
+            attribute['type'] = 'boolean'
+        elif field.type == pa.int64():
+            attribute['type'] = 'integer'
+        elif field.type == pa.float64():
+            attribute['type'] = 'number'
+        elif str(field.type).startswith('timestamp'):
+            attribute['type'] = 'date'
+        else:
+            attribute['type'] = 'string'
+        field_list.append(attribute)
+    return field_list
 
 def frame_to_fields_list(frame, include_index):
     field_list = []
@@ -227,43 +712,185 @@ def frame_to_fields_list(frame, include_index):
     return field_list
 
 def send_response(response, isJson):
+    if isJson is True and _global_request_id is not None:
+        response['request_id'] = _global_request_id
+    if isJson is True and _global_msgpack:
+        # answer in the codec that the command arrived in
+        send_bytes(msgpack.packb(response, use_bin_type=_global_python3))
+        return
     if isJson is True:
         response = json.dumps(response)
 
     if _global_python3 is True:
-        _global_connection.sendall(struct.pack('>L', len(response.encode('utf-8'))))
-        _global_connection.sendall(response.encode('utf-8'))
+        send_bytes(response.encode('utf-8'))
     else:
-        _global_connection.sendall(struct.pack('>L', len(response)))
-        _global_connection.sendall(response)
+        send_bytes(response)
 
 
-def receive_message(isJson):
-    size = 0
-    length = None
-    if _global_python3 is True:
-        length = bytearray()
+def send_bytes(data):
+    if len(data) < 65536:
+        # one send for small messages, rather than a separate tiny one for the size
+        _global_connection.sendall(struct.pack('>L', len(data)) + data)
     else:
-        length = ''
-    while len(length) < 4:
-        if _global_python3 is True:
-            length += _global_connection.recv(4);
-        else:
-            length += _global_connection.recv(4);
+        _global_connection.sendall(struct.pack('>L', len(data)))
+        _global_connection.sendall(data)
 
-    size = struct.unpack('>L', length)[0]
 
-    data = ''
+def receive_bytes(size):
+    data = None
+    if _global_python3 is True:
+        data = bytearray()
+    else:
+        data = ''
     while len(data) < size:
-        if _global_python3 is True:
-            data += _global_connection.recv(size).decode('ascii',"backslashreplace");
-        else:
-            data += _global_connection.recv(size);
+        chunk = _global_connection.recv(size - len(data))
+        if not chunk:
+            raise IOError('Connection closed while receiving data')
+        data += chunk
+    return data
+
+
+def get_compression(name):
+    """Returns the (compress, decompress) pair for the named compression, or
+    None if name is None or not available"""
+    if name is None:
+        return None
+    return _global_compressions.get(name)
+
+
+class ChunkWriter(io.RawIOBase):
+    """Sends everything written to it as a series of length delimited
+    chunks. finish() sends any remaining data and the zero length chunk
+    that terminates the payload. With a compression, each chunk holds the
+    uncompressed size of a block followed by the compressed block (or the
+    block itself if compressing it does not make it smaller)"""
+    compressed_block_size = 1024 * 1024
+
+    def __init__(self, compression=None):
+        self._buffer = bytearray()
+        self._compression = compression
+        self._block_size = ChunkReader.buffer_size
+        if compression is not None:
+            self._block_size = ChunkWriter.compressed_block_size
+
+    def writable(self):
+        return True
+
+    def write(self, b):
+        self._buffer += b
+        if len(self._buffer) >= self._block_size:
+            self._send_chunk()
+        return len(b)
+
+    def _send_chunk(self):
+        if len(self._buffer) > 0:
+            if self._compression is None:
+                send_bytes(self._buffer)
+            else:
+                block = bytes(self._buffer)
+                body = self._compression[0](block)
+                if len(body) >= len(block):
+                    body = block
+                _global_connection.sendall(
+                    struct.pack('>LL', len(body) + 4, len(block)))
+                _global_connection.sendall(body)
+            self._buffer = bytearray()
+
+    def finish(self):
+        self._send_chunk()
+        _global_connection.sendall(struct.pack('>L', 0))
+
+
+class ChunkReader(io.RawIOBase):
+    """Reads a payload sent as a series of length delimited chunks, terminated
+    by a zero length chunk, straight from the connection. With a compression,
+    each chunk is decompressed as it arrives (see ChunkWriter). Kettle sends
+    abort_marker in place of a chunk length to abandon the payload part way
+    through, which makes reading fail"""
+    buffer_size = 64 * 1024
+    abort_marker = 0xFFFFFFFF
+
+    def __init__(self, compression=None):
+        self._chunk = b''
+        self._pos = 0
+        self._done = False
+        self._compression = compression
+        self.aborted = False
+
+    def readable(self):
+        return True
+
+    def readinto(self, b):
+        while self._pos >= len(self._chunk):
+            if self._done:
+                return 0
+            size = struct.unpack('>L', receive_bytes(4))[0]
+            if size == 0:
+                self._done = True
+                self._chunk = b''
+                return 0
+            if size == ChunkReader.abort_marker:
+                self._done = True
+                self.aborted = True
+                self._chunk = b''
+                raise IOError('Kettle abandoned the rows part way through')
+            self._chunk = receive_bytes(size)
+            if self._compression is not None:
+                raw_size = struct.unpack('>L', bytes(self._chunk[0:4]))[0]
+                if size - 4 == raw_size:
+                    self._chunk = self._chunk[4:]
+                else:
+                    self._chunk = self._compression[1](bytes(self._chunk[4:]),
+                                                       raw_size)
+                    if len(self._chunk) != raw_size:
+                        raise IOError('Corrupt compressed block received')
+            self._pos = 0
+        n = min(len(b), len(self._chunk) - self._pos)
+        b[:n] = self._chunk[self._pos:self._pos + n]
+        self._pos += n
+        return n
+
+    def drain(self):
+        """Consume any chunks that the parser did not need (e.g. after the
+        end of an arrow stream, or following a parse error)"""
+        while not self._done:
+            self._pos = len(self._chunk)
+            self.readinto(bytearray(0))
+
+
+def receive_message(isJson):
+    # read the whole message as raw bytes and decode it once - decoding each
+    # partial recv on its own mangles multi-byte utf-8 characters
+    size = struct.unpack('>L', receive_bytes(4))[0]
+    data = receive_bytes(size)
+    if isJson is True and _global_msgpack_available:
+        global _global_msgpack
+        # json commands start with '{', msgpack ones with a map marker
+        _global_msgpack = is_msgpack_map(data)
+        if _global_msgpack:
+            return msgpack_loads(data)
+    if _global_python3 is True:
+        data = data.decode('utf-8')
     if isJson is True:
         return json.loads(data)
     return data
 
 
+def is_msgpack_map(data):
+    if len(data) == 0:
+        return False
+    marker = struct.unpack('B', data[:1])[0]
+    return 0x80 <= marker <= 0x8f or marker == 0xde or marker == 0xdf
+
+
+def msgpack_loads(data):
+    try:
+        return msgpack.unpackb(data, raw=False)
+    except TypeError:
+        # msgpack < 0.5.2
+        return msgpack.unpackb(data, encoding='utf-8')
+
+
 def ack_command_err(message):
     err_response = {}
     err_response['response'] = 'error'
@@ -286,34 +913,171 @@ def get_variable(var_name):
 
 def execute_script(message):
     if 'script' in message:
-        script = message['script']
-        tOut = sys.stdout
-        tErr = sys.stderr
-        output = StringIO()
-        error = StringIO()
-        if message_debug(message):
-            print('Executing script...\n\n' + script)
-        sys.stdout = output
-        sys.stderr = error
-        try:
-            exec (script, _global_env)
-        except Exception:
-            print('Got an exception executing script')
-            traceback.print_exc(file=error)
-        sys.stdout = tOut
-        sys.stderr = tErr
-        # sys.stdout = sys.__stdout__
-        # sys.stderr = sys.__stderr__
+        script_out, script_error = run_script(message['script'],
+                                              message_debug(message))
         ok_response = {}
         ok_response['response'] = 'ok'
-        ok_response['script_out'] = output.getvalue()
-        ok_response['script_error'] = error.getvalue()
+        ok_response['script_out'] = script_out
+        ok_response['script_error'] = script_error
         send_response(ok_response, True)
     else:
         error = 'execute script json message does not contain a script entry!'
         ack_command_err(error)
 
 
+def register_script(message):
+    global _global_script_count
+    if 'script' in message:
+        script = message['script']
+        script_ids = _global_script_ids.setdefault(_global_namespace, {})
+        script_id = script_ids.get(script)
+        if script_id is None:
+            try:
+                code = compile(script, '<string>', 'exec')
+            except Exception:
+                ack_command_err(traceback.format_exc())
+                return
+            _global_script_count += 1
+            script_id = 'script%d' % _global_script_count
+            _global_scripts[script_id] = code
+            script_ids[script] = script_id
+        ok_response = {}
+        ok_response['response'] = 'ok'
+        ok_response['script_id'] = script_id
+        send_response(ok_response, True)
+    else:
+        ack_command_err('register script message does not contain a script '
+                        'entry!')
+
+
+def execute_script_by_id(message):
+    script_id = message.get('script_id')
+    if script_id in _global_scripts:
+        script_out, script_error = run_script(None, message_debug(message),
+                                              script_id)
+        ok_response = {}
+        ok_response['response'] = 'ok'
+        ok_response['script_out'] = script_out
+        ok_response['script_error'] = script_error
+        send_response(ok_response, True)
+    else:
+        ack_command_err('unknown script id ' + str(script_id))
+
+
+def run_script(script, debug, script_id=None):
+    # runs the registered script with the given id, if there is one
+    tOut = sys.stdout
+    tErr = sys.stderr
+    output = StringIO()
+    error = StringIO()
+    if debug:
+        if script_id is not None:
+            print('Executing registered script ' + script_id + '...\n')
+        else:
+            print('Executing script...\n\n' + script)
+    sys.stdout = output
+    sys.stderr = error
+    try:
+        if script_id is not None:
+            exec (_global_scripts[script_id], _global_env)
+        else:
+            exec (script, _global_env)
+    except Exception:
+        print('Got an exception executing script')
+        traceback.print_exc(file=error)
+    sys.stdout = tOut
+    sys.stderr = tErr
+    # sys.stdout = sys.__stdout__
+    # sys.stderr = sys.__stderr__
+    return output.getvalue(), error.getvalue()
+
+
+def set_namespace(message):
+    global _global_env
+    global _global_namespace
+    namespace = message.get('namespace')
+    if namespace is None:
+        _global_env = _global_default_env
+    else:
+        _global_env = _global_namespaces.setdefault(namespace, {})
+    _global_namespace = namespace
+    ack_command_ok()
+
+
+def drop_namespace(message):
+    global _global_env
+    global _global_namespace
+    namespace = message.get('namespace')
+    for script_id in _global_script_ids.pop(namespace, {}).values():
+        del _global_scripts[script_id]
+    env = _global_namespaces.pop(namespace, None)
+    if env is not None:
+        if env is _global_env:
+            _global_env = _global_default_env
+            _global_namespace = None
+        env.clear()
+        gc.collect()
+    ack_command_ok()
+
+
+def preload_modules(message):
+    # import modules up front, so that the first script that uses them
+    # doesn't pay for it. Modules that can't be imported are reported back
+    # rather than failing the command
+    failed = []
+    for module in message.get('modules', []):
+        try:
+            importlib.import_module(module)
+        except Exception:
+            failed.append(module)
+    ok_response = {}
+    ok_response['response'] = 'ok'
+    ok_response['failed_modules'] = failed
+    send_response(ok_response, True)
+
+
+def set_kettle_vars(message):
+    if 'kettle_vars' in message:
+        _global_env['kettle_vars'] = message['kettle_vars']
+        ack_command_ok()
+    else:
+        ack_command_err('set kettle vars message does not contain a '
+                        'kettle_vars entry!')
+
+
+def execute_and_fetch(message):
+    # optionally execute a script (or a registered one, by id), then report
+    # whether each of the named variables is set, its type and - for anything
+    # but a frame - its value, all in one response. Frame rows are still fetched with get_frame, unless
+    # frame_as_string asks for frames to be returned in their string form
+    ok_response = {}
+    ok_response['response'] = 'ok'
+    if 'script' in message or 'script_id' in message:
+        script_out, script_error = run_script(message.get('script'),
+                                              message_debug(message),
+                                              message.get('script_id'))
+        ok_response['script_out'] = script_out
+        ok_response['script_error'] = script_error
+    frame_as_string = message.get('frame_as_string', False)
+    variables = []
+    for var_name in message.get('variable_names', []):
+        var_value = get_variable(var_name)
+        variable = {}
+        variable['variable_name'] = var_name
+        variable['variable_exists'] = var_value is not None
+        if var_value is not None:
+            var_type = variable_type(var_value)
+            variable['type'] = var_type
+            if var_type == 'image':
+                variable['encoding'] = 'base64'
+                variable['image_data'] = image_as_encoded_string(var_value)
+            elif var_type != 'dataframe' or frame_as_string:
+                variable['variable_value'] = str(var_value)
+        variables.append(variable)
+    ok_response['variables'] = variables
+    send_response(ok_response, True)
+
+
 def send_variable_is_set(message):
     if 'variable_name' in message:
         var_name = message['variable_name']
@@ -341,17 +1105,21 @@ def send_variable_type(message):
             ok_response = {}
             ok_response['response'] = 'ok'
             ok_response['variable_name'] = var_name
-            ok_response['type'] = 'unknown'
-            if type(var_value) is pd.DataFrame:
-                ok_response['type'] = 'dataframe'
-            elif type(var_value) is plt.Figure:
-                ok_response['type'] = 'image'
+            ok_response['type'] = variable_type(var_value)
             send_response(ok_response, True)
     else:
         ack_command_err(
             'send variable type json message does not contain a variable_name entry!')
 
 
+def variable_type(var_value):
+    if type(var_value) is pd.DataFrame:
+        return 'dataframe'
+    elif type(var_value) is plt.Figure:
+        return 'image'
+    return 'unknown'
+
+
 def send_variable_value(message):
     if 'variable_encoding' in message:
         encoding = message['variable_encoding']
@@ -509,4 +1277,56 @@ def is_nan(s):
         return False
 
 
-runServer()
+def runForkServer():
+    # imports the libraries (and any modules Kettle asks for) once, and then
+    # forks a server for each session that Kettle starts. Kettle sends the
+    # address for each new server as a line on stdin, and gets back its pid on
+    # stdout. The forked servers share the imported modules' memory with this
+    # process until they write to it
+    global _global_env_checked
+    global _global_startup_debug
+    _global_env_checked = check_environment()
+    for module in os.environ.get('PENTAHO_CPYTHON_PRELOAD', '').split(','):
+        if module.strip() != '':
+            try:
+                importlib.import_module(module.strip())
+            except Exception:
+                pass
+    # forked servers are not waited for
+    signal.signal(signal.SIGCHLD, signal.SIG_IGN)
+    requests = sys.__stdin__
+    replies = sys.__stdout__
+    while 1:
+        line = requests.readline()
+        if not line:
+            # Kettle has gone
+            break
+        args = line.rstrip('\n').split('\t')
+        pid = os.fork()
+        if pid == 0:
+            try:
+                signal.signal(signal.SIGCHLD, signal.SIG_DFL)
+                # let go of the pipes to Kettle, so that the fork server still
+                # sees Kettle close them
+                devnull = os.open(os.devnull, os.O_RDWR)
+                os.dup2(devnull, requests.fileno())
+                os.dup2(devnull, replies.fileno())
+                os.close(devnull)
+                sys.argv = [sys.argv[0]] + args
+                _global_startup_debug = len(args) > 1 and args[1] == 'debug'
+                runServer()
+            finally:
+                os._exit(0)
+        replies.write(str(pid) + '\n')
+        replies.flush()
+
+
+def main():
+    if len(sys.argv) > 3 and sys.argv[3] == 'forkserver':
+        runForkServer()
+    else:
+        runServer()
+
+
+if __name__ == '__main__':
+    main()
@@ -37,10 +37,15 @@ import org.pentaho.di.trans.step.StepMetaInterface;
 import org.pentaho.di.trans.step.errorhandling.StreamInterface;
 import org.pentaho.di.trans.steps.reservoirsampling.ReservoirSamplingData;
 import org.pentaho.python.PythonSession;
+import org.pentaho.python.PythonSessionPool;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 /**
  * Step that executes a python script using CPython. The step can accept 0 or more incoming row sets. Row
@@ -67,6 +72,16 @@ public class CPythonScriptExecutor extends BaseStep implements StepInterface {
 
   protected boolean m_noInputRowSets = false;
 
+  /**
+   * The batch executing in python in the background while the next batch is read, if any
+   */
+  protected PendingBatch m_pendingBatch;
+
+  /**
+   * The number of times a batch can still be retried after the python server has died
+   */
+  protected int m_retriesLeft;
+
   public CPythonScriptExecutor( StepMeta stepMeta, StepDataInterface stepData, int copyNr, TransMeta transMeta,
       Trans trans ) {
     super( stepMeta, stepData, copyNr, transMeta, trans );
@@ -76,6 +91,7 @@ public class CPythonScriptExecutor extends BaseStep implements StepInterface {
     if ( super.init( stepMeta, stepData ) ) {
       m_meta = (CPythonScriptExecutorMeta) stepMeta;
       m_data = (CPythonScriptExecutorData) stepData;
+      m_retriesLeft = Integer.getInteger( PythonSession.CPYTHON_RETRIES_PROPERTY_KEY, 2 );
 
       try {
         if ( Const.isEmpty( m_meta.getScript() ) && Const.isEmpty( m_meta.getScriptToLoad() ) ) {
@@ -104,6 +120,10 @@ public class CPythonScriptExecutor extends BaseStep implements StepInterface {
           }
         }
 
+        if ( m_meta.getBindKettleVars() ) {
+          m_data.m_kettleVars = CPythonScriptExecutorData.kettleVariables( this );
+        }
+
         if ( !m_data.m_includeInputAsOutput ) {
           m_data.m_includeInputAsOutput = m_meta.getIncludeInputAsOutput();
         }
@@ -122,6 +142,26 @@ public class CPythonScriptExecutor extends BaseStep implements StepInterface {
     return false;
   }
 
+  @Override public void dispose( StepMetaInterface smi, StepDataInterface sdi ) {
+    if ( m_pendingBatch != null ) {
+      // the step has stopped, so the batch's output is no longer wanted - but python has to finish with it
+      try {
+        m_pendingBatch.await();
+      } catch ( KettleException ex ) {
+        logDebug( ex.getMessage() );
+      }
+      m_pendingBatch = null;
+    }
+    PythonSessionPool.LeaseStats leaseStats = PythonSession.getLeaseStats( this );
+    if ( leaseStats != null && leaseStats.m_leases > 0 ) {
+      logDetailed( BaseMessages.getString( PKG, "CPythonScriptExecutor.Message.SessionLeases", leaseStats ) );
+    }
+    // free the frames and variables this step created in python
+    CPythonScriptExecutorData.disposePySession( this, getLogChannel() );
+
+    super.dispose( smi, sdi );
+  }
+
   @Override public boolean processRow( StepMetaInterface smi, StepDataInterface sdi ) throws KettleException {
 
     if ( first ) {
@@ -259,9 +299,16 @@ public class CPythonScriptExecutor extends BaseStep implements StepInterface {
   protected void processBatch( boolean allDone ) throws KettleException {
     PythonSession session = null;
 
+    if ( m_pendingBatch != null && m_pendingBatch.isDone() ) {
+      // output the previous batch as soon as python has finished with it, rather than once the next batch is full
+      finishPendingBatch();
+    }
+
     try {
       if ( !m_noInputRowSets && !m_meta.getDoingReservoirSampling() && m_data.m_incomingRowSets.size() >= 1 ) {
         boolean framesAdded = false;
+        String scriptId = null;
+        Map<Integer, CompletableFuture<Void>> framesSent = new LinkedHashMap<Integer, CompletableFuture<Void>>();
         for ( int i = 0; i < m_data.m_frameBuffers.size(); i++ ) {
           List<Object[]> frameBuffer = m_data.m_frameBuffers.get( i );
           if ( frameBuffer.size() == m_data.m_batchSize || ( allDone && frameBuffer.size() > 0 ) ) {
@@ -272,8 +319,15 @@ public class CPythonScriptExecutor extends BaseStep implements StepInterface {
                 .getString( PKG, "CPythonScriptExecutor.Message.PushingBatchIntoPandasDataFrame", //$NON-NLS-1$
                     frameBuffer.size(), frameName ) );
 
-            session = CPythonScriptExecutorData.acquirePySession( this, getLogChannel(), this );
-            rowsToPyDataFrame( session, m_data.m_incomingRowSets.get( i ).getRowMeta(), frameBuffer, frameName );
+            if ( session == null ) {
+              // the previous batch's frames are about to be replaced, so it has to be finished with first
+              finishPendingBatch();
+              session = acquirePySession();
+              scriptId = registerScript( session, m_data.m_script );
+            }
+            framesSent.put( i, session
+                .rowsToPythonDataFrameAsync( m_data.m_incomingRowSets.get( i ).getRowMeta(), frameBuffer,
+                    frameName ) );
             framesAdded = true;
           } else {
             framesAdded = false;
@@ -281,15 +335,21 @@ public class CPythonScriptExecutor extends BaseStep implements StepInterface {
         }
 
         if ( framesAdded ) {
-          executeScriptAndProcessResult( session, m_meta.getContinueOnUnsetVars() );
-          //clean the current frame buffers
-          for ( List<Object[]> frame : m_data.m_frameBuffers ) {
-            frame.clear();
+          // execute in the background while the next batch is read. The pending batch releases the session
+          startPendingBatch( session, scriptId, framesSent );
+          session = null;
+        } else {
+          for ( CompletableFuture<Void> frameSent : framesSent.values() ) {
+            PythonSession.join( frameSent );
           }
         }
+
+        if ( allDone ) {
+          finishPendingBatch();
+        }
       } else if ( !m_noInputRowSets && allDone ) {
         boolean framesAdded = false;
-        session = CPythonScriptExecutorData.acquirePySession( this, getLogChannel(), this );
+        session = acquirePySession();
 
         // grab all the reservoirs an push to python; then process result
         logDetailed( BaseMessages.getString( PKG, "CPythonScriptExecutor.Message.RetrievingReservoirs" ) );
@@ -310,7 +370,7 @@ public class CPythonScriptExecutor extends BaseStep implements StepInterface {
               List<Object[]> sampleSpliced = new ArrayList<Object[]>();
               for ( int k = 0; k < sample.size(); k++ ) {
                 Object[] objects = sample.get( k );
-                session = CPythonScriptExecutorData.acquirePySession( this, getLogChannel(), this );
+                session = acquirePySession();
                 sampleSpliced.clear();
                 sampleSpliced.add( objects );
                 rowsToPyDataFrame( session, m_data.m_incomingRowSets.get( j ).getRowMeta(), sampleSpliced, frameName );
@@ -319,7 +379,7 @@ public class CPythonScriptExecutor extends BaseStep implements StepInterface {
                 executeScriptAndProcessResult( session, m_meta.getContinueOnUnsetVars() );
 
                 if ( session != null ) {
-                  CPythonScriptExecutorData.releasePySession( this );
+                  releasePySession();
                 }
               }
 
@@ -334,117 +394,352 @@ public class CPythonScriptExecutor extends BaseStep implements StepInterface {
         }
       } else if ( m_noInputRowSets ) {
         // just get results from script as we have no inputs to us
-        session = CPythonScriptExecutorData.acquirePySession( this, getLogChannel(), this );
+        session = acquirePySession();
         executeScriptAndProcessResult( session, m_meta.getContinueOnUnsetVars() );
       }
     } finally {
       if ( session != null ) {
-        PythonSession.releaseSession( this );
+        releasePySession();
+      }
+    }
+  }
+
+  /**
+   * Start executing the script on the frames just sent, in the background. The rows of the batch are handed over to
+   * the pending batch, and the next batch is read into new buffers.
+   *
+   * @param session    the python session, which is released when the script has executed
+   * @param scriptId   the id of the registered script
+   * @param framesSent the transfers of the batch's frames into python, by frame index
+   */
+  protected void startPendingBatch( PythonSession session, String scriptId,
+      Map<Integer, CompletableFuture<Void>> framesSent ) {
+    List<String> varsToGet = m_meta.getPythonVariablesToGet();
+    CompletableFuture<PythonSession.ScriptResultAndVariables> executed =
+        session.executeScriptByIdAndFetchVariablesAsync( scriptId, varsToGet, varsToGet.size() > 1 )
+            .whenComplete( new BiConsumer<PythonSession.ScriptResultAndVariables, Throwable>() {
+              @Override public void accept( PythonSession.ScriptResultAndVariables result, Throwable failure ) {
+                PythonSession.releaseSession( CPythonScriptExecutor.this );
+              }
+            } );
+    m_pendingBatch = new PendingBatch( session, framesSent, executed, m_data.m_frameBuffers );
+
+    m_data.m_frameBuffers = new ArrayList<List<Object[]>>();
+    for ( int i = 0; i < m_pendingBatch.m_frameBuffers.size(); i++ ) {
+      m_data.m_frameBuffers.add( new ArrayList<Object[]>() );
+    }
+  }
+
+  /**
+   * Wait for the pending batch (if any) to execute, and output its result. If the python server died, the batch is
+   * sent to a new server and executed again.
+   *
+   * @throws KettleException if a problem occurs
+   */
+  protected void finishPendingBatch() throws KettleException {
+    PendingBatch batch = m_pendingBatch;
+    if ( batch == null ) {
+      return;
+    }
+    m_pendingBatch = null;
+
+    PythonSession.ScriptResultAndVariables result = null;
+    try {
+      result = batch.await();
+    } catch ( KettleException ex ) {
+      if ( !canRetry( batch.m_session, ex ) ) {
+        throw ex;
       }
     }
+    PythonSession session = acquirePySession();
+    try {
+      while ( result == null ) {
+        try {
+          result = executeBatch( session, batch );
+        } catch ( KettleException ex ) {
+          if ( !canRetry( session, ex ) ) {
+            throw ex;
+          }
+          // the dead session is replaced once released
+          releasePySession();
+          session = acquirePySession();
+        }
+      }
+      processScriptResult( session, result, m_meta.getContinueOnUnsetVars(),
+          new OutputRowWriter( batch.m_frameBuffers ) );
+    } finally {
+      releasePySession();
+    }
+  }
+
+  /**
+   * Send a batch's frames to python and execute the script, synchronously
+   *
+   * @param session the python session
+   * @param batch   the batch
+   * @return the script output and variables
+   * @throws KettleException if a problem occurs
+   */
+  protected PythonSession.ScriptResultAndVariables executeBatch( PythonSession session, PendingBatch batch )
+      throws KettleException {
+    String scriptId = registerScript( session, m_data.m_script );
+    for ( int i : batch.m_framesSent.keySet() ) {
+      rowsToPyDataFrame( session, m_data.m_incomingRowSets.get( i ).getRowMeta(), batch.m_frameBuffers.get( i ),
+          environmentSubstitute( m_meta.getFrameNames().get( i ) ) );
+    }
+    List<String> varsToGet = m_meta.getPythonVariablesToGet();
+    return session.executeScriptByIdAndFetchVariables( scriptId, varsToGet, varsToGet.size() > 1 );
+  }
+
+  /**
+   * Acquire this step's python session, waiting for one if they are all in use
+   *
+   * @return the session
+   * @throws KettleException if a session can't be acquired
+   */
+  protected PythonSession acquirePySession() throws KettleException {
+    return CPythonScriptExecutorData.acquirePySession( this, getLogChannel(), this );
+  }
+
+  /**
+   * Release this step's python session so that other steps can use it
+   */
+  protected void releasePySession() {
+    CPythonScriptExecutorData.releasePySession( this );
+  }
+
+  /**
+   * Decide whether a failed batch can be retried: only if the python server died, and the step has retries left
+   *
+   * @param session the session the batch failed on
+   * @param failure the failure
+   * @return true to retry the batch
+   */
+  protected boolean canRetry( PythonSession session, KettleException failure ) {
+    if ( m_retriesLeft <= 0 || session.isAlive( 1000 ) ) {
+      return false;
+    }
+    m_retriesLeft--;
+    logError( BaseMessages.getString( PKG, "CPythonScriptExecutor.Message.RetryingBatch", failure.getMessage() ) );
+    return true;
   }
 
   protected void executeScriptAndProcessResult( PythonSession session, boolean continueOnUnsetVars )
       throws KettleException {
-    executeScript( session, m_data.m_script );
+    List<String> varsToGet = m_meta.getPythonVariablesToGet();
+
+    // execute the script and find out about the variables to get (fetching the values of any that are not frames) in
+    // one round trip. Frames are only a possibility when there is a single variable to get
+    PythonSession.ScriptResultAndVariables result =
+        session.executeScriptByIdAndFetchVariables( registerScript( session, m_data.m_script ), varsToGet,
+            varsToGet.size() > 1 );
+    processScriptResult( session, result, continueOnUnsetVars, new OutputRowWriter() );
+  }
+
+  protected void processScriptResult( PythonSession session, PythonSession.ScriptResultAndVariables result,
+      boolean continueOnUnsetVars, final OutputRowWriter writer ) throws KettleException {
+    List<String> varsToGet = m_meta.getPythonVariablesToGet();
+    checkScriptError( result.m_outAndErr );
 
-    Object[][] scriptOutRows = null;
-    if ( m_meta.getPythonVariablesToGet().size() == 1 ) {
+    if ( varsToGet.size() == 1 ) {
+      PythonSession.PythonVariable variable = result.m_variables.get( varsToGet.get( 0 ) );
       // check for existence first...
-      if ( !checkIfPythonVariableIsSet( session, m_meta.getPythonVariablesToGet().get( 0 ) ) ) {
+      if ( !variable.m_isSet ) {
         if ( !continueOnUnsetVars ) {
-          throw new KettleException( BaseMessages.getString( PKG, "CPythonScriptExecutor.Error.PythonVariableNotSet",
-              m_meta.getPythonVariablesToGet().get( 0 ) ) );
+          throw new KettleException(
+              BaseMessages.getString( PKG, "CPythonScriptExecutor.Error.PythonVariableNotSet", varsToGet.get( 0 ) ) );
         }
+      } else if ( variable.m_type == PythonSession.PythonVariableType.DataFrame ) {
+        // pass rows on as they arrive rather than waiting for the whole frame
+        m_data.constructOutputRowsFromFrame( session, varsToGet.get( 0 ),
+            m_meta.getIncludeFrameRowIndexAsOutputField(), getLogChannel(),
+            new PythonSession.RowsFromPythonHandler() {
+              @Override public void frameMetaReceived( RowMetaInterface outputMeta, int numRows ) {
+              }
+
+              @Override public void rowReceived( Object[] outputRow ) throws KettleException {
+                if ( !isStopped() ) {
+                  writer.putOutputRow( outputRow );
+                }
+              }
+            } );
       } else {
-        // Are we getting a variable (image/text) or a frame?
-        PythonSession.PythonVariableType
-            type =
-            getPythonVariableType( session, m_meta.getPythonVariablesToGet().get( 0 ) );
         Object[][] outputRows = new Object[1][];
-        if ( type == PythonSession.PythonVariableType.DataFrame ) {
-          outputRows =
-              m_data.constructOutputRowsFromFrame( session, m_meta.getPythonVariablesToGet().get( 0 ),
-                  m_meta.getIncludeFrameRowIndexAsOutputField(), getLogChannel() );
-          includeInputInOutput( outputRows );
-        } else {
-          outputRows[0] =
-              m_data.constructOutputRowNonFrame( session, m_meta.getPythonVariablesToGet(), continueOnUnsetVars,
-                  getLogChannel() );
-          includeInputInOutput( outputRows );
-        }
+        outputRows[0] =
+            m_data.constructOutputRowNonFrame( result.m_variables, varsToGet, continueOnUnsetVars, getLogChannel() );
+        includeInputInOutput( outputRows, writer );
       }
     } else {
       // more than one variable to get - only non-frame case
       Object[][] outputRows = new Object[1][];
       outputRows[0] =
-          m_data.constructOutputRowNonFrame( session, m_meta.getPythonVariablesToGet(), continueOnUnsetVars,
-              getLogChannel() );
-      includeInputInOutput( outputRows );
+          m_data.constructOutputRowNonFrame( result.m_variables, varsToGet, continueOnUnsetVars, getLogChannel() );
+      includeInputInOutput( outputRows, writer );
     }
   }
 
   protected void includeInputInOutput( Object[][] outputRows ) throws KettleException {
-    if ( !m_meta.getIncludeInputAsOutput() ) {
+    includeInputInOutput( outputRows, new OutputRowWriter() );
+  }
+
+  protected void includeInputInOutput( Object[][] outputRows, OutputRowWriter writer ) throws KettleException {
+    for ( Object[] r : outputRows ) {
+      writer.putOutputRow( r );
+    }
+  }
 
-      for ( Object[] r : outputRows ) {
-        putRow( m_data.m_outputRowMeta, r );
+  /**
+   * A batch whose frames are being sent to python and whose script is being executed in the background
+   */
+  protected static class PendingBatch {
+    protected final PythonSession m_session;
+
+    /**
+     * The transfers of the batch's frames into python, by frame index
+     */
+    protected final Map<Integer, CompletableFuture<Void>> m_framesSent;
+    protected final CompletableFuture<PythonSession.ScriptResultAndVariables> m_executed;
+
+    /**
+     * The rows of the batch, for output rows that include input fields
+     */
+    protected final List<List<Object[]>> m_frameBuffers;
+
+    protected PendingBatch( PythonSession session, Map<Integer, CompletableFuture<Void>> framesSent,
+        CompletableFuture<PythonSession.ScriptResultAndVariables> executed, List<List<Object[]>> frameBuffers ) {
+      m_session = session;
+      m_framesSent = framesSent;
+      m_executed = executed;
+      m_frameBuffers = frameBuffers;
+    }
+
+    /**
+     * Wait for the batch to execute
+     *
+     * @return the script output and variables
+     * @throws KettleException if sending a frame or executing the script failed
+     */
+    protected PythonSession.ScriptResultAndVariables await() throws KettleException {
+      // wait for the script first, so that the session has been released whatever happened to the frames
+      PythonSession.ScriptResultAndVariables result;
+      try {
+        result = PythonSession.join( m_executed );
+      } finally {
+        for ( CompletableFuture<Void> frameSent : m_framesSent.values() ) {
+          PythonSession.join( frameSent );
+        }
       }
+      return result;
+    }
 
-      return;
+    /**
+     * @return true if the script has executed (or failed to), so that {@link #await()} won't wait
+     */
+    protected boolean isDone() {
+      return m_executed.isDone();
+    }
+  }
+
+  /**
+   * Puts output rows one at a time, copying in the values of any input fields that are to be included in the output.
+   * Output rows correspond, in order, to the rows that were pushed into python for the current batch.
+   */
+  protected class OutputRowWriter {
+    protected List<Object[]> m_flattenedInputRows;
+    protected int[] m_rowCounts;
+    protected int m_index;
+    protected int m_rowNumber;
+
+    protected OutputRowWriter() {
+      this( m_data.m_frameBuffers );
     }
 
-    List<Object[]> flattenedInputRows = new ArrayList<Object[]>();
-    int[]
-        rowCounts =
-        new int[m_meta.getDoingReservoirSampling() ? m_data.m_reservoirSamplers.size() : m_data.m_frameBuffers.size()];
-    // RowMetaInterface[] infoMetas = new RowMetaInterface[rowCounts.length];
-    int index = 0;
-    int sum = 0;
-    if ( !m_meta.getDoingReservoirSampling() ) {
-      for ( List<Object[]> frameBuffer : m_data.m_frameBuffers ) {
-        sum += frameBuffer.size();
-        rowCounts[index++] = sum;
-        flattenedInputRows.addAll( frameBuffer );
+    /**
+     * @param frameBuffers the rows pushed into python for the batch, when not doing reservoir sampling
+     */
+    protected OutputRowWriter( List<List<Object[]>> frameBuffers ) {
+      if ( !m_meta.getIncludeInputAsOutput() ) {
+        return;
       }
-    } else {
-      for ( ReservoirSamplingData reservoirSamplingData : m_data.m_reservoirSamplers ) {
-        sum += reservoirSamplingData.getSample().size();
-        rowCounts[index++] = sum;
-        flattenedInputRows.addAll( reservoirSamplingData.getSample() );
+
+      m_flattenedInputRows = new ArrayList<Object[]>();
+      m_rowCounts =
+          new int[m_meta.getDoingReservoirSampling() ? m_data.m_reservoirSamplers.size() : frameBuffers.size()];
+      int index = 0;
+      int sum = 0;
+      if ( !m_meta.getDoingReservoirSampling() ) {
+        for ( List<Object[]> frameBuffer : frameBuffers ) {
+          sum += frameBuffer.size();
+          m_rowCounts[index++] = sum;
+          m_flattenedInputRows.addAll( frameBuffer );
+        }
+      } else {
+        for ( ReservoirSamplingData reservoirSamplingData : m_data.m_reservoirSamplers ) {
+          sum += reservoirSamplingData.getSample().size();
+          m_rowCounts[index++] = sum;
+          m_flattenedInputRows.addAll( reservoirSamplingData.getSample() );
+        }
       }
     }
 
-    index = 0;
-    for ( int i = 0; i < outputRows.length; i++ ) {
-      if ( i > rowCounts[index] ) {
-        index++;
+    protected void putOutputRow( Object[] outputRow ) throws KettleException {
+      if ( !m_meta.getIncludeInputAsOutput() ) {
+        putRow( m_data.m_outputRowMeta, outputRow );
+        return;
+      }
+
+      int i = m_rowNumber++;
+      if ( i > m_rowCounts[m_index] ) {
+        m_index++;
       }
       // get the input row meta corresponding to this row
-      RowMetaInterface associatedRowMeta = m_data.m_infoMetas.get( index );
-      if ( outputRows[i] != null ) {
+      RowMetaInterface associatedRowMeta = m_data.m_infoMetas.get( m_index );
+      if ( outputRow != null ) {
         Object[] inputRow;
         if ( m_data.m_batchSize == 1 && m_meta.getDoingReservoirSampling() ) {
-          inputRow = flattenedInputRows.get( m_data.m_rowByRowReservoirSampleIndex );
+          inputRow = m_flattenedInputRows.get( m_data.m_rowByRowReservoirSampleIndex );
         } else {
-          inputRow = flattenedInputRows.get( i );
+          inputRow = m_flattenedInputRows.get( i );
         }
         for ( ValueMetaInterface vm : m_data.m_incomingFieldsIncludedInOutputRowMeta.getValueMetaList() ) {
           int outputIndex = m_data.m_nonScriptOutputMetaIndexLookup.get( vm.getName() );
           // is this user selected input field present in the current info input row set?
           int inputIndex = associatedRowMeta.indexOfValue( vm.getName() );
           if ( inputIndex >= 0 ) {
-            outputRows[i][outputIndex] = inputRow[inputIndex];
+            outputRow[outputIndex] = inputRow[inputIndex];
           }
         }
-        putRow( m_data.m_outputRowMeta, outputRows[i] );
+        putRow( m_data.m_outputRowMeta, outputRow );
       }
     }
   }
 
   protected void executeScript( PythonSession session, String pyScript ) throws KettleException {
-    List<String> outAndErr = session.executeScript( environmentSubstitute( pyScript ) );
+    checkScriptError( session.executeScriptById( registerScript( session, pyScript ) ) );
+  }
+
+  /**
+   * Register a script with python (a no-op if it is already registered), so that it is only sent and compiled once
+   * rather than for every batch. Variables are either bound as kettle_vars - sent once to each session the step uses -
+   * or substituted into the script.
+   *
+   * @param session the python session
+   * @param pyScript the script
+   * @return the id of the registered script
+   * @throws KettleException if a problem occurs
+   */
+  protected String registerScript( PythonSession session, String pyScript ) throws KettleException {
+    if ( m_data.m_kettleVars != null ) {
+      if ( session != m_data.m_kettleVarsSession ) {
+        session.setKettleVariables( m_data.m_kettleVars );
+        m_data.m_kettleVarsSession = session;
+      }
+      return session.registerScript( pyScript );
+    }
+    return session.registerScript( environmentSubstitute( pyScript ) );
+  }
 
+  protected void checkScriptError( List<String> outAndErr ) throws KettleException {
     // TODO could add another setting to allow the user to specify if the step
     // should try to continue after a script execution error. Note that ServerUtils
     // already logs warning messages and strips them from the error output.
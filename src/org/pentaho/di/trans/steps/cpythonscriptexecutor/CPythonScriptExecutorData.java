@@ -21,6 +21,7 @@
 package org.pentaho.di.trans.steps.cpythonscriptexecutor;
 
 import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.exception.KettleException;
@@ -35,8 +36,10 @@ import org.pentaho.di.core.vfs.KettleVFS;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
+import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.steps.reservoirsampling.ReservoirSamplingData;
 import org.pentaho.python.PythonSession;
+import org.pentaho.python.PythonSessionPool;
 import org.pentaho.python.SessionException;
 
 import java.io.BufferedReader;
@@ -52,6 +55,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Data class for the CPythonScriptExecutor step
@@ -141,6 +145,17 @@ public class CPythonScriptExecutorData extends BaseStepData implements StepDataI
    */
   protected String m_script;
 
+  /**
+   * The Kettle variables to pass to python as kettle_vars, or null if variables are substituted into the script
+   */
+  protected Map<String, String> m_kettleVars;
+
+  /**
+   * The session that m_kettleVars were last sent to. They stay in the step's namespace there until the step finishes,
+   * so they are only sent again when the step is given a different session
+   */
+  protected PythonSession m_kettleVarsSession;
+
   /**
    * Lookup for output indexes
 
@@ -171,17 +186,63 @@ public class CPythonScriptExecutorData extends BaseStepData implements StepDataI
 
   protected Set<String> m_tmpSet = new HashSet<String>();
 
+  /**
+   * Metadata of the frame currently being received from python
+   */
+  protected RowMetaInterface m_frameMeta;
+
+  /**
+   * Index in the output row of each column of the frame being received (-1 if not an output field)
+   */
+  protected int[] m_frameOutputIndexes;
+
+  /**
+   * True for each column of the frame being received whose type differs from that of its output field
+   */
+  protected boolean[] m_frameOutputConvert;
+
+  /**
+   * Scripts loaded from files, keyed by file uri. Shared by all step copies, so that a file is only read again when
+   * its modification time changes
+   */
+  protected static final Map<String, LoadedScript> s_loadedScripts = new ConcurrentHashMap<String, LoadedScript>();
+
+  /**
+   * A script loaded from a file, along with the modification time of the file when it was read
+   */
+  protected static class LoadedScript {
+    protected final long m_lastModified;
+    protected final String m_script;
+
+    protected LoadedScript( long lastModified, String script ) {
+      m_lastModified = lastModified;
+      m_script = script;
+    }
+  }
+
   protected static String loadScriptFromFile( String file ) throws KettleException {
     FileObject scriptF = KettleVFS.getFileObject( file );
 
     BufferedReader br = null;
     StringBuilder b = new StringBuilder();
+    String uri = scriptF.getName().getURI();
+    long lastModified = -1;
     try {
       if ( !scriptF.exists() ) {
         throw new KettleException(
             BaseMessages.getString( PKG, "RScriptExecutorData.Error.ScriptFileDoesNotExist", file ) );
       }
 
+      try {
+        lastModified = scriptF.getContent().getLastModifiedTime();
+      } catch ( FileSystemException e ) {
+        // modification time not available - don't cache
+      }
+      LoadedScript loaded = s_loadedScripts.get( uri );
+      if ( loaded != null && lastModified >= 0 && loaded.m_lastModified == lastModified ) {
+        return loaded.m_script;
+      }
+
       InputStream is = KettleVFS.getInputStream( scriptF );
       InputStreamReader isr = new InputStreamReader( is );
       br = new BufferedReader( isr );
@@ -206,7 +267,11 @@ public class CPythonScriptExecutorData extends BaseStepData implements StepDataI
       }
     }
 
-    return b.toString();
+    String script = b.toString();
+    if ( lastModified >= 0 ) {
+      s_loadedScripts.put( uri, new LoadedScript( lastModified, script ) );
+    }
+    return script;
   }
 
   /**
@@ -234,12 +299,52 @@ public class CPythonScriptExecutorData extends BaseStepData implements StepDataI
    */
   public Object[][] constructOutputRowsFromFrame( PythonSession session, String frameName, boolean includeRowIndex,
       LogChannelInterface log ) throws KettleException {
+    final List<Object[]> outputRows = new ArrayList<Object[]>();
+    constructOutputRowsFromFrame( session, frameName, includeRowIndex, log, new PythonSession.RowsFromPythonHandler() {
+      @Override public void frameMetaReceived( RowMetaInterface outputMeta, int numRows ) {
+      }
+
+      @Override public void rowReceived( Object[] outputRow ) {
+        outputRows.add( outputRow );
+      }
+    } );
 
-    PythonSession.RowMetaAndRows fromPy = session.rowsFromPythonDataFrame( frameName, includeRowIndex );
-    RowMetaInterface frameMeta = fromPy.m_rowMeta;
-    Object[][] frameRows = fromPy.m_rows;
-    Object[][] outputRows = new Object[frameRows.length][];
+    return outputRows.toArray( new Object[outputRows.size()][] );
+  }
+
+  /**
+   * Streaming version of constructOutputRowsFromFrame. Each output row is handed to the supplied handler as soon as the
+   * corresponding frame row has arrived from python, so that it can be passed on to downstream steps straight away.
+   *
+   * @param session         the session to use
+   * @param frameName       the name of the frame to get
+   * @param includeRowIndex true if the frame's row index is to be an output field
+   * @param log             the log to use
+   * @param outputHandler   receives the output row metadata, followed by each output row
+   * @throws KettleException if a problem occurs
+   */
+  public void constructOutputRowsFromFrame( PythonSession session, String frameName, boolean includeRowIndex,
+      final LogChannelInterface log, final PythonSession.RowsFromPythonHandler outputHandler )
+      throws KettleException {
+    session.rowsFromPythonDataFrame( frameName, includeRowIndex, new PythonSession.RowsFromPythonHandler() {
+      @Override public void frameMetaReceived( RowMetaInterface frameMeta, int numRows ) throws KettleException {
+        initFrameToOutputMapping( frameMeta, log );
+        outputHandler.frameMetaReceived( m_outputRowMeta, numRows );
+      }
+
+      @Override public void rowReceived( Object[] frameRow ) throws KettleException {
+        outputHandler.rowReceived( frameRowToOutputRow( frameRow ) );
+      }
+    } );
+  }
 
+  /**
+   * Work out where each column of a frame coming from python goes in the output rows
+   *
+   * @param frameMeta the metadata of the frame
+   * @param log       the log to use
+   */
+  protected void initFrameToOutputMapping( RowMetaInterface frameMeta, LogChannelInterface log ) {
     if ( log.isDetailed() ) {
       StringBuilder colsNotDefinedInOutputMeta = new StringBuilder();
       StringBuilder colsInOutputMetaNotPresentInFrame = new StringBuilder();
@@ -267,19 +372,38 @@ public class CPythonScriptExecutorData extends BaseStepData implements StepDataI
       }
     }
 
-    for ( int i = 0; i < frameRows.length; i++ ) {
-      Object[] frameRow = frameRows[i];
-      outputRows[i] = RowDataUtil.allocateRowData( m_outputRowMeta.size() );
-      for ( int j = 0; j < frameMeta.size(); j++ ) {
-        ValueMetaInterface vmF = frameMeta.getValueMeta( j );
-        int outputIndex = m_outputRowMeta.indexOfValue( vmF.getName() );
-        if ( outputIndex >= 0 ) {
-          outputRows[i][outputIndex] = frameRow[j];
-        }
+    // frame columns can come back with a different type to the one declared in the output fields (e.g. integer
+    // columns were always returned as numbers prior to Arrow transfer), so work out which ones need converting
+    m_frameMeta = frameMeta;
+    m_frameOutputIndexes = new int[frameMeta.size()];
+    m_frameOutputConvert = new boolean[frameMeta.size()];
+    for ( int j = 0; j < frameMeta.size(); j++ ) {
+      ValueMetaInterface vmF = frameMeta.getValueMeta( j );
+      m_frameOutputIndexes[j] = m_outputRowMeta.indexOfValue( vmF.getName() );
+      m_frameOutputConvert[j] =
+          m_frameOutputIndexes[j] >= 0
+              && m_outputRowMeta.getValueMeta( m_frameOutputIndexes[j] ).getType() != vmF.getType();
+    }
+  }
+
+  /**
+   * Copy the values of a frame row into a new output row
+   *
+   * @param frameRow the row from the frame
+   * @return the output row
+   * @throws KettleException if a value can't be converted to the type of its output field
+   */
+  protected Object[] frameRowToOutputRow( Object[] frameRow ) throws KettleException {
+    Object[] outputRow = RowDataUtil.allocateRowData( m_outputRowMeta.size() );
+    for ( int j = 0; j < m_frameOutputIndexes.length; j++ ) {
+      int outputIndex = m_frameOutputIndexes[j];
+      if ( outputIndex >= 0 ) {
+        outputRow[outputIndex] = m_frameOutputConvert[j] ? m_outputRowMeta.getValueMeta( outputIndex )
+            .convertData( m_frameMeta.getValueMeta( j ), frameRow[j] ) : frameRow[j];
       }
     }
 
-    return outputRows;
+    return outputRow;
   }
 
   /**
@@ -297,6 +421,24 @@ public class CPythonScriptExecutorData extends BaseStepData implements StepDataI
    */
   public Object[] constructOutputRowNonFrame( PythonSession session, List<String> varsToGet,
       boolean continueOnUnsetVars, LogChannelInterface log ) throws KettleException {
+    // fetch all the variables in one round trip
+    return constructOutputRowNonFrame( session.fetchVariables( varsToGet ), varsToGet, continueOnUnsetVars, log );
+  }
+
+  /**
+   * Constructs an outgoing row from variables that have already been fetched from python (see
+   * PythonSession.fetchVariables() and PythonSession.executeScriptAndFetchVariables()).
+   *
+   * @param variables           the fetched variables, keyed by name
+   * @param varsToGet           the list of variables to extract from python
+   * @param continueOnUnsetVars true if we should not complain if a requested variable is not set in python after
+   *                            the script executes
+   * @param log                 the log to use
+   * @return an output row
+   * @throws KettleException if a problem occurs
+   */
+  public Object[] constructOutputRowNonFrame( Map<String, PythonSession.PythonVariable> variables,
+      List<String> varsToGet, boolean continueOnUnsetVars, LogChannelInterface log ) throws KettleException {
     Object[] outputRow = RowDataUtil.allocateRowData( m_outputRowMeta.size() );
 
     // check var names against output meta
@@ -325,7 +467,8 @@ public class CPythonScriptExecutorData extends BaseStepData implements StepDataI
 
     // get the values of the variables
     for ( String v : varsToGet ) {
-      if ( session.checkIfPythonVariableIsSet( v ) ) {
+      PythonSession.PythonVariable variable = variables.get( v );
+      if ( variable != null && variable.m_isSet ) {
         // add this to the ok list, so we can check to see if there
         // are vars defined in output meta that are not set or not
         // present in the list of vars to get
@@ -333,15 +476,14 @@ public class CPythonScriptExecutorData extends BaseStepData implements StepDataI
 
         int outputIndex = m_outputRowMeta.indexOfValue( v );
         if ( outputIndex >= 0 ) {
-          PythonSession.PythonVariableType varType = session.getPythonVariableType( v );
-          if ( varType == PythonSession.PythonVariableType.Image ) {
+          if ( variable.m_type == PythonSession.PythonVariableType.Image ) {
             if ( m_outputRowMeta.getValueMeta( outputIndex ).getType() != ValueMetaInterface.TYPE_SERIALIZABLE ) {
               throw new KettleException(
                   BaseMessages.getString( PKG, "CPythonScriptExecutor.Error.ImageDataMustBeStoredInSerializable" ) );
             }
-            outputRow[outputIndex] = session.getImageFromPython( v );
+            outputRow[outputIndex] = variable.m_image;
           } else {
-            Object varVal = session.getVariableValueFromPythonAsPlainString( v );
+            Object varVal = variable.m_value;
             if ( m_outputRowMeta.getValueMeta( outputIndex ).getType() != ValueMetaInterface.TYPE_STRING ) {
               varVal = m_outputRowMeta.getValueMeta( outputIndex )
                   //.convertData( new ValueMeta( v, ValueMetaInterface.TYPE_STRING ), varVal );
@@ -466,6 +608,23 @@ public class CPythonScriptExecutorData extends BaseStepData implements StepDataI
     return rows;
   }
 
+  /**
+   * Get the variables (including parameters) of a variable space, to pass to python as kettle_vars
+   *
+   * @param vars the variable space
+   * @return the variables, keyed by name
+   */
+  public static Map<String, String> kettleVariables( VariableSpace vars ) {
+    Map<String, String> kettleVars = new HashMap<String, String>();
+    for ( String name : vars.listVariables() ) {
+      String value = vars.getVariable( name );
+      if ( value != null ) {
+        kettleVars.put( name, value );
+      }
+    }
+    return kettleVars;
+  }
+
   public static PythonSession.RowMetaAndRows determineOutputMetaSingleVariable( Object requester,
       List<RowMetaInterface> inputMetas, CPythonScriptExecutorMeta cPythonScriptExecutorMeta, LogChannelInterface log,
       VariableSpace vars ) throws KettleException {
@@ -492,7 +651,9 @@ public class CPythonScriptExecutorData extends BaseStepData implements StepDataI
           throw new KettleException(
               BaseMessages.getString( PKG, "CPythonScriptExecutorData.Error.CantDetermineOutputMeta" ) );
         }
-        script = vars.environmentSubstitute( script );
+        if ( !cPythonScriptExecutorMeta.getBindKettleVars() ) {
+          script = vars.environmentSubstitute( script );
+        }
 
         if ( inputMetas != null && inputMetas.size() != frameNames.size() ) {
           throw new KettleException(
@@ -516,6 +677,9 @@ public class CPythonScriptExecutorData extends BaseStepData implements StepDataI
           }
         }
 
+        if ( cPythonScriptExecutorMeta.getBindKettleVars() ) {
+          session.setKettleVariables( kettleVariables( vars ) );
+        }
         List<String> outAndErrors = session.executeScript( script );
         if ( !Const.isEmpty( outAndErrors.get( 1 ) ) ) {
           throw new KettleException( outAndErrors.get( 1 ) );
@@ -548,7 +712,8 @@ public class CPythonScriptExecutorData extends BaseStepData implements StepDataI
       } catch ( Exception ex ) {
         throw new KettleException( ex );
       } finally {
-        releasePySession( requester );
+        // the random rows and script results are of no further use
+        disposePySession( requester, log );
       }
     }
   }
@@ -581,7 +746,7 @@ public class CPythonScriptExecutorData extends BaseStepData implements StepDataI
 
     PythonSession session;
     try {
-      session = PythonSession.acquireSession( requester );
+      session = PythonSession.acquireSession( requester, stopCheck( requester ) );
     } catch ( SessionException ex ) {
       throw new KettleException( ex );
     }
@@ -590,7 +755,35 @@ public class CPythonScriptExecutorData extends BaseStepData implements StepDataI
     return session;
   }
 
+  /**
+   * Build the check that lets a step give up waiting for a session once it has been stopped
+   *
+   * @param requester the object asking for a session
+   * @return the stop check, or null if the requester is not a step
+   */
+  protected static PythonSessionPool.StopCheck stopCheck( Object requester ) {
+    if ( !( requester instanceof StepInterface ) ) {
+      return null;
+    }
+
+    // don't keep a stopped step waiting for a session
+    final StepInterface step = (StepInterface) requester;
+    return new PythonSessionPool.StopCheck() {
+      @Override public boolean isStopped() {
+        return step.isStopped();
+      }
+    };
+  }
+
   protected static void releasePySession( Object requester ) {
     PythonSession.releaseSession( requester );
   }
+
+  protected static void disposePySession( Object requester, LogChannelInterface log ) {
+    try {
+      PythonSession.disposeSession( requester );
+    } catch ( KettleException ex ) {
+      log.logError( ex.getMessage(), ex );
+    }
+  }
 }
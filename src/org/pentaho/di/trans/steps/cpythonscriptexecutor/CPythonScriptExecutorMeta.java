@@ -81,6 +81,7 @@ public class CPythonScriptExecutorMeta extends BaseStepMeta implements StepMetaI
   protected static final String FRAME_NAMES_TAG = "frame_names";
   protected static final String PY_VARS_TO_GET_TAG = "py_vars_to_get";
   protected static final String CONTINUE_ON_UNSET_VARS_TAG = "continue_on_unset_vars";
+  protected static final String BIND_KETTLE_VARS_TAG = "bind_kettle_vars";
   protected static final String SINGLE_FRAME_NAME_PREFIX_TAG = "frame_name";
   protected static final String INCOMING_STEP_NAMES_TAG = "incoming_step_names";
   protected static final String SINGLE_INCOMING_STEP_NAME_TAG = "step_name";
@@ -137,6 +138,12 @@ public class CPythonScriptExecutorMeta extends BaseStepMeta implements StepMetaI
    */
   protected boolean m_continueOnUnsetVars;
 
+  /**
+   * Whether to pass Kettle variables to python as a dictionary (kettle_vars) rather than substituting them into the
+   * script text. The script then stays the same from batch to batch, so python only has to compile it once.
+   */
+  protected boolean m_bindKettleVars;
+
   /**
    * Default Rows to Process
    */
@@ -430,6 +437,26 @@ public class CPythonScriptExecutorMeta extends BaseStepMeta implements StepMetaI
     return m_continueOnUnsetVars;
   }
 
+  /**
+   * Set whether to pass Kettle variables to python as the kettle_vars dictionary instead of substituting them into
+   * the script.
+   *
+   * @param bindKettleVars true to bind variables rather than substitute them
+   */
+  public void setBindKettleVars( boolean bindKettleVars ) {
+    m_bindKettleVars = bindKettleVars;
+  }
+
+  /**
+   * Get whether to pass Kettle variables to python as the kettle_vars dictionary instead of substituting them into
+   * the script.
+   *
+   * @return true to bind variables rather than substitute them
+   */
+  public boolean getBindKettleVars() {
+    return m_bindKettleVars;
+  }
+
   public RowMetaInterface determineOutputRowMeta( RowMetaInterface[] info, VariableSpace space )
       throws KettleException {
 
@@ -584,6 +611,7 @@ public class CPythonScriptExecutorMeta extends BaseStepMeta implements StepMetaI
     m_reservoirSamplingSize = "";
     m_frameNames = new ArrayList<>();
     m_continueOnUnsetVars = false;
+    m_bindKettleVars = false;
     m_pyVarsToGet = new ArrayList<>();
     m_script = BaseMessages.getString( PKG, "CPythonScriptExecutorMeta.InitialScriptText" ); //$NON-NLS-1$
   }
@@ -640,6 +668,7 @@ public class CPythonScriptExecutorMeta extends BaseStepMeta implements StepMetaI
     buff.append( XMLHandler.addTagValue( LOAD_SCRIPT_AT_RUNTIME_TAG, getLoadScriptAtRuntime() ) );
     buff.append( XMLHandler.addTagValue( SCRIPT_TO_LOAD_TAG, getScriptToLoad() ) );
     buff.append( XMLHandler.addTagValue( CONTINUE_ON_UNSET_VARS_TAG, getContinueOnUnsetVars() ) );
+    buff.append( XMLHandler.addTagValue( BIND_KETTLE_VARS_TAG, getBindKettleVars() ) );
     buff.append( XMLHandler.addTagValue( PY_VARS_TO_GET_TAG, varListToString() ) );
     buff.append(
         XMLHandler.addTagValue( INCLUDE_FRAME_ROW_INDEX_AS_OUTPUT_FIELD_TAG, getIncludeFrameRowIndexAsOutputField() ) );
@@ -710,6 +739,11 @@ public class CPythonScriptExecutorMeta extends BaseStepMeta implements StepMetaI
       setContinueOnUnsetVars( continueOnUnset.equalsIgnoreCase( "Y" ) );
     }
 
+    String bindKettleVars = XMLHandler.getTagValue( stepnode, BIND_KETTLE_VARS_TAG );
+    if ( !Const.isEmpty( bindKettleVars ) ) {
+      setBindKettleVars( bindKettleVars.equalsIgnoreCase( "Y" ) );
+    }
+
     String pyVars = XMLHandler.getTagValue( stepnode, PY_VARS_TO_GET_TAG );
     if ( !Const.isEmpty( pyVars ) ) {
       stringToVarList( pyVars );
@@ -776,6 +810,7 @@ public class CPythonScriptExecutorMeta extends BaseStepMeta implements StepMetaI
     String scriptToLoad = rep.getStepAttributeString( id_step, SCRIPT_TO_LOAD_TAG );
     setScriptToLoad( Const.isEmpty( scriptToLoad ) ? "" : scriptToLoad ); //$NON-NLS-1$
     setContinueOnUnsetVars( rep.getStepAttributeBoolean( id_step, CONTINUE_ON_UNSET_VARS_TAG ) );
+    setBindKettleVars( rep.getStepAttributeBoolean( id_step, BIND_KETTLE_VARS_TAG ) );
     String pyVars = rep.getStepAttributeString( id_step, PY_VARS_TO_GET_TAG );
     if ( !Const.isEmpty( pyVars ) ) {
       stringToVarList( pyVars );
@@ -820,6 +855,7 @@ public class CPythonScriptExecutorMeta extends BaseStepMeta implements StepMetaI
     rep.saveStepAttribute( id_transformation, id_step, LOAD_SCRIPT_AT_RUNTIME_TAG, getLoadScriptAtRuntime() );
     rep.saveStepAttribute( id_transformation, id_step, SCRIPT_TO_LOAD_TAG, getScriptToLoad() );
     rep.saveStepAttribute( id_transformation, id_step, CONTINUE_ON_UNSET_VARS_TAG, getContinueOnUnsetVars() );
+    rep.saveStepAttribute( id_transformation, id_step, BIND_KETTLE_VARS_TAG, getBindKettleVars() );
     rep.saveStepAttribute( id_transformation, id_step, PY_VARS_TO_GET_TAG, varListToString() );
     rep.saveStepAttribute( id_transformation, id_step, INCLUDE_FRAME_ROW_INDEX_AS_OUTPUT_FIELD_TAG,
         getIncludeFrameRowIndexAsOutputField() );
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Pentaho Data Science
+ * <p/>
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ * <p/>
+ * ******************************************************************************
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.cpythonscriptexecutor;
+
+import org.pentaho.di.core.annotations.KettleLifecyclePlugin;
+import org.pentaho.di.core.lifecycle.KettleLifecycleListener;
+import org.pentaho.di.core.lifecycle.LifecycleException;
+import org.pentaho.di.core.logging.LogChannel;
+import org.pentaho.python.PythonSession;
+
+/**
+ * Starts python in the background when Kettle loads the plugin, if the pentaho.cpython.warmup property asks for it.
+ * Checking the python environment and starting the servers can take several seconds, which would otherwise be added
+ * to the first transformation that uses the step.
+ */
+@KettleLifecyclePlugin( id = "CPythonWarmUp", name = "CPython warm-up" )
+public class CPythonWarmUpListener implements KettleLifecycleListener {
+
+  @Override public void onEnvironmentInit() throws LifecycleException {
+    int servers = Integer.getInteger( PythonSession.CPYTHON_WARMUP_PROPERTY_KEY, 0 );
+    if ( servers > 0 ) {
+      PythonSession.warmUp( servers, new LogChannel( "CPython" ) );
+    }
+  }
+
+  @Override public void onEnvironmentShutdown() {
+    // the servers are shut down by their own shutdown hooks
+  }
+}
@@ -99,8 +99,8 @@ public class CPythonScriptExecutorDialog extends BaseStepDialog implements StepD
   private TextVar wtvRowsToProcessSize, wtvReservoirSamplingSize, wtvRandomSeed;
   private Button wbReservoirSampling;
   //options group
-  private Label wlIncludeInputAsOutput, wlContinueOnUnsetVars;
-  private Button wbIncludeInputAsOutput, wbContinueOnUnsetVars;
+  private Label wlIncludeInputAsOutput, wlContinueOnUnsetVars, wlBindKettleVars;
+  private Button wbIncludeInputAsOutput, wbContinueOnUnsetVars, wbBindKettleVars;
   //table
   private TableView wtvInputFrames;
 
@@ -416,13 +416,33 @@ public class CPythonScriptExecutorDialog extends BaseStepDialog implements StepD
         new StyledTextComp( transMeta, wcScript, SWT.MULTI | SWT.LEFT | SWT.BORDER | SWT.H_SCROLL | SWT.V_SCROLL, "" );
     props.setLook( wstcScriptEditor, Props.WIDGET_STYLE_FIXED );
 
+    wlBindKettleVars = new Label( wcScript, SWT.RIGHT );
+    props.setLook( wlBindKettleVars );
+    wlBindKettleVars.setText( "Pass variables as kettle_vars" );
+    wlBindKettleVars.setToolTipText(
+        "Make Kettle variables available to the script in the kettle_vars dictionary rather than "
+            + "substituting them into the script text" );
+    fd = new FormData();
+    fd.bottom = new FormAttachment( 100, -MARGIN * 2 );
+    fd.left = new FormAttachment( 0, 0 );
+    fd.right = new FormAttachment( FIRST_LABEL_RIGHT_PERCENTAGE, 0 );
+    wlBindKettleVars.setLayoutData( fd );
+
+    wbBindKettleVars = new Button( wcScript, SWT.CHECK );
+    props.setLook( wbBindKettleVars );
+    fd = new FormData();
+    fd.left = new FormAttachment( wlBindKettleVars, MARGIN );
+    fd.right = new FormAttachment( SECOND_PROMPT_RIGHT_PERCENTAGE, 0 );
+    fd.bottom = new FormAttachment( 100, -MARGIN * 2 );
+    wbBindKettleVars.setLayoutData( fd );
+
     wlContinueOnUnsetVars = new Label( wcScript, SWT.RIGHT );
     props.setLook( wlContinueOnUnsetVars );
     wlContinueOnUnsetVars.setText( "Continue on unset variables" );
     wlContinueOnUnsetVars.setToolTipText(
         "Don't raise an error if specified variables are not set in python after " + "script has executed" );
     fd = new FormData();
-    fd.bottom = new FormAttachment( 100, -MARGIN * 2 );
+    fd.bottom = new FormAttachment( wbBindKettleVars, -MARGIN );
     fd.left = new FormAttachment( 0, 0 );
     fd.right = new FormAttachment( FIRST_LABEL_RIGHT_PERCENTAGE, 0 );
     wlContinueOnUnsetVars.setLayoutData( fd );
@@ -432,7 +452,7 @@ public class CPythonScriptExecutorDialog extends BaseStepDialog implements StepD
     fd = new FormData();
     fd.left = new FormAttachment( wlContinueOnUnsetVars, MARGIN );
     fd.right = new FormAttachment( SECOND_PROMPT_RIGHT_PERCENTAGE, 0 );
-    fd.bottom = new FormAttachment( 100, -MARGIN * 2 );
+    fd.bottom = new FormAttachment( wbBindKettleVars, -MARGIN );
     wbContinueOnUnsetVars.setLayoutData( fd );
 
     wlPyVarsToGet = new Label( wcScript, SWT.RIGHT );
@@ -887,6 +907,7 @@ public class CPythonScriptExecutorDialog extends BaseStepDialog implements StepD
     wbIncludeInputAsOutput.setSelection( meta.getIncludeInputAsOutput() );
     setItemText(wtvPyVarsToGet, listToString( meta.getPythonVariablesToGet() ) );
     wbContinueOnUnsetVars.setSelection( meta.getContinueOnUnsetVars() );
+    wbBindKettleVars.setSelection( meta.getBindKettleVars() );
     wstcScriptEditor.setText( meta.getScript() == null ? "" : meta.getScript() ); //$NON-NLS-1$
     wbLoadScriptFile.setSelection( meta.getLoadScriptAtRuntime() );
     setItemText(wtvScriptLocation, meta.getScriptToLoad());
@@ -975,6 +996,7 @@ public class CPythonScriptExecutorDialog extends BaseStepDialog implements StepD
     meta.setReservoirSamplingSize( wtvReservoirSamplingSize.getText() );
     meta.setRandomSeed( wtvRandomSeed.getText() );
     meta.setContinueOnUnsetVars( wbContinueOnUnsetVars.getSelection() );
+    meta.setBindKettleVars( wbBindKettleVars.getSelection() );
     meta.setPythonVariablesToGet( stringToList( wtvPyVarsToGet.getText() ) );
     meta.setIncludeInputAsOutput( wbIncludeInputAsOutput.getSelection() );
     meta.setScript( wstcScriptEditor.getText() );
@@ -0,0 +1,264 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.apache.arrow.flatbuf.Buffer;
+import org.apache.arrow.flatbuf.Field;
+import org.apache.arrow.flatbuf.FloatingPoint;
+import org.apache.arrow.flatbuf.Int;
+import org.apache.arrow.flatbuf.Message;
+import org.apache.arrow.flatbuf.MessageHeader;
+import org.apache.arrow.flatbuf.Precision;
+import org.apache.arrow.flatbuf.RecordBatch;
+import org.apache.arrow.flatbuf.Schema;
+import org.apache.arrow.flatbuf.TimeUnit;
+import org.apache.arrow.flatbuf.Timestamp;
+import org.apache.arrow.flatbuf.Type;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.i18n.BaseMessages;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Decodes an Apache Arrow IPC stream written by pyarrow into Kettle rows. The python server normalizes frame columns
+ * to int64, float64, bool, timestamp and utf8 before writing, so these are the column types handled here, along
+ * with binary (as written for Kettle binary fields), which decodes to byte arrays.
+ */
+public class ArrowFrameDecoder {
+
+  protected static Class<?> PKG = ServerUtils.class;
+
+  /**
+   * Decode an Arrow IPC stream into rows. Each record batch is decoded as soon as it has been read and its rows are
+   * passed to the handler, so only one batch is held in memory at a time.
+   *
+   * @param inputStream the stream to read from
+   * @param meta        the Kettle metadata of the frame's columns
+   * @param handler     the handler to pass rows to
+   * @throws KettleException if a problem occurs
+   */
+  public static void readFrame( InputStream inputStream, RowMetaInterface meta,
+      PythonSession.RowsFromPythonHandler handler ) throws KettleException {
+    Schema schema = null;
+
+    try {
+      Message message;
+      while ( ( message = readMessage( inputStream ) ) != null ) {
+        ByteBuffer body = readBody( inputStream, message.bodyLength() );
+        switch ( message.headerType() ) {
+          case MessageHeader.Schema:
+            schema = (Schema) message.header( new Schema() );
+            if ( schema.fieldsLength() != meta.size() ) {
+              throw new KettleException(
+                  BaseMessages.getString( PKG, "ServerUtils.Error.ArrowSchemaMismatch", schema.fieldsLength(),
+                      meta.size() ) );
+            }
+            break;
+          case MessageHeader.RecordBatch:
+            if ( schema == null ) {
+              throw new KettleException( BaseMessages.getString( PKG, "ServerUtils.Error.ArrowNoSchema" ) );
+            }
+            RecordBatch batch = (RecordBatch) message.header( new RecordBatch() );
+            Object[][] rows = new Object[(int) batch.length()][];
+            for ( int i = 0; i < rows.length; i++ ) {
+              rows[i] = new Object[meta.size()];
+            }
+            int bufferIndex = 0;
+            for ( int j = 0; j < meta.size(); j++ ) {
+              bufferIndex = decodeColumn( schema.fields( j ), batch, bufferIndex, body, rows, j );
+            }
+            for ( Object[] row : rows ) {
+              handler.rowReceived( row );
+            }
+            break;
+          default:
+            throw new KettleException( BaseMessages
+                .getString( PKG, "ServerUtils.Error.ArrowUnsupportedMessage",
+                    MessageHeader.name( message.headerType() ) ) );
+        }
+      }
+    } catch ( IOException ex ) {
+      throw new KettleException( ex );
+    }
+  }
+
+  /**
+   * Read the next encapsulated message's metadata
+   *
+   * @param inputStream the stream to read from
+   * @return the message or null at the end of the stream
+   * @throws IOException if a problem occurs
+   */
+  protected static Message readMessage( InputStream inputStream ) throws IOException {
+    int metadataLength = readIntLittleEndian( inputStream );
+    if ( metadataLength == ArrowFrameEncoder.CONTINUATION_MARKER ) {
+      metadataLength = readIntLittleEndian( inputStream );
+    }
+    // pre 0.15 streams don't have the continuation marker
+    if ( metadataLength == 0 ) {
+      return null;
+    }
+
+    byte[] metadata = new byte[metadataLength];
+    readFully( inputStream, metadata, metadataLength );
+    return Message.getRootAsMessage( ByteBuffer.wrap( metadata ) );
+  }
+
+  protected static ByteBuffer readBody( InputStream inputStream, long bodyLength ) throws IOException {
+    byte[] body = new byte[(int) bodyLength];
+    readFully( inputStream, body, body.length );
+    return ByteBuffer.wrap( body ).order( ByteOrder.LITTLE_ENDIAN );
+  }
+
+  /**
+   * Decode one column of a record batch into the rows
+   *
+   * @return the index of the first buffer of the next column
+   */
+  protected static int decodeColumn( Field field, RecordBatch batch, int bufferIndex, ByteBuffer body,
+      Object[][] rows, int column ) throws KettleException {
+    int numRows = (int) batch.length();
+    Buffer validity = batch.buffers( bufferIndex );
+    Buffer values = batch.buffers( bufferIndex + 1 );
+    boolean hasNulls = batch.nodes( column ).nullCount() > 0 && validity.length() > 0;
+    int validityStart = (int) validity.offset();
+    int valuesStart = (int) values.offset();
+
+    switch ( field.typeType() ) {
+      case Type.Int: {
+        Int type = (Int) field.type( new Int() );
+        if ( type.bitWidth() != 64 ) {
+          throw unsupportedType( field );
+        }
+        for ( int i = 0; i < numRows; i++ ) {
+          if ( !hasNulls || isSet( body, validityStart, i ) ) {
+            rows[i][column] = body.getLong( valuesStart + i * 8 );
+          }
+        }
+        return bufferIndex + 2;
+      }
+      case Type.FloatingPoint: {
+        FloatingPoint type = (FloatingPoint) field.type( new FloatingPoint() );
+        if ( type.precision() != Precision.DOUBLE ) {
+          throw unsupportedType( field );
+        }
+        for ( int i = 0; i < numRows; i++ ) {
+          if ( !hasNulls || isSet( body, validityStart, i ) ) {
+            rows[i][column] = body.getDouble( valuesStart + i * 8 );
+          }
+        }
+        return bufferIndex + 2;
+      }
+      case Type.Bool: {
+        for ( int i = 0; i < numRows; i++ ) {
+          if ( !hasNulls || isSet( body, validityStart, i ) ) {
+            rows[i][column] = isSet( body, valuesStart, i );
+          }
+        }
+        return bufferIndex + 2;
+      }
+      case Type.Timestamp: {
+        Timestamp type = (Timestamp) field.type( new Timestamp() );
+        for ( int i = 0; i < numRows; i++ ) {
+          if ( !hasNulls || isSet( body, validityStart, i ) ) {
+            rows[i][column] = toLocalDate( body.getLong( valuesStart + i * 8 ), type.unit() );
+          }
+        }
+        return bufferIndex + 2;
+      }
+      case Type.Utf8:
+      case Type.Binary: {
+        Buffer data = batch.buffers( bufferIndex + 2 );
+        byte[] bytes = body.array();
+        int dataStart = body.arrayOffset() + (int) data.offset();
+        boolean binary = field.typeType() == Type.Binary;
+        for ( int i = 0; i < numRows; i++ ) {
+          if ( !hasNulls || isSet( body, validityStart, i ) ) {
+            int start = dataStart + body.getInt( valuesStart + i * 4 );
+            int end = dataStart + body.getInt( valuesStart + ( i + 1 ) * 4 );
+            rows[i][column] =
+                binary ? Arrays.copyOfRange( bytes, start, end ) : new String( bytes, start, end - start,
+                    ArrowFrameEncoder.UTF8 );
+          }
+        }
+        return bufferIndex + 3;
+      }
+      default:
+        throw unsupportedType( field );
+    }
+  }
+
+  /**
+   * Timestamps coming from python are naive (wall clock) times, so interpret them in the local time zone - the reverse
+   * of what is done when sending dates to python
+   */
+  protected static Date toLocalDate( long value, short unit ) {
+    long millis;
+    switch ( unit ) {
+      case TimeUnit.SECOND:
+        millis = value * 1000L;
+        break;
+      case TimeUnit.MICROSECOND:
+        millis = value / 1000L;
+        break;
+      case TimeUnit.NANOSECOND:
+        millis = value / 1000000L;
+        break;
+      default:
+        millis = value;
+    }
+    long utc = millis - ServerUtils.TZ.getOffset( millis );
+    return new Date( millis - ServerUtils.TZ.getOffset( utc ) );
+  }
+
+  protected static boolean isSet( ByteBuffer body, int bitmapStart, int i ) {
+    return ( body.get( bitmapStart + ( i >> 3 ) ) & ( 1 << ( i & 7 ) ) ) != 0;
+  }
+
+  protected static KettleException unsupportedType( Field field ) {
+    return new KettleException( BaseMessages
+        .getString( PKG, "ServerUtils.Error.ArrowUnsupportedType", field.name(), Type.name( field.typeType() ) ) );
+  }
+
+  protected static int readIntLittleEndian( InputStream inputStream ) throws IOException {
+    byte[] bytes = new byte[4];
+    readFully( inputStream, bytes, 4 );
+    return ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN ).getInt();
+  }
+
+  protected static void readFully( InputStream inputStream, byte[] bytes, int length ) throws IOException {
+    for ( int numRead = 0; numRead < length; ) {
+      int currentNumRead = inputStream.read( bytes, numRead, length - numRead );
+      if ( currentNumRead < 0 ) {
+        throw new IOException( BaseMessages.getString( PKG, "ServerUtils.Error.UnexpectedEndOfStream" ) );
+      }
+      numRead += currentNumRead;
+    }
+  }
+}
@@ -0,0 +1,429 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+import org.apache.arrow.flatbuf.Binary;
+import org.apache.arrow.flatbuf.Bool;
+import org.apache.arrow.flatbuf.Buffer;
+import org.apache.arrow.flatbuf.Field;
+import org.apache.arrow.flatbuf.FieldNode;
+import org.apache.arrow.flatbuf.FloatingPoint;
+import org.apache.arrow.flatbuf.Int;
+import org.apache.arrow.flatbuf.Message;
+import org.apache.arrow.flatbuf.MessageHeader;
+import org.apache.arrow.flatbuf.MetadataVersion;
+import org.apache.arrow.flatbuf.Precision;
+import org.apache.arrow.flatbuf.RecordBatch;
+import org.apache.arrow.flatbuf.Schema;
+import org.apache.arrow.flatbuf.TimeUnit;
+import org.apache.arrow.flatbuf.Timestamp;
+import org.apache.arrow.flatbuf.Type;
+import org.apache.arrow.flatbuf.Utf8;
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.i18n.BaseMessages;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Encodes Kettle rows as an Apache Arrow IPC stream (schema message, record batches, end-of-stream marker). Column
+ * buffers are written straight from the Kettle row data, so only the small flatbuffer metadata classes from
+ * arrow-format are needed (no arrow-vector/off-heap allocator). On the python side the stream is read with
+ * pyarrow.ipc and converted to a pandas data frame without any text parsing.
+ * <p>
+ * Binary fields become python bytes objects. Serializable fields hold arbitrary java objects that python can't use,
+ * so frames with them are refused.
+ */
+public class ArrowFrameEncoder {
+
+  protected static Class<?> PKG = ServerUtils.class;
+
+  /**
+   * Precedes the metadata length of each encapsulated IPC message
+   */
+  protected static final int CONTINUATION_MARKER = 0xFFFFFFFF;
+
+  /**
+   * Arrow buffers (and the metadata block of each message) are aligned to 8 bytes
+   */
+  protected static final int ALIGNMENT = 8;
+
+  protected static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  protected static final byte[] PADDING = new byte[ALIGNMENT];
+
+  /**
+   * Maximum number of rows per record batch
+   */
+  protected static final int RECORD_BATCH_SIZE = 8192;
+
+  /**
+   * The buffers making up a single encoded column
+   */
+  protected static class EncodedColumn {
+    protected long m_nullCount;
+    protected byte[][] m_buffers;
+    protected int[] m_lengths;
+
+    protected EncodedColumn( int numBuffers ) {
+      m_buffers = new byte[numBuffers][];
+      m_lengths = new int[numBuffers];
+    }
+
+    protected void setBuffer( int index, byte[] buffer, int length ) {
+      m_buffers[index] = buffer;
+      m_lengths[index] = length;
+    }
+  }
+
+  /**
+   * Write the supplied rows to the output stream as an Arrow IPC stream
+   *
+   * @param meta         the metadata of the rows
+   * @param rows         the rows to write
+   * @param outputStream the stream to write to
+   * @throws KettleException if a problem occurs
+   */
+  public static void writeFrame( RowMetaInterface meta, List<Object[]> rows, OutputStream outputStream )
+      throws KettleException {
+    checkFieldTypes( meta );
+    try {
+      writeMessage( schemaMessage( meta ), null, outputStream );
+
+      // encode in bounded record batches so that only one batch worth of column buffers is held at a time
+      for ( int start = 0; start < rows.size(); start += RECORD_BATCH_SIZE ) {
+        List<Object[]> batch = rows.subList( start, Math.min( start + RECORD_BATCH_SIZE, rows.size() ) );
+        EncodedColumn[] columns = new EncodedColumn[meta.size()];
+        for ( int i = 0; i < meta.size(); i++ ) {
+          columns[i] = encodeColumn( meta.getValueMeta( i ), i, batch );
+        }
+        writeMessage( recordBatchMessage( batch.size(), columns ), columns, outputStream );
+      }
+
+      writeEndOfStream( outputStream );
+    } catch ( IOException ex ) {
+      throw new KettleException( ex );
+    }
+  }
+
+  /**
+   * Check that the values of every field can be sent to python, before any of the frame is written
+   *
+   * @param meta the metadata of the rows
+   * @throws KettleException if a field holds values that python can't use
+   */
+  protected static void checkFieldTypes( RowMetaInterface meta ) throws KettleException {
+    for ( int i = 0; i < meta.size(); i++ ) {
+      ValueMetaInterface vm = meta.getValueMeta( i );
+      if ( vm.getType() == ValueMetaInterface.TYPE_SERIALIZABLE ) {
+        throw new KettleException( BaseMessages.getString( PKG, "ServerUtils.Error.UnsupportedFieldType", vm.getName(),
+            vm.getTypeDesc() ) );
+      }
+    }
+  }
+
+  /**
+   * Get the Arrow type used to transfer values of the supplied Kettle value meta
+   *
+   * @param vm the Kettle value meta
+   * @return the Arrow type (one of the org.apache.arrow.flatbuf.Type constants)
+   */
+  protected static byte arrowType( ValueMetaInterface vm ) {
+    switch ( vm.getType() ) {
+      case ValueMetaInterface.TYPE_NUMBER:
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        return Type.FloatingPoint;
+      case ValueMetaInterface.TYPE_INTEGER:
+        return Type.Int;
+      case ValueMetaInterface.TYPE_DATE:
+      case ValueMetaInterface.TYPE_TIMESTAMP:
+        return Type.Timestamp;
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return Type.Bool;
+      case ValueMetaInterface.TYPE_BINARY:
+        return Type.Binary;
+      default:
+        return Type.Utf8;
+    }
+  }
+
+  protected static byte[] schemaMessage( RowMetaInterface meta ) {
+    FlatBufferBuilder builder = new FlatBufferBuilder();
+
+    int[] fields = new int[meta.size()];
+    for ( int i = 0; i < meta.size(); i++ ) {
+      ValueMetaInterface vm = meta.getValueMeta( i );
+      int name = builder.createString( vm.getName() );
+      byte type = arrowType( vm );
+      int typeOffset;
+      switch ( type ) {
+        case Type.FloatingPoint:
+          typeOffset = FloatingPoint.createFloatingPoint( builder, Precision.DOUBLE );
+          break;
+        case Type.Int:
+          typeOffset = Int.createInt( builder, 64, true );
+          break;
+        case Type.Timestamp:
+          Timestamp.startTimestamp( builder );
+          Timestamp.addUnit( builder, TimeUnit.MILLISECOND );
+          typeOffset = Timestamp.endTimestamp( builder );
+          break;
+        case Type.Bool:
+          Bool.startBool( builder );
+          typeOffset = Bool.endBool( builder );
+          break;
+        case Type.Binary:
+          Binary.startBinary( builder );
+          typeOffset = Binary.endBinary( builder );
+          break;
+        default:
+          Utf8.startUtf8( builder );
+          typeOffset = Utf8.endUtf8( builder );
+      }
+      // pyarrow insists on a (possibly empty) children vector
+      int children = Field.createChildrenVector( builder, new int[0] );
+
+      Field.startField( builder );
+      Field.addName( builder, name );
+      Field.addNullable( builder, true );
+      Field.addTypeType( builder, type );
+      Field.addType( builder, typeOffset );
+      Field.addChildren( builder, children );
+      fields[i] = Field.endField( builder );
+    }
+    int fieldsVector = Schema.createFieldsVector( builder, fields );
+    Schema.startSchema( builder );
+    Schema.addFields( builder, fieldsVector );
+    int schema = Schema.endSchema( builder );
+
+    return finishMessage( builder, MessageHeader.Schema, schema, 0 );
+  }
+
+  protected static byte[] recordBatchMessage( int numRows, EncodedColumn[] columns ) {
+    FlatBufferBuilder builder = new FlatBufferBuilder();
+
+    int numBuffers = 0;
+    for ( EncodedColumn column : columns ) {
+      numBuffers += column.m_buffers.length;
+    }
+
+    // struct vectors are built back to front
+    RecordBatch.startNodesVector( builder, columns.length );
+    for ( int i = columns.length - 1; i >= 0; i-- ) {
+      FieldNode.createFieldNode( builder, numRows, columns[i].m_nullCount );
+    }
+    int nodes = builder.endVector();
+
+    long[] bufferOffsets = new long[numBuffers];
+    long bodyLength = 0;
+    int b = 0;
+    for ( EncodedColumn column : columns ) {
+      for ( int length : column.m_lengths ) {
+        bufferOffsets[b++] = bodyLength;
+        bodyLength += padded( length );
+      }
+    }
+    RecordBatch.startBuffersVector( builder, numBuffers );
+    for ( int i = columns.length - 1; i >= 0; i-- ) {
+      for ( int j = columns[i].m_lengths.length - 1; j >= 0; j-- ) {
+        Buffer.createBuffer( builder, bufferOffsets[--b], columns[i].m_lengths[j] );
+      }
+    }
+    int buffers = builder.endVector();
+
+    RecordBatch.startRecordBatch( builder );
+    RecordBatch.addLength( builder, numRows );
+    RecordBatch.addNodes( builder, nodes );
+    RecordBatch.addBuffers( builder, buffers );
+    int recordBatch = RecordBatch.endRecordBatch( builder );
+
+    return finishMessage( builder, MessageHeader.RecordBatch, recordBatch, bodyLength );
+  }
+
+  protected static byte[] finishMessage( FlatBufferBuilder builder, byte headerType, int header, long bodyLength ) {
+    Message.startMessage( builder );
+    Message.addVersion( builder, MetadataVersion.V4 );
+    Message.addHeaderType( builder, headerType );
+    Message.addHeader( builder, header );
+    Message.addBodyLength( builder, bodyLength );
+    builder.finish( Message.endMessage( builder ) );
+
+    return builder.sizedByteArray();
+  }
+
+  /**
+   * Encode the values of a single field into Arrow buffers
+   *
+   * @param vm    the value meta of the field
+   * @param index the index of the field in the rows
+   * @param rows  the rows
+   * @return the encoded column
+   * @throws KettleValueException if a problem occurs
+   */
+  protected static EncodedColumn encodeColumn( ValueMetaInterface vm, int index, List<Object[]> rows )
+      throws KettleValueException {
+    int numRows = rows.size();
+    byte[] validity = new byte[( numRows + 7 ) / 8];
+    long nullCount = 0;
+    EncodedColumn column;
+
+    switch ( arrowType( vm ) ) {
+      case Type.FloatingPoint:
+      case Type.Int:
+      case Type.Timestamp: {
+        ByteBuffer values = ByteBuffer.allocate( numRows * 8 ).order( ByteOrder.LITTLE_ENDIAN );
+        for ( int i = 0; i < numRows; i++ ) {
+          Object value = rows.get( i )[index];
+          if ( value == null || vm.isNull( value ) ) {
+            nullCount++;
+            values.putLong( 0L );
+            continue;
+          }
+          setBit( validity, i );
+          switch ( vm.getType() ) {
+            case ValueMetaInterface.TYPE_INTEGER:
+              values.putLong( vm.getInteger( value ) );
+              break;
+            case ValueMetaInterface.TYPE_DATE:
+            case ValueMetaInterface.TYPE_TIMESTAMP:
+              // python converts millis since epoch into UTC-centered dates, so shift by the local offset
+              long time = vm.getDate( value ).getTime();
+              values.putLong( time + ServerUtils.TZ.getOffset( time ) );
+              break;
+            default:
+              values.putDouble( vm.getNumber( value ) );
+          }
+        }
+        column = new EncodedColumn( 2 );
+        column.setBuffer( 1, values.array(), numRows * 8 );
+        break;
+      }
+      case Type.Bool: {
+        byte[] values = new byte[validity.length];
+        for ( int i = 0; i < numRows; i++ ) {
+          Object value = rows.get( i )[index];
+          if ( value == null || vm.isNull( value ) ) {
+            nullCount++;
+            continue;
+          }
+          setBit( validity, i );
+          if ( vm.getBoolean( value ) ) {
+            setBit( values, i );
+          }
+        }
+        column = new EncodedColumn( 2 );
+        column.setBuffer( 1, values, values.length );
+        break;
+      }
+      default: {
+        ByteBuffer offsets = ByteBuffer.allocate( ( numRows + 1 ) * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+        byte[] data = new byte[Math.max( 64, numRows * 16 )];
+        int dataLength = 0;
+        boolean binary = vm.getType() == ValueMetaInterface.TYPE_BINARY;
+        boolean passThrough = !binary && ServerUtils.isUtf8BinaryString( vm );
+        offsets.putInt( 0 );
+        for ( int i = 0; i < numRows; i++ ) {
+          Object value = rows.get( i )[index];
+          byte[] bytes;
+          if ( binary ) {
+            bytes = value == null ? null : vm.getBinary( value );
+          } else if ( passThrough ) {
+            // lazy conversion - the bytes as read are already utf-8
+            bytes = (byte[]) value;
+          } else {
+            String s = value == null ? null : vm.getString( value );
+            bytes = Const.isEmpty( s ) ? null : s.getBytes( UTF8 );
+          }
+          // an empty string is null in Kettle, but empty binary values stay empty
+          if ( bytes == null || ( !binary && bytes.length == 0 ) ) {
+            nullCount++;
+          } else {
+            setBit( validity, i );
+            if ( dataLength + bytes.length > data.length ) {
+              byte[] grown = new byte[Math.max( data.length * 2, dataLength + bytes.length )];
+              System.arraycopy( data, 0, grown, 0, dataLength );
+              data = grown;
+            }
+            System.arraycopy( bytes, 0, data, dataLength, bytes.length );
+            dataLength += bytes.length;
+          }
+          offsets.putInt( dataLength );
+        }
+        column = new EncodedColumn( 3 );
+        column.setBuffer( 1, offsets.array(), ( numRows + 1 ) * 4 );
+        column.setBuffer( 2, data, dataLength );
+      }
+    }
+
+    column.m_nullCount = nullCount;
+    // a validity buffer can be omitted when there are no nulls
+    column.setBuffer( 0, validity, nullCount > 0 ? validity.length : 0 );
+
+    return column;
+  }
+
+  protected static void setBit( byte[] bitmap, int i ) {
+    bitmap[i >> 3] |= 1 << ( i & 7 );
+  }
+
+  protected static long padded( long length ) {
+    return ( length + ALIGNMENT - 1 ) / ALIGNMENT * ALIGNMENT;
+  }
+
+  /**
+   * Write an encapsulated IPC message: continuation marker, little endian metadata length, padded flatbuffer
+   * metadata and then the (padded) body buffers, if any
+   */
+  protected static void writeMessage( byte[] metadata, EncodedColumn[] body, OutputStream outputStream )
+      throws IOException {
+    int metadataLength = (int) padded( metadata.length + 8 ) - 8;
+    outputStream.write( ByteBuffer.allocate( 8 ).order( ByteOrder.LITTLE_ENDIAN ).putInt( CONTINUATION_MARKER )
+        .putInt( metadataLength ).array() );
+    outputStream.write( metadata );
+    outputStream.write( PADDING, 0, metadataLength - metadata.length );
+
+    if ( body != null ) {
+      for ( EncodedColumn column : body ) {
+        for ( int i = 0; i < column.m_buffers.length; i++ ) {
+          int length = column.m_lengths[i];
+          outputStream.write( column.m_buffers[i], 0, length );
+          outputStream.write( PADDING, 0, (int) padded( length ) - length );
+        }
+      }
+    }
+  }
+
+  protected static void writeEndOfStream( OutputStream outputStream ) throws IOException {
+    outputStream.write( ByteBuffer.allocate( 8 ).order( ByteOrder.LITTLE_ENDIAN ).putInt( CONTINUATION_MARKER )
+        .putInt( 0 ).array() );
+  }
+}
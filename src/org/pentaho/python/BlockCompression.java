@@ -0,0 +1,197 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdException;
+import org.pentaho.di.i18n.BaseMessages;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Block compression of frame payloads exchanged with the python server. Each chunk of a payload is compressed on its
+ * own (see CompressedChunkedOutputStream), so implementations only ever deal with whole blocks. Implementations are
+ * stateless and can be shared between threads.
+ */
+public abstract class BlockCompression {
+
+  protected static Class<?> PKG = ServerUtils.class;
+
+  /**
+   * Zstandard - fast enough to pay off even over a local socket. Needs the zstd-jni native library
+   */
+  public static final String ZSTD = "zstd";
+
+  /**
+   * zlib (deflate) - always available, but slower than a local socket, so only used when asked for explicitly
+   */
+  public static final String ZLIB = "zlib";
+
+  /**
+   * Names of the compressions that are chosen automatically, in order of preference
+   */
+  public static final String[] AUTOMATIC = { ZSTD };
+
+  /**
+   * Get the compression with the given name
+   *
+   * @param name the name of the compression
+   * @return the compression, or null if it is unknown or not available in this JVM
+   */
+  public static BlockCompression forName( String name ) {
+    if ( ZLIB.equals( name ) ) {
+      return new ZlibCompression();
+    }
+    if ( ZSTD.equals( name ) ) {
+      try {
+        // loads the native library
+        Zstd.compressBound( 1 );
+        return new ZstdCompression();
+      } catch ( Throwable ex ) {
+        // zstd-jni missing, or no native library for this platform
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the name of the compression, as advertised by the python server
+   */
+  public abstract String getName();
+
+  /**
+   * Compress a block
+   *
+   * @param src    the data to compress
+   * @param offset offset of the data in src
+   * @param length the length of the data
+   * @return the compressed data
+   * @throws IOException if a problem occurs
+   */
+  public abstract byte[] compress( byte[] src, int offset, int length ) throws IOException;
+
+  /**
+   * Decompress a block
+   *
+   * @param src      the compressed data
+   * @param offset   offset of the compressed data in src
+   * @param length   length of the compressed data
+   * @param dest     the array to decompress into
+   * @param destSize the size of the decompressed data
+   * @throws IOException if a problem occurs (including when the data does not decompress to exactly destSize bytes)
+   */
+  public abstract void decompress( byte[] src, int offset, int length, byte[] dest, int destSize ) throws IOException;
+
+  protected static IOException corrupt( String name ) {
+    return new IOException( BaseMessages.getString( PKG, "ServerUtils.Error.CorruptCompressedBlock", name ) );
+  }
+
+  protected static class ZstdCompression extends BlockCompression {
+
+    protected static final int LEVEL = 1;
+
+    @Override public String getName() {
+      return ZSTD;
+    }
+
+    @Override public byte[] compress( byte[] src, int offset, int length ) throws IOException {
+      byte[] dest = new byte[(int) Zstd.compressBound( length )];
+      long size;
+      try {
+        size = Zstd.compressByteArray( dest, 0, dest.length, src, offset, length, LEVEL );
+      } catch ( ZstdException ex ) {
+        throw new IOException( ex.getMessage(), ex );
+      }
+      if ( Zstd.isError( size ) ) {
+        throw new IOException( Zstd.getErrorName( size ) );
+      }
+      return Arrays.copyOf( dest, (int) size );
+    }
+
+    @Override public void decompress( byte[] src, int offset, int length, byte[] dest, int destSize )
+        throws IOException {
+      long size;
+      try {
+        size = Zstd.decompressByteArray( dest, 0, destSize, src, offset, length );
+      } catch ( ZstdException ex ) {
+        // newer versions of zstd-jni throw rather than return an error code
+        throw corrupt( ZSTD );
+      }
+      if ( Zstd.isError( size ) || size != destSize ) {
+        throw corrupt( ZSTD );
+      }
+    }
+  }
+
+  protected static class ZlibCompression extends BlockCompression {
+
+    @Override public String getName() {
+      return ZLIB;
+    }
+
+    @Override public byte[] compress( byte[] src, int offset, int length ) {
+      Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+      try {
+        deflater.setInput( src, offset, length );
+        deflater.finish();
+        // incompressible data grows slightly - the caller sends such blocks uncompressed anyway
+        byte[] dest = new byte[length + length / 1000 + 64];
+        int size = 0;
+        while ( !deflater.finished() ) {
+          if ( size == dest.length ) {
+            dest = Arrays.copyOf( dest, dest.length * 2 );
+          }
+          size += deflater.deflate( dest, size, dest.length - size );
+        }
+        return Arrays.copyOf( dest, size );
+      } finally {
+        deflater.end();
+      }
+    }
+
+    @Override public void decompress( byte[] src, int offset, int length, byte[] dest, int destSize )
+        throws IOException {
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput( src, offset, length );
+        int size = inflater.inflate( dest, 0, destSize );
+        if ( size == destSize && !inflater.finished() ) {
+          // the output is full, but the end of the stream may not have been consumed yet
+          size += inflater.inflate( new byte[1] );
+        }
+        if ( size != destSize || !inflater.finished() ) {
+          throw corrupt( ZLIB );
+        }
+      } catch ( DataFormatException ex ) {
+        throw corrupt( ZLIB );
+      } finally {
+        inflater.end();
+      }
+    }
+  }
+}
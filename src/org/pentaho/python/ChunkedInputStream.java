@@ -0,0 +1,132 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.pentaho.di.i18n.BaseMessages;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream that reads a payload sent as a sequence of length delimited chunks, terminated by a zero length chunk
+ * (see ChunkedOutputStream). Reports end of stream at the terminating chunk; the underlying stream is never closed.
+ */
+public class ChunkedInputStream extends InputStream {
+
+  protected static Class<?> PKG = ServerUtils.class;
+
+  /**
+   * The stream that chunks are read from
+   */
+  protected InputStream m_in;
+
+  /**
+   * Bytes remaining in the current chunk
+   */
+  protected int m_remaining;
+
+  /**
+   * True once the terminating chunk has been read
+   */
+  protected boolean m_done;
+
+  public ChunkedInputStream( InputStream in ) {
+    m_in = in;
+  }
+
+  @Override public int read() throws IOException {
+    if ( !nextChunkIfNeeded() ) {
+      return -1;
+    }
+    int b = m_in.read();
+    if ( b < 0 ) {
+      throw new IOException( BaseMessages.getString( PKG, "ServerUtils.Error.UnexpectedEndOfStream" ) );
+    }
+    m_remaining--;
+    return b;
+  }
+
+  @Override public int read( byte[] b, int off, int len ) throws IOException {
+    if ( len == 0 ) {
+      return 0;
+    }
+    if ( !nextChunkIfNeeded() ) {
+      return -1;
+    }
+    int numRead = m_in.read( b, off, Math.min( len, m_remaining ) );
+    if ( numRead < 0 ) {
+      throw new IOException( BaseMessages.getString( PKG, "ServerUtils.Error.UnexpectedEndOfStream" ) );
+    }
+    m_remaining -= numRead;
+    return numRead;
+  }
+
+  @Override public int available() throws IOException {
+    return m_done ? 0 : Math.min( m_remaining, m_in.available() );
+  }
+
+  /**
+   * Consume the rest of the payload (including the terminating chunk), so that the underlying stream is positioned at
+   * the next message. Used when a reader stops early or fails part way through.
+   *
+   * @throws IOException if a problem occurs
+   */
+  public void drain() throws IOException {
+    byte[] skip = new byte[8192];
+    while ( read( skip, 0, skip.length ) >= 0 ) {
+      // discard
+    }
+  }
+
+  /**
+   * Drains the rest of the payload. The underlying stream is left open.
+   *
+   * @throws IOException if a problem occurs
+   */
+  @Override public void close() throws IOException {
+    drain();
+  }
+
+  protected boolean nextChunkIfNeeded() throws IOException {
+    while ( m_remaining == 0 ) {
+      if ( m_done ) {
+        return false;
+      }
+      byte[] sizeBytes = new byte[4];
+      for ( int numRead = 0; numRead < 4; ) {
+        int currentNumRead = m_in.read( sizeBytes, numRead, 4 - numRead );
+        if ( currentNumRead < 0 ) {
+          throw new IOException( BaseMessages.getString( PKG, "ServerUtils.Error.FailedToReadMessageSize" ) );
+        }
+        numRead += currentNumRead;
+      }
+      m_remaining = ByteBuffer.wrap( sizeBytes ).getInt();
+      if ( m_remaining == 0 ) {
+        m_done = true;
+        return false;
+      }
+    }
+    return true;
+  }
+}
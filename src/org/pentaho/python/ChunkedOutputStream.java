@@ -0,0 +1,146 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Output stream that frames everything written to it as a sequence of length delimited chunks (the same framing used
+ * by ServerUtils.writeDelimitedToOutputStream), terminated by a zero length chunk when closed. This allows a payload
+ * to be streamed to the server as it is produced, without knowing its total size up front or holding all of it in
+ * memory. Closing this stream does not close the underlying stream.
+ * <p>
+ * A payload that can't be finished (for example because a row could not be encoded) is abandoned with abort(), which
+ * sends ABORT_MARKER in place of a chunk length. The server then reports an error for the command rather than reading
+ * whatever is sent next as more of the payload.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+  /**
+   * Default size of a chunk
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * Sent in place of a chunk length to abandon the payload
+   */
+  public static final int ABORT_MARKER = 0xFFFFFFFF;
+
+  /**
+   * The stream that chunks get written to
+   */
+  protected OutputStream m_out;
+
+  /**
+   * Holds the chunk currently being filled
+   */
+  protected byte[] m_buffer;
+
+  /**
+   * Number of bytes in the current chunk
+   */
+  protected int m_count;
+
+  /**
+   * True once the terminating chunk has been written
+   */
+  protected boolean m_closed;
+
+  public ChunkedOutputStream( OutputStream out ) {
+    this( out, DEFAULT_CHUNK_SIZE );
+  }
+
+  public ChunkedOutputStream( OutputStream out, int chunkSize ) {
+    m_out = out;
+    m_buffer = new byte[chunkSize];
+  }
+
+  @Override public void write( int b ) throws IOException {
+    if ( m_count == m_buffer.length ) {
+      writeChunk();
+    }
+    m_buffer[m_count++] = (byte) b;
+  }
+
+  @Override public void write( byte[] b, int off, int len ) throws IOException {
+    while ( len > 0 ) {
+      if ( m_count == m_buffer.length ) {
+        writeChunk();
+      }
+      int toCopy = Math.min( len, m_buffer.length - m_count );
+      System.arraycopy( b, off, m_buffer, m_count, toCopy );
+      m_count += toCopy;
+      off += toCopy;
+      len -= toCopy;
+    }
+  }
+
+  /**
+   * Sends any buffered bytes as a chunk
+   *
+   * @throws IOException if a problem occurs
+   */
+  @Override public void flush() throws IOException {
+    writeChunk();
+    m_out.flush();
+  }
+
+  /**
+   * Sends any buffered bytes followed by the zero length terminating chunk. The underlying stream is left open.
+   *
+   * @throws IOException if a problem occurs
+   */
+  @Override public void close() throws IOException {
+    if ( !m_closed ) {
+      writeChunk();
+      m_closed = true;
+      m_out.write( ByteBuffer.allocate( 4 ).putInt( 0 ).array() );
+      m_out.flush();
+    }
+  }
+
+  /**
+   * Abandons the payload: any buffered bytes are dropped and the abort marker is sent instead of the terminating
+   * chunk. Does nothing if the stream has already been closed. The underlying stream is left open.
+   *
+   * @throws IOException if a problem occurs
+   */
+  public void abort() throws IOException {
+    if ( !m_closed ) {
+      m_closed = true;
+      m_count = 0;
+      m_out.write( ByteBuffer.allocate( 4 ).putInt( ABORT_MARKER ).array() );
+      m_out.flush();
+    }
+  }
+
+  protected void writeChunk() throws IOException {
+    if ( m_count > 0 ) {
+      m_out.write( ByteBuffer.allocate( 4 ).putInt( m_count ).array() );
+      m_out.write( m_buffer, 0, m_count );
+      m_count = 0;
+    }
+  }
+}
@@ -0,0 +1,208 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.apache.arrow.flatbuf.TimeUnit;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.i18n.BaseMessages;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decodes a frame of column blocks (see ColumnFrameEncoder) written by the python server into Kettle rows
+ */
+public class ColumnFrameDecoder {
+
+  protected static Class<?> PKG = ServerUtils.class;
+
+  /**
+   * Decode a frame of column blocks into rows. Each batch is decoded as soon as it has been read and its rows are
+   * passed to the handler, so only one batch is held in memory at a time.
+   *
+   * @param inputStream the stream to read from
+   * @param meta        the Kettle metadata of the frame's columns
+   * @param handler     the handler to pass rows to
+   * @throws KettleException if a problem occurs
+   */
+  public static void readFrame( InputStream inputStream, RowMetaInterface meta,
+      PythonSession.RowsFromPythonHandler handler ) throws KettleException {
+    try {
+      List<List<String>> dictionaries = new ArrayList<List<String>>();
+      for ( int i = 0; i < meta.size(); i++ ) {
+        dictionaries.add( new ArrayList<String>() );
+      }
+      int numRows;
+      while ( ( numRows = readInt( inputStream ) ) > 0 ) {
+        Object[][] rows = new Object[numRows][];
+        for ( int i = 0; i < numRows; i++ ) {
+          rows[i] = new Object[meta.size()];
+        }
+        for ( int j = 0; j < meta.size(); j++ ) {
+          readColumn( inputStream, meta, j, dictionaries.get( j ), rows );
+        }
+        for ( Object[] row : rows ) {
+          handler.rowReceived( row );
+        }
+      }
+    } catch ( IOException ex ) {
+      throw new KettleException( ex );
+    }
+  }
+
+  /**
+   * Read one column block into the rows
+   *
+   * @param dictionary the column's dictionary so far, which dictionary blocks add to
+   */
+  protected static void readColumn( InputStream inputStream, RowMetaInterface meta, int column,
+      List<String> dictionary, Object[][] rows ) throws IOException, KettleException {
+    int numRows = rows.length;
+    byte[] header = readBytes( inputStream, 2 );
+    byte type = header[0];
+    byte expected = ColumnFrameEncoder.columnType( meta.getValueMeta( column ) );
+    if ( type != expected && !( type == ColumnFrameEncoder.TYPE_DICTIONARY
+        && expected == ColumnFrameEncoder.TYPE_STRING ) ) {
+      throw new KettleException( BaseMessages
+          .getString( PKG, "ServerUtils.Error.ColumnTypeMismatch", meta.getValueMeta( column ).getName(),
+              (char) type ) );
+    }
+    byte[] nulls = ( header[1] & ColumnFrameEncoder.FLAG_HAS_NULLS ) != 0 ? readBytes( inputStream,
+        ( numRows + 7 ) / 8 ) : null;
+
+    switch ( type ) {
+      case ColumnFrameEncoder.TYPE_DOUBLE:
+      case ColumnFrameEncoder.TYPE_LONG:
+      case ColumnFrameEncoder.TYPE_TIMESTAMP: {
+        ByteBuffer values = ByteBuffer.wrap( readBytes( inputStream, numRows * 8 ) ).order( ByteOrder.LITTLE_ENDIAN );
+        for ( int i = 0; i < numRows; i++ ) {
+          long bits = values.getLong();
+          if ( nulls != null && ColumnFrameEncoder.isSet( nulls, i ) ) {
+            continue;
+          }
+          if ( type == ColumnFrameEncoder.TYPE_DOUBLE ) {
+            rows[i][column] = Double.longBitsToDouble( bits );
+          } else if ( type == ColumnFrameEncoder.TYPE_LONG ) {
+            rows[i][column] = bits;
+          } else {
+            rows[i][column] = ArrowFrameDecoder.toLocalDate( bits, TimeUnit.MILLISECOND );
+          }
+        }
+        break;
+      }
+      case ColumnFrameEncoder.TYPE_BOOLEAN: {
+        byte[] values = readBytes( inputStream, ( numRows + 7 ) / 8 );
+        for ( int i = 0; i < numRows; i++ ) {
+          if ( nulls == null || !ColumnFrameEncoder.isSet( nulls, i ) ) {
+            rows[i][column] = ColumnFrameEncoder.isSet( values, i );
+          }
+        }
+        break;
+      }
+      case ColumnFrameEncoder.TYPE_DICTIONARY: {
+        dictionary.addAll( Arrays.asList( readStrings( inputStream, readInt( inputStream ), null ) ) );
+        ByteBuffer codes = ByteBuffer.wrap( readBytes( inputStream, numRows * 4 ) ).order( ByteOrder.LITTLE_ENDIAN );
+        for ( int i = 0; i < numRows; i++ ) {
+          int code = codes.getInt();
+          if ( code < -1 || code >= dictionary.size() ) {
+            throw new IOException( BaseMessages.getString( PKG, "ServerUtils.Error.BadDictionaryCode", code ) );
+          }
+          // -1 is null
+          rows[i][column] = code < 0 ? null : dictionary.get( code );
+        }
+        break;
+      }
+      case ColumnFrameEncoder.TYPE_BINARY: {
+        byte[][] binaries = readBinaries( inputStream, numRows, nulls );
+        for ( int i = 0; i < numRows; i++ ) {
+          rows[i][column] = binaries[i];
+        }
+        break;
+      }
+      default: {
+        String[] strings = readStrings( inputStream, numRows, nulls );
+        for ( int i = 0; i < numRows; i++ ) {
+          rows[i][column] = strings[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * Read strings laid out as int32 offsets followed by the utf-8 data
+   *
+   * @param count the number of strings
+   * @param nulls null bitmap for the strings, or null if there are no nulls
+   * @return the strings (null where the bitmap says so)
+   */
+  protected static String[] readStrings( InputStream inputStream, int count, byte[] nulls ) throws IOException {
+    ByteBuffer offsets =
+        ByteBuffer.wrap( readBytes( inputStream, ( count + 1 ) * 4 ) ).order( ByteOrder.LITTLE_ENDIAN );
+    byte[] data = readBytes( inputStream, offsets.getInt( count * 4 ) );
+    String[] strings = new String[count];
+    for ( int i = 0; i < count; i++ ) {
+      int start = offsets.getInt( i * 4 );
+      int end = offsets.getInt( ( i + 1 ) * 4 );
+      if ( nulls == null || !ColumnFrameEncoder.isSet( nulls, i ) ) {
+        strings[i] = new String( data, start, end - start, ColumnFrameEncoder.UTF8 );
+      }
+    }
+    return strings;
+  }
+
+  /**
+   * Read binary values, laid out as strings are
+   *
+   * @param count the number of values
+   * @param nulls null bitmap for the values, or null if there are no nulls
+   * @return the values (null where the bitmap says so)
+   */
+  protected static byte[][] readBinaries( InputStream inputStream, int count, byte[] nulls ) throws IOException {
+    ByteBuffer offsets =
+        ByteBuffer.wrap( readBytes( inputStream, ( count + 1 ) * 4 ) ).order( ByteOrder.LITTLE_ENDIAN );
+    byte[] data = readBytes( inputStream, offsets.getInt( count * 4 ) );
+    byte[][] binaries = new byte[count][];
+    for ( int i = 0; i < count; i++ ) {
+      if ( nulls == null || !ColumnFrameEncoder.isSet( nulls, i ) ) {
+        binaries[i] = Arrays.copyOfRange( data, offsets.getInt( i * 4 ), offsets.getInt( ( i + 1 ) * 4 ) );
+      }
+    }
+    return binaries;
+  }
+
+  protected static int readInt( InputStream inputStream ) throws IOException {
+    return ByteBuffer.wrap( readBytes( inputStream, 4 ) ).order( ByteOrder.LITTLE_ENDIAN ).getInt();
+  }
+
+  protected static byte[] readBytes( InputStream inputStream, int length ) throws IOException {
+    byte[] bytes = new byte[length];
+    ArrowFrameDecoder.readFully( inputStream, bytes, length );
+    return bytes;
+  }
+}
@@ -0,0 +1,454 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes Kettle rows as raw little endian column blocks, for python environments without pyarrow. On the python side
+ * each block is wrapped with numpy.frombuffer, so numbers, booleans and dates need no parsing at all.
+ * <p>
+ * A frame is a series of batches, each starting with its row count (a little endian int32), and ends with a zero row
+ * count. A batch holds one block per field, in field order. A block starts with a type byte and a flags byte; if
+ * bit 0 of the flags is set, a null bitmap (one bit per row, set for null, most significant bit first as for
+ * numpy.packbits) follows. Then come the values:
+ * <ul>
+ * <li>TYPE_DOUBLE - a float64 per row</li>
+ * <li>TYPE_LONG - an int64 per row</li>
+ * <li>TYPE_TIMESTAMP - an int64 per row, milliseconds since the epoch in local wall clock time</li>
+ * <li>TYPE_BOOLEAN - a bitmap, laid out as the null bitmap</li>
+ * <li>TYPE_STRING - row count + 1 int32 offsets followed by the utf-8 data</li>
+ * <li>TYPE_BINARY - laid out as TYPE_STRING, but the data are raw bytes (python bytes objects)</li>
+ * <li>TYPE_DICTIONARY - the number of strings added to the column's dictionary by this batch (an int32) and the
+ * added strings (laid out as for TYPE_STRING), then an int32 code per row indexing the dictionary, or -1 for null.
+ * The dictionary accumulates across the batches of a frame.</li>
+ * <li>TYPE_DOUBLE_TEXT, TYPE_LONG_TEXT - the length of the text (an int32), then the values as ascii decimal text,
+ * each followed by a space (0 for null rows). Used to forward numbers held as binary strings (lazy conversion)
+ * without parsing them.</li>
+ * </ul>
+ * Values of null rows are zero (or empty).
+ * <p>
+ * String fields are dictionary encoded for as long as they stay low cardinality. Once a field has too many distinct
+ * values, it is sent as plain strings for the rest of the frame. Strings held as utf-8 binary strings (lazy conversion)
+ * are copied into the frame as they are, without being decoded. Serializable fields hold arbitrary java objects that
+ * python can't use, so frames with them are refused.
+ */
+public class ColumnFrameEncoder {
+
+  protected static final byte TYPE_DOUBLE = 'd';
+  protected static final byte TYPE_LONG = 'l';
+  protected static final byte TYPE_TIMESTAMP = 't';
+  protected static final byte TYPE_BOOLEAN = 'b';
+  protected static final byte TYPE_STRING = 's';
+  protected static final byte TYPE_BINARY = 'y';
+  protected static final byte TYPE_DICTIONARY = 'c';
+  protected static final byte TYPE_DOUBLE_TEXT = 'D';
+  protected static final byte TYPE_LONG_TEXT = 'L';
+
+  protected static final byte FLAG_HAS_NULLS = 1;
+
+  protected static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  /**
+   * Maximum number of rows per batch
+   */
+  protected static final int BATCH_SIZE = 8192;
+
+  /**
+   * Largest number of entries in a dictionary
+   */
+  protected static final int MAX_DICTIONARY_SIZE = 65536;
+
+  /**
+   * A field stays dictionary encoded while there are at least this many rows for each distinct value
+   */
+  protected static final int MIN_ROWS_PER_DICTIONARY_ENTRY = 4;
+
+  /**
+   * Write the supplied rows to the output stream in column blocks
+   *
+   * @param meta         the metadata of the rows
+   * @param rows         the rows to write
+   * @param outputStream the stream to write to
+   * @throws KettleException if a problem occurs
+   */
+  public static void writeFrame( RowMetaInterface meta, List<Object[]> rows, OutputStream outputStream )
+      throws KettleException {
+    ArrowFrameEncoder.checkFieldTypes( meta );
+    try {
+      List<Map<ByteBuffer, Integer>> dictionaries = new ArrayList<Map<ByteBuffer, Integer>>();
+      for ( int i = 0; i < meta.size(); i++ ) {
+        dictionaries.add( new HashMap<ByteBuffer, Integer>() );
+      }
+      for ( int start = 0; start < rows.size(); start += BATCH_SIZE ) {
+        List<Object[]> batch = rows.subList( start, Math.min( start + BATCH_SIZE, rows.size() ) );
+        outputStream.write( intBytes( batch.size() ) );
+        for ( int i = 0; i < meta.size(); i++ ) {
+          ValueMetaInterface vm = meta.getValueMeta( i );
+          if ( columnType( vm ) == TYPE_STRING ) {
+            dictionaries.set( i,
+                writeStringColumn( vm, i, batch, dictionaries.get( i ), start + batch.size(), outputStream ) );
+          } else {
+            writeColumn( vm, i, batch, outputStream );
+          }
+        }
+      }
+      outputStream.write( intBytes( 0 ) );
+    } catch ( IOException ex ) {
+      throw new KettleException( ex );
+    }
+  }
+
+  /**
+   * Get the block type used to transfer values of the supplied Kettle value meta
+   *
+   * @param vm the Kettle value meta
+   * @return the block type
+   */
+  protected static byte columnType( ValueMetaInterface vm ) {
+    switch ( vm.getType() ) {
+      case ValueMetaInterface.TYPE_NUMBER:
+      case ValueMetaInterface.TYPE_BIGNUMBER:
+        return TYPE_DOUBLE;
+      case ValueMetaInterface.TYPE_INTEGER:
+        return TYPE_LONG;
+      case ValueMetaInterface.TYPE_DATE:
+      case ValueMetaInterface.TYPE_TIMESTAMP:
+        return TYPE_TIMESTAMP;
+      case ValueMetaInterface.TYPE_BOOLEAN:
+        return TYPE_BOOLEAN;
+      case ValueMetaInterface.TYPE_BINARY:
+        return TYPE_BINARY;
+      default:
+        return TYPE_STRING;
+    }
+  }
+
+  /**
+   * Encode and write the values of a single numeric, date, boolean or binary field
+   *
+   * @param vm           the value meta of the field
+   * @param index        the index of the field in the rows
+   * @param rows         the rows
+   * @param outputStream the stream to write to
+   * @throws IOException          if a problem occurs writing
+   * @throws KettleValueException if a problem occurs converting a value
+   */
+  protected static void writeColumn( ValueMetaInterface vm, int index, List<Object[]> rows,
+      OutputStream outputStream ) throws IOException, KettleValueException {
+    int numRows = rows.size();
+    byte type = columnType( vm );
+    if ( ( type == TYPE_DOUBLE || type == TYPE_LONG ) && isNumericTextPassThrough( vm )
+        && writeNumericTextColumn( vm, index, rows, type, outputStream ) ) {
+      return;
+    }
+    byte[] nulls = new byte[( numRows + 7 ) / 8];
+    boolean hasNulls = false;
+    byte[] values = null;
+    byte[][] binaries = null;
+
+    switch ( type ) {
+      case TYPE_DOUBLE:
+      case TYPE_LONG:
+      case TYPE_TIMESTAMP: {
+        ByteBuffer buffer = ByteBuffer.allocate( numRows * 8 ).order( ByteOrder.LITTLE_ENDIAN );
+        for ( int i = 0; i < numRows; i++ ) {
+          Object value = rows.get( i )[index];
+          if ( value == null || vm.isNull( value ) ) {
+            hasNulls = true;
+            setBit( nulls, i );
+            buffer.putLong( 0L );
+          } else if ( type == TYPE_LONG ) {
+            buffer.putLong( vm.getInteger( value ) );
+          } else if ( type == TYPE_TIMESTAMP ) {
+            // python treats millis since epoch as UTC-centered dates, so shift by the local offset
+            long time = vm.getDate( value ).getTime();
+            buffer.putLong( time + ServerUtils.TZ.getOffset( time ) );
+          } else {
+            buffer.putDouble( vm.getNumber( value ) );
+          }
+        }
+        values = buffer.array();
+        break;
+      }
+      case TYPE_BOOLEAN: {
+        values = new byte[nulls.length];
+        for ( int i = 0; i < numRows; i++ ) {
+          Object value = rows.get( i )[index];
+          if ( value == null || vm.isNull( value ) ) {
+            hasNulls = true;
+            setBit( nulls, i );
+          } else if ( vm.getBoolean( value ) ) {
+            setBit( values, i );
+          }
+        }
+        break;
+      }
+      case TYPE_BINARY: {
+        binaries = new byte[numRows][];
+        for ( int i = 0; i < numRows; i++ ) {
+          Object value = rows.get( i )[index];
+          if ( value == null ) {
+            hasNulls = true;
+            setBit( nulls, i );
+          } else {
+            // unlike strings, empty binary values stay empty rather than null
+            binaries[i] = vm.getBinary( value );
+          }
+        }
+        break;
+      }
+      default:
+        throw new IllegalArgumentException( vm.getName() );
+    }
+
+    outputStream.write( new byte[] { type, hasNulls ? FLAG_HAS_NULLS : 0 } );
+    if ( hasNulls ) {
+      outputStream.write( nulls );
+    }
+    if ( binaries != null ) {
+      writeStrings( binaries, outputStream );
+    } else {
+      outputStream.write( values );
+    }
+  }
+
+  /**
+   * Encode and write the values of a single string field, as a dictionary block if the field is still low cardinality
+   *
+   * @param vm           the value meta of the field
+   * @param index        the index of the field in the rows
+   * @param rows         the rows
+   * @param dictionary   the field's dictionary so far (mapping utf-8 strings to codes), or null if the field is no longer
+   *                     dictionary encoded
+   * @param rowsSoFar    the number of rows in the frame up to the end of this batch
+   * @param outputStream the stream to write to
+   * @return the field's dictionary, or null if the field is no longer dictionary encoded
+   * @throws IOException          if a problem occurs writing
+   * @throws KettleValueException if a problem occurs converting a value
+   */
+  protected static Map<ByteBuffer, Integer> writeStringColumn( ValueMetaInterface vm, int index, List<Object[]> rows,
+      Map<ByteBuffer, Integer> dictionary, int rowsSoFar, OutputStream outputStream )
+      throws IOException, KettleValueException {
+    int numRows = rows.size();
+    byte[][] strings = new byte[numRows][];
+    boolean passThrough = ServerUtils.isUtf8BinaryString( vm );
+    for ( int i = 0; i < numRows; i++ ) {
+      Object value = rows.get( i )[index];
+      if ( passThrough ) {
+        // lazy conversion - the bytes as read are already utf-8
+        strings[i] = value == null || ( (byte[]) value ).length == 0 ? null : (byte[]) value;
+      } else {
+        String s = value == null ? null : vm.getString( value );
+        strings[i] = Const.isEmpty( s ) ? null : s.getBytes( UTF8 );
+      }
+    }
+
+    if ( dictionary != null ) {
+      List<byte[]> added = new ArrayList<byte[]>();
+      ByteBuffer codes = ByteBuffer.allocate( numRows * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+      for ( byte[] s : strings ) {
+        if ( s == null ) {
+          codes.putInt( -1 );
+          continue;
+        }
+        ByteBuffer key = ByteBuffer.wrap( s );
+        Integer code = dictionary.get( key );
+        if ( code == null ) {
+          code = dictionary.size();
+          if ( code >= MAX_DICTIONARY_SIZE || ( code + 1 ) * MIN_ROWS_PER_DICTIONARY_ENTRY > rowsSoFar ) {
+            // too many distinct values - plain strings from now on
+            dictionary = null;
+            break;
+          }
+          dictionary.put( key, code );
+          added.add( s );
+        }
+        codes.putInt( code );
+      }
+      if ( dictionary != null ) {
+        outputStream.write( new byte[] { TYPE_DICTIONARY, 0 } );
+        outputStream.write( intBytes( added.size() ) );
+        writeStrings( added.toArray( new byte[added.size()][] ), outputStream );
+        outputStream.write( codes.array() );
+        return dictionary;
+      }
+    }
+
+    byte[] nulls = new byte[( numRows + 7 ) / 8];
+    boolean hasNulls = false;
+    for ( int i = 0; i < numRows; i++ ) {
+      if ( strings[i] == null ) {
+        hasNulls = true;
+        setBit( nulls, i );
+      }
+    }
+    outputStream.write( new byte[] { TYPE_STRING, hasNulls ? FLAG_HAS_NULLS : 0 } );
+    if ( hasNulls ) {
+      outputStream.write( nulls );
+    }
+    writeStrings( strings, outputStream );
+    return null;
+  }
+
+  /**
+   * Write utf-8 strings (or binary values) as int32 offsets followed by the data. Nulls are written as empty strings.
+   */
+  protected static void writeStrings( byte[][] strings, OutputStream outputStream ) throws IOException {
+    ByteBuffer offsets = ByteBuffer.allocate( ( strings.length + 1 ) * 4 ).order( ByteOrder.LITTLE_ENDIAN );
+    int dataLength = 0;
+    offsets.putInt( 0 );
+    for ( byte[] s : strings ) {
+      dataLength += s != null ? s.length : 0;
+      offsets.putInt( dataLength );
+    }
+    outputStream.write( offsets.array() );
+    for ( byte[] s : strings ) {
+      if ( s != null ) {
+        outputStream.write( s );
+      }
+    }
+  }
+
+  /**
+   * Encode and write the values of a numeric field held as binary strings (lazy conversion) as the text they were read
+   * as, separated by spaces, for python to parse. Only done when every value in the batch is a plain number, so that
+   * python reads the same values as Kettle would.
+   *
+   * @param vm           the value meta of the field
+   * @param index        the index of the field in the rows
+   * @param rows         the rows
+   * @param type         the block type of the field (TYPE_DOUBLE or TYPE_LONG)
+   * @param outputStream the stream to write to
+   * @return true if the values were written, false if they need to be converted
+   * @throws IOException if a problem occurs writing
+   */
+  protected static boolean writeNumericTextColumn( ValueMetaInterface vm, int index, List<Object[]> rows, byte type,
+      OutputStream outputStream ) throws IOException {
+    int numRows = rows.size();
+    byte[] nulls = new byte[( numRows + 7 ) / 8];
+    boolean hasNulls = false;
+    int textLength = 0;
+    for ( int i = 0; i < numRows; i++ ) {
+      byte[] value = (byte[]) rows.get( i )[index];
+      if ( value == null || value.length == 0 ) {
+        hasNulls = true;
+        setBit( nulls, i );
+        textLength += 2;
+      } else if ( isPlainNumber( value, type == TYPE_LONG ) ) {
+        textLength += value.length + 1;
+      } else {
+        return false;
+      }
+    }
+
+    byte[] text = new byte[textLength];
+    int pos = 0;
+    for ( int i = 0; i < numRows; i++ ) {
+      byte[] value = (byte[]) rows.get( i )[index];
+      if ( value == null || value.length == 0 ) {
+        text[pos++] = '0';
+      } else {
+        System.arraycopy( value, 0, text, pos, value.length );
+        pos += value.length;
+      }
+      text[pos++] = ' ';
+    }
+
+    outputStream.write( new byte[] { type == TYPE_LONG ? TYPE_LONG_TEXT : TYPE_DOUBLE_TEXT,
+        hasNulls ? FLAG_HAS_NULLS : 0 } );
+    if ( hasNulls ) {
+      outputStream.write( nulls );
+    }
+    outputStream.write( intBytes( textLength ) );
+    outputStream.write( text );
+    return true;
+  }
+
+  /**
+   * @return true if the field's values are binary strings that can be sent as numeric text: utf-8 (so ascii digits),
+   * no trimming, '.' as the decimal symbol and no conversion mask beyond digits, grouping and the decimal point
+   */
+  protected static boolean isNumericTextPassThrough( ValueMetaInterface vm ) {
+    if ( !ServerUtils.isUtf8BinaryString( vm ) ) {
+      return false;
+    }
+    String decimal = vm.getDecimalSymbol();
+    if ( Const.isEmpty( decimal ) ) {
+      decimal = String.valueOf( new DecimalFormatSymbols().getDecimalSeparator() );
+    }
+    String mask = vm.getConversionMask();
+    return ".".equals( decimal ) && ( Const.isEmpty( mask ) || mask.matches( "[#0,.]*(;-[#0,.]*)?" ) );
+  }
+
+  /**
+   * Check that a value is a plain decimal number - an optional minus sign, digits and (unless an integer) at most one
+   * decimal point. Integers are limited to 18 digits so that they always fit in an int64.
+   */
+  protected static boolean isPlainNumber( byte[] value, boolean integer ) {
+    int i = value[0] == '-' ? 1 : 0;
+    int digits = 0;
+    boolean point = false;
+    for ( ; i < value.length; i++ ) {
+      byte b = value[i];
+      if ( b >= '0' && b <= '9' ) {
+        digits++;
+      } else if ( b == '.' && !integer && !point ) {
+        point = true;
+      } else {
+        return false;
+      }
+    }
+    return digits > 0 && ( !integer || digits <= 18 );
+  }
+
+  /**
+   * Set a bit in a bitmap, most significant bit first (the numpy.packbits order)
+   */
+  protected static void setBit( byte[] bitmap, int i ) {
+    bitmap[i >> 3] |= 0x80 >>> ( i & 7 );
+  }
+
+  protected static boolean isSet( byte[] bitmap, int i ) {
+    return ( bitmap[i >> 3] & ( 0x80 >>> ( i & 7 ) ) ) != 0;
+  }
+
+  protected static byte[] intBytes( int value ) {
+    return ByteBuffer.allocate( 4 ).order( ByteOrder.LITTLE_ENDIAN ).putInt( value ).array();
+  }
+}
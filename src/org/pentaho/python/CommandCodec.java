@@ -0,0 +1,56 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Serializes commands sent to the python server and deserializes its responses. Implementations are stateless and
+ * can be shared between threads. The server answers each command in the codec that the command was sent in.
+ */
+public interface CommandCodec {
+
+  /**
+   * @return the name of the codec, as advertised by the python server in its PID ack
+   */
+  String getName();
+
+  /**
+   * Encode a command
+   *
+   * @param command the command to encode
+   * @return the encoded bytes
+   * @throws IOException if a problem occurs
+   */
+  byte[] encode( Map<String, Object> command ) throws IOException;
+
+  /**
+   * Decode a response
+   *
+   * @param bytes the bytes to decode
+   * @return the decoded response
+   * @throws IOException if a problem occurs
+   */
+  Map<String, Object> decode( byte[] bytes ) throws IOException;
+}
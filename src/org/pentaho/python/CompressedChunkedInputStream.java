@@ -0,0 +1,119 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.pentaho.di.i18n.BaseMessages;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a payload written by CompressedChunkedOutputStream (or its python counterpart), decompressing one chunk at a
+ * time.
+ */
+public class CompressedChunkedInputStream extends ChunkedInputStream {
+
+  protected BlockCompression m_compression;
+
+  /**
+   * The current decompressed block
+   */
+  protected byte[] m_block = new byte[0];
+
+  /**
+   * Number of bytes in the current block
+   */
+  protected int m_blockSize;
+
+  /**
+   * Read position in the current block
+   */
+  protected int m_blockPos;
+
+  /**
+   * Holds compressed chunks as they are read
+   */
+  protected byte[] m_compressed = new byte[0];
+
+  public CompressedChunkedInputStream( InputStream in, BlockCompression compression ) {
+    super( in );
+    m_compression = compression;
+  }
+
+  @Override public int read() throws IOException {
+    if ( !nextBlockIfNeeded() ) {
+      return -1;
+    }
+    return m_block[m_blockPos++] & 0xFF;
+  }
+
+  @Override public int read( byte[] b, int off, int len ) throws IOException {
+    if ( len == 0 ) {
+      return 0;
+    }
+    if ( !nextBlockIfNeeded() ) {
+      return -1;
+    }
+    int numRead = Math.min( len, m_blockSize - m_blockPos );
+    System.arraycopy( m_block, m_blockPos, b, off, numRead );
+    m_blockPos += numRead;
+    return numRead;
+  }
+
+  @Override public int available() {
+    return m_blockSize - m_blockPos;
+  }
+
+  protected boolean nextBlockIfNeeded() throws IOException {
+    while ( m_blockPos == m_blockSize ) {
+      if ( !nextChunkIfNeeded() ) {
+        return false;
+      }
+      int chunkLength = m_remaining;
+      if ( chunkLength < 4 ) {
+        throw new IOException( BaseMessages.getString( PKG, "ServerUtils.Error.CorruptCompressedBlock",
+            m_compression.getName() ) );
+      }
+      if ( m_compressed.length < chunkLength ) {
+        m_compressed = new byte[chunkLength];
+      }
+      ArrowFrameDecoder.readFully( m_in, m_compressed, chunkLength );
+      m_remaining = 0;
+
+      int size = ByteBuffer.wrap( m_compressed, 0, 4 ).getInt();
+      if ( m_block.length < size ) {
+        m_block = new byte[size];
+      }
+      if ( chunkLength - 4 == size ) {
+        // stored uncompressed
+        System.arraycopy( m_compressed, 4, m_block, 0, size );
+      } else {
+        m_compression.decompress( m_compressed, 4, chunkLength - 4, m_block, size );
+      }
+      m_blockSize = size;
+      m_blockPos = 0;
+    }
+    return true;
+  }
+}
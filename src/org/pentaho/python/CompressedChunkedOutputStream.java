@@ -0,0 +1,62 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Chunked output stream that compresses each chunk on its own. The body of every chunk is the uncompressed size of
+ * the block (a 4 byte big endian integer) followed by the compressed block - or by the block itself when compressing
+ * it does not make it any smaller. Read with CompressedChunkedInputStream.
+ */
+public class CompressedChunkedOutputStream extends ChunkedOutputStream {
+
+  /**
+   * Default size of a block. Larger than an uncompressed chunk, as compressors do better with more data to work on
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+  protected BlockCompression m_compression;
+
+  public CompressedChunkedOutputStream( OutputStream out, BlockCompression compression ) {
+    this( out, compression, DEFAULT_BLOCK_SIZE );
+  }
+
+  public CompressedChunkedOutputStream( OutputStream out, BlockCompression compression, int blockSize ) {
+    super( out, blockSize );
+    m_compression = compression;
+  }
+
+  @Override protected void writeChunk() throws IOException {
+    if ( m_count > 0 ) {
+      byte[] compressed = m_compression.compress( m_buffer, 0, m_count );
+      boolean smaller = compressed.length < m_count;
+      int bodyLength = smaller ? compressed.length : m_count;
+      m_out.write( ByteBuffer.allocate( 8 ).putInt( bodyLength + 4 ).putInt( m_count ).array() );
+      m_out.write( smaller ? compressed : m_buffer, 0, bodyLength );
+      m_count = 0;
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Map;
+
+/**
+ * Wraps a codec to give every command a request id, which the python server copies into its responses. Responses
+ * are checked against the ids of the commands still waiting for a response, so that a response can never be taken
+ * for the answer to the wrong command - for example after an earlier command was abandoned part way through.
+ * <p>
+ * This only detects responses that are out of step with the commands: it does not route responses to their commands
+ * or let commands overlap on the wire. The server still answers commands one at a time, in the order they were sent.
+ * <p>
+ * Unlike the codecs it wraps, this codec has state: there is one per session, used by one thread at a time.
+ */
+public class CorrelatingCommandCodec implements CommandCodec {
+
+  /**
+   * The codec that does the actual encoding
+   */
+  protected final CommandCodec m_codec;
+
+  /**
+   * The id of the next command
+   */
+  protected long m_nextRequestId = 1;
+
+  /**
+   * Ids of the commands sent that may still have responses to come, oldest first
+   */
+  protected final ArrayDeque<Long> m_outstanding = new ArrayDeque<Long>();
+
+  public CorrelatingCommandCodec( CommandCodec codec ) {
+    m_codec = codec;
+  }
+
+  @Override public String getName() {
+    return m_codec.getName();
+  }
+
+  @Override public synchronized byte[] encode( Map<String, Object> command ) throws IOException {
+    long requestId = m_nextRequestId++;
+    command.put( ServerUtils.REQUEST_ID_KEY, requestId );
+    m_outstanding.addLast( requestId );
+    return m_codec.encode( command );
+  }
+
+  @Override public synchronized Map<String, Object> decode( byte[] bytes ) throws IOException {
+    Map<String, Object> response = m_codec.decode( bytes );
+    Object requestId = response.get( ServerUtils.REQUEST_ID_KEY );
+    if ( requestId instanceof Number ) {
+      long id = ( (Number) requestId ).longValue();
+      if ( !m_outstanding.contains( id ) ) {
+        throw new IOException( "Unexpected response from the python server (request id " + id + ")" );
+      }
+      // a command can have several responses, so it stays outstanding until a later command is answered
+      while ( m_outstanding.peekFirst() != id ) {
+        m_outstanding.removeFirst();
+      }
+    }
+    return response;
+  }
+}
@@ -0,0 +1,142 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.pentaho.di.core.Const;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Remembers, on disk, the python environments that have passed the pyCheck.py check, so that the check - which
+ * imports scipy, sklearn, matplotlib and pandas - only runs again when something changes. An environment is
+ * identified by a fingerprint that the python server works out as it starts, from the interpreter (its path,
+ * version, size and modification time), the modification times of its site-packages directories and the check
+ * script itself. The server is given the fingerprints in the cache, and skips the check if its own is one of them.
+ */
+public class EnvCheckCache {
+
+  /**
+   * The file the fingerprints of checked environments are kept in
+   */
+  protected static final String CACHE_FILE_NAME = "cpython-env-check.properties";
+
+  /**
+   * The cache file
+   */
+  protected final File m_file;
+
+  /**
+   * @param file the cache file
+   */
+  public EnvCheckCache( File file ) {
+    m_file = file;
+  }
+
+  /**
+   * @return a cache in the Kettle directory
+   */
+  public static EnvCheckCache inKettleDirectory() {
+    return new EnvCheckCache( new File( Const.getKettleDirectory(), CACHE_FILE_NAME ) );
+  }
+
+  /**
+   * @return the fingerprints of all the environments that have passed the check, comma separated
+   */
+  public String fingerprints() {
+    StringBuilder fingerprints = new StringBuilder();
+    for ( String fingerprint : load().stringPropertyNames() ) {
+      if ( fingerprints.length() > 0 ) {
+        fingerprints.append( ',' );
+      }
+      fingerprints.append( fingerprint );
+    }
+    return fingerprints.toString();
+  }
+
+  /**
+   * @param fingerprint the fingerprint of an environment
+   * @return true if the environment has passed the check before
+   */
+  public boolean contains( String fingerprint ) {
+    return load().containsKey( fingerprint );
+  }
+
+  /**
+   * Record that an environment has passed the check. Problems writing the cache are ignored - the check just runs
+   * again next time.
+   *
+   * @param fingerprint the fingerprint of the environment
+   * @param description what to record alongside it (for someone reading the file)
+   */
+  public synchronized void add( String fingerprint, String description ) {
+    Properties checked = load();
+    checked.setProperty( fingerprint, description );
+    File temp = null;
+    try {
+      m_file.getParentFile().mkdirs();
+      // write a copy and move it into place, so that other processes never read a partly written file
+      temp = File.createTempFile( CACHE_FILE_NAME, ".tmp", m_file.getParentFile() );
+      OutputStream out = new FileOutputStream( temp );
+      try {
+        checked.store( out, "Python environments that passed the CPython Script Executor check" );
+      } finally {
+        out.close();
+      }
+      Files.move( temp.toPath(), m_file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+      temp = null;
+    } catch ( IOException ex ) {
+      // not worth failing for
+    } finally {
+      if ( temp != null ) {
+        temp.delete();
+      }
+    }
+  }
+
+  protected Properties load() {
+    Properties checked = new Properties();
+    if ( m_file.isFile() ) {
+      try {
+        InputStream in = new FileInputStream( m_file );
+        try {
+          checked.load( in );
+        } finally {
+          in.close();
+        }
+      } catch ( IOException ex ) {
+        // treat as empty
+      } catch ( IllegalArgumentException ex ) {
+        // a malformed unicode escape, from editing the file by hand - treat as empty
+      }
+    }
+    return checked;
+  }
+}
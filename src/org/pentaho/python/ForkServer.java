@@ -0,0 +1,134 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * A python process that imports the libraries once and then forks a python server for each session, so that new
+ * servers start in milliseconds and share the memory of the imported modules (copy on write). Only available where
+ * python has os.fork(), i.e. not on Windows.
+ * <p>
+ * The address of each new server is written to the fork server's stdin, and the pid of the forked server is read back
+ * from its stdout. The fork server exits when its stdin is closed.
+ */
+public class ForkServer {
+
+  protected static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  /**
+   * The fork server process
+   */
+  protected final Process m_process;
+
+  protected final Writer m_requests;
+  protected final BufferedReader m_replies;
+
+  /**
+   * Start a fork server
+   *
+   * @param pythonCommand the command used to start python
+   * @param startServer   the python code that starts the server script
+   * @param environment   extra environment variables for the fork server (and so the servers it forks)
+   * @throws IOException if the fork server can't be started
+   */
+  public ForkServer( String pythonCommand, String startServer, Map<String, String> environment ) throws IOException {
+    this( start( pythonCommand, startServer, environment ) );
+  }
+
+  /**
+   * Talk to a fork server process that has already been started
+   *
+   * @param process the fork server process
+   */
+  protected ForkServer( Process process ) {
+    m_process = process;
+    m_requests = new OutputStreamWriter( m_process.getOutputStream(), UTF8 );
+    m_replies = new BufferedReader( new InputStreamReader( m_process.getInputStream(), UTF8 ) );
+  }
+
+  /**
+   * Start the fork server process, which inherits Kettle's stderr
+   */
+  protected static Process start( String pythonCommand, String startServer, Map<String, String> environment )
+      throws IOException {
+    ProcessBuilder builder = new ProcessBuilder( pythonCommand, "-c", startServer, "", "", "forkserver" );
+    builder.environment().putAll( environment );
+    builder.redirectError( ProcessBuilder.Redirect.INHERIT );
+    return builder.start();
+  }
+
+  /**
+   * @return true if the fork server is an option on this platform
+   */
+  public static boolean isSupported() {
+    return !System.getProperty( "os.name" ).toLowerCase().contains( "win" );
+  }
+
+  /**
+   * Fork a python server, which connects to the given address just as a server started on its own would
+   *
+   * @param serverAddress the address for the server to connect to
+   * @param debug         true to start the server in debug mode
+   * @return the pid of the new server
+   * @throws IOException if the fork server has stopped
+   */
+  public synchronized int fork( String serverAddress, boolean debug ) throws IOException {
+    m_requests.write( serverAddress + "\t" + ( debug ? "debug" : "" ) + "\n" );
+    m_requests.flush();
+    String pid = m_replies.readLine();
+    if ( pid == null ) {
+      throw new IOException( "The python fork server has stopped" );
+    }
+    try {
+      return Integer.parseInt( pid.trim() );
+    } catch ( NumberFormatException ex ) {
+      throw new IOException( "Unexpected reply from the python fork server: " + pid );
+    }
+  }
+
+  /**
+   * @return true if the fork server is still running
+   */
+  public boolean isAlive() {
+    return m_process.isAlive();
+  }
+
+  /**
+   * Stop the fork server. Servers it has already forked carry on.
+   */
+  public synchronized void shutdown() {
+    try {
+      m_requests.close();
+    } catch ( IOException ex ) {
+      // stopped already
+    }
+    m_process.destroy();
+  }
+}
@@ -0,0 +1,53 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * JSON command codec. Understood by every python server, and always used for the initial PID ack.
+ */
+public class JsonCommandCodec implements CommandCodec {
+
+  public static final String NAME = "json";
+
+  /**
+   * Shared mapper - an ObjectMapper is thread safe once configured, and expensive to create
+   */
+  protected static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @Override public String getName() {
+    return NAME;
+  }
+
+  @Override public byte[] encode( Map<String, Object> command ) throws IOException {
+    return MAPPER.writeValueAsBytes( command );
+  }
+
+  @SuppressWarnings( "unchecked" ) @Override public Map<String, Object> decode( byte[] bytes ) throws IOException {
+    return MAPPER.readValue( bytes, Map.class );
+  }
+}
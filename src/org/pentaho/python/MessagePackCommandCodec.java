@@ -0,0 +1,263 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.pentaho.di.i18n.BaseMessages;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MessagePack command codec. Handles the types that appear in commands and responses - maps, lists, strings,
+ * integers, floating point numbers, booleans, nil and binary - which is all that is needed to talk to the python
+ * server, so no MessagePack library is required on the Java side. Integers decode to Integer when they fit (otherwise
+ * Long) and floating point numbers to Double, the same as the JSON codec.
+ */
+public class MessagePackCommandCodec implements CommandCodec {
+
+  public static final String NAME = "msgpack";
+
+  protected static Class<?> PKG = ServerUtils.class;
+
+  protected static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  @Override public String getName() {
+    return NAME;
+  }
+
+  @Override public byte[] encode( Map<String, Object> command ) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream( 256 );
+    writeValue( command, out );
+    return out.toByteArray();
+  }
+
+  @SuppressWarnings( "unchecked" ) @Override public Map<String, Object> decode( byte[] bytes ) throws IOException {
+    ByteBuffer in = ByteBuffer.wrap( bytes );
+    Object value;
+    try {
+      value = readValue( in );
+    } catch ( RuntimeException ex ) {
+      // BufferUnderflowException and friends from truncated input
+      throw new IOException( BaseMessages.getString( PKG, "ServerUtils.Error.MalformedMessagePack" ), ex );
+    }
+    if ( !( value instanceof Map ) ) {
+      throw new IOException( BaseMessages.getString( PKG, "ServerUtils.Error.MalformedMessagePack" ) );
+    }
+    return (Map<String, Object>) value;
+  }
+
+  protected static void writeValue( Object value, ByteArrayOutputStream out ) throws IOException {
+    if ( value == null ) {
+      out.write( 0xc0 );
+    } else if ( value instanceof Boolean ) {
+      out.write( (Boolean) value ? 0xc3 : 0xc2 );
+    } else if ( value instanceof Integer || value instanceof Long || value instanceof Short
+        || value instanceof Byte ) {
+      writeLong( ( (Number) value ).longValue(), out );
+    } else if ( value instanceof Number ) {
+      out.write( 0xcb );
+      writeBytes( ByteBuffer.allocate( 8 ).putDouble( ( (Number) value ).doubleValue() ).array(), out );
+    } else if ( value instanceof byte[] ) {
+      byte[] bytes = (byte[]) value;
+      writeHeader( bytes.length, -1, 0xc4, 0xc5, 0xc6, out );
+      writeBytes( bytes, out );
+    } else if ( value instanceof Map ) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      writeHeader( map.size(), 0x80, -1, 0xde, 0xdf, out );
+      for ( Map.Entry<?, ?> entry : map.entrySet() ) {
+        writeValue( entry.getKey().toString(), out );
+        writeValue( entry.getValue(), out );
+      }
+    } else if ( value instanceof Collection ) {
+      Collection<?> list = (Collection<?>) value;
+      writeHeader( list.size(), 0x90, -1, 0xdc, 0xdd, out );
+      for ( Object element : list ) {
+        writeValue( element, out );
+      }
+    } else {
+      byte[] bytes = value.toString().getBytes( UTF8 );
+      if ( bytes.length < 32 ) {
+        out.write( 0xa0 | bytes.length );
+      } else {
+        writeHeader( bytes.length, -1, 0xd9, 0xda, 0xdb, out );
+      }
+      writeBytes( bytes, out );
+    }
+  }
+
+  protected static void writeLong( long value, ByteArrayOutputStream out ) {
+    if ( value >= -32 && value < 128 ) {
+      // positive and negative fixint
+      out.write( (int) value & 0xff );
+    } else if ( value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ) {
+      out.write( 0xd2 );
+      writeBytes( ByteBuffer.allocate( 4 ).putInt( (int) value ).array(), out );
+    } else {
+      out.write( 0xd3 );
+      writeBytes( ByteBuffer.allocate( 8 ).putLong( value ).array(), out );
+    }
+  }
+
+  /**
+   * Write a length header. fixMarker is the marker of the fix (length held in the marker) form or -1 if there isn't
+   * one; marker8 the marker of the 8 bit length form or -1 if there isn't one.
+   */
+  protected static void writeHeader( int length, int fixMarker, int marker8, int marker16, int marker32,
+      ByteArrayOutputStream out ) {
+    if ( fixMarker >= 0 && length < 16 ) {
+      out.write( fixMarker | length );
+    } else if ( marker8 >= 0 && length < 256 ) {
+      out.write( marker8 );
+      out.write( length );
+    } else if ( length < 65536 ) {
+      out.write( marker16 );
+      out.write( length >>> 8 );
+      out.write( length & 0xff );
+    } else {
+      out.write( marker32 );
+      writeBytes( ByteBuffer.allocate( 4 ).putInt( length ).array(), out );
+    }
+  }
+
+  protected static void writeBytes( byte[] bytes, ByteArrayOutputStream out ) {
+    out.write( bytes, 0, bytes.length );
+  }
+
+  protected static Object readValue( ByteBuffer in ) throws IOException {
+    int marker = in.get() & 0xff;
+    if ( marker <= 0x7f ) {
+      return marker;
+    }
+    if ( marker >= 0xe0 ) {
+      return (int) (byte) marker;
+    }
+    if ( ( marker & 0xf0 ) == 0x80 ) {
+      return readMap( in, marker & 0x0f );
+    }
+    if ( ( marker & 0xf0 ) == 0x90 ) {
+      return readList( in, marker & 0x0f );
+    }
+    if ( ( marker & 0xe0 ) == 0xa0 ) {
+      return readString( in, marker & 0x1f );
+    }
+    switch ( marker ) {
+      case 0xc0:
+        return null;
+      case 0xc2:
+        return Boolean.FALSE;
+      case 0xc3:
+        return Boolean.TRUE;
+      case 0xc4:
+        return readBinary( in, in.get() & 0xff );
+      case 0xc5:
+        return readBinary( in, in.getShort() & 0xffff );
+      case 0xc6:
+        return readBinary( in, in.getInt() );
+      case 0xca:
+        return (double) in.getFloat();
+      case 0xcb:
+        return in.getDouble();
+      case 0xcc:
+        return in.get() & 0xff;
+      case 0xcd:
+        return in.getShort() & 0xffff;
+      case 0xce:
+        return toNumber( in.getInt() & 0xffffffffL );
+      case 0xcf: {
+        long value = in.getLong();
+        if ( value < 0 ) {
+          throw new IOException( BaseMessages.getString( PKG, "ServerUtils.Error.MalformedMessagePack" ) );
+        }
+        return toNumber( value );
+      }
+      case 0xd0:
+        return (int) in.get();
+      case 0xd1:
+        return (int) in.getShort();
+      case 0xd2:
+        return in.getInt();
+      case 0xd3:
+        return toNumber( in.getLong() );
+      case 0xd9:
+        return readString( in, in.get() & 0xff );
+      case 0xda:
+        return readString( in, in.getShort() & 0xffff );
+      case 0xdb:
+        return readString( in, in.getInt() );
+      case 0xdc:
+        return readList( in, in.getShort() & 0xffff );
+      case 0xdd:
+        return readList( in, in.getInt() );
+      case 0xde:
+        return readMap( in, in.getShort() & 0xffff );
+      case 0xdf:
+        return readMap( in, in.getInt() );
+      default:
+        // ext types are never sent by the server
+        throw new IOException( BaseMessages.getString( PKG, "ServerUtils.Error.MalformedMessagePack" ) );
+    }
+  }
+
+  protected static Object toNumber( long value ) {
+    if ( value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ) {
+      return (int) value;
+    }
+    return value;
+  }
+
+  protected static String readString( ByteBuffer in, int length ) {
+    String value = new String( in.array(), in.arrayOffset() + in.position(), length, UTF8 );
+    in.position( in.position() + length );
+    return value;
+  }
+
+  protected static byte[] readBinary( ByteBuffer in, int length ) {
+    byte[] value = new byte[length];
+    in.get( value );
+    return value;
+  }
+
+  protected static List<Object> readList( ByteBuffer in, int size ) throws IOException {
+    List<Object> list = new ArrayList<Object>( size );
+    for ( int i = 0; i < size; i++ ) {
+      list.add( readValue( in ) );
+    }
+    return list;
+  }
+
+  protected static Map<String, Object> readMap( ByteBuffer in, int size ) throws IOException {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    for ( int i = 0; i < size; i++ ) {
+      Object key = readValue( in );
+      map.put( key == null ? null : key.toString(), readValue( in ) );
+    }
+    return map;
+  }
+}
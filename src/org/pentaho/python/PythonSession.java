@@ -22,6 +22,7 @@
 
 package org.pentaho.python;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
@@ -31,24 +32,47 @@ import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.row.value.ValueMetaFactory;
 import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.variables.Variables;
 import org.pentaho.di.i18n.BaseMessages;
 
 import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.OutputStream;
+import java.math.BigInteger;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class implementing a session for interacting with Python
@@ -75,6 +99,126 @@ public class PythonSession {
    */
   public static final String CPYTHON_COMMAND_ENV_VAR_KEY = "PENTAHO_CPYTHON_COMMAND";
 
+  /**
+   * Java property to turn off the Apache Arrow transfer of rows to python (set it to false). When not set, rows are
+   * sent in Arrow format if pyarrow is installed in the python environment and as CSV otherwise.
+   */
+  public static final String CPYTHON_ARROW_PROPERTY_KEY = "pentaho.cpython.arrow";
+
+  /**
+   * Java property to turn off the raw binary column transfer of rows to python (set it to false). Only used when rows
+   * are not transferred in Arrow format; the columns are wrapped with numpy on the python side, so no extra python
+   * package is needed.
+   */
+  public static final String CPYTHON_COLUMNS_PROPERTY_KEY = "pentaho.cpython.columns";
+
+  /**
+   * Java property to exchange Arrow frames with python through memory mapped files in /dev/shm rather than the socket
+   * (set it to true). Worthwhile for very large frames; only takes effect when rows are transferred in Arrow format.
+   */
+  public static final String CPYTHON_SHARED_MEMORY_PROPERTY_KEY = "pentaho.cpython.sharedmemory";
+
+  /**
+   * Java property to turn off the Unix domain socket transport to python (set it to false). When not set, a Unix
+   * domain socket is used if the JVM (Java 16+) and OS support it, and loopback TCP otherwise.
+   */
+  public static final String CPYTHON_UNIX_SOCKET_PROPERTY_KEY = "pentaho.cpython.unixsocket";
+
+  /**
+   * Java property to choose the codec for commands sent to python ("json" or "msgpack"). When not set, MessagePack is
+   * used if the msgpack module is installed in the python environment and JSON otherwise.
+   */
+  public static final String CPYTHON_COMMAND_CODEC_PROPERTY_KEY = "pentaho.cpython.codec";
+
+  /**
+   * Java property to choose the compression applied to large frames sent through the socket ("zstd", "zlib" or
+   * "none"). When not set, zstd is used if both the JVM and the python environment (the zstandard module) support it.
+   */
+  public static final String CPYTHON_COMPRESSION_PROPERTY_KEY = "pentaho.cpython.compression";
+
+  /**
+   * Java property to set the estimated frame size (in bytes, 8 per value) above which frames are compressed
+   */
+  public static final String CPYTHON_COMPRESSION_THRESHOLD_PROPERTY_KEY = "pentaho.cpython.compression.threshold";
+
+  /**
+   * Java property to set the number of python server processes started when python is first used (default 1)
+   */
+  public static final String CPYTHON_POOL_MIN_PROPERTY_KEY = "pentaho.cpython.pool.min";
+
+  /**
+   * Java property to set the maximum number of python server processes (default 1). Steps (and step copies) lease a
+   * process each while they run a batch, so with more than one process they run their scripts in parallel.
+   */
+  public static final String CPYTHON_POOL_MAX_PROPERTY_KEY = "pentaho.cpython.pool.max";
+
+  /**
+   * Java property to set the longest time, in milliseconds, to wait for a python server process before giving up
+   * (default 0, which waits as long as necessary)
+   */
+  public static final String CPYTHON_POOL_TIMEOUT_PROPERTY_KEY = "pentaho.cpython.pool.timeout";
+
+  /**
+   * Java property to set how long, in milliseconds, a python server may take to respond before it is taken to have
+   * hung and is restarted (default 0, which never restarts a server that is still running). Must be longer than the
+   * longest running script.
+   */
+  public static final String CPYTHON_WATCHDOG_TIMEOUT_PROPERTY_KEY = "pentaho.cpython.watchdog.timeout";
+
+  /**
+   * Java property to set the number of times a step retries a batch after its python server has died (default 2)
+   */
+  public static final String CPYTHON_RETRIES_PROPERTY_KEY = "pentaho.cpython.retries";
+
+  /**
+   * Java property to set the number of python server processes to start in the background when the plugin is loaded
+   * (default 0, which starts them when a step first needs them)
+   */
+  public static final String CPYTHON_WARMUP_PROPERTY_KEY = "pentaho.cpython.warmup";
+
+  /**
+   * Java property listing (comma separated) python modules that each server process imports when it starts
+   */
+  public static final String CPYTHON_PRELOAD_MODULES_PROPERTY_KEY = "pentaho.cpython.preload";
+
+  /**
+   * Java property to turn off (set to false) remembering python environments that have passed the environment check,
+   * in cpython-env-check.properties in the Kettle directory. When on, the check only runs again when the interpreter,
+   * its installed packages or the check itself change.
+   */
+  public static final String CPYTHON_ENV_CHECK_CACHE_PROPERTY_KEY = "pentaho.cpython.envcheck.cache";
+
+  /**
+   * Java property to start python servers by forking them from one python process that has already imported the
+   * libraries (set to true). Not available on Windows.
+   */
+  public static final String CPYTHON_FORKSERVER_PROPERTY_KEY = "pentaho.cpython.forkserver";
+
+  /**
+   * Environment variable that gives the python server the fingerprints of the environments that have passed the check
+   */
+  protected static final String ENV_CHECKED_ENV_VAR_KEY = "PENTAHO_CPYTHON_CHECKED";
+
+  /**
+   * Environment variable that gives the fork server the modules to import before it forks any servers
+   */
+  protected static final String PRELOAD_ENV_VAR_KEY = "PENTAHO_CPYTHON_PRELOAD";
+
+  /**
+   * Default frame size above which frames are compressed
+   */
+  protected static final long DEFAULT_COMPRESSION_THRESHOLD = 4 * 1024 * 1024;
+
+  /**
+   * Size of the buffers wrapped around the connection's streams
+   */
+  protected static final int CONNECTION_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * How long to wait for the python server to connect (milliseconds)
+   */
+  protected static final int CONNECT_TIMEOUT = 10000;
+
   public static enum PythonVariableType {
     DataFrame, Image, String, Unknown;
   }
@@ -90,19 +234,82 @@ public class PythonSession {
   }
 
   /**
-   * The command used to start python
+   * Simple container for the state of a python variable
    */
-  private String m_pythonCommand;
+  public static class PythonVariable {
+    public String m_name;
+    public boolean m_isSet;
+    public PythonVariableType m_type = PythonVariableType.Unknown;
+
+    /**
+     * Plain string value - set for variables that are not frames or images
+     */
+    public String m_value;
+
+    /**
+     * Set for image variables
+     */
+    public BufferedImage m_image;
+  }
+
+  /**
+   * Simple container for the output of a script and the variables fetched after executing it
+   */
+  public static class ScriptResultAndVariables {
+
+    /**
+     * Script std out (element 0) and std err (element 1), or null if no script was executed
+     */
+    public List<String> m_outAndErr;
+
+    /**
+     * Variables keyed by name, in the order requested
+     */
+    public Map<String, PythonVariable> m_variables = new LinkedHashMap<String, PythonVariable>();
+  }
+
+  /**
+   * Callback for consuming the rows of a pandas data frame as they arrive from python, rather than waiting for the
+   * whole frame to be materialized
+   */
+  public static interface RowsFromPythonHandler {
+
+    /**
+     * Called once, before any rows are delivered
+     *
+     * @param frameMeta the metadata of the frame's columns
+     * @param numRows   the number of rows in the frame
+     * @throws KettleException if a problem occurs
+     */
+    void frameMetaReceived( RowMetaInterface frameMeta, int numRows ) throws KettleException;
+
+    /**
+     * Called for each row of the frame, in order
+     *
+     * @param row the row
+     * @throws KettleException if a problem occurs
+     */
+    void rowReceived( Object[] row ) throws KettleException;
+  }
+
+  /**
+   * An operation on a session, for running asynchronously with submitAsync()
+   *
+   * @param <T> the type of the operation's result
+   */
+  public static interface SessionOperation<T> {
+    T run( PythonSession session ) throws KettleException;
+  }
 
   /**
-   * The session singleton
+   * The command used to start python
    */
-  private static PythonSession s_sessionSingleton;
+  private String m_pythonCommand;
 
   /**
-   * the current session holder
+   * The pool of python server processes, or null if python is not available
    */
-  private static Object s_sessionHolder;
+  private static PythonSessionPool s_pool;
 
   /**
    * The results of the python check script
@@ -110,19 +317,55 @@ public class PythonSession {
   private static String s_pythonEnvCheckResults = "";
 
   /**
-   * For locking
+   * The python environments that have passed the check, or null if they are not remembered
+   */
+  private static EnvCheckCache s_envCheckCache;
+
+  /**
+   * The process that python servers are forked from, or null if they are started as processes of their own
+   */
+  private static ForkServer s_forkServer;
+
+  /**
+   * Thrown when a python server finds that its environment is missing something that is required
    */
-  protected SessionMutex m_mutex = new SessionMutex();
+  public static class EnvironmentCheckException extends IOException {
+    private static final long serialVersionUID = -2436517368120785730L;
+
+    public EnvironmentCheckException( String results ) {
+      super( results );
+    }
+  }
+
+  /**
+   * Server socket (or Unix domain server channel) that the python server connects to
+   */
+  protected Closeable m_serverSocket;
+
+  /**
+   * Local socket (or Unix domain channel) for comms with the python server
+   */
+  protected Closeable m_localSocket;
 
   /**
-   * Server socket
+   * Stream for reading from the python server
    */
-  protected ServerSocket m_serverSocket;
+  protected InputStream m_inputStream;
 
   /**
-   * Local socket for comms with the python server
+   * The input stream, for the watchdog to see how long the session has been waiting for python
    */
-  protected Socket m_localSocket;
+  protected WatchedInputStream m_watchedInputStream;
+
+  /**
+   * Stream for writing to the python server
+   */
+  protected OutputStream m_outputStream;
+
+  /**
+   * The Unix domain socket file, if that transport is in use
+   */
+  protected File m_socketFile;
 
   /**
    * The process executing the server
@@ -144,35 +387,169 @@ public class PythonSession {
    */
   protected int m_pythonPID = -1;
 
+  /**
+   * True if the python server was forked from the fork server (and so is not a child of this JVM)
+   */
+  protected boolean m_forked;
+
+  /**
+   * The format used to transfer rows to and from python (ServerUtils.FRAME_FORMAT_CSV,
+   * ServerUtils.FRAME_FORMAT_ARROW or ServerUtils.FRAME_FORMAT_COLUMNS)
+   */
+  protected String m_frameFormat = ServerUtils.FRAME_FORMAT_CSV;
+
+  /**
+   * True if Arrow frames are exchanged through shared memory rather than the socket
+   */
+  protected boolean m_sharedMemory;
+
+  /**
+   * The compression applied to large frames, or null if frames are not compressed
+   */
+  protected BlockCompression m_compression;
+
+  /**
+   * Estimated frame size above which frames are compressed
+   */
+  protected long m_compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+  /**
+   * The codec for commands sent to, and responses received from, the python server
+   */
+  protected CommandCodec m_commandCodec = ServerUtils.JSON_CODEC;
+
+  /**
+   * The Kettle variables last sent to python as kettle_vars, keyed by namespace
+   */
+  protected Map<String, Map<String, String>> m_kettleVars = new HashMap<String, Map<String, String>>();
+
+  /**
+   * The namespace python is currently using (null for the default namespace)
+   */
+  protected String m_namespace;
+
+  /**
+   * The namespace of the requester the session is leased to, which python is switched to when the session is acquired
+   */
+  protected String m_leaseNamespace;
+
+  /**
+   * Ids of the scripts registered with python, keyed by namespace and then by script text. Python drops a namespace's
+   * scripts along with the namespace.
+   */
+  protected Map<String, Map<String, String>> m_scriptIds = new HashMap<String, Map<String, String>>();
+
+  /**
+   * Runs asynchronous operations one at a time, in the order they were submitted. Started when first needed
+   */
+  protected ExecutorService m_asyncExecutor;
+
+  /**
+   * The most recently submitted asynchronous operation
+   */
+  protected CompletableFuture<?> m_lastAsync;
+
   /**
    * The log to use
    */
   protected LogChannelInterface m_log;
 
+  /**
+   * The log the session was started with, for problems with the server process when no step is using the session
+   */
+  protected LogChannelInterface m_startLog;
+
   // TODO fix this
   protected String m_kettlePluginDir = "./";
 
   protected String m_osTmpDir = "";
 
   /**
-   * Acquire the session for the requester
+   * Acquire a session for the requester, waiting until one is free if necessary
    *
    * @param requester the object requesting the session
-   * @return the session singleton
+   * @return the session leased to the requester
    * @throws SessionException if python is not available
    */
   public static PythonSession acquireSession( Object requester ) throws SessionException {
-    return s_sessionSingleton.getSession( requester );
+    return acquireSession( requester, null );
+  }
+
+  /**
+   * Acquire a session for the requester, waiting until one is free if necessary - but no longer than the time set by
+   * the pentaho.cpython.pool.timeout property, and not once the requester has been stopped
+   *
+   * @param requester the object requesting the session
+   * @param stopCheck checked while waiting. May be null
+   * @return the session leased to the requester
+   * @throws SessionException if python is not available, or no session was free in time
+   */
+  public static PythonSession acquireSession( Object requester, PythonSessionPool.StopCheck stopCheck )
+      throws SessionException {
+    PythonSessionPool pool = s_pool;
+    if ( pool == null ) {
+      throw new SessionException( "Python not available!" );
+    }
+    PythonSession session =
+        pool.acquire( requester, Long.getLong( CPYTHON_POOL_TIMEOUT_PROPERTY_KEY, 0L ), stopCheck );
+    try {
+      // the requester may still have asynchronous operations running
+      session.awaitAsync();
+      session.switchNamespace();
+    } catch ( KettleException ex ) {
+      pool.release( requester );
+      throw new SessionException( ex );
+    }
+    return session;
+  }
+
+  /**
+   * Get the counters of the time a requester has spent waiting for and holding sessions
+   *
+   * @param requester the requester
+   * @return the counters, or null if python is not available
+   */
+  public static PythonSessionPool.LeaseStats getLeaseStats( Object requester ) {
+    PythonSessionPool pool = s_pool;
+    return pool != null ? pool.getLeaseStats( requester ) : null;
   }
 
   /**
    * Release the session so that other clients can obtain it. This method does
-   * nothing if the requester is not the current session holder
+   * nothing if the requester does not hold a session
    *
    * @param requester the session holder
    */
   public static void releaseSession( Object requester ) {
-    s_sessionSingleton.dropSession( requester );
+    PythonSessionPool pool = s_pool;
+    if ( pool != null ) {
+      pool.release( requester );
+    }
+  }
+
+  /**
+   * Release the requester's session and drop its python namespace, freeing the data frames and variables it created.
+   * To be called once the requester has finished with python altogether.
+   *
+   * @param requester the requester
+   * @throws KettleException if a problem occurs
+   */
+  public static void disposeSession( Object requester ) throws KettleException {
+    PythonSessionPool pool = s_pool;
+    if ( pool == null ) {
+      return;
+    }
+    String namespace = pool.getNamespace( requester );
+    try {
+      if ( namespace != null ) {
+        acquireSession( requester ).dropNamespace( namespace );
+      }
+    } catch ( SessionException ex ) {
+      throw new KettleException( ex );
+    } finally {
+      pool.release( requester );
+      pool.forget( requester );
+    }
   }
 
   /**
@@ -181,66 +558,327 @@ public class PythonSession {
    * @return true if the python environment/server is available
    */
   public static boolean pythonAvailable() {
-    return s_sessionSingleton != null;
+    return s_pool != null;
   }
 
-  protected static File installPyScriptsToTmp() throws IOException {
+  /**
+   * The python scripts installed from the classpath
+   */
+  protected static final String[] PY_SCRIPTS = { "pyCheck.py", "pyServer.py" };
+
+  /**
+   * Install the python scripts from the classpath into a directory under the Kettle directory, which belongs to the
+   * user running Kettle. The directory is named after a hash of the scripts, so each version of the scripts is
+   * installed once and then reused by later starts (and by the user's other JVMs). It is written under a temporary
+   * name and then renamed, so other processes never see a partly written script.
+   * <p>
+   * Python runs whatever it finds in the directory, so an existing directory is only reused if it belongs to the
+   * current user, nobody else can write to it, and its scripts still hash to its name. Otherwise the scripts are
+   * installed again; if the directory can't be replaced, into a private directory used by this JVM only.
+   *
+   * @param pythonCommand the command used to start python, which precompiles the scripts. May be null
+   * @return the directory containing the scripts
+   * @throws IOException if a problem occurs
+   */
+  protected static File installPyScripts( String pythonCommand ) throws IOException {
     ClassLoader loader = PythonSession.class.getClassLoader();
-    InputStream in = loader.getResourceAsStream( "py/pyCheck.py" );
-    if ( in == null ) {
-      throw new IOException( "Unable to read the pyCheck.py script as a resource" );
+    List<byte[]> scripts = new ArrayList<byte[]>();
+    for ( String name : PY_SCRIPTS ) {
+      InputStream in = loader.getResourceAsStream( "py/" + name );
+      if ( in == null ) {
+        throw new IOException( "Unable to read the " + name + " script as a resource" );
+      }
+      try {
+        scripts.add( IOUtils.toByteArray( in ) );
+      } finally {
+        in.close();
+      }
     }
+    File root = new File( Const.getKettleDirectory(), "cpython" );
+    root.mkdirs();
+    return installPyScripts( scripts, root, pythonCommand );
+  }
 
-    String tmpDir = System.getProperty( "java.io.tmpdir" );
-    // System.err.println( "******* System tmp dir: " + tmpDir );
-    File tempDir = new File( tmpDir );
-    String pyCheckDest = tmpDir + File.separator + "pyCheck.py";
-    String pyServerDest = tmpDir + File.separator + "pyServer.py";
+  /**
+   * Install the given python scripts into a directory named after their hash, or reuse it if it is already installed
+   * and can be trusted
+   *
+   * @param scripts       the contents of the python scripts, in the order of PY_SCRIPTS
+   * @param root          the directory to install into
+   * @param pythonCommand the command used to start python, which precompiles the scripts. May be null
+   * @return the directory containing the scripts
+   * @throws IOException if a problem occurs
+   */
+  protected static File installPyScripts( List<byte[]> scripts, File root, String pythonCommand ) throws IOException {
+    String hash = hashScripts( scripts );
+    File installDir = new File( root, "pentaho-cpython-" + hash.substring( 0, Math.min( 16, hash.length() ) ) );
 
-    PrintWriter outW = null;
-    BufferedReader inR = null;
+    // the owner of a file this JVM creates is the owner an installed directory must have
+    File probe = File.createTempFile( "owner", ".tmp", root );
+    UserPrincipal owner;
     try {
-      outW = new PrintWriter( new BufferedWriter( new FileWriter( pyCheckDest ) ) );
-      inR = new BufferedReader( new InputStreamReader( in ) );
-      String line;
-      while ( ( line = inR.readLine() ) != null ) {
-        outW.println( line );
-      }
-      outW.flush();
-      outW.close();
-      inR.close();
-
-      in = loader.getResourceAsStream( "py/pyServer.py" );
-      outW = new PrintWriter( new BufferedWriter( new FileWriter( pyServerDest ) ) );
-      inR = new BufferedReader( new InputStreamReader( in ) );
-      while ( ( line = inR.readLine() ) != null ) {
-        outW.println( line );
+      owner = Files.getOwner( probe.toPath() );
+    } finally {
+      probe.delete();
+    }
+
+    if ( installDir.exists() ) {
+      if ( isTrustedInstall( installDir, hash, owner ) ) {
+        return installDir;
+      }
+      try {
+        FileUtils.deleteDirectory( installDir );
+      } catch ( IOException ex ) {
+        // not ours to delete - installed privately below
+      }
+    }
+
+    File stagingDir = Files.createTempDirectory( root.toPath(), installDir.getName() + "-" ).toFile();
+    try {
+      for ( int i = 0; i < PY_SCRIPTS.length; i++ ) {
+        Files.write( new File( stagingDir, PY_SCRIPTS[i] ).toPath(), scripts.get( i ) );
+      }
+      if ( pythonCommand != null ) {
+        precompile( pythonCommand, stagingDir );
+      }
+      try {
+        Files.move( stagingDir.toPath(), installDir.toPath(), StandardCopyOption.ATOMIC_MOVE );
+      } catch ( IOException ex ) {
+        // another process got there first, or the directory couldn't be replaced
+        if ( !isTrustedInstall( installDir, hash, owner ) ) {
+          final File privateDir = stagingDir;
+          stagingDir = null;
+          Runtime.getRuntime().addShutdownHook( new Thread() {
+            @Override public void run() {
+              try {
+                FileUtils.deleteDirectory( privateDir );
+              } catch ( IOException e ) {
+                // only a leftover temporary directory
+              }
+            }
+          } );
+          return privateDir;
+        }
       }
-    } catch ( IOException ex ) {
-      ex.printStackTrace();
-      throw ex;
     } finally {
-      if ( outW != null ) {
-        outW.flush();
-        outW.close();
+      if ( stagingDir != null && stagingDir.exists() ) {
+        try {
+          FileUtils.deleteDirectory( stagingDir );
+        } catch ( IOException ex ) {
+          // only a leftover temporary directory
+        }
+      }
+    }
+    return installDir;
+  }
+
+  /**
+   * @param scripts the contents of the python scripts, in the order of PY_SCRIPTS
+   * @return the hex SHA-256 hash of the scripts
+   * @throws IOException if SHA-256 is not available
+   */
+  protected static String hashScripts( List<byte[]> scripts ) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance( "SHA-256" );
+    } catch ( NoSuchAlgorithmException ex ) {
+      throw new IOException( ex );
+    }
+    for ( byte[] script : scripts ) {
+      digest.update( script );
+    }
+    return new BigInteger( 1, digest.digest() ).toString( 16 );
+  }
+
+  /**
+   * Check that a directory of installed scripts can be run: the directory and everything in it (including the
+   * compiled bytecode) belong to the given owner, are not symbolic links and can't be written by anyone else, and the
+   * scripts hash to the expected value
+   *
+   * @param dir   the directory
+   * @param hash  the hash of the scripts that should be installed there
+   * @param owner the user that should own the directory
+   * @return true if the directory can be used
+   */
+  protected static boolean isTrustedInstall( File dir, String hash, UserPrincipal owner ) {
+    try {
+      if ( !isPrivate( dir.toPath(), owner ) ) {
+        return false;
+      }
+      File[] files = dir.listFiles();
+      if ( files == null ) {
+        return false;
+      }
+      for ( File file : files ) {
+        if ( !isPrivate( file.toPath(), owner ) ) {
+          return false;
+        }
+        File[] children = file.isDirectory() ? file.listFiles() : null;
+        if ( children != null ) {
+          for ( File child : children ) {
+            if ( !isPrivate( child.toPath(), owner ) ) {
+              return false;
+            }
+          }
+        }
+      }
+      List<byte[]> scripts = new ArrayList<byte[]>();
+      for ( String name : PY_SCRIPTS ) {
+        scripts.add( Files.readAllBytes( new File( dir, name ).toPath() ) );
+      }
+      return hash.equals( hashScripts( scripts ) );
+    } catch ( IOException ex ) {
+      return false;
+    }
+  }
+
+  /**
+   * @return true if the file is not a symbolic link, belongs to the given owner and (where POSIX permissions are
+   * available) can't be written by its group or others
+   */
+  protected static boolean isPrivate( Path path, UserPrincipal owner ) throws IOException {
+    if ( Files.isSymbolicLink( path ) || !owner.equals( Files.getOwner( path, LinkOption.NOFOLLOW_LINKS ) ) ) {
+      return false;
+    }
+    PosixFileAttributeView posix =
+        Files.getFileAttributeView( path, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS );
+    if ( posix != null ) {
+      Set<PosixFilePermission> permissions = posix.readAttributes().permissions();
+      return !permissions.contains( PosixFilePermission.GROUP_WRITE ) && !permissions
+          .contains( PosixFilePermission.OTHERS_WRITE );
+    }
+    return true;
+  }
+
+  /**
+   * @param value a string
+   * @return the string as a python string literal
+   */
+  protected static String pythonStringLiteral( String value ) {
+    return "'" + value.replace( "\\", "\\\\" ).replace( "'", "\\'" ) + "'";
+  }
+
+  /**
+   * Compile the scripts in a directory to bytecode, so that python doesn't have to compile them when they are first
+   * imported. Failing is harmless - python compiles them itself.
+   *
+   * @param pythonCommand the command used to start python
+   * @param dir           the directory
+   */
+  protected static void precompile( String pythonCommand, File dir ) {
+    try {
+      Process compile = new ProcessBuilder( pythonCommand, "-m", "compileall", "-q", dir.toString() ).start();
+      IOUtils.toByteArray( compile.getInputStream() );
+      compile.waitFor();
+    } catch ( IOException ex ) {
+      // compiled on first import instead
+    } catch ( InterruptedException ex ) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Constructor. Launches a python server process - the python environment is checked beforehand by initSession()
+   *
+   * @param pythonCommand the command used to start python
+   * @param osTmpDir      the directory that the server script was installed to
+   * @param log           the log for problems starting the server
+   * @throws IOException if a problem occurs
+   */
+  protected PythonSession( String pythonCommand, String osTmpDir, LogChannelInterface log ) throws IOException {
+    m_pythonCommand = pythonCommand;
+    m_osTmpDir = osTmpDir;
+    m_startLog = log;
+    m_shutdown = false;
+
+    // launch the server socket and python server
+    launchServer( true );
+    preloadModules( log );
+  }
+
+  /**
+   * Constructor for a session with a server that is already running, which it talks to over the given streams
+   *
+   * @param inputStream  the stream to read the server's responses from
+   * @param outputStream the stream to write commands to the server
+   * @param log          the log to use
+   */
+  protected PythonSession( InputStream inputStream, OutputStream outputStream, LogChannelInterface log ) {
+    m_inputStream = inputStream;
+    m_outputStream = outputStream;
+    m_log = log;
+    m_startLog = log;
+  }
+
+  /**
+   * Start python in the background, with the given number of server processes, so that the first step to use python
+   * doesn't have to wait for it. Does nothing more than start any extra servers if python is already running. The
+   * python command is chosen as it is for a step, from the variables every transformation starts with (system
+   * properties and kettle.properties).
+   *
+   * @param servers the number of server processes to start
+   * @param log     the log to use
+   */
+  public static void warmUp( final int servers, final LogChannelInterface log ) {
+    Thread warmUp = new Thread( "Python warm-up" ) {
+      @Override public void run() {
+        try {
+          VariableSpace vars = new Variables();
+          vars.initializeVariablesFrom( null );
+          PythonSessionPool pool = initSession( "python", vars, log ) ? s_pool : null;
+          if ( pool != null ) {
+            pool.prestart( servers );
+            log.logDetailed( "Python warm-up started " + pool.size() + " server process(es)" );
+          }
+        } catch ( Exception ex ) {
+          // a step that uses python reports the problem when it starts
+          log.logDetailed( "Python warm-up failed: " + ex.getMessage() );
+        }
+      }
+    };
+    warmUp.setDaemon( true );
+    warmUp.start();
+  }
+
+  /**
+   * Import the modules listed by the pentaho.cpython.preload property, if any. A module that can't be imported is
+   * reported, but doesn't stop the server from being used.
+   *
+   * @param log the log to report modules that can't be imported to
+   * @throws IOException if a problem occurs
+   */
+  protected void preloadModules( LogChannelInterface log ) throws IOException {
+    String preload = System.getProperty( CPYTHON_PRELOAD_MODULES_PROPERTY_KEY );
+    if ( Const.isEmpty( preload ) ) {
+      return;
+    }
+    List<String> modules = new ArrayList<String>();
+    for ( String module : preload.split( "," ) ) {
+      if ( module.trim().length() > 0 ) {
+        modules.add( module.trim() );
       }
-      if ( inR != null ) {
-        inR.close();
+    }
+    try {
+      List<String> failed =
+          ServerUtils.preloadModules( modules, log != null && log.isDebug(), m_commandCodec, m_outputStream,
+              m_inputStream, log );
+      if ( !failed.isEmpty() && log != null ) {
+        log.logBasic( "Python could not import: " + failed );
       }
+    } catch ( KettleException ex ) {
+      shutdown();
+      throw new IOException( ex );
     }
-
-    return tempDir;
   }
 
   /**
-   * Private constructor
+   * Check the python environment and, if it is usable, create the pool of server processes
    *
    * @param pythonCommand the command used to start python
+   * @param log           the log for problems starting server processes
    * @throws IOException if a problem occurs
    */
-  private PythonSession( String pythonCommand ) throws IOException {
-    m_pythonCommand = pythonCommand;
-    s_sessionSingleton = null;
+  private static void startPool( String pythonCommand, LogChannelInterface log ) throws IOException {
     s_pythonEnvCheckResults = "";
 
     // Read scripts from classpath and write them to tmp.
@@ -248,54 +886,64 @@ public class PythonSession {
         tester =
         m_kettlePluginDir + File.separator + File.separator + "resources" + File.separator + "py" + File.separator
             + "pyCheck.py"; */
-    File tmpDir = installPyScriptsToTmp();
-    m_osTmpDir = tmpDir.toString();
-    String tester = m_osTmpDir + File.separator + "pyCheck.py";
-    ProcessBuilder builder = new ProcessBuilder( pythonCommand, tester );
-    Process pyProcess = builder.start();
-    StringWriter writer = new StringWriter();
-    IOUtils.copy( pyProcess.getInputStream(), writer );
-    s_pythonEnvCheckResults = writer.toString();
-    m_shutdown = false;
-
-    // launch the server socket and python server
-    if ( s_pythonEnvCheckResults.length() < 5 ) {
-      launchServer( true );
-      s_sessionSingleton = this;
+    File tmpDir = installPyScripts( pythonCommand );
+
+    // each server checks the environment as it starts, and the first server to start is started right here - so
+    // there is no separate python process just for the check
+    s_envCheckCache = "false".equalsIgnoreCase( System.getProperty( CPYTHON_ENV_CHECK_CACHE_PROPERTY_KEY ) ) ? null
+        : EnvCheckCache.inKettleDirectory();
+    if ( Boolean.getBoolean( CPYTHON_FORKSERVER_PROPERTY_KEY ) && ForkServer.isSupported() ) {
+      startForkServer( pythonCommand, tmpDir.toString(), log );
+    }
+    int minSessions = Integer.getInteger( CPYTHON_POOL_MIN_PROPERTY_KEY, 1 );
+    int maxSessions = Integer.getInteger( CPYTHON_POOL_MAX_PROPERTY_KEY, 1 );
+    try {
+      s_pool =
+          new PythonSessionPool( pythonCommand, tmpDir.toString(), minSessions, maxSessions,
+              Long.getLong( CPYTHON_WATCHDOG_TIMEOUT_PROPERTY_KEY, 0L ), log );
+    } catch ( EnvironmentCheckException ex ) {
+      s_pythonEnvCheckResults = ex.getMessage();
     }
   }
 
   /**
-   * Gets the access to python for a requester. Handles locking.
+   * Start the fork server that python servers are forked from. If it can't be started the servers are started as
+   * processes of their own, as usual.
    *
-   * @param requester the requesting object
-   * @return the session
-   * @throws SessionException if python is not available
+   * @param pythonCommand the command used to start python
+   * @param scriptsDir    the directory holding the python scripts
+   * @param log           the log to report a failure to start to
    */
-  private synchronized PythonSession getSession( Object requester ) throws SessionException {
-    if ( s_sessionSingleton == null ) {
-      throw new SessionException( "Python not available!" );
+  private static void startForkServer( String pythonCommand, String scriptsDir, LogChannelInterface log ) {
+    Map<String, String> environment = new HashMap<String, String>();
+    if ( s_envCheckCache != null ) {
+      environment.put( ENV_CHECKED_ENV_VAR_KEY, s_envCheckCache.fingerprints() );
     }
-
-    if ( s_sessionHolder == requester ) {
-      return this;
+    String preload = System.getProperty( CPYTHON_PRELOAD_MODULES_PROPERTY_KEY );
+    if ( !Const.isEmpty( preload ) ) {
+      environment.put( PRELOAD_ENV_VAR_KEY, preload );
+    }
+    try {
+      final ForkServer forkServer = new ForkServer( pythonCommand, startServerCode( scriptsDir ), environment );
+      Runtime.getRuntime().addShutdownHook( new Thread() {
+        @Override public void run() {
+          forkServer.shutdown();
+        }
+      } );
+      s_forkServer = forkServer;
+    } catch ( IOException ex ) {
+      log.logError( "Unable to start the python fork server - starting python servers as processes of their own", ex );
     }
-
-    m_mutex.safeLock();
-    s_sessionHolder = requester;
-    return this;
   }
 
   /**
-   * Release the session for a requester
-   *
-   * @param requester the requesting object
+   * @param scriptsDir the directory holding the python scripts
+   * @return the python code that starts the server - the server is imported rather than run as a script, so that
+   * python uses its compiled bytecode, and then started
    */
-  private void dropSession( Object requester ) {
-    if ( requester == s_sessionHolder ) {
-      s_sessionHolder = null;
-      m_mutex.unlock();
-    }
+  protected static String startServerCode( String scriptsDir ) {
+    return "import sys; sys.path.insert(0, " + pythonStringLiteral( scriptsDir )
+        + "); import pyServer; pyServer.main()";
   }
 
   /**
@@ -312,18 +960,32 @@ public class PythonSession {
     if ( m_log != null ) {
       m_log.logDebug( "Launching server socket..." );
     }
-    m_serverSocket = new ServerSocket( 0 );
-    m_serverSocket.setSoTimeout( 10000 );
-    int localPort = m_serverSocket.getLocalPort();
+    String serverAddress = null;
+    if ( UnixDomainSockets.isAvailable() && !"false"
+        .equalsIgnoreCase( System.getProperty( CPYTHON_UNIX_SOCKET_PROPERTY_KEY ) ) ) {
+      try {
+        serverAddress = openUnixDomainServer();
+      } catch ( IOException ex ) {
+        if ( m_log != null ) {
+          m_log.logDebug( "Unable to open a Unix domain socket, falling back to TCP: " + ex.getMessage() );
+        }
+      }
+    }
+    if ( serverAddress == null ) {
+      ServerSocket serverSocket = new ServerSocket( 0 );
+      serverSocket.setSoTimeout( CONNECT_TIMEOUT );
+      m_serverSocket = serverSocket;
+      serverAddress = "" + serverSocket.getLocalPort();
+    }
     if ( m_log != null ) {
-      m_log.logDebug( "Local port: " + localPort );
+      m_log.logDebug( "Server address: " + serverAddress );
     } else {
-      System.err.println( "Local port: " + localPort );
+      System.err.println( "Server address: " + serverAddress );
     }
     Thread acceptThread = new Thread() {
       @Override public void run() {
         try {
-          m_localSocket = m_serverSocket.accept();
+          acceptConnection();
         } catch ( IOException e ) {
           m_localSocket = null;
         }
@@ -335,15 +997,36 @@ public class PythonSession {
       /*String
           serverScript =
           m_kettlePluginDir + File.separator + "resources" + File.separator + "py" + File.separator + "pyServer.py"; */
-      String serverScript = m_osTmpDir + File.separator + "pyServer.py";
       boolean debug = m_log != null && m_log.isDebug();
-      ProcessBuilder
-          processBuilder =
-          new ProcessBuilder( m_pythonCommand, serverScript, "" + localPort, debug ? "debug" : "" );
-      m_serverProcess = processBuilder.start();
+      ForkServer forkServer = s_forkServer;
+      if ( forkServer != null ) {
+        try {
+          m_pythonPID = forkServer.fork( serverAddress, debug );
+          m_forked = true;
+        } catch ( IOException ex ) {
+          if ( m_log != null ) {
+            m_log.logDebug( "Unable to fork a python server, starting one instead: " + ex.getMessage() );
+          }
+        }
+      }
+      if ( !m_forked ) {
+        ProcessBuilder
+            processBuilder =
+            new ProcessBuilder( m_pythonCommand, "-c", startServerCode( m_osTmpDir ), serverAddress,
+                debug ? "debug" : "" );
+        if ( s_envCheckCache != null ) {
+          processBuilder.environment().put( ENV_CHECKED_ENV_VAR_KEY, s_envCheckCache.fingerprints() );
+        }
+        m_serverProcess = processBuilder.start();
+      }
     }
     try {
-      acceptThread.join();
+      acceptThread.join( CONNECT_TIMEOUT );
+      if ( acceptThread.isAlive() ) {
+        // accepting on a Unix domain channel has no timeout of its own - closing the channel aborts it
+        m_serverSocket.close();
+        acceptThread.join();
+      }
     } catch ( InterruptedException e ) {
     }
 
@@ -351,7 +1034,44 @@ public class PythonSession {
       shutdown();
       throw new IOException( "Was unable to start python server" );
     } else {
-      m_pythonPID = ServerUtils.receiveServerPIDAck( m_localSocket.getInputStream() );
+      Map<String, Object> pidAck = ServerUtils.receiveServerPIDAck( m_inputStream );
+      m_pythonPID = (Integer) pidAck.get( "pid" );
+      try {
+        checkEnvironment( pidAck, m_pythonCommand, s_envCheckCache );
+      } catch ( EnvironmentCheckException ex ) {
+        // the server can't run scripts without the missing libraries
+        shutdown();
+        throw ex;
+      }
+      Object frameFormats = pidAck.get( ServerUtils.FRAME_FORMATS_KEY );
+      if ( frameFormats instanceof List && ( (List<?>) frameFormats ).contains( ServerUtils.FRAME_FORMAT_ARROW )
+          && !"false".equalsIgnoreCase( System.getProperty( CPYTHON_ARROW_PROPERTY_KEY ) ) ) {
+        m_frameFormat = ServerUtils.FRAME_FORMAT_ARROW;
+        m_sharedMemory = Boolean.TRUE.equals( pidAck.get( ServerUtils.SHARED_MEMORY_KEY ) )
+            && Boolean.parseBoolean( System.getProperty( CPYTHON_SHARED_MEMORY_PROPERTY_KEY ) )
+            && SharedMemoryFile.isAvailable();
+      } else if ( frameFormats instanceof List && ( (List<?>) frameFormats )
+          .contains( ServerUtils.FRAME_FORMAT_COLUMNS ) && !"false"
+          .equalsIgnoreCase( System.getProperty( CPYTHON_COLUMNS_PROPERTY_KEY ) ) ) {
+        m_frameFormat = ServerUtils.FRAME_FORMAT_COLUMNS;
+      }
+      Object commandCodecs = pidAck.get( ServerUtils.COMMAND_CODECS_KEY );
+      String preferredCodec = System.getProperty( CPYTHON_COMMAND_CODEC_PROPERTY_KEY, MessagePackCommandCodec.NAME );
+      if ( commandCodecs instanceof List && ( (List<?>) commandCodecs ).contains( MessagePackCommandCodec.NAME )
+          && MessagePackCommandCodec.NAME.equalsIgnoreCase( preferredCodec ) ) {
+        m_commandCodec = ServerUtils.MESSAGE_PACK_CODEC;
+      }
+      m_compression = chooseCompression( pidAck.get( ServerUtils.COMPRESSION_KEY ) );
+      String threshold = System.getProperty( CPYTHON_COMPRESSION_THRESHOLD_PROPERTY_KEY );
+      if ( !Const.isEmpty( threshold ) ) {
+        m_compressionThreshold = Long.parseLong( threshold.trim() );
+      }
+      if ( m_log != null ) {
+        m_log.logDebug( "Frame format: " + m_frameFormat + ( m_sharedMemory ? " (shared memory)" : "" ) );
+        m_log.logDebug( "Frame compression: " + ( m_compression != null ? m_compression.getName() : "none" ) );
+        m_log.logDebug( "Command codec: " + m_commandCodec.getName() );
+      }
+      m_commandCodec = new CorrelatingCommandCodec( m_commandCodec );
 
       m_shutdownHook = new Thread() {
         @Override public void run() {
@@ -362,13 +1082,101 @@ public class PythonSession {
     }
   }
 
+  /**
+   * Act on the environment check that a server ran as it started, as reported in its handshake. Fails if the check
+   * found problems; otherwise remembers that the environment passed, so that later servers can skip the check.
+   *
+   * @param pidAck        the server's handshake response
+   * @param pythonCommand the command the server was started with
+   * @param cache         the environments that have passed the check, or null if they are not remembered
+   * @throws EnvironmentCheckException if the check found problems
+   */
+  protected static void checkEnvironment( Map<String, Object> pidAck, String pythonCommand, EnvCheckCache cache )
+      throws EnvironmentCheckException {
+    Object envCheck = pidAck.get( ServerUtils.ENV_CHECK_KEY );
+    if ( envCheck != null && envCheck.toString().length() >= 5 ) {
+      throw new EnvironmentCheckException( envCheck.toString() );
+    }
+    Object fingerprint = pidAck.get( ServerUtils.ENV_FINGERPRINT_KEY );
+    if ( fingerprint != null && cache != null && !cache.contains( fingerprint.toString() ) ) {
+      cache.add( fingerprint.toString(), pythonCommand );
+    }
+  }
+
+  /**
+   * Choose the compression for large frames from those offered by the python server
+   *
+   * @param offered the names of the compressions that the server supports
+   * @return the compression to use, or null for none
+   */
+  protected static BlockCompression chooseCompression( Object offered ) {
+    if ( !( offered instanceof List ) ) {
+      return null;
+    }
+    String requested = System.getProperty( CPYTHON_COMPRESSION_PROPERTY_KEY );
+    String[] candidates = Const.isEmpty( requested ) ? BlockCompression.AUTOMATIC : new String[] { requested.trim() };
+    for ( String name : candidates ) {
+      if ( ( (List<?>) offered ).contains( name ) ) {
+        BlockCompression compression = BlockCompression.forName( name );
+        if ( compression != null ) {
+          return compression;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Bind a Unix domain server channel to a socket file in a new private temporary directory
+   *
+   * @return the address to pass to the python server
+   * @throws IOException if a problem occurs
+   */
+  protected String openUnixDomainServer() throws IOException {
+    File socketDir = Files.createTempDirectory( "pdi-cpython-" ).toFile();
+    File socketFile = new File( socketDir, UnixDomainSockets.SOCKET_FILE_NAME );
+    try {
+      m_serverSocket = UnixDomainSockets.openServerChannel( socketFile );
+    } catch ( IOException ex ) {
+      socketDir.delete();
+      throw ex;
+    }
+    m_socketFile = socketFile;
+    return "unix:" + socketFile.getAbsolutePath();
+  }
+
+  /**
+   * Wait for the python server to connect and set up buffered streams for talking to it
+   *
+   * @throws IOException if a problem occurs
+   */
+  protected void acceptConnection() throws IOException {
+    Closeable connection;
+    if ( m_serverSocket instanceof ServerSocketChannel ) {
+      SocketChannel channel = ( (ServerSocketChannel) m_serverSocket ).accept();
+      m_inputStream = m_watchedInputStream = new WatchedInputStream(
+          new BufferedInputStream( new UnixDomainSockets.ChannelInputStream( channel ), CONNECTION_BUFFER_SIZE ) );
+      m_outputStream =
+          new BufferedOutputStream( new UnixDomainSockets.ChannelOutputStream( channel ), CONNECTION_BUFFER_SIZE );
+      connection = channel;
+    } else {
+      Socket socket = ( (ServerSocket) m_serverSocket ).accept();
+      socket.setTcpNoDelay( true );
+      m_inputStream = m_watchedInputStream =
+          new WatchedInputStream( new BufferedInputStream( socket.getInputStream(), CONNECTION_BUFFER_SIZE ) );
+      m_outputStream = new BufferedOutputStream( socket.getOutputStream(), CONNECTION_BUFFER_SIZE );
+      connection = socket;
+    }
+    m_localSocket = connection;
+  }
+
   public void setLog( LogChannelInterface log ) {
     m_log = log;
   }
 
   /**
    * Initialize the session. This needs to be called exactly once in order to
-   * run checks and launch the server. Creates a session singleton. Assumes python
+   * run checks and launch the server. Creates the pool of sessions. Assumes python
    * is in the PATH; alternatively, can specify full path to python exe via the java
    * property or system environment variable pentaho.cpython.command.
    *
@@ -382,7 +1190,7 @@ public class PythonSession {
   public static synchronized boolean initSession( String pythonCommand, VariableSpace vars, LogChannelInterface log )
       throws KettleException {
 
-    if ( s_sessionSingleton != null ) {
+    if ( s_pool != null ) {
       return true;
       // throw new KettleException( BaseMessages.getString( ServerUtils.PKG, "PythonSession.Error.EnvAlreadyAvailable" ) );
     }
@@ -413,7 +1221,7 @@ public class PythonSession {
       log.logDebug( "PATH: " + path );
     }
     try {
-      new PythonSession( pythonCommand );
+      startPool( pythonCommand, log );
     } catch ( IOException ex ) {
       throw new KettleException( ex );
     }
@@ -440,12 +1248,28 @@ public class PythonSession {
    */
   public void rowsToPythonDataFrame( RowMetaInterface rowMeta, List<Object[]> rows, String pythonFrameName )
       throws KettleException {
-    try {
-      ServerUtils.sendRowsToPandasDataFrame( m_log, rowMeta, rows, pythonFrameName, m_localSocket.getOutputStream(),
-          m_localSocket.getInputStream() );
-    } catch ( IOException ex ) {
-      throw new KettleException( ex );
-    }
+    BlockCompression compression =
+        ServerUtils.estimateFrameSize( rowMeta.size(), rows.size() ) > m_compressionThreshold ? m_compression : null;
+    ServerUtils.sendRowsToPandasDataFrame( m_log, rowMeta, rows, pythonFrameName, m_frameFormat, m_sharedMemory,
+        compression, m_commandCodec, m_outputStream, m_inputStream );
+  }
+
+  /**
+   * As rowsToPythonDataFrame(), but asynchronously. The rows must not be changed until the transfer has completed.
+   *
+   * @param rowMeta         the metadata of the rows
+   * @param rows            the rows to transfer
+   * @param pythonFrameName the name of the data frame to use in python
+   * @return a future that completes when the rows have been transferred
+   */
+  public CompletableFuture<Void> rowsToPythonDataFrameAsync( final RowMetaInterface rowMeta, final List<Object[]> rows,
+      final String pythonFrameName ) {
+    return submitAsync( new SessionOperation<Void>() {
+      @Override public Void run( PythonSession session ) throws KettleException {
+        session.rowsToPythonDataFrame( rowMeta, rows, pythonFrameName );
+        return null;
+      }
+    } );
   }
 
   /**
@@ -457,13 +1281,35 @@ public class PythonSession {
    * @throws KettleException if a problem occurs
    */
   public RowMetaAndRows rowsFromPythonDataFrame( String frameName, boolean includeRowIndex ) throws KettleException {
-    try {
-      return ServerUtils
-          .receiveRowsFromPandasDataFrame( m_log, frameName, includeRowIndex, m_localSocket.getOutputStream(),
-              m_localSocket.getInputStream() );
-    } catch ( IOException ex ) {
-      throw new KettleException( ex );
-    }
+    final RowMetaAndRows result = new RowMetaAndRows();
+    final List<Object[]> rows = new ArrayList<Object[]>();
+    rowsFromPythonDataFrame( frameName, includeRowIndex, new RowsFromPythonHandler() {
+      @Override public void frameMetaReceived( RowMetaInterface frameMeta, int numRows ) {
+        result.m_rowMeta = frameMeta;
+      }
+
+      @Override public void rowReceived( Object[] row ) {
+        rows.add( row );
+      }
+    } );
+    result.m_rows = rows.toArray( new Object[rows.size()][] );
+
+    return result;
+  }
+
+  /**
+   * Transfer a pandas data frame from python, handing each row to the supplied handler as soon as it has been
+   * decoded. Rows are not retained, so the frame never has to be held in memory as a whole.
+   *
+   * @param frameName       the name of the pandas data frame to get
+   * @param includeRowIndex true to include the pandas data frame row index as a field
+   * @param handler         the handler to receive the frame metadata and rows
+   * @throws KettleException if a problem occurs
+   */
+  public void rowsFromPythonDataFrame( String frameName, boolean includeRowIndex, RowsFromPythonHandler handler )
+      throws KettleException {
+    ServerUtils.receiveRowsFromPandasDataFrame( m_log, frameName, includeRowIndex, m_frameFormat, m_sharedMemory,
+        m_compression, m_compressionThreshold, handler, m_commandCodec, m_outputStream, m_inputStream );
   }
 
   /**
@@ -474,12 +1320,7 @@ public class PythonSession {
    * @throws KettleException if a problem occurs
    */
   public boolean checkIfPythonVariableIsSet( String pyVarName ) throws KettleException {
-    try {
-      return ServerUtils.checkIfPythonVariableIsSet( m_log, pyVarName, m_localSocket.getInputStream(),
-          m_localSocket.getOutputStream() );
-    } catch ( IOException ex ) {
-      throw new KettleException( ex );
-    }
+    return ServerUtils.checkIfPythonVariableIsSet( m_log, pyVarName, m_commandCodec, m_inputStream, m_outputStream );
   }
 
   /**
@@ -495,11 +1336,7 @@ public class PythonSession {
    * @throws KettleException if a problem occurs
    */
   public List<String> getPythonDebugBuffer() throws KettleException {
-    try {
-      return ServerUtils.receiveDebugBuffer( m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log );
-    } catch ( IOException ex ) {
-      throw new KettleException( ex );
-    }
+    return ServerUtils.receiveDebugBuffer( m_commandCodec, m_outputStream, m_inputStream, m_log );
   }
 
   /**
@@ -512,12 +1349,7 @@ public class PythonSession {
    * @throws KettleException if a problem occurs
    */
   public PythonVariableType getPythonVariableType( String varName ) throws KettleException {
-    try {
-      return ServerUtils
-          .getPythonVariableType( varName, m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log );
-    } catch ( IOException ex ) {
-      throw new KettleException( ex );
-    }
+    return ServerUtils.getPythonVariableType( varName, m_commandCodec, m_outputStream, m_inputStream, m_log );
   }
 
   /**
@@ -529,12 +1361,241 @@ public class PythonSession {
    * @throws KettleException if a problem occurs
    */
   public List<String> executeScript( String pyScript ) throws KettleException {
+    return ServerUtils.executeUserScript( pyScript, m_commandCodec, m_outputStream, m_inputStream, m_log );
+  }
+
+  /**
+   * As executeScript(), but asynchronously.
+   *
+   * @param pyScript the script to execute
+   * @return a future for the std out and std err from the script
+   */
+  public CompletableFuture<List<String>> executeScriptAsync( final String pyScript ) {
+    return submitAsync( new SessionOperation<List<String>>() {
+      @Override public List<String> run( PythonSession session ) throws KettleException {
+        return session.executeScript( pyScript );
+      }
+    } );
+  }
+
+  /**
+   * Execute a python script and then fetch the state of a list of variables - whether each is set, its type, and the
+   * value of any that are not frames - in a single round trip to the server.
+   *
+   * @param pyScript      the script to execute, or null to just fetch the variables
+   * @param varNames      the names of the variables to fetch
+   * @param frameAsString true to fetch frames in their plain string form too (their rows are otherwise fetched with
+   *                      rowsFromPythonDataFrame)
+   * @return the script output and variables
+   * @throws KettleException if a problem occurs
+   */
+  public ScriptResultAndVariables executeScriptAndFetchVariables( String pyScript, List<String> varNames,
+      boolean frameAsString ) throws KettleException {
+    return ServerUtils
+        .executeScriptAndFetch( pyScript, null, varNames, frameAsString, m_commandCodec, m_outputStream,
+            m_inputStream, m_log );
+  }
+
+  /**
+   * Register a script with python, which compiles it once and keeps the compiled code until the current namespace is
+   * dropped. Registering the same script text again in the namespace returns the existing id without contacting
+   * python.
+   *
+   * @param pyScript the script to register
+   * @return the id to execute the script by
+   * @throws KettleException if a problem occurs, including the script failing to compile
+   */
+  public String registerScript( String pyScript ) throws KettleException {
+    Map<String, String> scriptIds = m_scriptIds.get( m_namespace );
+    if ( scriptIds == null ) {
+      scriptIds = new HashMap<String, String>();
+      m_scriptIds.put( m_namespace, scriptIds );
+    }
+    String scriptId = scriptIds.get( pyScript );
+    if ( scriptId == null ) {
+      scriptId = ServerUtils.registerScript( pyScript, m_commandCodec, m_outputStream, m_inputStream, m_log );
+      scriptIds.put( pyScript, scriptId );
+    }
+    return scriptId;
+  }
+
+  /**
+   * Execute a script registered with registerScript().
+   *
+   * @param scriptId the id of the script
+   * @return a List of strings - index 0 contains std out from the script and index 1 contains std err
+   * @throws KettleException if a problem occurs
+   */
+  public List<String> executeScriptById( String scriptId ) throws KettleException {
+    return ServerUtils.executeScriptById( scriptId, m_commandCodec, m_outputStream, m_inputStream, m_log );
+  }
+
+  /**
+   * As executeScriptAndFetchVariables(), but for a script registered with registerScript(), so only its id is sent.
+   *
+   * @param scriptId      the id of the script
+   * @param varNames      the names of the variables to fetch
+   * @param frameAsString true to fetch frames in their plain string form too
+   * @return the script output and variables
+   * @throws KettleException if a problem occurs
+   */
+  public ScriptResultAndVariables executeScriptByIdAndFetchVariables( String scriptId, List<String> varNames,
+      boolean frameAsString ) throws KettleException {
+    return ServerUtils
+        .executeScriptAndFetch( null, scriptId, varNames, frameAsString, m_commandCodec, m_outputStream, m_inputStream,
+            m_log );
+  }
+
+  /**
+   * As executeScriptByIdAndFetchVariables(), but asynchronously.
+   *
+   * @param scriptId      the id of the script
+   * @param varNames      the names of the variables to fetch
+   * @param frameAsString true to fetch frames in their plain string form too
+   * @return a future for the script output and variables
+   */
+  public CompletableFuture<ScriptResultAndVariables> executeScriptByIdAndFetchVariablesAsync( final String scriptId,
+      final List<String> varNames, final boolean frameAsString ) {
+    return submitAsync( new SessionOperation<ScriptResultAndVariables>() {
+      @Override public ScriptResultAndVariables run( PythonSession session ) throws KettleException {
+        return session.executeScriptByIdAndFetchVariables( scriptId, varNames, frameAsString );
+      }
+    } );
+  }
+
+  /**
+   * Run an operation on this session asynchronously. Operations run one at a time, in the order they are submitted,
+   * so a script submitted after a data frame sees that frame. An operation still runs if an earlier one failed.
+   * <p>
+   * The python server handles one command at a time, so the caller must hold the session until its operations have
+   * completed, and must not call the synchronous methods meanwhile - acquireSession() waits for them.
+   *
+   * @param operation the operation to run
+   * @param <T>       the type of the operation's result
+   * @return a future for the operation's result. A failure is a KettleException
+   */
+  public synchronized <T> CompletableFuture<T> submitAsync( final SessionOperation<T> operation ) {
+    final CompletableFuture<T> future = new CompletableFuture<T>();
+    if ( m_asyncExecutor == null ) {
+      m_asyncExecutor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+        @Override public Thread newThread( Runnable r ) {
+          Thread thread = new Thread( r, "Python session " + m_pythonPID );
+          thread.setDaemon( true );
+          return thread;
+        }
+      } );
+    }
     try {
-      return ServerUtils
-          .executeUserScript( pyScript, m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log );
-    } catch ( IOException ex ) {
+      m_asyncExecutor.execute( new Runnable() {
+        @Override public void run() {
+          try {
+            future.complete( operation.run( PythonSession.this ) );
+          } catch ( Throwable ex ) {
+            future.completeExceptionally( ex );
+          }
+        }
+      } );
+    } catch ( RejectedExecutionException ex ) {
+      future.completeExceptionally( new KettleException( "Python session has been shut down" ) );
+    }
+    m_lastAsync = future;
+    return future;
+  }
+
+  /**
+   * Wait until all the asynchronous operations submitted so far have completed, whether or not they succeeded
+   *
+   * @throws KettleException if interrupted while waiting
+   */
+  public void awaitAsync() throws KettleException {
+    CompletableFuture<?> last;
+    synchronized ( this ) {
+      last = m_lastAsync;
+    }
+    if ( last == null ) {
+      return;
+    }
+    try {
+      last.get();
+    } catch ( InterruptedException ex ) {
+      Thread.currentThread().interrupt();
       throw new KettleException( ex );
+    } catch ( ExecutionException ex ) {
+      // reported to whoever submitted the operation
+    }
+  }
+
+  /**
+   * Wait for the result of an asynchronous operation
+   *
+   * @param future the future returned when the operation was submitted
+   * @param <T>    the type of the result
+   * @return the result
+   * @throws KettleException if the operation failed
+   */
+  public static <T> T join( CompletableFuture<T> future ) throws KettleException {
+    try {
+      return future.join();
+    } catch ( CompletionException ex ) {
+      if ( ex.getCause() instanceof KettleException ) {
+        throw (KettleException) ex.getCause();
+      }
+      throw new KettleException( ex.getCause() );
+    }
+  }
+
+  /**
+   * Make Kettle variables available to scripts as the kettle_vars dictionary. The session is shared, so this is
+   * called before each use, but the variables are only sent when they differ from the ones python already has.
+   *
+   * @param vars the variables, keyed by name
+   * @throws KettleException if a problem occurs
+   */
+  public void setKettleVariables( Map<String, String> vars ) throws KettleException {
+    if ( vars.equals( m_kettleVars.get( m_namespace ) ) ) {
+      return;
     }
+    ServerUtils.sendKettleVariables( vars, m_commandCodec, m_outputStream, m_inputStream, m_log );
+    m_kettleVars.put( m_namespace, new HashMap<String, String>( vars ) );
+  }
+
+  /**
+   * Switch python to the namespace of the requester the session is leased to, if it is not already using it
+   *
+   * @throws KettleException if a problem occurs
+   */
+  protected void switchNamespace() throws KettleException {
+    String namespace = m_leaseNamespace;
+    if ( namespace == null ? m_namespace != null : !namespace.equals( m_namespace ) ) {
+      ServerUtils.setNamespace( namespace, m_commandCodec, m_outputStream, m_inputStream, m_log );
+      m_namespace = namespace;
+    }
+  }
+
+  /**
+   * Drop a namespace in python, along with all of its variables and registered scripts
+   *
+   * @param namespace the namespace
+   * @throws KettleException if a problem occurs
+   */
+  protected void dropNamespace( String namespace ) throws KettleException {
+    ServerUtils.dropNamespace( namespace, m_commandCodec, m_outputStream, m_inputStream, m_log );
+    m_kettleVars.remove( namespace );
+    m_scriptIds.remove( namespace );
+    if ( namespace.equals( m_namespace ) ) {
+      m_namespace = null;
+    }
+  }
+
+  /**
+   * Fetch the state of a list of variables in a single round trip. Frames are fetched in their plain string form.
+   *
+   * @param varNames the names of the variables to fetch
+   * @return the variables, keyed by name
+   * @throws KettleException if a problem occurs
+   */
+  public Map<String, PythonVariable> fetchVariables( List<String> varNames ) throws KettleException {
+    return executeScriptAndFetchVariables( null, varNames, true ).m_variables;
   }
 
   /**
@@ -546,12 +1607,7 @@ public class PythonSession {
    * @throws KettleException if a problem occurs
    */
   public BufferedImage getImageFromPython( String varName ) throws KettleException {
-    try {
-      return ServerUtils
-          .getPNGImageFromPython( varName, m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log );
-    } catch ( IOException ex ) {
-      throw new KettleException( ex );
-    }
+    return ServerUtils.getPNGImageFromPython( varName, m_commandCodec, m_outputStream, m_inputStream, m_log );
   }
 
   /**
@@ -562,22 +1618,115 @@ public class PythonSession {
    * @throws KettleException if a problem occurs
    */
   public String getVariableValueFromPythonAsPlainString( String varName ) throws KettleException {
+    return ServerUtils
+        .receivePickledVariableValue( varName, m_commandCodec, m_outputStream, m_inputStream, true, m_log );
+  }
+
+  /**
+   * @return true if the python server is (as far as can be told) still running
+   */
+  public boolean isAlive() {
+    WatchedInputStream in = m_watchedInputStream;
+    return !m_shutdown && m_localSocket != null && ( m_serverProcess == null || m_serverProcess.isAlive() ) && (
+        in == null || !in.hasFailed() );
+  }
+
+  /**
+   * As isAlive(), but gives a server that is exiting - for example after its connection has failed - a little time to
+   * finish
+   *
+   * @param waitMillis the longest time to wait for the server to exit
+   * @return true if the python server is still running
+   */
+  public boolean isAlive( long waitMillis ) {
+    Process process = m_serverProcess;
+    if ( process != null && waitMillis > 0 ) {
+      try {
+        process.waitFor( waitMillis, TimeUnit.MILLISECONDS );
+      } catch ( InterruptedException e ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return isAlive();
+  }
+
+  /**
+   * @return how long, in milliseconds, the session has been waiting for a response from python, or 0 if it isn't
+   * waiting
+   */
+  public long waitingMillis() {
+    WatchedInputStream in = m_watchedInputStream;
+    return in != null ? in.waitingMillis() : 0;
+  }
+
+  /**
+   * Kill the python server process without any of the shutdown conversation, for a server that has stopped
+   * responding. Whoever is waiting for a response gets an error.
+   */
+  protected void kill() {
+    Process process = m_serverProcess;
+    if ( process != null ) {
+      process.destroyForcibly();
+    } else if ( m_forked && m_pythonPID > 0 ) {
+      // a forked server is not a child of this JVM, so all there is to go on is its pid
+      try {
+        new ProcessBuilder( "kill", "-9", "" + m_pythonPID ).start();
+      } catch ( IOException e ) {
+        LogChannelInterface log = m_log != null ? m_log : m_startLog;
+        if ( log != null ) {
+          log.logError( "Unable to kill python server " + m_pythonPID, e );
+        }
+      }
+    }
+  }
+
+  /**
+   * Free everything belonging to a python server that has died (or been killed), without trying to talk to it
+   */
+  protected void discard() {
+    m_shutdown = true;
+    synchronized ( this ) {
+      if ( m_asyncExecutor != null ) {
+        m_asyncExecutor.shutdown();
+      }
+    }
+    kill();
     try {
-      return ServerUtils
-          .receivePickledVariableValue( varName, m_localSocket.getOutputStream(), m_localSocket.getInputStream(), true,
-              m_log );
+      if ( m_localSocket != null ) {
+        m_localSocket.close();
+      }
+      if ( m_serverSocket != null ) {
+        m_serverSocket.close();
+      }
     } catch ( IOException ex ) {
-      throw new KettleException( ex );
+      // nothing more to do
+    }
+    if ( m_socketFile != null ) {
+      m_socketFile.delete();
+      m_socketFile.getParentFile().delete();
+      m_socketFile = null;
+    }
+    if ( m_shutdownHook != null ) {
+      try {
+        Runtime.getRuntime().removeShutdownHook( m_shutdownHook );
+      } catch ( IllegalStateException ex ) {
+        // the JVM is already shutting down
+      }
     }
   }
 
   /**
    * Shutdown the python server
    */
-  private void shutdown() {
+  protected void shutdown() {
     if ( !m_shutdown ) {
       try {
         m_shutdown = true;
+        synchronized ( this ) {
+          if ( m_asyncExecutor != null ) {
+            m_asyncExecutor.shutdown();
+          }
+        }
         if ( m_localSocket != null ) {
           if ( m_log == null ) {
             System.err.println( "Sending shutdown command..." );
@@ -588,7 +1737,7 @@ public class PythonSession {
             List<String>
                 outAndErr =
                 ServerUtils
-                    .receiveDebugBuffer( m_localSocket.getOutputStream(), m_localSocket.getInputStream(), m_log );
+                    .receiveDebugBuffer( m_commandCodec, m_outputStream, m_inputStream, m_log );
             if ( outAndErr.get( 0 ).length() > 0 ) {
               if ( m_log == null ) {
                 System.err.println( "Python debug std out:\n" + outAndErr.get( 0 ) + "\n" );
@@ -604,7 +1753,7 @@ public class PythonSession {
               }
             }
           }
-          ServerUtils.sendServerShutdown( m_localSocket.getOutputStream() );
+          ServerUtils.sendServerShutdown( m_commandCodec, m_outputStream );
           m_localSocket.close();
           if ( m_serverProcess != null ) {
             m_serverProcess.destroy();
@@ -615,7 +1764,11 @@ public class PythonSession {
         if ( m_serverSocket != null ) {
           m_serverSocket.close();
         }
-        s_sessionSingleton = null;
+        if ( m_socketFile != null ) {
+          m_socketFile.delete();
+          m_socketFile.getParentFile().delete();
+          m_socketFile = null;
+        }
       } catch ( Exception ex ) {
         ex.printStackTrace();
         if ( m_pythonPID > 0 ) {
@@ -643,7 +1796,7 @@ public class PythonSession {
   public static void main( String[] args ) {
     try {
 
-/*      File tmp = PythonSession.installPyScriptsToTmp();
+/*      File tmp = PythonSession.installPyScriptsToTmp( null );
       System.err.println( tmp ); */
 
       if ( !PythonSession.initSession( "python", null, null ) ) {
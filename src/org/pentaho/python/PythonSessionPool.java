@@ -0,0 +1,706 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of python server processes. Each requester leases a session (one server process) at a time, so requesters
+ * holding different sessions run their scripts in parallel. Servers are started as they are needed, up to a maximum.
+ * <p>
+ * Python state (data frames, variables) lives in a server process, so a requester is pinned to the session it first
+ * leased, and always gets that same session back - waiting for it if another requester has it. New requesters are
+ * spread over the sessions. Within a server, each requester gets its own namespace, so requesters sharing a server
+ * don't see each other's variables.
+ * <p>
+ * Waiting requesters are served in the order they arrived: a session is never given to a later requester that an
+ * earlier one could have had. A lease held by a thread that has died is taken back. The time each requester spends
+ * waiting for and holding sessions is recorded, to tell whether it is held up by python or by other requesters.
+ * <p>
+ * A watchdog thread looks out for server processes that have died, and (if a timeout is set) for servers that have
+ * stopped responding, which it kills. Dead sessions are dropped from the pool once no one holds them, and new ones
+ * are started in their place. Python state is lost with the server: requesters pinned to a dead session get a new
+ * session and namespace, and scripts and Kettle variables are sent to the new server again as they are next used.
+ */
+public class PythonSessionPool {
+
+  /**
+   * Checked while waiting for a session, to give up when the requester is stopped
+   */
+  public static interface StopCheck {
+    boolean isStopped();
+  }
+
+  /**
+   * Lease counters for a requester
+   */
+  public static class LeaseStats {
+    /**
+     * Number of leases
+     */
+    public long m_leases;
+
+    /**
+     * Total time spent waiting for a session
+     */
+    public long m_waitNanos;
+
+    /**
+     * Longest single wait for a session
+     */
+    public long m_maxWaitNanos;
+
+    /**
+     * Total time sessions were held
+     */
+    public long m_holdNanos;
+
+    /**
+     * Number of times the requester gave up waiting because of a timeout or being stopped
+     */
+    public long m_timeouts;
+
+    protected LeaseStats copy() {
+      LeaseStats copy = new LeaseStats();
+      copy.m_leases = m_leases;
+      copy.m_waitNanos = m_waitNanos;
+      copy.m_maxWaitNanos = m_maxWaitNanos;
+      copy.m_holdNanos = m_holdNanos;
+      copy.m_timeouts = m_timeouts;
+      return copy;
+    }
+
+    @Override public String toString() {
+      return m_leases + " leases, waited " + TimeUnit.NANOSECONDS.toMillis( m_waitNanos ) + "ms (longest "
+          + TimeUnit.NANOSECONDS.toMillis( m_maxWaitNanos ) + "ms), held " + TimeUnit.NANOSECONDS.toMillis( m_holdNanos )
+          + "ms" + ( m_timeouts > 0 ? ", gave up " + m_timeouts + " times" : "" );
+    }
+  }
+
+  /**
+   * A requester waiting for a session
+   */
+  protected static class Waiter {
+    protected final Object m_requester;
+    protected final Thread m_thread = Thread.currentThread();
+
+    /**
+     * The session given to the waiter
+     */
+    protected PythonSession m_granted;
+
+    /**
+     * True if the waiter is to start a new session for itself
+     */
+    protected boolean m_start;
+
+    protected Waiter( Object requester ) {
+      m_requester = requester;
+    }
+  }
+
+  /**
+   * How often waiting requesters check whether they have been stopped, and whether lease holders have died
+   */
+  protected static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos( 500 );
+
+  /**
+   * How often the watchdog checks the server processes
+   */
+  protected static final long WATCHDOG_INTERVAL_MILLIS = 2000;
+
+  /**
+   * The command used to start python
+   */
+  protected final String m_pythonCommand;
+
+  /**
+   * The directory that the server script was installed to
+   */
+  protected final String m_osTmpDir;
+
+  /**
+   * The log for problems starting server processes
+   */
+  protected final LogChannelInterface m_log;
+
+  /**
+   * The number of server processes to keep running
+   */
+  protected final int m_minSessions;
+
+  /**
+   * The maximum number of server processes
+   */
+  protected final int m_maxSessions;
+
+  /**
+   * How long a server may take to respond before the watchdog kills it, or 0 for no limit
+   */
+  protected final long m_hangTimeoutMillis;
+
+  /**
+   * Restarts dead servers
+   */
+  protected Thread m_watchdog;
+
+  /**
+   * True once the pool has been shut down
+   */
+  protected volatile boolean m_closed;
+
+  /**
+   * Guards the state of the pool. Fair, so that requesters get through it in the order they arrive
+   */
+  protected final ReentrantLock m_lock = new ReentrantLock( true );
+
+  /**
+   * Signalled when sessions are given to waiting requesters
+   */
+  protected final Condition m_granted = m_lock.newCondition();
+
+  /**
+   * All the running sessions
+   */
+  protected final List<PythonSession> m_sessions = new ArrayList<PythonSession>();
+
+  /**
+   * The number of sessions currently being started
+   */
+  protected int m_starting;
+
+  /**
+   * Requesters waiting for a session, in the order they arrived
+   */
+  protected final ArrayDeque<Waiter> m_waiters = new ArrayDeque<Waiter>();
+
+  /**
+   * The session leased by each requester
+   */
+  protected final Map<Object, PythonSession> m_leases = new IdentityHashMap<Object, PythonSession>();
+
+  /**
+   * The thread holding each leased session
+   */
+  protected final Map<PythonSession, Thread> m_leaseThreads = new IdentityHashMap<PythonSession, Thread>();
+
+  /**
+   * When each requester's current lease started (System.nanoTime())
+   */
+  protected final Map<Object, Long> m_leaseStarts = new IdentityHashMap<Object, Long>();
+
+  /**
+   * The session each requester is pinned to. Weak, so requesters that are finished with can be collected
+   */
+  protected final Map<Object, PythonSession> m_pins = new WeakHashMap<Object, PythonSession>();
+
+  /**
+   * The python namespace of each requester. Weak, as for pins
+   */
+  protected final Map<Object, String> m_namespaces = new WeakHashMap<Object, String>();
+
+  /**
+   * Lease counters of each requester. Weak, as for pins
+   */
+  protected final Map<Object, LeaseStats> m_stats = new WeakHashMap<Object, LeaseStats>();
+
+  /**
+   * For generating namespace names
+   */
+  protected int m_namespaceCount;
+
+  /**
+   * Create a pool and start its initial sessions
+   *
+   * @param pythonCommand the command used to start python
+   * @param osTmpDir      the directory that the server script was installed to
+   * @param minSessions   the number of sessions to start straight away, and keep running (at least one)
+   * @param maxSessions   the maximum number of sessions
+   * @param hangTimeout   how long, in milliseconds, a server may take to respond before it is killed and replaced, or
+   *                      0 for no limit
+   * @param log           the log for problems starting server processes
+   * @throws IOException if a session can't be started
+   */
+  public PythonSessionPool( String pythonCommand, String osTmpDir, int minSessions, int maxSessions,
+      long hangTimeout, LogChannelInterface log ) throws IOException {
+    m_pythonCommand = pythonCommand;
+    m_osTmpDir = osTmpDir;
+    m_log = log;
+    m_minSessions = Math.max( 1, minSessions );
+    m_maxSessions = Math.max( m_minSessions, maxSessions );
+    m_hangTimeoutMillis = hangTimeout;
+    try {
+      for ( int i = 0; i < m_minSessions; i++ ) {
+        m_sessions.add( newSession() );
+      }
+    } catch ( IOException ex ) {
+      shutdown();
+      throw ex;
+    }
+
+    m_watchdog = new Thread( "Python server watchdog" ) {
+      @Override public void run() {
+        watch();
+      }
+    };
+    m_watchdog.setDaemon( true );
+    m_watchdog.start();
+  }
+
+  /**
+   * Lease a session for the requester, waiting as long as necessary
+   *
+   * @param requester the object requesting the session
+   * @return the session
+   * @throws SessionException if a new session can't be started, or the wait is interrupted
+   */
+  public PythonSession acquire( Object requester ) throws SessionException {
+    return acquire( requester, 0, null );
+  }
+
+  /**
+   * Lease a session for the requester, waiting if necessary. A requester that already holds a session gets it again.
+   * Any other requester waits for a session of its own, even on the thread holding that one.
+   *
+   * @param requester     the object requesting the session
+   * @param timeoutMillis the longest time to wait, or 0 to wait as long as necessary
+   * @param stopCheck     checked while waiting, to give up if the requester is stopped. May be null
+   * @return the session
+   * @throws SessionException if a new session can't be started, or the wait times out, is interrupted or is given up
+   *                          because the requester was stopped
+   */
+  public PythonSession acquire( Object requester, long timeoutMillis, StopCheck stopCheck ) throws SessionException {
+    long waitStart = System.nanoTime();
+    Waiter waiter = new Waiter( requester );
+    m_lock.lock();
+    try {
+      PythonSession session = m_leases.get( requester );
+      if ( session != null ) {
+        return session;
+      }
+
+      m_waiters.addLast( waiter );
+      grant();
+      long deadline = waitStart + TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+      while ( waiter.m_granted == null && !waiter.m_start ) {
+        String giveUp = null;
+        long wait = POLL_NANOS;
+        if ( stopCheck != null && stopCheck.isStopped() ) {
+          giveUp = "Stopped while waiting for a python session";
+        } else if ( timeoutMillis > 0 ) {
+          wait = Math.min( wait, deadline - System.nanoTime() );
+          if ( wait <= 0 ) {
+            giveUp = "Timed out after " + timeoutMillis + "ms waiting for a python session";
+          }
+        }
+        if ( giveUp != null ) {
+          m_waiters.remove( waiter );
+          getStats( requester ).m_timeouts++;
+          throw new SessionException( giveUp );
+        }
+
+        try {
+          m_granted.awaitNanos( wait );
+        } catch ( InterruptedException e ) {
+          m_waiters.remove( waiter );
+          Thread.currentThread().interrupt();
+          throw new SessionException( "Interrupted while waiting for a python session" );
+        }
+        if ( waiter.m_granted == null && !waiter.m_start ) {
+          expireLeases();
+          grant();
+        }
+      }
+
+      recordWait( requester, System.nanoTime() - waitStart );
+      if ( waiter.m_granted != null ) {
+        return waiter.m_granted;
+      }
+    } finally {
+      m_lock.unlock();
+    }
+
+    // start a new server without holding the lock, so that other sessions can still be leased and released meanwhile
+    PythonSession session = null;
+    try {
+      session = newSession();
+    } catch ( IOException ex ) {
+      throw new SessionException( ex );
+    } finally {
+      m_lock.lock();
+      try {
+        m_starting--;
+        if ( session != null ) {
+          m_sessions.add( session );
+          lease( requester, session, Thread.currentThread() );
+        }
+        grant();
+      } finally {
+        m_lock.unlock();
+      }
+    }
+    return session;
+  }
+
+  /**
+   * Start sessions until there are the given number (or the maximum, if that is lower), so that requesters don't have
+   * to wait for them to start later
+   *
+   * @param count the number of sessions wanted
+   * @throws IOException if a session can't be started
+   */
+  public void prestart( int count ) throws IOException {
+    while ( true ) {
+      m_lock.lock();
+      try {
+        if ( m_sessions.size() + m_starting >= Math.min( count, m_maxSessions ) ) {
+          return;
+        }
+        m_starting++;
+      } finally {
+        m_lock.unlock();
+      }
+
+      PythonSession session = null;
+      try {
+        session = newSession();
+      } finally {
+        m_lock.lock();
+        try {
+          m_starting--;
+          if ( session != null ) {
+            m_sessions.add( session );
+          }
+          grant();
+        } finally {
+          m_lock.unlock();
+        }
+      }
+    }
+  }
+
+  /**
+   * Release the requester's session so that other requesters can lease it. Does nothing if the requester does not
+   * hold a session.
+   *
+   * @param requester the requester
+   */
+  public void release( Object requester ) {
+    m_lock.lock();
+    try {
+      endLease( requester );
+      // drops the session if it has died
+      grant();
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Get the python namespace of a requester
+   *
+   * @param requester the requester
+   * @return the namespace, or null if the requester has never leased a session
+   */
+  public String getNamespace( Object requester ) {
+    m_lock.lock();
+    try {
+      return m_namespaces.get( requester );
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Get the lease counters of a requester. The time of a lease still held is not included until it is released.
+   *
+   * @param requester the requester
+   * @return a copy of the counters
+   */
+  public LeaseStats getLeaseStats( Object requester ) {
+    m_lock.lock();
+    try {
+      return getStats( requester ).copy();
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Forget a requester, so that it is no longer pinned to a session and gets a new namespace if it comes back
+   *
+   * @param requester the requester
+   */
+  public void forget( Object requester ) {
+    m_lock.lock();
+    try {
+      m_pins.remove( requester );
+      m_namespaces.remove( requester );
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of running sessions
+   */
+  public int size() {
+    m_lock.lock();
+    try {
+      return m_sessions.size();
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Shut down all the sessions
+   */
+  public void shutdown() {
+    m_closed = true;
+    if ( m_watchdog != null ) {
+      m_watchdog.interrupt();
+    }
+    m_lock.lock();
+    try {
+      for ( PythonSession session : m_sessions ) {
+        if ( session.isAlive() ) {
+          session.shutdown();
+        } else {
+          session.discard();
+        }
+      }
+      m_sessions.clear();
+      m_leases.clear();
+      m_leaseThreads.clear();
+      m_leaseStarts.clear();
+      m_pins.clear();
+      m_namespaces.clear();
+      grant();
+    } finally {
+      m_lock.unlock();
+    }
+  }
+
+  /**
+   * Start a new session. The only place server processes are started, so tests can supply sessions of their own
+   *
+   * @return the session
+   * @throws IOException if the session can't be started
+   */
+  protected PythonSession newSession() throws IOException {
+    return new PythonSession( m_pythonCommand, m_osTmpDir, m_log );
+  }
+
+  /**
+   * Give free sessions to the waiting requesters, in the order they arrived. Each waiter gets the session it is pinned
+   * to, or otherwise one chosen by chooseSession() - or is told to start a new one. Called with the lock held.
+   */
+  protected void grant() {
+    dropDeadSessions();
+    boolean granted = false;
+    Iterator<Waiter> waiters = m_waiters.iterator();
+    while ( waiters.hasNext() ) {
+      Waiter waiter = waiters.next();
+      PythonSession session = m_pins.get( waiter.m_requester );
+      if ( session != null && !m_sessions.contains( session ) ) {
+        // shut down
+        m_pins.remove( waiter.m_requester );
+        m_namespaces.remove( waiter.m_requester );
+        session = null;
+      }
+      if ( session == null ) {
+        session = chooseSession();
+        if ( session == null && m_sessions.size() + m_starting < m_maxSessions ) {
+          m_starting++;
+          waiter.m_start = true;
+          waiters.remove();
+          granted = true;
+          continue;
+        }
+      }
+      if ( session != null && !m_leaseThreads.containsKey( session ) ) {
+        lease( waiter.m_requester, session, waiter.m_thread );
+        waiter.m_granted = session;
+        waiters.remove();
+        granted = true;
+      }
+    }
+    if ( granted ) {
+      m_granted.signalAll();
+    }
+  }
+
+  /**
+   * Drop the sessions whose servers have died, once no one holds them. Called with the lock held.
+   */
+  protected void dropDeadSessions() {
+    Iterator<PythonSession> sessions = m_sessions.iterator();
+    while ( sessions.hasNext() ) {
+      PythonSession session = sessions.next();
+      if ( !session.isAlive() && !m_leaseThreads.containsKey( session ) ) {
+        sessions.remove();
+        session.discard();
+      }
+    }
+  }
+
+  /**
+   * Run by the watchdog thread: kill servers that have stopped responding, drop dead sessions and start new ones to
+   * keep the minimum number running
+   */
+  protected void watch() {
+    while ( !m_closed ) {
+      try {
+        Thread.sleep( WATCHDOG_INTERVAL_MILLIS );
+      } catch ( InterruptedException e ) {
+        return;
+      }
+
+      int running;
+      m_lock.lock();
+      try {
+        if ( m_hangTimeoutMillis > 0 ) {
+          for ( PythonSession session : m_sessions ) {
+            if ( session.waitingMillis() > m_hangTimeoutMillis ) {
+              // whoever is waiting gets an error, and can retry with a new server
+              session.kill();
+            }
+          }
+        }
+        grant();
+        running = m_sessions.size();
+      } finally {
+        m_lock.unlock();
+      }
+
+      if ( running < m_minSessions && !m_closed ) {
+        try {
+          prestart( m_minSessions );
+        } catch ( IOException ex ) {
+          // tried again next time round
+        }
+      }
+    }
+  }
+
+  /**
+   * Take back leases held by threads that have died without releasing them. Called with the lock held.
+   */
+  protected void expireLeases() {
+    List<Object> expired = new ArrayList<Object>();
+    for ( Map.Entry<Object, PythonSession> lease : m_leases.entrySet() ) {
+      Thread holder = m_leaseThreads.get( lease.getValue() );
+      if ( holder != null && !holder.isAlive() ) {
+        expired.add( lease.getKey() );
+      }
+    }
+    for ( Object requester : expired ) {
+      endLease( requester );
+    }
+  }
+
+  /**
+   * Choose a session for a requester that is not pinned to one yet. Prefers a free session that no other requester is
+   * pinned to, and otherwise - if no more sessions can be started - the free session with the fewest requesters
+   * pinned to it.
+   *
+   * @return the session, or null if a new session should be started or the requester has to wait
+   */
+  protected PythonSession chooseSession() {
+    Map<PythonSession, Integer> pinCounts = new IdentityHashMap<PythonSession, Integer>();
+    for ( PythonSession pinned : m_pins.values() ) {
+      Integer count = pinCounts.get( pinned );
+      pinCounts.put( pinned, count == null ? 1 : count + 1 );
+    }
+
+    PythonSession best = null;
+    int bestCount = Integer.MAX_VALUE;
+    for ( PythonSession session : m_sessions ) {
+      if ( m_leaseThreads.containsKey( session ) ) {
+        continue;
+      }
+      Integer count = pinCounts.get( session );
+      if ( count == null ) {
+        return session;
+      }
+      if ( count < bestCount ) {
+        best = session;
+        bestCount = count;
+      }
+    }
+    return m_sessions.size() + m_starting < m_maxSessions ? null : best;
+  }
+
+  protected void lease( Object requester, PythonSession session, Thread thread ) {
+    m_leases.put( requester, session );
+    m_leaseThreads.put( session, thread );
+    m_leaseStarts.put( requester, System.nanoTime() );
+    m_pins.put( requester, session );
+    String namespace = m_namespaces.get( requester );
+    if ( namespace == null ) {
+      namespace = "ns" + m_namespaceCount++;
+      m_namespaces.put( requester, namespace );
+    }
+    session.m_leaseNamespace = namespace;
+  }
+
+  protected void endLease( Object requester ) {
+    PythonSession session = m_leases.remove( requester );
+    if ( session != null ) {
+      m_leaseThreads.remove( session );
+      Long start = m_leaseStarts.remove( requester );
+      if ( start != null ) {
+        getStats( requester ).m_holdNanos += System.nanoTime() - start;
+      }
+    }
+  }
+
+  protected void recordWait( Object requester, long waitNanos ) {
+    LeaseStats stats = getStats( requester );
+    stats.m_leases++;
+    stats.m_waitNanos += waitNanos;
+    stats.m_maxWaitNanos = Math.max( stats.m_maxWaitNanos, waitNanos );
+  }
+
+  protected LeaseStats getStats( Object requester ) {
+    LeaseStats stats = m_stats.get( requester );
+    if ( stats == null ) {
+      stats = new LeaseStats();
+      m_stats.put( requester, stats );
+    }
+    return stats;
+  }
+}
@@ -24,7 +24,6 @@ package org.pentaho.python;
 
 import com.opencsv.CSVParser;
 import org.apache.commons.codec.binary.Base64;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.pentaho.di.core.Const;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleValueException;
@@ -36,20 +35,24 @@ import org.pentaho.di.core.row.value.ValueMetaFactory;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.python.PythonSession.PythonVariableType;
 import org.pentaho.python.PythonSession.RowMetaAndRows;
+import org.pentaho.python.PythonSession.RowsFromPythonHandler;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -99,22 +102,73 @@ public class ServerUtils {
   protected static final String FIELD_NAME_KEY = "name";
   protected static final String FIELD_TYPE_KEY = "type";
   protected static final String FIELD_TYPE_NUMBER = "number";
+  protected static final String FIELD_TYPE_INTEGER = "integer";
   protected static final String FIELD_TYPE_DATE = "date";
   protected static final String FIELD_TYPE_STRING = "string";
   protected static final String FIELD_TYPE_BOOLEAN = "boolean";
   protected static final String FIELD_DATE_FORMAT = "date_format";
   protected static final String FIELD_DATE_FORMAT_NONE = "nome";
 
+  protected static final String FRAME_FORMAT_KEY = "frame_format";
+  protected static final String FRAME_FORMATS_KEY = "frame_formats";
+  protected static final String FRAME_FORMAT_CSV = "csv";
+  protected static final String FRAME_FORMAT_ARROW = "arrow";
+  protected static final String FRAME_FORMAT_COLUMNS = "columns";
+  protected static final String SHARED_MEMORY_KEY = "shared_memory";
+  protected static final String SHM_PATH_KEY = "shm_path";
+  protected static final String SHM_SIZE_KEY = "shm_size";
+  protected static final String SHM_DIR_KEY = "shm_dir";
+  protected static final String COMMAND_CODECS_KEY = "command_codecs";
+  protected static final String COMPRESSION_KEY = "compression";
+  protected static final String COMPRESSION_THRESHOLD_KEY = "compression_threshold";
+  protected static final String ENV_CHECK_KEY = "env_check";
+  protected static final String ENV_FINGERPRINT_KEY = "env_fingerprint";
+
   protected static final String ACCEPT_ROWS_COMMAND = "accept_rows";
   protected static final String GET_FRAME_COMMAND = "get_frame";
   protected static final String EXECUTE_SCRIPT_COMMAND = "execute_script";
+  protected static final String EXECUTE_AND_FETCH_COMMAND = "execute_and_fetch";
+  protected static final String SET_KETTLE_VARS_COMMAND = "set_kettle_vars";
+  protected static final String REGISTER_SCRIPT_COMMAND = "register_script";
+  protected static final String EXECUTE_SCRIPT_BY_ID_COMMAND = "execute_script_by_id";
+  protected static final String SET_NAMESPACE_COMMAND = "set_namespace";
+  protected static final String DROP_NAMESPACE_COMMAND = "drop_namespace";
+  protected static final String NAMESPACE_KEY = "namespace";
+  protected static final String PRELOAD_MODULES_COMMAND = "preload_modules";
+  protected static final String MODULES_KEY = "modules";
+  protected static final String FAILED_MODULES_KEY = "failed_modules";
+  protected static final String REQUEST_ID_KEY = "request_id";
+  protected static final String SCRIPT_KEY = "script";
+  protected static final String SCRIPT_ID_KEY = "script_id";
+  protected static final String KETTLE_VARS_KEY = "kettle_vars";
+  protected static final String VARIABLE_NAMES_KEY = "variable_names";
+  protected static final String VARIABLES_KEY = "variables";
+  protected static final String FRAME_AS_STRING_KEY = "frame_as_string";
 
   protected static final String MISSING_VALUE = "?";
 
+  protected static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  /**
+   * Command codecs. Stateless, so shared by all sessions
+   */
+  protected static final CommandCodec JSON_CODEC = new JsonCommandCodec();
+  protected static final CommandCodec MESSAGE_PACK_CODEC = new MessagePackCommandCodec();
+
   /**
-   * For parsing CSV rows from python
+   * Terminates each row of csv data coming from python, leaving cr/lf free to appear in text cells
    */
-  protected static final CSVParser PARSER = new CSVParser( ',', '\'', '\\' );
+  protected static final String CSV_LINE_TERMINATOR = "#||#";
+
+  /**
+   * For parsing CSV rows from python. One per thread, as sessions in the pool decode frames at the same time and
+   * CSVParser is not thread safe
+   */
+  protected static final ThreadLocal<CSVParser> PARSER = new ThreadLocal<CSVParser>() {
+    @Override protected CSVParser initialValue() {
+      return new CSVParser( ',', '\'', '\\' );
+    }
+  };
 
   /**
    * Local time zone offset from UTC. Python converts millis since epoch into UTC-centered dates, unlike Java which
@@ -123,9 +177,13 @@ public class ServerUtils {
   protected static TimeZone TZ = TimeZone.getDefault();
 
   /**
-   * For parsing dates out of CSV returned from python
+   * For parsing dates out of CSV returned from python. One per thread, as SimpleDateFormat is not thread safe
    */
-  protected static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss.SSS" );
+  protected static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+    @Override protected SimpleDateFormat initialValue() {
+      return new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss.SSS" );
+    }
+  };
 
   protected static Map<String, Object> createMetadataMessage( String frameName, RowMetaInterface meta ) {
     Map<String, Object> result = new HashMap<String, Object>();
@@ -134,26 +192,10 @@ public class ServerUtils {
 
     result.put( FIELDS_KEY, fields );
 
-    CharsetEncoder encoder = Charset.forName( "US-ASCII" ).newEncoder();
-    Charset utf8 = Charset.forName( "UTF-8" );
-    boolean needsBase64 = false;
-
-    for ( ValueMetaInterface v : meta.getValueMetaList() ) {
-      if ( !encoder.canEncode( v.getName() ) ) {
-        needsBase64 = true;
-        break;
-      }
-    }
-
-    result.put( BASE64_ENCODING_KEY, needsBase64 );
-
     for ( ValueMetaInterface v : meta.getValueMetaList() ) {
       Map<String, String> fieldMeta = new HashMap<String, String>();
+      // commands are sent as raw utf-8 json, so field names go as is
       String fieldName = v.getName();
-      if ( needsBase64 ) {
-        byte[] encodedName = Base64.encodeBase64( fieldName.getBytes( Charset.forName( "UTF-8" ) ) );
-        fieldName = new String( encodedName );
-      }
       fieldMeta.put( FIELD_NAME_KEY, fieldName );
       switch ( v.getType() ) {
         case ValueMetaInterface.TYPE_NUMBER:
@@ -189,16 +231,16 @@ public class ServerUtils {
    *
    * @param log          the log channel to use
    * @param varName      the name of the variable to check
+   * @param codec        the codec for commands and responses
    * @param inputStream  the input stream to read a response from
    * @param outputStream the output stream to talk to the server on
    * @return true if the named variable is set in python
    * @throws KettleException if a problem occurs
    */
   @SuppressWarnings( "unchecked" ) protected static boolean checkIfPythonVariableIsSet( LogChannelInterface log,
-      String varName, InputStream inputStream, OutputStream outputStream ) throws KettleException {
+      String varName, CommandCodec codec, InputStream inputStream, OutputStream outputStream ) throws KettleException {
 
     boolean debug = log == null || log.isDebug();
-    ObjectMapper mapper = new ObjectMapper();
     Map<String, Object> command = new HashMap<String, Object>();
     command.put( COMMAND_KEY, VARIABLE_IS_SET_KEY );
     command.put( VARIABLE_NAME_KEY, varName );
@@ -206,9 +248,7 @@ public class ServerUtils {
 
     if ( inputStream != null && outputStream != null ) {
       try {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        mapper.writeValue( bos, command );
-        byte[] bytes = bos.toByteArray();
+        byte[] bytes = codec.encode( command );
 
         if ( debug ) {
           outputCommandDebug( command, log );
@@ -218,7 +258,7 @@ public class ServerUtils {
         writeDelimitedToOutputStream( bytes, outputStream );
 
         bytes = readDelimitedFromInputStream( inputStream );
-        Map<String, Object> ack = mapper.readValue( bytes, Map.class );
+        Map<String, Object> ack = codec.decode( bytes );
         if ( !ack.get( RESPONSE_KEY ).toString().equals( OK_KEY ) ) {
           // fatal error
           throw new KettleException( ack.get( ERROR_MESSAGE_KEY ).toString() );
@@ -246,6 +286,7 @@ public class ServerUtils {
    * before leaving the server.
    *
    * @param varName      the name of the variable to get from the server
+   * @param codec        the codec for commands and responses
    * @param outputStream the output stream to write to
    * @param inputStream  the input stream to get server responses from
    * @param plainString  true if the plain string form of the variable is to be
@@ -256,12 +297,12 @@ public class ServerUtils {
    * @throws KettleException if a problem occurs
    */
   @SuppressWarnings( "unchecked" ) protected static String receivePickledVariableValue( String varName,
-      OutputStream outputStream, InputStream inputStream, boolean plainString, LogChannelInterface log )
+      CommandCodec codec, OutputStream outputStream, InputStream inputStream, boolean plainString,
+      LogChannelInterface log )
       throws KettleException {
 
     boolean debug = log == null || log.isDebug();
     String objectValue = "";
-    ObjectMapper mapper = new ObjectMapper();
     Map<String, Object> command = new HashMap<String, Object>();
     command.put( COMMAND_KEY, GET_VARIABLE_VALUE_KEY );
     command.put( VARIABLE_NAME_KEY, varName );
@@ -270,9 +311,7 @@ public class ServerUtils {
 
     if ( inputStream != null && outputStream != null ) {
       try {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        mapper.writeValue( bos, command );
-        byte[] bytes = bos.toByteArray();
+        byte[] bytes = codec.encode( command );
 
         if ( debug ) {
           outputCommandDebug( command, log );
@@ -282,7 +321,7 @@ public class ServerUtils {
         writeDelimitedToOutputStream( bytes, outputStream );
 
         bytes = readDelimitedFromInputStream( inputStream );
-        Map<String, Object> ack = mapper.readValue( bytes, Map.class );
+        Map<String, Object> ack = codec.decode( bytes );
         if ( !ack.get( RESPONSE_KEY ).toString().equals( OK_KEY ) ) {
           // fatal error
           throw new KettleException( ack.get( ERROR_MESSAGE_KEY ).toString() );
@@ -307,6 +346,7 @@ public class ServerUtils {
    * BufferedImage.
    *
    * @param varName      the name of the variable containing the image in python
+   * @param codec        the codec for commands and responses
    * @param outputStream the output stream to talk to the server on
    * @param inputStream  the input stream to receive server responses from
    * @param log          an optional log
@@ -314,10 +354,9 @@ public class ServerUtils {
    * @throws KettleException if a problem occurs
    */
   @SuppressWarnings( "unchecked" ) protected static BufferedImage getPNGImageFromPython( String varName,
-      OutputStream outputStream, InputStream inputStream, LogChannelInterface log ) throws KettleException {
+      CommandCodec codec, OutputStream outputStream, InputStream inputStream, LogChannelInterface log ) throws KettleException {
 
     boolean debug = log == null || log.isDebug();
-    ObjectMapper mapper = new ObjectMapper();
     Map<String, Object> command = new HashMap<String, Object>();
     command.put( COMMAND_KEY, GET_IMAGE_KEY );
     command.put( VARIABLE_NAME_KEY, varName );
@@ -325,9 +364,7 @@ public class ServerUtils {
 
     if ( inputStream != null && outputStream != null ) {
       try {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        mapper.writeValue( bos, command );
-        byte[] bytes = bos.toByteArray();
+        byte[] bytes = codec.encode( command );
 
         if ( debug ) {
           outputCommandDebug( command, log );
@@ -337,7 +374,7 @@ public class ServerUtils {
 
         bytes = readDelimitedFromInputStream( inputStream );
 
-        Map<String, Object> ack = mapper.readValue( bytes, Map.class );
+        Map<String, Object> ack = codec.decode( bytes );
         if ( !ack.get( RESPONSE_KEY ).toString().equals( OK_KEY ) ) {
           // fatal error
           throw new KettleException( ack.get( ERROR_MESSAGE_KEY ).toString() );
@@ -347,15 +384,7 @@ public class ServerUtils {
           throw new KettleException( "Server sent back a response for a different " + "variable!" );
         }
 
-        String encoding = ack.get( IMAGE_ENCODING_KEY ).toString();
-        String imageData = ack.get( IMAGE_DATA_KEY ).toString();
-        byte[] imageBytes;
-        if ( encoding.equals( BASE64_ENCODING_KEY ) ) {
-          imageBytes = Base64.decodeBase64( imageData.getBytes() );
-        } else {
-          imageBytes = imageData.getBytes();
-        }
-        return ImageIO.read( new BufferedInputStream( new ByteArrayInputStream( imageBytes ) ) );
+        return decodeImage( ack );
       } catch ( IOException ex ) {
         throw new KettleException( ex );
       }
@@ -369,6 +398,7 @@ public class ServerUtils {
    * Execute a script on the server
    *
    * @param script       the script to execute
+   * @param codec        the codec for commands and responses
    * @param outputStream the output stream to write data to the server
    * @param inputStream  the input stream to read responses from
    * @param log          optional log to write to
@@ -377,13 +407,12 @@ public class ServerUtils {
    * @throws KettleException if a problem occurs
    */
   @SuppressWarnings( "unchecked" ) protected static List<String> executeUserScript( String script,
-      OutputStream outputStream, InputStream inputStream, LogChannelInterface log ) throws KettleException {
+      CommandCodec codec, OutputStream outputStream, InputStream inputStream, LogChannelInterface log ) throws KettleException {
     if ( !script.endsWith( "\n" ) ) {
       script += "\n";
     }
     List<String> outAndErr = new ArrayList<String>();
 
-    ObjectMapper mapper = new ObjectMapper();
     boolean debug = log == null || log.isDebug();
     Map<String, Object> command = new HashMap<String, Object>();
     command.put( "command", "execute_script" );
@@ -391,9 +420,7 @@ public class ServerUtils {
     command.put( "debug", debug );
     if ( inputStream != null && outputStream != null ) {
       try {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        mapper.writeValue( bos, command );
-        byte[] bytes = bos.toByteArray();
+        byte[] bytes = codec.encode( command );
 
         if ( debug ) {
           outputCommandDebug( command, log );
@@ -403,30 +430,91 @@ public class ServerUtils {
         // get the result of execution
         bytes = readDelimitedFromInputStream( inputStream );
 
-        Map<String, Object> ack = mapper.readValue( bytes, Map.class );
+        Map<String, Object> ack = codec.decode( bytes );
         if ( !ack.get( RESPONSE_KEY ).toString().equals( OK_KEY ) ) {
           // fatal error
           throw new KettleException( ack.get( ERROR_MESSAGE_KEY ).toString() );
         }
         // get the script out and err
-        outAndErr.add( ack.get( SCRIPT_OUT_KEY ).toString() );
-        outAndErr.add( ack.get( SCRIPT_ERROR_KEY ).toString() );
+        outAndErr = scriptOutAndErr( ack, debug, log );
+      } catch ( IOException ex ) {
+        throw new KettleException( ex );
+      }
+    } else if ( debug ) {
+      outputCommandDebug( command, log );
+    }
+
+    return outAndErr;
+  }
+
+  /**
+   * Optionally execute a script, then get the state of a list of variables - whether each is set, its type, and the
+   * value of any that are not frames - all in a single round trip. Frame rows still have to be fetched separately.
+   *
+   * @param script        the script to execute, or null to just get the variables (or to execute a registered
+   *                      script)
+   * @param scriptId      the id of a registered script to execute, or null
+   * @param varNames      the names of the variables to get
+   * @param frameAsString true to get the plain string form of frames too
+   * @param codec         the codec for commands and responses
+   * @param outputStream  the output stream to write data to the server
+   * @param inputStream   the input stream to read responses from
+   * @param log           optional log to write to
+   * @return the script output (if a script was executed) and variables
+   * @throws KettleException if a problem occurs
+   */
+  @SuppressWarnings( "unchecked" ) protected static PythonSession.ScriptResultAndVariables executeScriptAndFetch(
+      String script, String scriptId, List<String> varNames, boolean frameAsString, CommandCodec codec,
+      OutputStream outputStream, InputStream inputStream, LogChannelInterface log ) throws KettleException {
+    boolean executing = script != null || scriptId != null;
+    if ( script != null && !script.endsWith( "\n" ) ) {
+      script += "\n";
+    }
+    PythonSession.ScriptResultAndVariables result = new PythonSession.ScriptResultAndVariables();
+
+    boolean debug = log == null || log.isDebug();
+    Map<String, Object> command = new HashMap<String, Object>();
+    command.put( COMMAND_KEY, EXECUTE_AND_FETCH_COMMAND );
+    if ( script != null ) {
+      command.put( SCRIPT_KEY, script );
+    }
+    if ( scriptId != null ) {
+      command.put( SCRIPT_ID_KEY, scriptId );
+    }
+    command.put( VARIABLE_NAMES_KEY, varNames );
+    command.put( FRAME_AS_STRING_KEY, frameAsString );
+    command.put( DEBUG_KEY, debug );
+    if ( inputStream != null && outputStream != null ) {
+      try {
+        byte[] bytes = codec.encode( command );
+
         if ( debug ) {
-          if ( log != null ) {
-            log.logDebug(
-                BaseMessages.getString( PKG, "ServerUtils.Message.ScriptOutput" ) + "\n" + outAndErr.get( 0 ) );
-            log.logDebug(
-                BaseMessages.getString( PKG, "ServerUtils.Message.ScriptError" ) + "\n" + outAndErr.get( 1 ) );
-          } else {
-            System.err.println( "Script output:\n" + outAndErr.get( 0 ) );
-            System.err.println( "\nScript error:\n" + outAndErr.get( 1 ) );
-          }
+          outputCommandDebug( command, log );
         }
+        writeDelimitedToOutputStream( bytes, outputStream );
 
-        if ( outAndErr.get( 1 ).contains( "Warning:" ) ) {
-          // clear warnings - we really just want to know if there
-          // are major errors
-          outAndErr.set( 1, "" );
+        bytes = readDelimitedFromInputStream( inputStream );
+        Map<String, Object> ack = codec.decode( bytes );
+        if ( !ack.get( RESPONSE_KEY ).toString().equals( OK_KEY ) ) {
+          // fatal error
+          throw new KettleException( ack.get( ERROR_MESSAGE_KEY ).toString() );
+        }
+        if ( executing ) {
+          result.m_outAndErr = scriptOutAndErr( ack, debug, log );
+        }
+        for ( Map<String, Object> variable : (List<Map<String, Object>>) ack.get( VARIABLES_KEY ) ) {
+          PythonSession.PythonVariable var = new PythonSession.PythonVariable();
+          var.m_name = variable.get( VARIABLE_NAME_KEY ).toString();
+          var.m_isSet = (Boolean) variable.get( VARIABLE_EXISTS_KEY );
+          if ( var.m_isSet ) {
+            var.m_type = toPythonVariableType( variable.get( VARIABLE_TYPE_RESPONSE_KEY ).toString() );
+            if ( var.m_type == PythonSession.PythonVariableType.Image ) {
+              var.m_image = decodeImage( variable );
+            } else if ( variable.get( VARIABLE_VALUE_KEY ) != null ) {
+              var.m_value = variable.get( VARIABLE_VALUE_KEY ).toString();
+            }
+          }
+          result.m_variables.put( var.m_name, var );
         }
       } catch ( IOException ex ) {
         throw new KettleException( ex );
@@ -435,46 +523,341 @@ public class ServerUtils {
       outputCommandDebug( command, log );
     }
 
+    return result;
+  }
+
+  /**
+   * Send a command and read its response
+   *
+   * @param command      the command
+   * @param codec        the codec for commands and responses
+   * @param outputStream the output stream to write data to the server
+   * @param inputStream  the input stream to read responses from
+   * @param log          optional log to write to
+   * @return the response
+   * @throws KettleException if a problem occurs, or the server responds with an error
+   */
+  protected static Map<String, Object> sendCommand( Map<String, Object> command, CommandCodec codec,
+      OutputStream outputStream, InputStream inputStream, LogChannelInterface log ) throws KettleException {
+    return sendCommand( command, log == null || log.isDebug(), codec, outputStream, inputStream, log );
+  }
+
+  /**
+   * Send a command and read its response
+   *
+   * @param command      the command
+   * @param debug        true to output the command and run it in debug mode
+   * @param codec        the codec for commands and responses
+   * @param outputStream the output stream to write data to the server
+   * @param inputStream  the input stream to read responses from
+   * @param log          optional log to write to
+   * @return the response
+   * @throws KettleException if a problem occurs, or the server responds with an error
+   */
+  protected static Map<String, Object> sendCommand( Map<String, Object> command, boolean debug, CommandCodec codec,
+      OutputStream outputStream, InputStream inputStream, LogChannelInterface log ) throws KettleException {
+    command.put( DEBUG_KEY, debug );
+    try {
+      if ( debug ) {
+        outputCommandDebug( command, log );
+      }
+      writeDelimitedToOutputStream( codec.encode( command ), outputStream );
+
+      Map<String, Object> ack = codec.decode( readDelimitedFromInputStream( inputStream ) );
+      if ( !ack.get( RESPONSE_KEY ).toString().equals( OK_KEY ) ) {
+        throw new KettleException( ack.get( ERROR_MESSAGE_KEY ).toString() );
+      }
+      return ack;
+    } catch ( IOException ex ) {
+      throw new KettleException( ex );
+    }
+  }
+
+  /**
+   * Register a script with python, which compiles it and keeps the compiled code for executeScriptById()
+   *
+   * @param script       the script to register
+   * @param codec        the codec for commands and responses
+   * @param outputStream the output stream to write data to the server
+   * @param inputStream  the input stream to read responses from
+   * @param log          optional log to write to
+   * @return the id of the registered script
+   * @throws KettleException if a problem occurs, including the script failing to compile
+   */
+  protected static String registerScript( String script, CommandCodec codec, OutputStream outputStream,
+      InputStream inputStream, LogChannelInterface log ) throws KettleException {
+    if ( !script.endsWith( "\n" ) ) {
+      script += "\n";
+    }
+    Map<String, Object> command = new HashMap<String, Object>();
+    command.put( COMMAND_KEY, REGISTER_SCRIPT_COMMAND );
+    command.put( SCRIPT_KEY, script );
+    return sendCommand( command, codec, outputStream, inputStream, log ).get( SCRIPT_ID_KEY ).toString();
+  }
+
+  /**
+   * Execute a script previously registered with registerScript()
+   *
+   * @param scriptId     the id of the script
+   * @param codec        the codec for commands and responses
+   * @param outputStream the output stream to write data to the server
+   * @param inputStream  the input stream to read responses from
+   * @param log          optional log to write to
+   * @return a two element list that contains the sys out and sys error from the script execution
+   * @throws KettleException if a problem occurs
+   */
+  protected static List<String> executeScriptById( String scriptId, CommandCodec codec, OutputStream outputStream,
+      InputStream inputStream, LogChannelInterface log ) throws KettleException {
+    Map<String, Object> command = new HashMap<String, Object>();
+    command.put( COMMAND_KEY, EXECUTE_SCRIPT_BY_ID_COMMAND );
+    command.put( SCRIPT_ID_KEY, scriptId );
+    Map<String, Object> ack = sendCommand( command, codec, outputStream, inputStream, log );
+    return scriptOutAndErr( ack, log == null || log.isDebug(), log );
+  }
+
+  /**
+   * Set the kettle_vars dictionary in python to the supplied Kettle variables
+   *
+   * @param vars         the variables, keyed by name
+   * @param codec        the codec for commands and responses
+   * @param outputStream the output stream to write data to the server
+   * @param inputStream  the input stream to read responses from
+   * @param log          optional log to write to
+   * @throws KettleException if a problem occurs
+   */
+  protected static void sendKettleVariables( Map<String, String> vars, CommandCodec codec,
+      OutputStream outputStream, InputStream inputStream, LogChannelInterface log ) throws KettleException {
+    Map<String, Object> command = new HashMap<String, Object>();
+    command.put( COMMAND_KEY, SET_KETTLE_VARS_COMMAND );
+    command.put( KETTLE_VARS_KEY, vars );
+    sendCommand( command, codec, outputStream, inputStream, log );
+  }
+
+  /**
+   * Import python modules, so that scripts that use them later start faster
+   *
+   * @param modules      the names of the modules
+   * @param debug        true to output the command and run it in debug mode
+   * @param codec        the codec for commands and responses
+   * @param outputStream the output stream to write data to the server
+   * @param inputStream  the input stream to read responses from
+   * @param log          optional log to write to
+   * @return the names of the modules that could not be imported
+   * @throws KettleException if a problem occurs
+   */
+  @SuppressWarnings( "unchecked" )
+  protected static List<String> preloadModules( List<String> modules, boolean debug, CommandCodec codec,
+      OutputStream outputStream, InputStream inputStream, LogChannelInterface log ) throws KettleException {
+    Map<String, Object> command = new HashMap<String, Object>();
+    command.put( COMMAND_KEY, PRELOAD_MODULES_COMMAND );
+    command.put( MODULES_KEY, modules );
+    Object failed = sendCommand( command, debug, codec, outputStream, inputStream, log ).get( FAILED_MODULES_KEY );
+    return failed instanceof List ? (List<String>) failed : new ArrayList<String>();
+  }
+
+  /**
+   * Switch python to a namespace - a separate set of global variables. Namespaces are created as they are first
+   * used. Commands that follow read and write the variables of that namespace.
+   *
+   * @param namespace    the namespace, or null for the default namespace
+   * @param codec        the codec for commands and responses
+   * @param outputStream the output stream to write data to the server
+   * @param inputStream  the input stream to read responses from
+   * @param log          optional log to write to
+   * @throws KettleException if a problem occurs
+   */
+  protected static void setNamespace( String namespace, CommandCodec codec, OutputStream outputStream,
+      InputStream inputStream, LogChannelInterface log ) throws KettleException {
+    Map<String, Object> command = new HashMap<String, Object>();
+    command.put( COMMAND_KEY, SET_NAMESPACE_COMMAND );
+    if ( namespace != null ) {
+      command.put( NAMESPACE_KEY, namespace );
+    }
+    sendCommand( command, codec, outputStream, inputStream, log );
+  }
+
+  /**
+   * Drop a namespace with all of its variables and registered scripts. If it is the current namespace, python switches
+   * back to the default namespace.
+   *
+   * @param namespace    the namespace
+   * @param codec        the codec for commands and responses
+   * @param outputStream the output stream to write data to the server
+   * @param inputStream  the input stream to read responses from
+   * @param log          optional log to write to
+   * @throws KettleException if a problem occurs
+   */
+  protected static void dropNamespace( String namespace, CommandCodec codec, OutputStream outputStream,
+      InputStream inputStream, LogChannelInterface log ) throws KettleException {
+    Map<String, Object> command = new HashMap<String, Object>();
+    command.put( COMMAND_KEY, DROP_NAMESPACE_COMMAND );
+    command.put( NAMESPACE_KEY, namespace );
+    sendCommand( command, codec, outputStream, inputStream, log );
+  }
+
+  /**
+   * Get the script output and error from a response, clearing the error if it only holds warnings
+   *
+   * @param ack   the response
+   * @param debug true if debugging
+   * @param log   optional log
+   * @return a two element list that contains the sys out and sys error from the script execution
+   */
+  protected static List<String> scriptOutAndErr( Map<String, Object> ack, boolean debug, LogChannelInterface log ) {
+    List<String> outAndErr = new ArrayList<String>();
+    outAndErr.add( ack.get( SCRIPT_OUT_KEY ).toString() );
+    outAndErr.add( ack.get( SCRIPT_ERROR_KEY ).toString() );
+    if ( debug ) {
+      if ( log != null ) {
+        log.logDebug( BaseMessages.getString( PKG, "ServerUtils.Message.ScriptOutput" ) + "\n" + outAndErr.get( 0 ) );
+        log.logDebug( BaseMessages.getString( PKG, "ServerUtils.Message.ScriptError" ) + "\n" + outAndErr.get( 1 ) );
+      } else {
+        System.err.println( "Script output:\n" + outAndErr.get( 0 ) );
+        System.err.println( "\nScript error:\n" + outAndErr.get( 1 ) );
+      }
+    }
+
+    if ( outAndErr.get( 1 ).contains( "Warning:" ) ) {
+      // clear warnings - we really just want to know if there
+      // are major errors
+      outAndErr.set( 1, "" );
+    }
     return outAndErr;
   }
 
+  /**
+   * Decode the png image held in a response
+   *
+   * @param response the response holding the encoding and image data
+   * @return the image
+   * @throws IOException if a problem occurs
+   */
+  protected static BufferedImage decodeImage( Map<String, Object> response ) throws IOException {
+    String encoding = response.get( IMAGE_ENCODING_KEY ).toString();
+    String imageData = response.get( IMAGE_DATA_KEY ).toString();
+    byte[] imageBytes;
+    if ( encoding.equals( BASE64_ENCODING_KEY ) ) {
+      imageBytes = Base64.decodeBase64( imageData.getBytes() );
+    } else {
+      imageBytes = imageData.getBytes();
+    }
+    return ImageIO.read( new BufferedInputStream( new ByteArrayInputStream( imageBytes ) ) );
+  }
+
+  /**
+   * Convert a type name sent by the server to a PythonVariableType
+   *
+   * @param varType the type name
+   * @return the type (Unknown if not recognized)
+   */
+  protected static PythonSession.PythonVariableType toPythonVariableType( String varType ) {
+    for ( PythonSession.PythonVariableType t : PythonSession.PythonVariableType.values() ) {
+      if ( t.toString().toLowerCase().equals( varType ) ) {
+        return t;
+      }
+    }
+    return PythonSession.PythonVariableType.Unknown;
+  }
+
+  /**
+   * Rough estimate of the size of a frame, for deciding whether it is worth compressing. The python server uses the
+   * same estimate, so that both directions switch at the same point.
+   *
+   * @param numFields the number of fields (columns)
+   * @param numRows   the number of rows
+   * @return the estimated size in bytes
+   */
+  protected static long estimateFrameSize( int numFields, long numRows ) {
+    return numFields * numRows * 8L;
+  }
+
+  /**
+   * Check whether the values of a string field are binary strings (lazy conversion) that can be copied into a frame as
+   * they are, rather than being decoded and encoded again. The bytes must be utf-8 and need no trimming or padding.
+   *
+   * @param vm the value meta of the field
+   * @return true if the raw bytes can be sent
+   */
+  protected static boolean isUtf8BinaryString( ValueMetaInterface vm ) {
+    ValueMetaInterface storage = vm.getStorageMetadata();
+    if ( vm.getStorageType() != ValueMetaInterface.STORAGE_TYPE_BINARY_STRING || storage == null
+        || vm.getTrimType() != ValueMetaInterface.TRIM_TYPE_NONE
+        || storage.getTrimType() != ValueMetaInterface.TRIM_TYPE_NONE || vm.isOutputPaddingEnabled() ) {
+      return false;
+    }
+    String encoding = storage.getStringEncoding();
+    try {
+      Charset charset = Const.isEmpty( encoding ) ? Charset.defaultCharset() : Charset.forName( encoding );
+      return UTF8.equals( charset );
+    } catch ( IllegalArgumentException ex ) {
+      // unknown encoding - leave it to Kettle
+      return false;
+    }
+  }
+
+  /**
+   * @param frameFormat a requested frame format
+   * @return the frame format, or FRAME_FORMAT_CSV if it is not one that is known
+   */
+  protected static String supportedFrameFormat( String frameFormat ) {
+    if ( FRAME_FORMAT_ARROW.equals( frameFormat ) || FRAME_FORMAT_COLUMNS.equals( frameFormat ) ) {
+      return frameFormat;
+    }
+    return FRAME_FORMAT_CSV;
+  }
+
   /**
    * Send rows to python to be converted to a pandas data frame
    *
    * @param log          the log channel to use
+   * @param frameFormat  the format to transfer the rows in - FRAME_FORMAT_CSV, FRAME_FORMAT_ARROW or
+   *                     FRAME_FORMAT_COLUMNS
+   * @param sharedMemory true to pass arrow data through a memory mapped file in shared memory rather than the socket
+   * @param compression  the compression to apply to the row data sent through the socket, or null for none
+   * @param codec        the codec for commands and responses
    * @param inputStream  the input stream to read a response from
    * @param outputStream the output stream to talk to the server on
    * @throws KettleException if a problem occurs
    */
   protected static void sendRowsToPandasDataFrame( LogChannelInterface log, RowMetaInterface meta, List<Object[]> rows,
-      String frameName, OutputStream outputStream, InputStream inputStream ) throws KettleException {
-    ObjectMapper mapper = new ObjectMapper();
+      String frameName, String frameFormat, boolean sharedMemory, BlockCompression compression, CommandCodec codec,
+      OutputStream outputStream, InputStream inputStream )
+      throws KettleException {
 
     boolean debug = log == null || log.isDebug();
+    boolean arrow = FRAME_FORMAT_ARROW.equals( frameFormat );
+    frameFormat = supportedFrameFormat( frameFormat );
     Map<String, Object> metaData = createMetadataMessage( frameName, meta );
     Map<String, Object> command = new HashMap<String, Object>();
     command.put( COMMAND_KEY, ACCEPT_ROWS_COMMAND );
     command.put( NUM_ROWS_KEY, rows.size() );
     command.put( ROW_META_KEY, metaData );
     command.put( DEBUG_KEY, debug );
-
-    boolean needsBase64 = (boolean) metaData.get( BASE64_ENCODING_KEY );
-    command.put( BASE64_ENCODING_KEY, needsBase64 );
-    metaData.remove( BASE64_ENCODING_KEY );
+    command.put( FRAME_FORMAT_KEY, frameFormat );
+    sharedMemory = sharedMemory && arrow && rows.size() > 0;
+    if ( compression != null && !sharedMemory && rows.size() > 0 ) {
+      command.put( COMPRESSION_KEY, compression.getName() );
+    } else {
+      compression = null;
+    }
 
     if ( inputStream != null && outputStream != null ) {
+      File shmFile = null;
       try {
-        List<Object> rowsInfo = rowsToCSVNew( meta, rows );
-
-        // unfortunately we'll incur the base 64 transcoding overhead even if it
-        // is only the header row that needs it.
-        if ( !needsBase64 ) {
-          command.put( BASE64_ENCODING_KEY, (boolean) rowsInfo.get( 1 ) );
+        if ( sharedMemory ) {
+          // encode straight into shared memory; only the file's location goes over the socket
+          shmFile = SharedMemoryFile.createFile();
+          SharedMemoryFile.MappedOutputStream mapped = new SharedMemoryFile.MappedOutputStream( shmFile );
+          try {
+            ArrowFrameEncoder.writeFrame( meta, rows, mapped );
+          } finally {
+            mapped.close();
+          }
+          command.put( SHM_PATH_KEY, shmFile.getAbsolutePath() );
+          command.put( SHM_SIZE_KEY, mapped.size() );
         }
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        mapper.writeValue( bos, command );
-        byte[] bytes = bos.toByteArray();
+        byte[] bytes = codec.encode( command );
 
         if ( debug ) {
           outputCommandDebug( command, log );
@@ -483,89 +866,123 @@ public class ServerUtils {
         // write the command
         writeDelimitedToOutputStream( bytes, outputStream );
 
-        // now write the CSV data
-        if ( rows.size() > 0 ) {
+        // now stream the CSV/arrow data
+        if ( rows.size() > 0 && !sharedMemory ) {
           if ( log != null && debug ) {
-            log.logDebug( "Sending CSV data..." );
+            log.logDebug( "Sending " + frameFormat + " data..." );
           }
 
-          writeDelimitedToOutputStream( (byte[]) rowsInfo.get( 0 ), outputStream );
-
-          /* // bos = new ByteArrayOutputStream();
-          // BufferedWriter bw = new BufferedWriter( new OutputStreamWriter( bos ) );
-          StringBuilder csv = rowsToCSV( meta, rows );
-          Charset utf8 = Charset.forName( "UTF-8" );
-          ByteBuffer
-              bb =
-              utf8.newEncoder().onUnmappableCharacter( CodingErrorAction.IGNORE )
-                  .onMalformedInput( CodingErrorAction.IGNORE ).encode( CharBuffer.wrap( csv.toString() ) );
-          // byte[] ptext = csv.toString().getBytes( Charset.forName( "UTF-8" ) );
-          System.out.println( csv.toString() );
-          System.out.println( "-----------------" );
-          // bw.write( csv.toString() );
-          // bw.flush();
-          // bw.close();
-          // bytes = bos.toByteArray();
-          // writeDelimitedToOutputStream( bytes, outputStream );
-          writeDelimitedToOutputStream( bb.array(), outputStream ); */
+          ChunkedOutputStream chunked = compression != null
+              ? new CompressedChunkedOutputStream( outputStream, compression )
+              : new ChunkedOutputStream( outputStream );
+          boolean sent = false;
+          try {
+            if ( arrow ) {
+              ArrowFrameEncoder.writeFrame( meta, rows, chunked );
+            } else if ( FRAME_FORMAT_COLUMNS.equals( frameFormat ) ) {
+              ColumnFrameEncoder.writeFrame( meta, rows, chunked );
+            } else {
+              writeRowsAsCSV( meta, rows, chunked );
+            }
+            chunked.close();
+            sent = true;
+          } finally {
+            if ( !sent ) {
+              abandonRows( chunked, codec, inputStream );
+            }
+          }
         }
 
-        String serverAck = receiveServerAck( inputStream );
+        String serverAck = receiveServerAck( codec, inputStream );
         if ( serverAck != null ) {
           throw new KettleException(
               BaseMessages.getString( PKG, "ServerUtils.Error.TransferOfRowsFailed" ) + serverAck );
         }
       } catch ( IOException ex ) {
         throw new KettleException( ex );
+      } finally {
+        if ( shmFile != null ) {
+          shmFile.delete();
+        }
       }
     } else if ( debug ) {
       outputCommandDebug( command, log );
     }
   }
 
+  /**
+   * Abandon rows that are part way through being streamed to the server (because one of them could not be encoded),
+   * and read the server's error response, so that the connection is ready for the next command. Problems are ignored,
+   * as the caller already has an exception to report - if the connection has failed, the session is dropped anyway.
+   *
+   * @param chunked     the stream the rows were being written to
+   * @param codec       the codec for commands and responses
+   * @param inputStream the input stream to read the response from
+   */
+  protected static void abandonRows( ChunkedOutputStream chunked, CommandCodec codec, InputStream inputStream ) {
+    try {
+      chunked.abort();
+      receiveServerAck( codec, inputStream );
+    } catch ( Exception ex ) {
+      // nothing more can be done
+    }
+  }
+
   /**
    * Receive rows taken from a python pandas data frame
    *
    * @param log             the log channel to use
    * @param frameName       the name of the pandas frame to get
    * @param includeRowIndex true to include the frame row index as a field
+   * @param frameFormat     the format to transfer the rows in - FRAME_FORMAT_CSV, FRAME_FORMAT_ARROW or
+   *                        FRAME_FORMAT_COLUMNS
+   * @param sharedMemory    true to ask for arrow data to be passed through a memory mapped file in shared memory
+   * @param compression     the compression that the server may apply to row data sent through the socket, or null
+   *                        for none
+   * @param compressionThreshold the (estimated) frame size, in bytes, above which the server compresses row data
+   * @param handler         the handler to pass the frame metadata and each row to as they are decoded
+   * @param codec           the codec for commands and responses
    * @param inputStream     the input stream to read a response from
    * @param outputStream    the output stream to talk to the server on
-   * @return the data frame converted to rows along with its associated row metadata
    * @throws KettleException if a problem occurs
    */
-  @SuppressWarnings( "unchecked" ) protected static RowMetaAndRows receiveRowsFromPandasDataFrame(
-      LogChannelInterface log, String frameName, boolean includeRowIndex, OutputStream outputStream,
-      InputStream inputStream ) throws KettleException {
+  @SuppressWarnings( "unchecked" ) protected static void receiveRowsFromPandasDataFrame( LogChannelInterface log,
+      String frameName, boolean includeRowIndex, String frameFormat, boolean sharedMemory,
+      BlockCompression compression, long compressionThreshold, RowsFromPythonHandler handler, CommandCodec codec,
+      OutputStream outputStream, InputStream inputStream ) throws KettleException {
 
     boolean debug = log == null || log.isDebug();
-    ObjectMapper mapper = new ObjectMapper();
     Map<String, Object> command = new HashMap<String, Object>();
     command.put( COMMAND_KEY, GET_FRAME_COMMAND );
     command.put( FRAME_NAME_KEY, frameName );
     command.put( FRAME_INCLUDE_ROW_INDEX, includeRowIndex );
+    command.put( FRAME_FORMAT_KEY, supportedFrameFormat( frameFormat ) );
+    if ( sharedMemory && FRAME_FORMAT_ARROW.equals( frameFormat ) ) {
+      command.put( SHM_DIR_KEY, SharedMemoryFile.SHARED_MEMORY_DIR );
+    }
+    if ( compression != null ) {
+      command.put( COMPRESSION_KEY, compression.getName() );
+      command.put( COMPRESSION_THRESHOLD_KEY, compressionThreshold );
+    }
     command.put( DEBUG_KEY, debug );
 
-    RowMetaAndRows result = null;
     if ( inputStream != null && outputStream != null ) {
       try {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        mapper.writeValue( bos, command );
-        byte[] bytes = bos.toByteArray();
+        byte[] bytes = codec.encode( command );
 
         if ( debug ) {
           outputCommandDebug( command, log );
         }
 
         writeDelimitedToOutputStream( bytes, outputStream );
-        String serverAck = receiveServerAck( inputStream );
+        String serverAck = receiveServerAck( codec, inputStream );
         if ( serverAck != null ) {
           throw new KettleException( serverAck );
         }
 
         // read the header
         bytes = readDelimitedFromInputStream( inputStream );
-        Map<String, Object> headerResponse = mapper.readValue( bytes, Map.class );
+        Map<String, Object> headerResponse = codec.decode( bytes );
         if ( headerResponse == null ) {
           throw new KettleException( BaseMessages.getString( PKG, "ServerUtils.Error.HeaderMetadataMapIsNull" ) );
         }
@@ -584,71 +1001,131 @@ public class ServerUtils {
         RowMetaInterface convertedMeta = jsonRowMetadataToRowMeta( frameName, headerResponse );
         int numRows = (Integer) headerResponse.get( NUM_ROWS_KEY );
 
-        bytes = readDelimitedFromInputStream( inputStream );
-        String csv = new String( bytes, Charset.forName( "UTF-8" ) );
-        result = csvToRows( csv, convertedMeta, numRows );
+        if ( headerResponse.get( SHM_PATH_KEY ) != null ) {
+          // python has left the frame in shared memory
+          File shmFile = new File( headerResponse.get( SHM_PATH_KEY ).toString() );
+          if ( !new File( SharedMemoryFile.SHARED_MEMORY_DIR ).equals( shmFile.getParentFile() ) ) {
+            throw new KettleException(
+                BaseMessages.getString( PKG, "ServerUtils.Error.UnexpectedSharedMemoryFile", shmFile ) );
+          }
+          try {
+            InputStream mapped = new SharedMemoryFile.MappedInputStream( shmFile,
+                ( (Number) headerResponse.get( SHM_SIZE_KEY ) ).longValue() );
+            try {
+              handler.frameMetaReceived( convertedMeta, numRows );
+              ArrowFrameDecoder.readFrame( mapped, convertedMeta, handler );
+            } finally {
+              mapped.close();
+            }
+          } finally {
+            shmFile.delete();
+          }
+          return;
+        }
+
+        // the rows follow as a series of chunks, which are decoded as they arrive
+        ChunkedInputStream chunked = compression != null && headerResponse.get( COMPRESSION_KEY ) != null
+            ? new CompressedChunkedInputStream( inputStream, compression )
+            : new ChunkedInputStream( inputStream );
+        try {
+          handler.frameMetaReceived( convertedMeta, numRows );
+          if ( FRAME_FORMAT_ARROW.equals( headerResponse.get( FRAME_FORMAT_KEY ) ) ) {
+            ArrowFrameDecoder.readFrame( chunked, convertedMeta, handler );
+          } else if ( FRAME_FORMAT_COLUMNS.equals( headerResponse.get( FRAME_FORMAT_KEY ) ) ) {
+            ColumnFrameDecoder.readFrame( chunked, convertedMeta, handler );
+          } else {
+            csvToRows( new InputStreamReader( chunked, Charset.forName( "UTF-8" ) ), convertedMeta, handler );
+          }
+        } finally {
+          // keep the protocol in step even if the handler bailed out part way through
+          chunked.drain();
+        }
       } catch ( IOException ex ) {
         throw new KettleException( ex );
       }
     } else {
       outputCommandDebug( command, log );
     }
-
-    return result;
   }
 
   /**
-   * Convert csv data to rows
+   * Convert csv data to rows, passing each row to the handler as soon as it has been read
    *
-   * @param csv        csv data in a String
+   * @param csv        reader for the csv data
    * @param kettleMeta metadata for the fields in the csv
-   * @param numRows    the number of rows of data
-   * @return rows of kettle data
-   * @throws IOException if a problem occurs
+   * @param handler    the handler to pass rows to
+   * @throws IOException     if a problem occurs reading or parsing the csv
+   * @throws KettleException if the handler has a problem with a row
    */
-  protected static RowMetaAndRows csvToRows( String csv, RowMetaInterface kettleMeta, int numRows ) throws IOException {
-    RowMetaAndRows rowMetaAndRows = new RowMetaAndRows();
-    rowMetaAndRows.m_rowMeta = kettleMeta;
-    rowMetaAndRows.m_rows = new Object[numRows][];
-    int count = 0;
+  protected static void csvToRows( Reader csv, RowMetaInterface kettleMeta, RowsFromPythonHandler handler )
+      throws IOException, KettleException {
     // use a foreign line ending so that we can still have cr/lf in text cells
-    for ( String line : csv.split( "#\\|\\|#" ) ) {
-      // stash cr and lf so that they don't break the parser
-      line = line.replace( "\n", "<lf>" ).replace( "\r", "<cr>" );
-      String[] parsed = PARSER.parseLine( line );
-
-      Object[] row = new Object[kettleMeta.size()];
-      for ( int i = 0; i < kettleMeta.size(); i++ ) {
-        if ( parsed[i].equals( MISSING_VALUE ) ) {
-          continue;
-        }
-        switch ( kettleMeta.getValueMeta( i ).getType() ) {
-          case ValueMetaInterface.TYPE_NUMBER:
-            try {
-              row[i] = new Double( parsed[i] );
-            } catch ( NumberFormatException ex ) {
-              throw new IOException( ex );
-            }
-            break;
-          case ValueMetaInterface.TYPE_BOOLEAN:
-            row[i] = parsed[i].equalsIgnoreCase( "true" );
-            break;
-          case ValueMetaInterface.TYPE_DATE:
-            try {
-              row[i] = DATE_FORMAT.parse( parsed[i] );
-            } catch ( ParseException ex ) {
-              throw new IOException( ex );
-            }
-            break;
-          default:
-            // unpack stashed cr lf 
-            row[i] = parsed[i].replace( "<lf>", "\n" ).replace( "<cr>", "\r" );
+    StringBuilder line = new StringBuilder();
+    char[] buffer = new char[8192];
+    int numRead;
+    while ( ( numRead = csv.read( buffer ) ) >= 0 ) {
+      for ( int i = 0; i < numRead; i++ ) {
+        line.append( buffer[i] );
+        if ( buffer[i] == '#' && endsWithLineTerminator( line ) ) {
+          line.setLength( line.length() - CSV_LINE_TERMINATOR.length() );
+          handler.rowReceived( csvLineToRow( line.toString(), kettleMeta ) );
+          line.setLength( 0 );
         }
       }
-      rowMetaAndRows.m_rows[count++] = row;
+    }
+    if ( line.length() > 0 ) {
+      handler.rowReceived( csvLineToRow( line.toString(), kettleMeta ) );
+    }
+  }
+
+  protected static boolean endsWithLineTerminator( StringBuilder line ) {
+    int start = line.length() - CSV_LINE_TERMINATOR.length();
+    return start >= 0 && line.indexOf( CSV_LINE_TERMINATOR, start ) == start;
+  }
+
+  /**
+   * Convert a single line of csv data to a row
+   *
+   * @param line       the line (without its line terminator)
+   * @param kettleMeta metadata for the fields in the csv
+   * @return the row
+   * @throws IOException if a problem occurs
+   */
+  protected static Object[] csvLineToRow( String line, RowMetaInterface kettleMeta ) throws IOException {
+    // stash cr and lf so that they don't break the parser
+    line = line.replace( "\n", "<lf>" ).replace( "\r", "<cr>" );
+    String[] parsed = PARSER.get().parseLine( line );
+
+    Object[] row = new Object[kettleMeta.size()];
+    for ( int i = 0; i < kettleMeta.size(); i++ ) {
+      if ( parsed[i].equals( MISSING_VALUE ) ) {
+        continue;
+      }
+      switch ( kettleMeta.getValueMeta( i ).getType() ) {
+        case ValueMetaInterface.TYPE_NUMBER:
+          try {
+            row[i] = new Double( parsed[i] );
+          } catch ( NumberFormatException ex ) {
+            throw new IOException( ex );
+          }
+          break;
+        case ValueMetaInterface.TYPE_BOOLEAN:
+          row[i] = parsed[i].equalsIgnoreCase( "true" );
+          break;
+        case ValueMetaInterface.TYPE_DATE:
+          try {
+            row[i] = DATE_FORMAT.get().parse( parsed[i] );
+          } catch ( ParseException ex ) {
+            throw new IOException( ex );
+          }
+          break;
+        default:
+          // unpack stashed cr lf
+          row[i] = parsed[i].replace( "<lf>", "\n" ).replace( "<cr>", "\r" );
+      }
     }
 
-    return rowMetaAndRows;
+    return row;
   }
 
   /**
@@ -676,6 +1153,8 @@ public class ServerUtils {
       if ( fieldType.equals( FIELD_TYPE_NUMBER ) ) {
         //vm = new ValueMeta( fieldName, ValueMetaInterface.TYPE_NUMBER );
         vm = ValueMetaFactory.createValueMeta( fieldName, ValueMetaInterface.TYPE_NUMBER );
+      } else if ( fieldType.equals( FIELD_TYPE_INTEGER ) ) {
+        vm = ValueMetaFactory.createValueMeta( fieldName, ValueMetaInterface.TYPE_INTEGER );
       } else if ( fieldType.equals( FIELD_TYPE_STRING ) ) {
         //vm = new ValueMeta( fieldName, ValueMetaInterface.TYPE_STRING );
         vm = ValueMetaFactory.createValueMeta( fieldName, ValueMetaInterface.TYPE_STRING );
@@ -694,93 +1173,33 @@ public class ServerUtils {
     return rowMeta;
   }
 
-  protected static List<Object> rowsToCSVNew( RowMetaInterface meta, List<Object[]> rows ) throws KettleException {
-    List<Object> results = new ArrayList<>( 2 );
-    boolean needsBase64;
-    CharsetEncoder encoder = Charset.forName( "US-ASCII" ).newEncoder();
-    Charset utf8 = Charset.forName( "UTF-8" );
-
-    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-    BufferedOutputStream buf = new BufferedOutputStream( bos );
-
-    // header row
-    StringBuilder builder = new StringBuilder();
-    int i = 0;
-    for ( ValueMetaInterface v : meta.getValueMetaList() ) {
-      String name = quote( v.getName() );
-      builder.append( i > 0 ? "," : "" ).append( name );
-      i++;
-    }
-    builder.append( "\n" );
-
-    // We look for non-ascii characters and, if found, encode to ascii base64 first. For some reason,
-    // encoding directly to utf-8 on the Java side (Mac OS X; Java 8) causes the python utf-8 decoder to hang
-    // when there are non-ascii characters (such as in Mayagüez) present. Encoding to base64 first, then decoding
-    // this on the python side seems to fix the issue.
-    needsBase64 = !encoder.canEncode( builder.toString() );
+  /**
+   * Write rows to the output stream as utf-8 csv, one row at a time
+   *
+   * @param meta         the metadata of the rows
+   * @param rows         the rows to write
+   * @param outputStream the stream to write to
+   * @throws KettleException if a problem occurs
+   */
+  protected static void writeRowsAsCSV( RowMetaInterface meta, List<Object[]> rows, OutputStream outputStream )
+      throws KettleException {
     try {
-      buf.write( builder.toString().getBytes( utf8 ) );
-
+      Writer writer = new OutputStreamWriter( outputStream, Charset.forName( "UTF-8" ) );
+      StringBuilder builder = new StringBuilder();
+      appendCSVHeader( meta, builder );
+      writer.write( builder.toString() );
       for ( Object[] row : rows ) {
         builder.setLength( 0 );
-        for ( i = 0; i < meta.size(); i++ ) {
-          String value;
-          ValueMetaInterface vm = meta.getValueMeta( i );
-          if ( row[i] == null || Const.isEmpty( vm.getString( row[i] ) ) ) {
-            value = "?";
-          } else {
-            //switch ( meta.getValueMetaList().get( i ).getType() ) {
-            switch ( vm.getType() ) {
-              case ValueMetaInterface.TYPE_NUMBER:
-              case ValueMetaInterface.TYPE_INTEGER:
-              case ValueMetaInterface.TYPE_BIGNUMBER:
-                value = vm.getString( row[i] );
-                break;
-              case ValueMetaInterface.TYPE_DATE:
-                int offset = TZ.getOffset( vm.getDate( row[i] ).getTime() );
-                value = "" + ( vm.getDate( row[i] ).getTime() + offset );
-                break;
-              case ValueMetaInterface.TYPE_TIMESTAMP:
-                offset = TZ.getOffset( vm.getDate( row[i] ).getTime() );
-                value = "" + ( vm.getDate( row[i] ).getTime() + offset );
-                break;
-              case ValueMetaInterface.TYPE_BOOLEAN:
-                value = "" + ( vm.getBoolean( row[i] ) ? "1" : "0" );
-                break;
-              // TODO throw an exception for Serializable/Binary
-              default:
-                value = quote( vm.getString( row[i] ) );
-            }
-          }
-          builder.append( i > 0 ? "," : "" ).append( value );
-        }
-        builder.append( "\n" );
-
-        if ( !needsBase64 ) {
-          needsBase64 = !encoder.canEncode( builder.toString() );
-        }
-        buf.write( builder.toString().getBytes( utf8 ) );
+        appendCSVRow( meta, row, builder );
+        writer.write( builder.toString() );
       }
-
-      buf.flush();
-      buf.close();
+      writer.flush();
     } catch ( IOException e ) {
       throw new KettleException( e );
     }
-
-    byte[] bytes = bos.toByteArray();
-    if ( needsBase64 ) {
-      bytes = Base64.encodeBase64( bytes );
-    }
-    results.add( bytes );
-    results.add( needsBase64 );
-
-    return results;
   }
 
-  protected static StringBuilder rowsToCSV( RowMetaInterface meta, List<Object[]> rows ) throws KettleValueException {
-    StringBuilder builder = new StringBuilder();
-    // header row
+  protected static void appendCSVHeader( RowMetaInterface meta, StringBuilder builder ) {
     int i = 0;
     for ( ValueMetaInterface v : meta.getValueMetaList() ) {
       String name = quote( v.getName() );
@@ -788,42 +1207,38 @@ public class ServerUtils {
       i++;
     }
     builder.append( "\n" );
-    for ( Object[] row : rows ) {
-      for ( i = 0; i < meta.size(); i++ ) {
-        String value;
-        ValueMetaInterface vm = meta.getValueMeta( i );
-        if ( row[i] == null || Const.isEmpty( vm.getString( row[i] ) ) ) {
-          value = "?";
-        } else {
-          //switch ( meta.getValueMetaList().get( i ).getType() ) {
-          switch ( vm.getType() ) {
-            case ValueMetaInterface.TYPE_NUMBER:
-            case ValueMetaInterface.TYPE_INTEGER:
-            case ValueMetaInterface.TYPE_BIGNUMBER:
-              value = vm.getString( row[i] );
-              break;
-            case ValueMetaInterface.TYPE_DATE:
-              int offset = TZ.getOffset( vm.getDate( row[i] ).getTime() );
-              value = "" + ( vm.getDate( row[i] ).getTime() + offset );
-              break;
-            case ValueMetaInterface.TYPE_TIMESTAMP:
-              offset = TZ.getOffset( vm.getDate( row[i] ).getTime() );
-              value = "" + ( vm.getDate( row[i] ).getTime() + offset );
-              break;
-            case ValueMetaInterface.TYPE_BOOLEAN:
-              value = "" + ( vm.getBoolean( row[i] ) ? "1" : "0" );
-              break;
-            // TODO throw an exception for Serializable/Binary
-            default:
-              value = quote( vm.getString( row[i] ) );
-          }
+  }
+
+  protected static void appendCSVRow( RowMetaInterface meta, Object[] row, StringBuilder builder )
+      throws KettleValueException {
+    for ( int i = 0; i < meta.size(); i++ ) {
+      String value;
+      ValueMetaInterface vm = meta.getValueMeta( i );
+      if ( row[i] == null || Const.isEmpty( vm.getString( row[i] ) ) ) {
+        value = "?";
+      } else {
+        switch ( vm.getType() ) {
+          case ValueMetaInterface.TYPE_NUMBER:
+          case ValueMetaInterface.TYPE_INTEGER:
+          case ValueMetaInterface.TYPE_BIGNUMBER:
+            value = vm.getString( row[i] );
+            break;
+          case ValueMetaInterface.TYPE_DATE:
+          case ValueMetaInterface.TYPE_TIMESTAMP:
+            int offset = TZ.getOffset( vm.getDate( row[i] ).getTime() );
+            value = "" + ( vm.getDate( row[i] ).getTime() + offset );
+            break;
+          case ValueMetaInterface.TYPE_BOOLEAN:
+            value = "" + ( vm.getBoolean( row[i] ) ? "1" : "0" );
+            break;
+          // TODO throw an exception for Serializable/Binary
+          default:
+            value = quote( vm.getString( row[i] ) );
         }
-        builder.append( i > 0 ? "," : "" ).append( value );
       }
-      builder.append( "\n" );
+      builder.append( i > 0 ? "," : "" ).append( value );
     }
-
-    return builder;
+    builder.append( "\n" );
   }
 
   /**
@@ -905,6 +1320,7 @@ public class ServerUtils {
 
     // write the message itself
     outputStream.write( bytes );
+    outputStream.flush();
   }
 
   /**
@@ -916,15 +1332,17 @@ public class ServerUtils {
    */
   protected static byte[] readDelimitedFromInputStream( InputStream inputStream ) throws IOException {
     byte[] sizeBytes = new byte[4];
-    int numRead = inputStream.read( sizeBytes, 0, 4 );
-    if ( numRead < 4 ) {
-      throw new IOException( BaseMessages.getString( PKG, "ServerUtils.Error.FailedToReadMessageSize" ) );
+    int numRead;
+    for ( numRead = 0; numRead < 4; ) {
+      int currentNumRead = inputStream.read( sizeBytes, numRead, 4 - numRead );
+      if ( currentNumRead < 0 ) {
+        throw new IOException( BaseMessages.getString( PKG, "ServerUtils.Error.FailedToReadMessageSize" ) );
+      }
+      numRead += currentNumRead;
     }
 
     int messageLength = ByteBuffer.wrap( sizeBytes ).getInt();
     byte[] messageData = new byte[messageLength];
-    // for (numRead = 0; numRead < messageLength; numRead +=
-    // inputStream.read(messageData, numRead, messageLength - numRead));
     for ( numRead = 0; numRead < messageLength; ) {
       int currentNumRead = inputStream.read( messageData, numRead, messageLength - numRead );
       if ( currentNumRead < 0 ) {
@@ -940,15 +1358,15 @@ public class ServerUtils {
    * Receive a simple ack from the server. Returns a non-null string if the ack
    * received contains an error message
    *
+   * @param codec       the codec for commands and responses
    * @param inputStream the input stream to read the ack from
    * @return a non-null string if there was an error returned by the server
    * @throws IOException if a problem occurs
    */
-  @SuppressWarnings( "unchecked" ) protected static String receiveServerAck( InputStream inputStream )
+  @SuppressWarnings( "unchecked" ) protected static String receiveServerAck( CommandCodec codec, InputStream inputStream )
       throws IOException {
     byte[] bytes = readDelimitedFromInputStream( inputStream );
-    ObjectMapper mapper = new ObjectMapper();
-    Map<String, Object> ack = mapper.readValue( bytes, Map.class );
+    Map<String, Object> ack = codec.decode( bytes );
 
     String response = ack.get( RESPONSE_KEY ).toString();
     if ( response.equals( OK_KEY ) ) {
@@ -962,18 +1380,19 @@ public class ServerUtils {
    * Receives a PID ack from the server
    *
    * @param inputStream the input stream to read from
-   * @return the process ID of the server
+   * @return the ack, holding the process ID of the server ("pid") and the frame formats that it supports
+   * ("frame_formats")
    * @throws IOException if a problem occurs
    */
-  @SuppressWarnings( "unchecked" ) protected static int receiveServerPIDAck( InputStream inputStream )
+  @SuppressWarnings( "unchecked" ) protected static Map<String, Object> receiveServerPIDAck( InputStream inputStream )
       throws IOException {
+    // always json - the command codec is negotiated from this ack
     byte[] bytes = readDelimitedFromInputStream( inputStream );
-    ObjectMapper mapper = new ObjectMapper();
-    Map<String, Object> ack = mapper.readValue( bytes, Map.class );
+    Map<String, Object> ack = JSON_CODEC.decode( bytes );
 
     String response = ack.get( RESPONSE_KEY ).toString();
     if ( response.equals( PID_RESPONSE_KEY ) ) {
-      return (Integer) ack.get( "pid" );
+      return ack;
     } else {
       throw new IOException( BaseMessages.getString( PKG, "ServerUtils.Error.NoPidResponse" ) );
     }
@@ -983,18 +1402,18 @@ public class ServerUtils {
    * Std out and err are redirected to StringIO objects in the server. This
    * method retrieves the values of those buffers.
    *
+   * @param codec        the codec for commands and responses
    * @param outputStream the output stream to talk to the server on
    * @param inputStream  the input stream to receive server responses from
    * @param log          optional log
    * @return the std out and err strings as a two element list
    * @throws KettleException if a problem occurs
    */
-  @SuppressWarnings( "unchecked" ) protected static List<String> receiveDebugBuffer( OutputStream outputStream,
-      InputStream inputStream, LogChannelInterface log ) throws KettleException {
+  @SuppressWarnings( "unchecked" ) protected static List<String> receiveDebugBuffer( CommandCodec codec,
+      OutputStream outputStream, InputStream inputStream, LogChannelInterface log ) throws KettleException {
     List<String> stdOutStdErr = new ArrayList<String>();
 
     boolean debug = log == null || log.isDebug();
-    ObjectMapper mapper = new ObjectMapper();
     Map<String, Object> command = new HashMap<String, Object>();
     command.put( "command", "get_debug_buffer" );
 
@@ -1003,15 +1422,13 @@ public class ServerUtils {
         if ( debug ) {
           outputCommandDebug( command, log );
         }
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        mapper.writeValue( bos, command );
-        byte[] bytes = bos.toByteArray();
+        byte[] bytes = codec.encode( command );
 
         // write the command
         writeDelimitedToOutputStream( bytes, outputStream );
 
         bytes = readDelimitedFromInputStream( inputStream );
-        Map<String, Object> ack = mapper.readValue( bytes, Map.class );
+        Map<String, Object> ack = codec.decode( bytes );
         if ( !ack.get( "response" ).toString().equals( "ok" ) ) {
           // fatal error
           throw new KettleException( ack.get( ERROR_MESSAGE_KEY ).toString() );
@@ -1034,6 +1451,7 @@ public class ServerUtils {
    * Get the type of a variable in python
    *
    * @param varName      the name of the variable to check
+   * @param codec        the codec for commands and responses
    * @param outputStream the output stream to talk to the server on
    * @param inputStream  the input stream to receive server responses from
    * @param log          an optional log
@@ -1041,10 +1459,9 @@ public class ServerUtils {
    * @throws KettleException if a problem occurs
    */
   @SuppressWarnings( "unchecked" ) protected static PythonVariableType getPythonVariableType( String varName,
-      OutputStream outputStream, InputStream inputStream, LogChannelInterface log ) throws KettleException {
+      CommandCodec codec, OutputStream outputStream, InputStream inputStream, LogChannelInterface log ) throws KettleException {
 
     boolean debug = log == null || log.isDebug();
-    ObjectMapper mapper = new ObjectMapper();
     Map<String, Object> command = new HashMap<String, Object>();
     command.put( COMMAND_KEY, GET_VARIABLE_TYPE_KEY );
     command.put( VARIABLE_NAME_KEY, varName );
@@ -1054,15 +1471,13 @@ public class ServerUtils {
         if ( debug ) {
           outputCommandDebug( command, log );
         }
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        mapper.writeValue( bos, command );
-        byte[] bytes = bos.toByteArray();
+        byte[] bytes = codec.encode( command );
 
         // write the command
         writeDelimitedToOutputStream( bytes, outputStream );
 
         bytes = readDelimitedFromInputStream( inputStream );
-        Map<String, Object> ack = mapper.readValue( bytes, Map.class );
+        Map<String, Object> ack = codec.decode( bytes );
         if ( !ack.get( RESPONSE_KEY ).toString().equals( OK_KEY ) ) {
           // fatal error
           throw new KettleException( ack.get( ERROR_MESSAGE_KEY ).toString() );
@@ -1072,15 +1487,7 @@ public class ServerUtils {
           throw new KettleException( "Server sent back a response for a different " + "variable!" );
         }
 
-        String varType = ack.get( VARIABLE_TYPE_RESPONSE_KEY ).toString();
-        PythonSession.PythonVariableType pvt = PythonSession.PythonVariableType.Unknown;
-        for ( PythonSession.PythonVariableType t : PythonSession.PythonVariableType.values() ) {
-          if ( t.toString().toLowerCase().equals( varType ) ) {
-            pvt = t;
-            break;
-          }
-        }
-        return pvt;
+        return toPythonVariableType( ack.get( VARIABLE_TYPE_RESPONSE_KEY ).toString() );
       } catch ( IOException ex ) {
         throw new KettleException( ex );
       }
@@ -1094,17 +1501,15 @@ public class ServerUtils {
   /**
    * Send a shutdown command to the micro server
    *
+   * @param codec        the codec for commands and responses
    * @param outputStream the output stream to write the command to
    * @throws KettleException if a problem occurs
    */
-  protected static void sendServerShutdown( OutputStream outputStream ) throws KettleException {
+  protected static void sendServerShutdown( CommandCodec codec, OutputStream outputStream ) throws KettleException {
     Map<String, Object> command = new HashMap<String, Object>();
     command.put( "command", "shutdown" );
     try {
-      ByteArrayOutputStream bos = new ByteArrayOutputStream();
-      ObjectMapper mapper = new ObjectMapper();
-      mapper.writeValue( bos, command );
-      byte[] bytes = bos.toByteArray();
+      byte[] bytes = codec.encode( command );
 
       // write the command
       writeDelimitedToOutputStream( bytes, outputStream );
@@ -1121,10 +1526,9 @@ public class ServerUtils {
    */
   protected static void outputCommandDebug( Map<String, Object> command, LogChannelInterface log )
       throws KettleException {
-    ObjectMapper mapper = new ObjectMapper();
     StringWriter sw = new StringWriter();
     try {
-      mapper.writeValue( sw, command );
+      JsonCommandCodec.MAPPER.writeValue( sw, command );
       String serialized = sw.toString();
       if ( log != null ) {
         log.logDebug( "Sending command:\n" + serialized );
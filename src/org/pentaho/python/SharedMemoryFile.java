@@ -0,0 +1,230 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Helpers for exchanging frames with the python server through memory mapped files in a shared memory (tmpfs)
+ * directory, so that large Arrow payloads don't have to be copied through the socket. Files are mapped a window at a
+ * time, so payloads are not limited to the 2GB that a single MappedByteBuffer can address.
+ */
+public class SharedMemoryFile {
+
+  /**
+   * The shared memory directory
+   */
+  public static final String SHARED_MEMORY_DIR = "/dev/shm";
+
+  /**
+   * Size of the region mapped at any one time
+   */
+  protected static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * @return true if the shared memory directory exists and is writable
+   */
+  public static boolean isAvailable() {
+    File dir = new File( SHARED_MEMORY_DIR );
+    return dir.isDirectory() && dir.canWrite();
+  }
+
+  /**
+   * Create a new, empty, file in the shared memory directory
+   *
+   * @return the file
+   * @throws IOException if a problem occurs
+   */
+  public static File createFile() throws IOException {
+    return File.createTempFile( "pdi-cpython-", ".arrow", new File( SHARED_MEMORY_DIR ) );
+  }
+
+  /**
+   * Release a mapping straight away rather than waiting for the buffer to be garbage collected, so that the memory
+   * backing a deleted file is given back promptly. Best effort only - relies on JDK internals.
+   *
+   * @param buffer the buffer to unmap
+   */
+  protected static void unmap( MappedByteBuffer buffer ) {
+    if ( buffer == null ) {
+      return;
+    }
+    try {
+      // Java 9+
+      Class<?> unsafeClass = Class.forName( "sun.misc.Unsafe" );
+      java.lang.reflect.Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+      theUnsafe.setAccessible( true );
+      Method invokeCleaner = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class );
+      invokeCleaner.invoke( theUnsafe.get( null ), buffer );
+      return;
+    } catch ( Exception ex ) {
+      // fall through to the Java 8 approach
+    }
+    try {
+      Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+      cleanerMethod.setAccessible( true );
+      Object cleaner = cleanerMethod.invoke( buffer );
+      if ( cleaner != null ) {
+        cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+      }
+    } catch ( Exception ex ) {
+      // leave it to the garbage collector
+    }
+  }
+
+  /**
+   * Output stream that writes into a file through a series of memory mapped windows. Closing the stream truncates the
+   * file to the number of bytes written.
+   */
+  public static class MappedOutputStream extends OutputStream {
+    protected RandomAccessFile m_file;
+    protected FileChannel m_channel;
+    protected MappedByteBuffer m_window;
+    protected long m_windowStart;
+    protected long m_size;
+
+    public MappedOutputStream( File file ) throws IOException {
+      m_file = new RandomAccessFile( file, "rw" );
+      m_channel = m_file.getChannel();
+    }
+
+    @Override public void write( int b ) throws IOException {
+      ensureWindow();
+      m_window.put( (byte) b );
+      m_size++;
+    }
+
+    @Override public void write( byte[] b, int off, int len ) throws IOException {
+      while ( len > 0 ) {
+        ensureWindow();
+        int toWrite = Math.min( len, m_window.remaining() );
+        m_window.put( b, off, toWrite );
+        off += toWrite;
+        len -= toWrite;
+        m_size += toWrite;
+      }
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public long size() {
+      return m_size;
+    }
+
+    @Override public void close() throws IOException {
+      if ( m_channel == null ) {
+        return;
+      }
+      unmap( m_window );
+      m_window = null;
+      try {
+        m_channel.truncate( m_size );
+      } finally {
+        m_channel = null;
+        m_file.close();
+      }
+    }
+
+    protected void ensureWindow() throws IOException {
+      if ( m_window == null || !m_window.hasRemaining() ) {
+        if ( m_window != null ) {
+          m_windowStart += m_window.capacity();
+          unmap( m_window );
+        }
+        m_window = m_channel.map( FileChannel.MapMode.READ_WRITE, m_windowStart, WINDOW_SIZE );
+      }
+    }
+  }
+
+  /**
+   * Input stream that reads a file through a series of memory mapped windows
+   */
+  public static class MappedInputStream extends InputStream {
+    protected RandomAccessFile m_file;
+    protected FileChannel m_channel;
+    protected MappedByteBuffer m_window;
+    protected long m_windowStart;
+    protected long m_size;
+
+    public MappedInputStream( File file, long size ) throws IOException {
+      m_file = new RandomAccessFile( file, "r" );
+      m_channel = m_file.getChannel();
+      m_size = Math.min( size, m_channel.size() );
+    }
+
+    @Override public int read() throws IOException {
+      if ( !ensureWindow() ) {
+        return -1;
+      }
+      return m_window.get() & 0xFF;
+    }
+
+    @Override public int read( byte[] b, int off, int len ) throws IOException {
+      if ( len == 0 ) {
+        return 0;
+      }
+      if ( !ensureWindow() ) {
+        return -1;
+      }
+      int toRead = Math.min( len, m_window.remaining() );
+      m_window.get( b, off, toRead );
+      return toRead;
+    }
+
+    @Override public void close() throws IOException {
+      if ( m_channel == null ) {
+        return;
+      }
+      unmap( m_window );
+      m_window = null;
+      m_channel = null;
+      m_file.close();
+    }
+
+    protected boolean ensureWindow() throws IOException {
+      if ( m_window != null && m_window.hasRemaining() ) {
+        return true;
+      }
+      if ( m_window != null ) {
+        m_windowStart += m_window.capacity();
+        unmap( m_window );
+        m_window = null;
+      }
+      if ( m_windowStart >= m_size ) {
+        return false;
+      }
+      m_window =
+          m_channel.map( FileChannel.MapMode.READ_ONLY, m_windowStart, Math.min( WINDOW_SIZE, m_size - m_windowStart ) );
+      return true;
+    }
+  }
+}
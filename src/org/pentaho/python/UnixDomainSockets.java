@@ -0,0 +1,158 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Helpers for talking to the python server over a Unix domain (AF_UNIX) socket rather than loopback TCP. Unix domain
+ * sockets need Java 16 or later on the JVM side, so the API is accessed reflectively and callers fall back to TCP when
+ * it is not available.
+ */
+public class UnixDomainSockets {
+
+  /**
+   * Name of the socket file created in the session's private directory
+   */
+  public static final String SOCKET_FILE_NAME = "pyServer.sock";
+
+  /**
+   * Largest number of bytes passed to a single channel read or write. Channels copy heap buffers through a temporary
+   * direct buffer of the same size, so bounding it keeps that copy cheap and cached.
+   */
+  protected static final int MAX_TRANSFER_SIZE = 64 * 1024;
+
+  /**
+   * @return true if this JVM and OS support Unix domain socket channels
+   */
+  public static boolean isAvailable() {
+    if ( System.getProperty( "os.name" ).toLowerCase().contains( "win" ) ) {
+      return false;
+    }
+    try {
+      Class.forName( "java.net.UnixDomainSocketAddress" );
+      return true;
+    } catch ( ClassNotFoundException ex ) {
+      return false;
+    }
+  }
+
+  /**
+   * Open a server channel listening on a socket file. The file must not exist yet.
+   *
+   * @param socketFile the socket file to bind to
+   * @return the server channel, in blocking mode
+   * @throws IOException if a problem occurs (including when Unix domain sockets are not supported)
+   */
+  public static ServerSocketChannel openServerChannel( File socketFile ) throws IOException {
+    SocketAddress address;
+    ServerSocketChannel server;
+    try {
+      address =
+          (SocketAddress) Class.forName( "java.net.UnixDomainSocketAddress" ).getMethod( "of", String.class )
+              .invoke( null, socketFile.getAbsolutePath() );
+      ProtocolFamily unix = Enum.valueOf( StandardProtocolFamily.class, "UNIX" );
+      server = (ServerSocketChannel) ServerSocketChannel.class.getMethod( "open", ProtocolFamily.class )
+          .invoke( null, unix );
+    } catch ( Exception ex ) {
+      throw new IOException( ex );
+    }
+    try {
+      server.bind( address );
+    } catch ( IOException ex ) {
+      server.close();
+      throw ex;
+    }
+    return server;
+  }
+
+  /**
+   * Input stream that reads directly from a blocking channel. Unlike java.nio.channels.Channels.newInputStream, reads
+   * don't lock out concurrent writes through a ChannelOutputStream on the same socket.
+   */
+  public static class ChannelInputStream extends InputStream {
+    protected ReadableByteChannel m_channel;
+
+    public ChannelInputStream( ReadableByteChannel channel ) {
+      m_channel = channel;
+    }
+
+    @Override public int read() throws IOException {
+      byte[] b = new byte[1];
+      int numRead;
+      do {
+        numRead = read( b, 0, 1 );
+      } while ( numRead == 0 );
+      return numRead < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override public int read( byte[] b, int off, int len ) throws IOException {
+      if ( len == 0 ) {
+        return 0;
+      }
+      return m_channel.read( ByteBuffer.wrap( b, off, Math.min( len, MAX_TRANSFER_SIZE ) ) );
+    }
+
+    @Override public void close() throws IOException {
+      m_channel.close();
+    }
+  }
+
+  /**
+   * Output stream that writes directly to a blocking channel
+   */
+  public static class ChannelOutputStream extends OutputStream {
+    protected WritableByteChannel m_channel;
+
+    public ChannelOutputStream( WritableByteChannel channel ) {
+      m_channel = channel;
+    }
+
+    @Override public void write( int b ) throws IOException {
+      write( new byte[] { (byte) b }, 0, 1 );
+    }
+
+    @Override public void write( byte[] b, int off, int len ) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap( b, off, len );
+      int end = off + len;
+      while ( buffer.position() < end ) {
+        buffer.limit( Math.min( end, buffer.position() + MAX_TRANSFER_SIZE ) );
+        m_channel.write( buffer );
+      }
+    }
+
+    @Override public void close() throws IOException {
+      m_channel.close();
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that records how long a read has been waiting, so that a python server that has stopped responding
+ * can be spotted from another thread. Also records whether the connection has failed or been closed by python.
+ */
+public class WatchedInputStream extends FilterInputStream {
+
+  /**
+   * When the read in progress started (System.nanoTime()), or 0 if no read is in progress
+   */
+  protected volatile long m_readingSince;
+
+  /**
+   * True once a read has failed or reached the end of the stream
+   */
+  protected volatile boolean m_failed;
+
+  public WatchedInputStream( InputStream in ) {
+    super( in );
+  }
+
+  /**
+   * @return how long, in milliseconds, the read in progress has been waiting, or 0 if no read is in progress
+   */
+  public long waitingMillis() {
+    long since = m_readingSince;
+    return since == 0 ? 0 : ( System.nanoTime() - since ) / 1000000L;
+  }
+
+  /**
+   * @return true once a read has failed or reached the end of the stream - python has gone
+   */
+  public boolean hasFailed() {
+    return m_failed;
+  }
+
+  @Override public int read() throws IOException {
+    m_readingSince = System.nanoTime();
+    try {
+      return checkEnd( super.read() );
+    } catch ( IOException ex ) {
+      m_failed = true;
+      throw ex;
+    } finally {
+      m_readingSince = 0;
+    }
+  }
+
+  @Override public int read( byte[] b, int off, int len ) throws IOException {
+    m_readingSince = System.nanoTime();
+    try {
+      return len == 0 ? 0 : checkEnd( super.read( b, off, len ) );
+    } catch ( IOException ex ) {
+      m_failed = true;
+      throw ex;
+    } finally {
+      m_readingSince = 0;
+    }
+  }
+
+  @Override public long skip( long n ) throws IOException {
+    m_readingSince = System.nanoTime();
+    try {
+      return super.skip( n );
+    } catch ( IOException ex ) {
+      m_failed = true;
+      throw ex;
+    } finally {
+      m_readingSince = 0;
+    }
+  }
+
+  protected int checkEnd( int result ) {
+    if ( result < 0 ) {
+      m_failed = true;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,50 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.cpythonscriptexecutor;
+
+import org.junit.Test;
+import org.pentaho.di.trans.step.StepInterface;
+import org.pentaho.python.PythonSessionPool;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CPythonScriptExecutorDataTest {
+
+  @Test public void testStopCheckFollowsTheStep() {
+    StepInterface step = mock( StepInterface.class );
+    PythonSessionPool.StopCheck stopCheck = CPythonScriptExecutorData.stopCheck( step );
+
+    assertFalse( stopCheck.isStopped() );
+    when( step.isStopped() ).thenReturn( true );
+    assertTrue( stopCheck.isStopped() );
+  }
+
+  @Test public void testNoStopCheckForOtherRequesters() {
+    assertNull( CPythonScriptExecutorData.stopCheck( new Object() ) );
+  }
+}
@@ -79,7 +79,8 @@ public class CPythonScriptExecutorMetaTest {
                 CPythonScriptExecutorMeta.FRAME_NAMES_TAG, CPythonScriptExecutorMeta.OUTPUT_FIELDS_TAG,
                 CPythonScriptExecutorMeta.LOAD_SCRIPT_AT_RUNTIME_TAG, CPythonScriptExecutorMeta.SCRIPT_TO_LOAD_TAG,
                 CPythonScriptExecutorMeta.INCLUDE_INPUT_AS_OUTPUT_TAG,
-                CPythonScriptExecutorMeta.INCLUDE_FRAME_ROW_INDEX_AS_OUTPUT_FIELD_TAG ), getterMap, setterMap,
+                CPythonScriptExecutorMeta.INCLUDE_FRAME_ROW_INDEX_AS_OUTPUT_FIELD_TAG,
+                CPythonScriptExecutorMeta.BIND_KETTLE_VARS_TAG ), getterMap, setterMap,
             fieldLoadSaveValidatorAttributeMap, fieldLoadSaveValidatorTypeMap );
 
     tester.testXmlRoundTrip();
@@ -0,0 +1,182 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.di.trans.steps.cpythonscriptexecutor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.python.PythonSession;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CPythonScriptExecutorTest {
+
+  protected CPythonScriptExecutor m_step;
+
+  @Before public void setUp() {
+    // only the retry logic is under test - sessions, output and logging are stubbed out
+    m_step = mock( CPythonScriptExecutor.class, CALLS_REAL_METHODS );
+    m_step.m_meta = mock( CPythonScriptExecutorMeta.class );
+    m_step.m_retriesLeft = 2;
+    doNothing().when( m_step ).logError( anyString() );
+    doNothing().when( m_step ).releasePySession();
+  }
+
+  @Test public void testBatchIsRetriedOnlyIfTheServerDied() {
+    PythonSession alive = session( true );
+    PythonSession dead = session( false );
+
+    assertFalse( m_step.canRetry( alive, new KettleException( "NameError" ) ) );
+    assertEquals( 2, m_step.m_retriesLeft );
+    assertTrue( m_step.canRetry( dead, new KettleException( "Broken pipe" ) ) );
+    assertEquals( 1, m_step.m_retriesLeft );
+    verify( m_step ).logError( anyString() );
+  }
+
+  @Test public void testRetriesRunOut() {
+    PythonSession dead = session( false );
+
+    assertTrue( m_step.canRetry( dead, new KettleException( "Broken pipe" ) ) );
+    assertTrue( m_step.canRetry( dead, new KettleException( "Broken pipe" ) ) );
+    assertFalse( m_step.canRetry( dead, new KettleException( "Broken pipe" ) ) );
+    assertEquals( 0, m_step.m_retriesLeft );
+  }
+
+  @Test public void testBatchIsExecutedAgainOnANewServer() throws Exception {
+    CPythonScriptExecutor.PendingBatch batch = failedBatch( session( false ) );
+    PythonSession replacement = session( true );
+    PythonSession.ScriptResultAndVariables result = new PythonSession.ScriptResultAndVariables();
+    doReturn( replacement ).when( m_step ).acquirePySession();
+    doReturn( result ).when( m_step ).executeBatch( replacement, batch );
+    doNothing().when( m_step ).processScriptResult( eq( replacement ), eq( result ), eq( false ),
+        any( CPythonScriptExecutor.OutputRowWriter.class ) );
+
+    m_step.finishPendingBatch();
+    assertNull( m_step.m_pendingBatch );
+    assertEquals( 1, m_step.m_retriesLeft );
+    verify( m_step ).processScriptResult( eq( replacement ), eq( result ), eq( false ),
+        any( CPythonScriptExecutor.OutputRowWriter.class ) );
+    verify( m_step ).releasePySession();
+  }
+
+  @Test public void testRetryIsRetriedOnAnotherServer() throws Exception {
+    CPythonScriptExecutor.PendingBatch batch = failedBatch( session( false ) );
+    PythonSession replacement = session( false );
+    PythonSession second = session( true );
+    PythonSession.ScriptResultAndVariables result = new PythonSession.ScriptResultAndVariables();
+    doReturn( replacement ).doReturn( second ).when( m_step ).acquirePySession();
+    doThrow( new KettleException( "Broken pipe" ) ).when( m_step ).executeBatch( replacement, batch );
+    doReturn( result ).when( m_step ).executeBatch( second, batch );
+    doNothing().when( m_step ).processScriptResult( eq( second ), eq( result ), eq( false ),
+        any( CPythonScriptExecutor.OutputRowWriter.class ) );
+
+    m_step.finishPendingBatch();
+    assertEquals( 0, m_step.m_retriesLeft );
+    verify( m_step ).processScriptResult( eq( second ), eq( result ), eq( false ),
+        any( CPythonScriptExecutor.OutputRowWriter.class ) );
+    // the dead session is released so that the pool replaces it
+    verify( m_step, times( 2 ) ).releasePySession();
+  }
+
+  @Test public void testFailureOnALiveServerIsNotRetried() throws Exception {
+    KettleException failure = new KettleException( "NameError" );
+    m_step.m_pendingBatch = batch( session( true ), failed( failure ) );
+
+    try {
+      m_step.finishPendingBatch();
+      fail( "Expected the batch to fail" );
+    } catch ( KettleException ex ) {
+      assertSame( failure, ex );
+    }
+    verify( m_step, never() ).acquirePySession();
+    assertEquals( 2, m_step.m_retriesLeft );
+  }
+
+  @Test public void testBatchFailsOnceTheRetriesRunOut() throws Exception {
+    m_step.m_retriesLeft = 1;
+    CPythonScriptExecutor.PendingBatch batch = failedBatch( session( false ) );
+    PythonSession replacement = session( false );
+    KettleException failure = new KettleException( "Broken pipe" );
+    doReturn( replacement ).when( m_step ).acquirePySession();
+    doThrow( failure ).when( m_step ).executeBatch( replacement, batch );
+
+    try {
+      m_step.finishPendingBatch();
+      fail( "Expected the batch to fail" );
+    } catch ( KettleException ex ) {
+      assertSame( failure, ex );
+    }
+    verify( m_step ).acquirePySession();
+    verify( m_step ).releasePySession();
+  }
+
+  protected static PythonSession session( boolean alive ) {
+    PythonSession session = mock( PythonSession.class );
+    when( session.isAlive( 1000 ) ).thenReturn( alive );
+    return session;
+  }
+
+  /**
+   * Make a batch that failed on the given session the step's pending batch
+   */
+  protected CPythonScriptExecutor.PendingBatch failedBatch( PythonSession session ) {
+    m_step.m_pendingBatch = batch( session, failed( new KettleException( "Broken pipe" ) ) );
+    return m_step.m_pendingBatch;
+  }
+
+  protected static CPythonScriptExecutor.PendingBatch batch( PythonSession session,
+      CompletableFuture<PythonSession.ScriptResultAndVariables> executed ) {
+    return new CPythonScriptExecutor.PendingBatch( session, new HashMap<Integer, CompletableFuture<Void>>(), executed,
+        new ArrayList<List<Object[]>>() );
+  }
+
+  protected static CompletableFuture<PythonSession.ScriptResultAndVariables> failed( KettleException failure ) {
+    CompletableFuture<PythonSession.ScriptResultAndVariables> executed =
+        new CompletableFuture<PythonSession.ScriptResultAndVariables>();
+    executed.completeExceptionally( failure );
+    return executed;
+  }
+}
@@ -0,0 +1,187 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBinary;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ArrowFrameDecoderTest {
+
+  /**
+   * Collects the rows passed to it
+   */
+  protected static class RowCollector implements PythonSession.RowsFromPythonHandler {
+    protected List<Object[]> m_rows = new ArrayList<Object[]>();
+
+    @Override public void frameMetaReceived( RowMetaInterface frameMeta, int numRows ) {
+    }
+
+    @Override public void rowReceived( Object[] row ) {
+      m_rows.add( row );
+    }
+  }
+
+  @Test public void testRoundTrip() throws Exception {
+    RowMetaInterface meta = allTypes();
+    Date date = localDate( 2017, Calendar.MARCH, 14, 15, 9, 26 );
+    List<Object[]> rows = new ArrayList<Object[]>();
+    rows.add( new Object[] { 42L, 3.25, "caf\u00e9", date, true, new byte[] { 0, 1, (byte) 0xff } } );
+    rows.add( new Object[] { null, null, null, null, null, null } );
+    rows.add( new Object[] { Long.MIN_VALUE, Double.NaN, "", new Date( 0 ), false, new byte[0] } );
+
+    List<Object[]> decoded = roundTrip( meta, rows );
+    assertEquals( 3, decoded.size() );
+
+    Object[] row = decoded.get( 0 );
+    assertEquals( 42L, row[0] );
+    assertEquals( 3.25, row[1] );
+    assertEquals( "caf\u00e9", row[2] );
+    assertEquals( date, row[3] );
+    assertEquals( true, row[4] );
+    assertArrayEquals( new byte[] { 0, 1, (byte) 0xff }, (byte[]) row[5] );
+
+    for ( Object value : decoded.get( 1 ) ) {
+      assertNull( value );
+    }
+
+    row = decoded.get( 2 );
+    assertEquals( Long.MIN_VALUE, row[0] );
+    assertEquals( Double.NaN, row[1] );
+    // an empty string is null in Kettle
+    assertNull( row[2] );
+    assertEquals( new Date( 0 ), row[3] );
+    assertEquals( false, row[4] );
+    assertArrayEquals( new byte[0], (byte[]) row[5] );
+  }
+
+  @Test public void testRoundTripOverSeveralRecordBatches() throws Exception {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( new ValueMetaInteger( "i" ) );
+    meta.addValueMeta( new ValueMetaString( "s" ) );
+    List<Object[]> rows = new ArrayList<Object[]>();
+    int numRows = ArrowFrameEncoder.RECORD_BATCH_SIZE * 2 + 3;
+    for ( int i = 0; i < numRows; i++ ) {
+      rows.add( new Object[] { i % 7 == 0 ? null : (long) i, "row " + i } );
+    }
+
+    List<Object[]> decoded = roundTrip( meta, rows );
+    assertEquals( numRows, decoded.size() );
+    for ( int i = 0; i < numRows; i++ ) {
+      assertEquals( rows.get( i )[0], decoded.get( i )[0] );
+      assertEquals( rows.get( i )[1], decoded.get( i )[1] );
+    }
+  }
+
+  @Test public void testLazyStringsRoundTrip() throws Exception {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( ColumnFrameEncoderTest.lazy( new ValueMetaString( "s" ) ) );
+    List<Object[]> rows = ColumnFrameEncoderTest.column( ColumnFrameEncoderTest.bytes( "caf\u00e9" ), null,
+        ColumnFrameEncoderTest.bytes( "x" ) );
+
+    List<Object[]> decoded = roundTrip( meta, rows );
+    assertEquals( "caf\u00e9", decoded.get( 0 )[0] );
+    assertNull( decoded.get( 1 )[0] );
+    assertEquals( "x", decoded.get( 2 )[0] );
+  }
+
+  @Test public void testEmptyFrame() throws Exception {
+    assertEquals( 0, roundTrip( allTypes(), new ArrayList<Object[]>() ).size() );
+  }
+
+  @Test public void testSchemaMustMatchTheFields() throws Exception {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( new ValueMetaInteger( "i" ) );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ArrowFrameEncoder.writeFrame( meta, Arrays.<Object[]>asList( new Object[] { 1L } ), out );
+
+    meta.addValueMeta( new ValueMetaInteger( "j" ) );
+    try {
+      ArrowFrameDecoder.readFrame( new ByteArrayInputStream( out.toByteArray() ), meta, new RowCollector() );
+      fail( "Frame with too few columns should have been refused" );
+    } catch ( KettleException ex ) {
+      // expected
+    }
+  }
+
+  @Test public void testTruncatedStreamFails() throws Exception {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( new ValueMetaString( "s" ) );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ArrowFrameEncoder.writeFrame( meta, Arrays.<Object[]>asList( new Object[] { "a" } ), out );
+    byte[] truncated = Arrays.copyOf( out.toByteArray(), out.size() - 12 );
+
+    try {
+      ArrowFrameDecoder.readFrame( new ByteArrayInputStream( truncated ), meta, new RowCollector() );
+      fail( "Truncated stream should have failed" );
+    } catch ( KettleException ex ) {
+      // expected
+    }
+  }
+
+  protected static RowMetaInterface allTypes() {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( new ValueMetaInteger( "i" ) );
+    meta.addValueMeta( new ValueMetaNumber( "n" ) );
+    meta.addValueMeta( new ValueMetaString( "s" ) );
+    meta.addValueMeta( new ValueMetaDate( "d" ) );
+    meta.addValueMeta( new ValueMetaBoolean( "b" ) );
+    meta.addValueMeta( new ValueMetaBinary( "y" ) );
+    return meta;
+  }
+
+  protected static Date localDate( int year, int month, int day, int hour, int minute, int second ) {
+    Calendar calendar = Calendar.getInstance( ServerUtils.TZ );
+    calendar.clear();
+    calendar.set( year, month, day, hour, minute, second );
+    return calendar.getTime();
+  }
+
+  protected static List<Object[]> roundTrip( RowMetaInterface meta, List<Object[]> rows ) throws KettleException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ArrowFrameEncoder.writeFrame( meta, rows, out );
+    RowCollector collector = new RowCollector();
+    ArrowFrameDecoder.readFrame( new ByteArrayInputStream( out.toByteArray() ), meta, collector );
+    return collector.m_rows;
+  }
+}
@@ -0,0 +1,223 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.apache.arrow.flatbuf.Message;
+import org.apache.arrow.flatbuf.MessageHeader;
+import org.apache.arrow.flatbuf.RecordBatch;
+import org.apache.arrow.flatbuf.Schema;
+import org.apache.arrow.flatbuf.Type;
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBinary;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaSerializable;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ArrowFrameEncoderTest {
+
+  @Test public void testStreamIsSchemaBatchesAndEndMarker() throws Exception {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( new ValueMetaInteger( "i" ) );
+    meta.addValueMeta( new ValueMetaNumber( "n" ) );
+    meta.addValueMeta( new ValueMetaString( "s" ) );
+    meta.addValueMeta( new ValueMetaDate( "d" ) );
+    meta.addValueMeta( new ValueMetaBoolean( "b" ) );
+    meta.addValueMeta( new ValueMetaBinary( "y" ) );
+
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for ( int i = 0; i < ArrowFrameEncoder.RECORD_BATCH_SIZE + 1; i++ ) {
+      rows.add( new Object[] { (long) i, i / 2.0, "row " + i, new Date( i ), i % 2 == 0, new byte[] { (byte) i } } );
+    }
+
+    DataInputStream in = new DataInputStream( new ByteArrayInputStream( write( meta, rows ) ) );
+
+    Message schemaMessage = readMessage( in );
+    assertEquals( MessageHeader.Schema, schemaMessage.headerType() );
+    assertEquals( 0, schemaMessage.bodyLength() );
+    Schema schema = (Schema) schemaMessage.header( new Schema() );
+    assertEquals( meta.size(), schema.fieldsLength() );
+    byte[] expectedTypes = { Type.Int, Type.FloatingPoint, Type.Utf8, Type.Timestamp, Type.Bool, Type.Binary };
+    for ( int i = 0; i < meta.size(); i++ ) {
+      assertEquals( meta.getValueMeta( i ).getName(), schema.fields( i ).name() );
+      assertEquals( expectedTypes[i], schema.fields( i ).typeType() );
+      assertTrue( schema.fields( i ).nullable() );
+    }
+
+    // rows are split into bounded record batches
+    int[] expectedLengths = { ArrowFrameEncoder.RECORD_BATCH_SIZE, 1 };
+    for ( int expectedLength : expectedLengths ) {
+      Message batchMessage = readMessage( in );
+      assertEquals( MessageHeader.RecordBatch, batchMessage.headerType() );
+      RecordBatch batch = (RecordBatch) batchMessage.header( new RecordBatch() );
+      assertEquals( expectedLength, batch.length() );
+      assertEquals( meta.size(), batch.nodesLength() );
+      assertEquals( 0, batchMessage.bodyLength() % ArrowFrameEncoder.ALIGNMENT );
+      in.skipBytes( (int) batchMessage.bodyLength() );
+    }
+
+    assertEquals( ArrowFrameEncoder.CONTINUATION_MARKER, readIntLittleEndian( in ) );
+    assertEquals( 0, readIntLittleEndian( in ) );
+    assertEquals( -1, in.read() );
+  }
+
+  @Test public void testEmptyFrameHasSchemaOnly() throws Exception {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( new ValueMetaString( "s" ) );
+
+    DataInputStream in = new DataInputStream( new ByteArrayInputStream( write( meta, new ArrayList<Object[]>() ) ) );
+    assertEquals( MessageHeader.Schema, readMessage( in ).headerType() );
+    assertEquals( ArrowFrameEncoder.CONTINUATION_MARKER, readIntLittleEndian( in ) );
+    assertEquals( 0, readIntLittleEndian( in ) );
+    assertEquals( -1, in.read() );
+  }
+
+  @Test public void testNullsAreLeftOutOfTheValidityBitmap() throws Exception {
+    List<Object[]> rows = Arrays.asList( new Object[] { 1L }, new Object[] { null }, new Object[] { 3L } );
+
+    ArrowFrameEncoder.EncodedColumn column = ArrowFrameEncoder.encodeColumn( new ValueMetaInteger( "i" ), 0, rows );
+    assertEquals( 1, column.m_nullCount );
+    assertEquals( 1, column.m_lengths[0] );
+    assertEquals( 0x05, column.m_buffers[0][0] );
+
+    ByteBuffer values = ByteBuffer.wrap( column.m_buffers[1], 0, column.m_lengths[1] ).order( ByteOrder.LITTLE_ENDIAN );
+    assertEquals( 24, column.m_lengths[1] );
+    assertEquals( 1L, values.getLong() );
+    assertEquals( 0L, values.getLong() );
+    assertEquals( 3L, values.getLong() );
+  }
+
+  @Test public void testValidityBitmapOmittedWithoutNulls() throws Exception {
+    List<Object[]> rows = Arrays.asList( new Object[] { 1.5 }, new Object[] { -2.5 } );
+
+    ArrowFrameEncoder.EncodedColumn column = ArrowFrameEncoder.encodeColumn( new ValueMetaNumber( "n" ), 0, rows );
+    assertEquals( 0, column.m_nullCount );
+    assertEquals( 0, column.m_lengths[0] );
+  }
+
+  @Test public void testEmptyStringIsNull() throws Exception {
+    List<Object[]> rows = Arrays.asList( new Object[] { "a" }, new Object[] { "" }, new Object[] { "\u00e9b" } );
+
+    ArrowFrameEncoder.EncodedColumn column = ArrowFrameEncoder.encodeColumn( new ValueMetaString( "s" ), 0, rows );
+    assertEquals( 1, column.m_nullCount );
+    assertEquals( 0x05, column.m_buffers[0][0] );
+    assertArrayEquals( new int[] { 0, 1, 1, 4 }, offsets( column, 3 ) );
+    assertEquals( "a\u00e9b", new String( column.m_buffers[2], 0, column.m_lengths[2], "UTF-8" ) );
+  }
+
+  @Test public void testEmptyBinaryIsNotNull() throws Exception {
+    List<Object[]> rows =
+        Arrays.asList( new Object[] { new byte[] { 1, 2 } }, new Object[] { new byte[0] }, new Object[] { null },
+            new Object[] { new byte[] { (byte) 0xff } } );
+
+    ArrowFrameEncoder.EncodedColumn column = ArrowFrameEncoder.encodeColumn( new ValueMetaBinary( "y" ), 0, rows );
+    assertEquals( 1, column.m_nullCount );
+    assertEquals( 0x0b, column.m_buffers[0][0] );
+    assertArrayEquals( new int[] { 0, 2, 2, 2, 3 }, offsets( column, 4 ) );
+    assertArrayEquals( new byte[] { 1, 2, (byte) 0xff }, Arrays.copyOf( column.m_buffers[2], column.m_lengths[2] ) );
+  }
+
+  @Test public void testDatesAreShiftedToLocalWallClock() throws Exception {
+    long time = 1500000000000L;
+    List<Object[]> rows = Arrays.<Object[]>asList( new Object[] { new Date( time ) } );
+
+    ArrowFrameEncoder.EncodedColumn column = ArrowFrameEncoder.encodeColumn( new ValueMetaDate( "d" ), 0, rows );
+    long sent = ByteBuffer.wrap( column.m_buffers[1] ).order( ByteOrder.LITTLE_ENDIAN ).getLong();
+    assertEquals( time + ServerUtils.TZ.getOffset( time ), sent );
+  }
+
+  @Test public void testSerializableFieldIsRefusedBeforeAnythingIsWritten() throws Exception {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( new ValueMetaString( "s" ) );
+    meta.addValueMeta( new ValueMetaSerializable( "o" ) );
+    List<Object[]> rows = Arrays.<Object[]>asList( new Object[] { "a", new Object() } );
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      ArrowFrameEncoder.writeFrame( meta, rows, out );
+      fail( "Serializable field should have been refused" );
+    } catch ( KettleException ex ) {
+      assertTrue( ex.getMessage().contains( "o" ) );
+    }
+    assertEquals( 0, out.size() );
+  }
+
+  @Test public void testMessagesArePadded() throws Exception {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( new ValueMetaString( "a field with an odd length name" ) );
+
+    byte[] bytes = write( meta, Arrays.<Object[]>asList( new Object[] { "x" } ) );
+    assertEquals( 0, bytes.length % ArrowFrameEncoder.ALIGNMENT );
+    assertFalse( bytes.length == 0 );
+  }
+
+  protected static byte[] write( RowMetaInterface meta, List<Object[]> rows ) throws KettleException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ArrowFrameEncoder.writeFrame( meta, rows, out );
+    return out.toByteArray();
+  }
+
+  protected static Message readMessage( DataInputStream in ) throws IOException {
+    assertEquals( ArrowFrameEncoder.CONTINUATION_MARKER, readIntLittleEndian( in ) );
+    int metadataLength = readIntLittleEndian( in );
+    assertEquals( 0, ( metadataLength + 8 ) % ArrowFrameEncoder.ALIGNMENT );
+    byte[] metadata = new byte[metadataLength];
+    in.readFully( metadata );
+    return Message.getRootAsMessage( ByteBuffer.wrap( metadata ) );
+  }
+
+  protected static int readIntLittleEndian( DataInputStream in ) throws IOException {
+    return Integer.reverseBytes( in.readInt() );
+  }
+
+  protected static int[] offsets( ArrowFrameEncoder.EncodedColumn column, int numRows ) {
+    ByteBuffer buffer = ByteBuffer.wrap( column.m_buffers[1] ).order( ByteOrder.LITTLE_ENDIAN );
+    int[] offsets = new int[numRows + 1];
+    for ( int i = 0; i <= numRows; i++ ) {
+      offsets[i] = buffer.getInt();
+    }
+    return offsets;
+  }
+}
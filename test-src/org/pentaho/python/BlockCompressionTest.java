@@ -0,0 +1,130 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlockCompressionTest {
+
+  @Test public void testForName() {
+    assertEquals( BlockCompression.ZLIB, BlockCompression.forName( BlockCompression.ZLIB ).getName() );
+    assertNull( BlockCompression.forName( "lz4" ) );
+    assertNull( BlockCompression.forName( null ) );
+  }
+
+  @Test public void testZlibRoundTrip() throws Exception {
+    checkRoundTrips( BlockCompression.forName( BlockCompression.ZLIB ) );
+  }
+
+  @Test public void testZstdRoundTrip() throws Exception {
+    BlockCompression zstd = BlockCompression.forName( BlockCompression.ZSTD );
+    // no native library for this platform
+    Assume.assumeTrue( zstd != null );
+    checkRoundTrips( zstd );
+  }
+
+  @Test public void testZlibCorruptBlock() throws Exception {
+    checkCorruptBlocks( BlockCompression.forName( BlockCompression.ZLIB ) );
+  }
+
+  @Test public void testZstdCorruptBlock() throws Exception {
+    BlockCompression zstd = BlockCompression.forName( BlockCompression.ZSTD );
+    Assume.assumeTrue( zstd != null );
+    checkCorruptBlocks( zstd );
+  }
+
+  protected static void checkRoundTrips( BlockCompression compression ) throws IOException {
+    byte[][] blocks = { new byte[0], new byte[] { 42 }, compressible( 100000 ), incompressible( 100000 ) };
+    for ( byte[] block : blocks ) {
+      byte[] compressed = compression.compress( block, 0, block.length );
+      byte[] decompressed = new byte[block.length];
+      compression.decompress( compressed, 0, compressed.length, decompressed, block.length );
+      assertArrayEquals( block, decompressed );
+    }
+
+    byte[] block = compressible( 100000 );
+    assertTrue( compression.compress( block, 0, block.length ).length < block.length / 10 );
+
+    // part of an array, decompressed into a larger one
+    byte[] compressed = compression.compress( block, 100, 1000 );
+    byte[] padded = new byte[compressed.length + 20];
+    System.arraycopy( compressed, 0, padded, 10, compressed.length );
+    byte[] decompressed = new byte[2000];
+    compression.decompress( padded, 10, compressed.length, decompressed, 1000 );
+    assertArrayEquals( Arrays.copyOfRange( block, 100, 1100 ), Arrays.copyOf( decompressed, 1000 ) );
+  }
+
+  protected static void checkCorruptBlocks( BlockCompression compression ) throws IOException {
+    byte[] block = compressible( 10000 );
+    byte[] compressed = compression.compress( block, 0, block.length );
+
+    // too short, too long, garbage and truncated
+    int[] sizes = { block.length - 1, block.length + 1 };
+    for ( int size : sizes ) {
+      try {
+        compression.decompress( compressed, 0, compressed.length, new byte[block.length + 1], size );
+        fail( compression.getName() + " block decompressed to the wrong size" );
+      } catch ( IOException ex ) {
+        // expected
+      }
+    }
+    byte[] garbage = incompressible( 100 );
+    try {
+      compression.decompress( garbage, 0, garbage.length, new byte[block.length], block.length );
+      fail( compression.getName() + " decompressed garbage" );
+    } catch ( IOException ex ) {
+      // expected
+    }
+    try {
+      compression.decompress( compressed, 0, compressed.length / 2, new byte[block.length], block.length );
+      fail( compression.getName() + " decompressed a truncated block" );
+    } catch ( IOException ex ) {
+      // expected
+    }
+  }
+
+  protected static byte[] compressible( int length ) {
+    byte[] block = new byte[length];
+    for ( int i = 0; i < length; i++ ) {
+      block[i] = (byte) ( "row,value,".charAt( i % 10 ) + i / 1000 );
+    }
+    return block;
+  }
+
+  protected static byte[] incompressible( int length ) {
+    byte[] block = new byte[length];
+    new Random( 1 ).nextBytes( block );
+    return block;
+  }
+}
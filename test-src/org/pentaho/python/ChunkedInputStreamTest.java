@@ -0,0 +1,133 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ChunkedInputStreamTest {
+
+  @Test public void testRoundTrips() throws Exception {
+    int[] lengths = { 0, 1, ChunkedOutputStream.DEFAULT_CHUNK_SIZE, ChunkedOutputStream.DEFAULT_CHUNK_SIZE * 3 + 17 };
+    for ( int length : lengths ) {
+      byte[] payload = ChunkedOutputStreamTest.payload( length );
+      ChunkedInputStream in = new ChunkedInputStream( new ByteArrayInputStream( chunk( payload ) ) );
+      assertArrayEquals( "payload of " + length + " bytes", payload, readAll( in ) );
+      assertEquals( -1, in.read() );
+    }
+  }
+
+  @Test public void testSingleByteReads() throws Exception {
+    byte[] payload = ChunkedOutputStreamTest.payload( 10 );
+    ChunkedInputStream in = new ChunkedInputStream( new ByteArrayInputStream( chunk( payload, 3 ) ) );
+    for ( byte b : payload ) {
+      assertEquals( b & 0xff, in.read() );
+    }
+    assertEquals( -1, in.read() );
+  }
+
+  @Test public void testReadsStopAtTheEndOfAChunk() throws Exception {
+    ChunkedInputStream in =
+        new ChunkedInputStream( new ByteArrayInputStream( chunk( ChunkedOutputStreamTest.payload( 10 ), 4 ) ) );
+    byte[] buffer = new byte[100];
+    assertEquals( 4, in.read( buffer, 0, buffer.length ) );
+    assertEquals( 0, in.read( buffer, 0, 0 ) );
+  }
+
+  @Test public void testStopsAtTheTerminator() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write( chunk( new byte[] { 1, 2, 3 } ) );
+    out.write( 42 );
+    InputStream underlying = new ByteArrayInputStream( out.toByteArray() );
+
+    ChunkedInputStream in = new ChunkedInputStream( underlying );
+    assertArrayEquals( new byte[] { 1, 2, 3 }, readAll( in ) );
+    assertEquals( 42, underlying.read() );
+  }
+
+  @Test public void testCloseSkipsTheRestOfThePayload() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write( chunk( ChunkedOutputStreamTest.payload( 1000 ), 100 ) );
+    out.write( 42 );
+    InputStream underlying = new ByteArrayInputStream( out.toByteArray() );
+
+    ChunkedInputStream in = new ChunkedInputStream( underlying );
+    in.read( new byte[150] );
+    in.close();
+    assertEquals( 42, underlying.read() );
+  }
+
+  @Test public void testTruncatedPayloadFails() throws Exception {
+    byte[] bytes = chunk( ChunkedOutputStreamTest.payload( 100 ) );
+    ChunkedInputStream in = new ChunkedInputStream( new ByteArrayInputStream( Arrays.copyOf( bytes, 50 ) ) );
+    try {
+      readAll( in );
+      fail( "Truncated payload should have failed" );
+    } catch ( IOException ex ) {
+      // expected
+    }
+  }
+
+  @Test public void testMissingTerminatorFails() throws Exception {
+    byte[] bytes = chunk( ChunkedOutputStreamTest.payload( 100 ) );
+    ChunkedInputStream in =
+        new ChunkedInputStream( new ByteArrayInputStream( Arrays.copyOf( bytes, bytes.length - 2 ) ) );
+    try {
+      readAll( in );
+      fail( "Payload without a terminator should have failed" );
+    } catch ( IOException ex ) {
+      // expected
+    }
+  }
+
+  protected static byte[] chunk( byte[] payload ) throws IOException {
+    return chunk( payload, ChunkedOutputStream.DEFAULT_CHUNK_SIZE );
+  }
+
+  protected static byte[] chunk( byte[] payload, int chunkSize ) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ChunkedOutputStream chunked = new ChunkedOutputStream( out, chunkSize );
+    chunked.write( payload );
+    chunked.close();
+    return out.toByteArray();
+  }
+
+  protected static byte[] readAll( InputStream in ) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[5000];
+    int numRead;
+    while ( ( numRead = in.read( buffer ) ) >= 0 ) {
+      out.write( buffer, 0, numRead );
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,166 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ChunkedOutputStreamTest {
+
+  @Test public void testEmptyPayloadIsJustTheTerminator() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new ChunkedOutputStream( out ).close();
+
+    assertArrayEquals( new byte[] { 0, 0, 0, 0 }, out.toByteArray() );
+  }
+
+  @Test public void testExactlyOneChunk() throws Exception {
+    byte[] payload = payload( ChunkedOutputStream.DEFAULT_CHUNK_SIZE );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ChunkedOutputStream chunked = new ChunkedOutputStream( out );
+    chunked.write( payload );
+    chunked.close();
+
+    List<byte[]> chunks = readChunks( out.toByteArray() );
+    assertEquals( 1, chunks.size() );
+    assertArrayEquals( payload, chunks.get( 0 ) );
+  }
+
+  @Test public void testSeveralChunks() throws Exception {
+    int chunkSize = ChunkedOutputStream.DEFAULT_CHUNK_SIZE;
+    byte[] payload = payload( chunkSize * 2 + 10 );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ChunkedOutputStream chunked = new ChunkedOutputStream( out );
+    // in pieces that don't line up with the chunks
+    for ( int off = 0; off < payload.length; off += 1000 ) {
+      chunked.write( payload, off, Math.min( 1000, payload.length - off ) );
+    }
+    chunked.close();
+
+    List<byte[]> chunks = readChunks( out.toByteArray() );
+    assertEquals( 3, chunks.size() );
+    assertEquals( chunkSize, chunks.get( 0 ).length );
+    assertEquals( chunkSize, chunks.get( 1 ).length );
+    assertEquals( 10, chunks.get( 2 ).length );
+    assertArrayEquals( payload, concat( chunks ) );
+  }
+
+  @Test public void testSingleByteWrites() throws Exception {
+    byte[] payload = payload( 10 );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ChunkedOutputStream chunked = new ChunkedOutputStream( out, 4 );
+    for ( byte b : payload ) {
+      chunked.write( b );
+    }
+    chunked.close();
+
+    List<byte[]> chunks = readChunks( out.toByteArray() );
+    assertEquals( 3, chunks.size() );
+    assertArrayEquals( payload, concat( chunks ) );
+  }
+
+  @Test public void testFlushSendsAPartialChunk() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ChunkedOutputStream chunked = new ChunkedOutputStream( out );
+    chunked.write( new byte[] { 1, 2, 3 } );
+    chunked.flush();
+    assertArrayEquals( new byte[] { 0, 0, 0, 3, 1, 2, 3 }, out.toByteArray() );
+
+    // nothing buffered, so no empty chunk that would end the payload early
+    chunked.flush();
+    assertEquals( 7, out.size() );
+  }
+
+  @Test public void testCloseTwiceWritesOneTerminator() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ChunkedOutputStream chunked = new ChunkedOutputStream( out );
+    chunked.write( 7 );
+    chunked.close();
+    chunked.close();
+
+    assertArrayEquals( new byte[] { 0, 0, 0, 1, 7, 0, 0, 0, 0 }, out.toByteArray() );
+  }
+
+  @Test public void testAbortDropsBufferedBytesAndSendsTheMarker() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ChunkedOutputStream chunked = new ChunkedOutputStream( out, 4 );
+    chunked.write( new byte[] { 1, 2, 3, 4, 5, 6 } );
+    chunked.abort();
+    // the stream is finished with
+    chunked.close();
+    chunked.abort();
+
+    byte[] expected = { 0, 0, 0, 4, 1, 2, 3, 4, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff };
+    assertArrayEquals( expected, out.toByteArray() );
+  }
+
+  @Test public void testAbortAfterCloseDoesNothing() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ChunkedOutputStream chunked = new ChunkedOutputStream( out );
+    chunked.close();
+    chunked.abort();
+
+    assertArrayEquals( new byte[] { 0, 0, 0, 0 }, out.toByteArray() );
+  }
+
+  protected static byte[] payload( int length ) {
+    byte[] payload = new byte[length];
+    for ( int i = 0; i < length; i++ ) {
+      payload[i] = (byte) ( i * 31 );
+    }
+    return payload;
+  }
+
+  /**
+   * Split a chunked payload into its chunks, checking that it ends with the terminator and nothing follows
+   */
+  protected static List<byte[]> readChunks( byte[] bytes ) throws IOException {
+    DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes ) );
+    List<byte[]> chunks = new ArrayList<byte[]>();
+    int length;
+    while ( ( length = in.readInt() ) != 0 ) {
+      byte[] chunk = new byte[length];
+      in.readFully( chunk );
+      chunks.add( chunk );
+    }
+    assertEquals( -1, in.read() );
+    return chunks;
+  }
+
+  protected static byte[] concat( List<byte[]> chunks ) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for ( byte[] chunk : chunks ) {
+      out.write( chunk, 0, chunk.length );
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,173 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBinary;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaDate;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ColumnFrameDecoderTest {
+
+  @Test public void testRoundTrip() throws Exception {
+    RowMetaInterface meta = ArrowFrameDecoderTest.allTypes();
+    Date date = ArrowFrameDecoderTest.localDate( 2017, Calendar.OCTOBER, 12, 9, 30, 0 );
+    List<Object[]> rows = new ArrayList<Object[]>();
+    rows.add( new Object[] { 42L, 3.25, "caf\u00e9", date, true, new byte[] { 0, 1, (byte) 0xff } } );
+    rows.add( new Object[] { null, null, null, null, null, null } );
+    rows.add( new Object[] { Long.MIN_VALUE, Double.NaN, "", new Date( 0 ), false, new byte[0] } );
+
+    List<Object[]> decoded = roundTrip( meta, rows );
+    assertEquals( 3, decoded.size() );
+
+    Object[] row = decoded.get( 0 );
+    assertEquals( 42L, row[0] );
+    assertEquals( 3.25, row[1] );
+    assertEquals( "caf\u00e9", row[2] );
+    assertEquals( date, row[3] );
+    assertEquals( true, row[4] );
+    assertArrayEquals( new byte[] { 0, 1, (byte) 0xff }, (byte[]) row[5] );
+
+    for ( Object value : decoded.get( 1 ) ) {
+      assertNull( value );
+    }
+
+    row = decoded.get( 2 );
+    assertEquals( Long.MIN_VALUE, row[0] );
+    assertEquals( Double.NaN, row[1] );
+    // an empty string is null in Kettle, but empty binary values stay empty
+    assertNull( row[2] );
+    assertEquals( new Date( 0 ), row[3] );
+    assertEquals( false, row[4] );
+    assertArrayEquals( new byte[0], (byte[]) row[5] );
+  }
+
+  @Test public void testDictionaryAcrossBatches() throws Exception {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( new ValueMetaString( "low" ) );
+    meta.addValueMeta( new ValueMetaString( "switches" ) );
+    meta.addValueMeta( new ValueMetaInteger( "i" ) );
+    int batchSize = ColumnFrameEncoder.BATCH_SIZE;
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for ( int i = 0; i < batchSize * 3 + 5; i++ ) {
+      // new dictionary entries turn up in every batch; the second column goes high cardinality in the second batch
+      String low = i % 11 == 0 ? null : "v" + ( i % 5 + i / batchSize * 5 );
+      String switches = i < batchSize ? "v" + ( i % 3 ) : "v" + i;
+      rows.add( new Object[] { low, switches, (long) i } );
+    }
+
+    List<Object[]> decoded = roundTrip( meta, rows );
+    assertEquals( rows.size(), decoded.size() );
+    for ( int i = 0; i < rows.size(); i++ ) {
+      assertArrayEquals( "row " + i, rows.get( i ), decoded.get( i ) );
+    }
+  }
+
+  @Test public void testLazyStringsRoundTrip() throws Exception {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( ColumnFrameEncoderTest.lazy( new ValueMetaString( "s" ) ) );
+    List<Object[]> rows = ColumnFrameEncoderTest.column( ColumnFrameEncoderTest.bytes( "caf\u00e9" ), null,
+        new byte[0], ColumnFrameEncoderTest.bytes( "x" ) );
+
+    List<Object[]> decoded = roundTrip( meta, rows );
+    assertEquals( "caf\u00e9", decoded.get( 0 )[0] );
+    assertNull( decoded.get( 1 )[0] );
+    assertNull( decoded.get( 2 )[0] );
+    assertEquals( "x", decoded.get( 3 )[0] );
+  }
+
+  @Test public void testEmptyFrame() throws Exception {
+    assertEquals( 0, roundTrip( ArrowFrameDecoderTest.allTypes(), new ArrayList<Object[]>() ).size() );
+  }
+
+  @Test public void testBlockOfTheWrongTypeIsRefused() throws Exception {
+    byte[] frame = ColumnFrameEncoderTest.write( ColumnFrameEncoderTest.meta( new ValueMetaInteger( "i" ) ),
+        ColumnFrameEncoderTest.column( 1L ) );
+
+    try {
+      ColumnFrameDecoder.readFrame( new ByteArrayInputStream( frame ),
+          ColumnFrameEncoderTest.meta( new ValueMetaNumber( "i" ) ), new ArrowFrameDecoderTest.RowCollector() );
+      fail( "Long block should have been refused for a number field" );
+    } catch ( KettleException ex ) {
+      // expected
+    }
+  }
+
+  @Test public void testBadDictionaryCodeIsRefused() throws Exception {
+    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    frame.write( ColumnFrameEncoder.intBytes( 1 ) );
+    frame.write( new byte[] { ColumnFrameEncoder.TYPE_DICTIONARY, 0 } );
+    // one string in the dictionary, and a code beyond it
+    frame.write( ColumnFrameEncoder.intBytes( 1 ) );
+    ColumnFrameEncoder.writeStrings( new byte[][] { ColumnFrameEncoderTest.bytes( "a" ) }, frame );
+    frame.write( ColumnFrameEncoder.intBytes( 1 ) );
+    frame.write( ColumnFrameEncoder.intBytes( 0 ) );
+
+    try {
+      ColumnFrameDecoder.readFrame( new ByteArrayInputStream( frame.toByteArray() ),
+          ColumnFrameEncoderTest.meta( new ValueMetaString( "s" ) ), new ArrowFrameDecoderTest.RowCollector() );
+      fail( "Code beyond the dictionary should have been refused" );
+    } catch ( KettleException ex ) {
+      // expected
+    }
+  }
+
+  @Test public void testTruncatedFrameFails() throws Exception {
+    byte[] frame = ColumnFrameEncoderTest.write( ArrowFrameDecoderTest.allTypes(),
+        Arrays.<Object[]>asList( new Object[] { 1L, 1.0, "a", new Date( 0 ), true, new byte[] { 1 } } ) );
+
+    try {
+      ColumnFrameDecoder.readFrame( new ByteArrayInputStream( Arrays.copyOf( frame, frame.length - 5 ) ),
+          ArrowFrameDecoderTest.allTypes(), new ArrowFrameDecoderTest.RowCollector() );
+      fail( "Truncated frame should have failed" );
+    } catch ( KettleException ex ) {
+      // expected
+    }
+  }
+
+  protected static List<Object[]> roundTrip( RowMetaInterface meta, List<Object[]> rows ) throws KettleException {
+    byte[] frame = ColumnFrameEncoderTest.write( meta, rows );
+    ArrowFrameDecoderTest.RowCollector collector = new ArrowFrameDecoderTest.RowCollector();
+    ColumnFrameDecoder.readFrame( new ByteArrayInputStream( frame ), meta, collector );
+    return collector.m_rows;
+  }
+}
@@ -0,0 +1,320 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaBoolean;
+import org.pentaho.di.core.row.value.ValueMetaInteger;
+import org.pentaho.di.core.row.value.ValueMetaNumber;
+import org.pentaho.di.core.row.value.ValueMetaSerializable;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ColumnFrameEncoderTest {
+
+  @Test public void testEmptyFrameIsJustTheTerminator() throws Exception {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( new ValueMetaInteger( "i" ) );
+
+    assertArrayEquals( ColumnFrameEncoder.intBytes( 0 ), write( meta, new ArrayList<Object[]>() ) );
+  }
+
+  @Test public void testLongBlock() throws Exception {
+    byte[] frame = write( meta( new ValueMetaInteger( "i" ) ), column( 1L, null, -3L ) );
+
+    ByteBuffer expected = ByteBuffer.allocate( 4 + 2 + 1 + 24 + 4 ).order( ByteOrder.LITTLE_ENDIAN );
+    expected.putInt( 3 ).put( ColumnFrameEncoder.TYPE_LONG ).put( ColumnFrameEncoder.FLAG_HAS_NULLS );
+    // most significant bit first
+    expected.put( (byte) 0x40 );
+    expected.putLong( 1L ).putLong( 0L ).putLong( -3L ).putInt( 0 );
+    assertArrayEquals( expected.array(), frame );
+  }
+
+  @Test public void testNoNullBitmapWithoutNulls() throws Exception {
+    byte[] frame = write( meta( new ValueMetaNumber( "n" ) ), column( 1.5, -2.0 ) );
+
+    ByteBuffer expected = ByteBuffer.allocate( 4 + 2 + 16 + 4 ).order( ByteOrder.LITTLE_ENDIAN );
+    expected.putInt( 2 ).put( ColumnFrameEncoder.TYPE_DOUBLE ).put( (byte) 0 );
+    expected.putDouble( 1.5 ).putDouble( -2.0 ).putInt( 0 );
+    assertArrayEquals( expected.array(), frame );
+  }
+
+  @Test public void testBooleanBlock() throws Exception {
+    byte[] frame = write( meta( new ValueMetaBoolean( "b" ) ), column( true, false, null, true ) );
+
+    ByteBuffer expected = ByteBuffer.allocate( 4 + 2 + 1 + 1 + 4 ).order( ByteOrder.LITTLE_ENDIAN );
+    expected.putInt( 4 ).put( ColumnFrameEncoder.TYPE_BOOLEAN ).put( ColumnFrameEncoder.FLAG_HAS_NULLS );
+    expected.put( (byte) 0x20 ).put( (byte) 0x90 ).putInt( 0 );
+    assertArrayEquals( expected.array(), frame );
+  }
+
+  @Test public void testLowCardinalityStringsAreDictionaryEncoded() throws Exception {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for ( int i = 0; i < 100; i++ ) {
+      rows.add( new Object[] { i % 3 == 0 ? "a" : i % 3 == 1 ? "b" : null } );
+    }
+    InputStream in = new ByteArrayInputStream( write( meta( new ValueMetaString( "s" ) ), rows ) );
+
+    assertEquals( 100, ColumnFrameDecoder.readInt( in ) );
+    assertArrayEquals( new byte[] { ColumnFrameEncoder.TYPE_DICTIONARY, 0 }, ColumnFrameDecoder.readBytes( in, 2 ) );
+    assertEquals( 2, ColumnFrameDecoder.readInt( in ) );
+    assertArrayEquals( new String[] { "a", "b" }, ColumnFrameDecoder.readStrings( in, 2, null ) );
+    ByteBuffer codes = ByteBuffer.wrap( ColumnFrameDecoder.readBytes( in, 400 ) ).order( ByteOrder.LITTLE_ENDIAN );
+    for ( int i = 0; i < 100; i++ ) {
+      assertEquals( i % 3 == 2 ? -1 : i % 3, codes.getInt() );
+    }
+    assertEquals( 0, ColumnFrameDecoder.readInt( in ) );
+  }
+
+  @Test public void testHighCardinalityStringsSwitchToPlainStrings() throws Exception {
+    int batchSize = ColumnFrameEncoder.BATCH_SIZE;
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for ( int i = 0; i < batchSize * 3; i++ ) {
+      // distinct values in the second batch only
+      rows.add( new Object[] { i >= batchSize && i < batchSize * 2 ? "value " + i : "same" } );
+    }
+
+    byte[] frame = write( meta( new ValueMetaString( "s" ) ), rows );
+    // plain strings for the rest of the frame, once a batch has had too many distinct values
+    byte[] expected = { ColumnFrameEncoder.TYPE_DICTIONARY, ColumnFrameEncoder.TYPE_STRING,
+      ColumnFrameEncoder.TYPE_STRING };
+    assertArrayEquals( expected, blockTypes( frame ) );
+  }
+
+  @Test public void testLaterBatchesSendOnlyTheStringsTheyAdd() throws Exception {
+    int batchSize = ColumnFrameEncoder.BATCH_SIZE;
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for ( int i = 0; i < batchSize + 8; i++ ) {
+      rows.add( new Object[] { i < batchSize ? ( i % 2 == 0 ? "a" : "b" ) : ( i % 2 == 0 ? "b" : "c" ) } );
+    }
+    InputStream in = new ByteArrayInputStream( write( meta( new ValueMetaString( "s" ) ), rows ) );
+
+    assertEquals( batchSize, ColumnFrameDecoder.readInt( in ) );
+    assertArrayEquals( new byte[] { ColumnFrameEncoder.TYPE_DICTIONARY, 0 }, ColumnFrameDecoder.readBytes( in, 2 ) );
+    assertEquals( 2, ColumnFrameDecoder.readInt( in ) );
+    assertArrayEquals( new String[] { "a", "b" }, ColumnFrameDecoder.readStrings( in, 2, null ) );
+    ColumnFrameDecoder.readBytes( in, batchSize * 4 );
+
+    assertEquals( 8, ColumnFrameDecoder.readInt( in ) );
+    assertArrayEquals( new byte[] { ColumnFrameEncoder.TYPE_DICTIONARY, 0 }, ColumnFrameDecoder.readBytes( in, 2 ) );
+    assertEquals( 1, ColumnFrameDecoder.readInt( in ) );
+    assertArrayEquals( new String[] { "c" }, ColumnFrameDecoder.readStrings( in, 1, null ) );
+    ByteBuffer codes = ByteBuffer.wrap( ColumnFrameDecoder.readBytes( in, 32 ) ).order( ByteOrder.LITTLE_ENDIAN );
+    for ( int i = 0; i < 8; i++ ) {
+      // codes carry on from the first batch's dictionary
+      assertEquals( i % 2 == 0 ? 1 : 2, codes.getInt() );
+    }
+    assertEquals( 0, ColumnFrameDecoder.readInt( in ) );
+  }
+
+  @Test public void testEachDictionaryEntryNeedsFourRows() throws Exception {
+    ValueMetaString vm = new ValueMetaString( "s" );
+
+    assertArrayEquals( new byte[] { ColumnFrameEncoder.TYPE_DICTIONARY },
+        blockTypes( write( meta( vm ), column( "a", "a", "a", "a", "b", "b", "b", "b" ) ) ) );
+    assertArrayEquals( new byte[] { ColumnFrameEncoder.TYPE_STRING },
+        blockTypes( write( meta( vm ), column( "a", "a", "a", "a", "b", "b", "b" ) ) ) );
+  }
+
+  @Test public void testDistinctStringsAreNotDictionaryEncoded() throws Exception {
+    byte[] frame = write( meta( new ValueMetaString( "s" ) ), column( "a", "b", "c", "", "d" ) );
+
+    InputStream in = new ByteArrayInputStream( frame );
+    assertEquals( 5, ColumnFrameDecoder.readInt( in ) );
+    assertArrayEquals( new byte[] { ColumnFrameEncoder.TYPE_STRING, ColumnFrameEncoder.FLAG_HAS_NULLS },
+        ColumnFrameDecoder.readBytes( in, 2 ) );
+    byte[] nulls = ColumnFrameDecoder.readBytes( in, 1 );
+    assertArrayEquals( new String[] { "a", "b", "c", null, "d" }, ColumnFrameDecoder.readStrings( in, 5, nulls ) );
+    assertEquals( 0, ColumnFrameDecoder.readInt( in ) );
+  }
+
+  @Test public void testLazyNumbersAreForwardedAsText() throws Exception {
+    ValueMetaInterface vm = lazy( new ValueMetaInteger( "i" ) );
+    byte[] frame = write( meta( vm ), column( bytes( "12" ), null, bytes( "-3" ) ) );
+
+    InputStream in = new ByteArrayInputStream( frame );
+    assertEquals( 3, ColumnFrameDecoder.readInt( in ) );
+    assertArrayEquals( new byte[] { ColumnFrameEncoder.TYPE_LONG_TEXT, ColumnFrameEncoder.FLAG_HAS_NULLS },
+        ColumnFrameDecoder.readBytes( in, 2 ) );
+    assertArrayEquals( new byte[] { 0x40 }, ColumnFrameDecoder.readBytes( in, 1 ) );
+    int length = ColumnFrameDecoder.readInt( in );
+    assertEquals( "12 0 -3 ", new String( ColumnFrameDecoder.readBytes( in, length ), "UTF-8" ) );
+    assertEquals( 0, ColumnFrameDecoder.readInt( in ) );
+  }
+
+  @Test public void testLazyNumbersThatArentPlainAreConverted() throws Exception {
+    ValueMetaInterface vm = lazy( new ValueMetaNumber( "n" ) );
+    byte[] frame = write( meta( vm ), column( bytes( "1.5" ), bytes( "2e3" ) ) );
+
+    // the whole batch falls back to a binary block
+    ByteBuffer expected = ByteBuffer.allocate( 4 + 2 + 16 + 4 ).order( ByteOrder.LITTLE_ENDIAN );
+    expected.putInt( 2 ).put( ColumnFrameEncoder.TYPE_DOUBLE ).put( (byte) 0 );
+    expected.putDouble( 1.5 ).putDouble( 2000.0 ).putInt( 0 );
+    assertArrayEquals( expected.array(), frame );
+  }
+
+  @Test public void testLazyStringsAreDictionaryEncodedByTheirBytes() throws Exception {
+    ValueMetaInterface vm = lazy( new ValueMetaString( "s" ) );
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for ( int i = 0; i < 8; i++ ) {
+      // a new array for every value, as lazy conversion gives
+      rows.add( new Object[] { bytes( i % 2 == 0 ? "caf\u00e9" : "x" ) } );
+    }
+    InputStream in = new ByteArrayInputStream( write( meta( vm ), rows ) );
+
+    assertEquals( 8, ColumnFrameDecoder.readInt( in ) );
+    assertArrayEquals( new byte[] { ColumnFrameEncoder.TYPE_DICTIONARY, 0 }, ColumnFrameDecoder.readBytes( in, 2 ) );
+    assertEquals( 2, ColumnFrameDecoder.readInt( in ) );
+    assertArrayEquals( new String[] { "caf\u00e9", "x" }, ColumnFrameDecoder.readStrings( in, 2, null ) );
+  }
+
+  @Test public void testNumericTextNeedsAPointDecimal() throws Exception {
+    ValueMetaInterface vm = lazy( new ValueMetaNumber( "n" ) );
+    vm.setDecimalSymbol( "," );
+
+    assertFalse( ColumnFrameEncoder.isNumericTextPassThrough( vm ) );
+    vm.setDecimalSymbol( "." );
+    assertTrue( ColumnFrameEncoder.isNumericTextPassThrough( vm ) );
+    assertFalse( ColumnFrameEncoder.isNumericTextPassThrough( new ValueMetaNumber( "n" ) ) );
+  }
+
+  @Test public void testPlainNumbers() {
+    String[] plain = { "0", "12", "-3", "007", "123456789012345678" };
+    for ( String value : plain ) {
+      assertTrue( value, ColumnFrameEncoder.isPlainNumber( bytes( value ), true ) );
+      assertTrue( value, ColumnFrameEncoder.isPlainNumber( bytes( value ), false ) );
+    }
+    String[] decimals = { "1.5", "-0.25", "3.", ".5" };
+    for ( String value : decimals ) {
+      assertFalse( value, ColumnFrameEncoder.isPlainNumber( bytes( value ), true ) );
+      assertTrue( value, ColumnFrameEncoder.isPlainNumber( bytes( value ), false ) );
+    }
+    String[] other = { "-", ".", "1.2.3", "1e5", " 1", "1,000", "+1", "NaN" };
+    for ( String value : other ) {
+      assertFalse( value, ColumnFrameEncoder.isPlainNumber( bytes( value ), true ) );
+      assertFalse( value, ColumnFrameEncoder.isPlainNumber( bytes( value ), false ) );
+    }
+    // too many digits for an int64
+    assertFalse( ColumnFrameEncoder.isPlainNumber( bytes( "1234567890123456789" ), true ) );
+  }
+
+  @Test public void testSerializableFieldIsRefusedBeforeAnythingIsWritten() throws Exception {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( new ValueMetaString( "s" ) );
+    meta.addValueMeta( new ValueMetaSerializable( "o" ) );
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      ColumnFrameEncoder.writeFrame( meta, Arrays.<Object[]>asList( new Object[] { "a", new Object() } ), out );
+      fail( "Serializable field should have been refused" );
+    } catch ( KettleException ex ) {
+      // expected
+    }
+    assertEquals( 0, out.size() );
+  }
+
+  /**
+   * Make a value meta hold its values as utf-8 binary strings, as lazy conversion does
+   */
+  protected static ValueMetaInterface lazy( ValueMetaInterface vm ) {
+    ValueMetaString storage = new ValueMetaString( vm.getName() );
+    storage.setStringEncoding( "UTF-8" );
+    vm.setStorageType( ValueMetaInterface.STORAGE_TYPE_BINARY_STRING );
+    vm.setStorageMetadata( storage );
+    vm.setDecimalSymbol( "." );
+    vm.setConversionMask( null );
+    return vm;
+  }
+
+  protected static byte[] bytes( String value ) {
+    return value.getBytes( ColumnFrameEncoder.UTF8 );
+  }
+
+  protected static RowMetaInterface meta( ValueMetaInterface vm ) {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( vm );
+    return meta;
+  }
+
+  protected static List<Object[]> column( Object... values ) {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for ( Object value : values ) {
+      rows.add( new Object[] { value } );
+    }
+    return rows;
+  }
+
+  protected static byte[] write( RowMetaInterface meta, List<Object[]> rows ) throws KettleException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ColumnFrameEncoder.writeFrame( meta, rows, out );
+    return out.toByteArray();
+  }
+
+  /**
+   * Get the type of each block of a single column frame (one per batch), checking that the frame is well formed
+   */
+  protected static byte[] blockTypes( byte[] frame ) throws IOException {
+    InputStream in = new ByteArrayInputStream( frame );
+    ByteArrayOutputStream types = new ByteArrayOutputStream();
+    int numRows;
+    while ( ( numRows = ColumnFrameDecoder.readInt( in ) ) > 0 ) {
+      byte[] header = ColumnFrameDecoder.readBytes( in, 2 );
+      types.write( header[0] );
+      if ( ( header[1] & ColumnFrameEncoder.FLAG_HAS_NULLS ) != 0 ) {
+        ColumnFrameDecoder.readBytes( in, ( numRows + 7 ) / 8 );
+      }
+      switch ( header[0] ) {
+        case ColumnFrameEncoder.TYPE_DICTIONARY:
+          ColumnFrameDecoder.readStrings( in, ColumnFrameDecoder.readInt( in ), null );
+          ColumnFrameDecoder.readBytes( in, numRows * 4 );
+          break;
+        case ColumnFrameEncoder.TYPE_STRING:
+          ColumnFrameDecoder.readStrings( in, numRows, null );
+          break;
+        default:
+          fail( "Unexpected block type " + (char) header[0] );
+      }
+    }
+    assertEquals( -1, in.read() );
+    return types.toByteArray();
+  }
+}
@@ -0,0 +1,141 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CompressedChunkedInputStreamTest {
+
+  @Test public void testZlibRoundTrips() throws Exception {
+    checkRoundTrips( BlockCompression.forName( BlockCompression.ZLIB ) );
+  }
+
+  @Test public void testZstdRoundTrips() throws Exception {
+    BlockCompression zstd = BlockCompression.forName( BlockCompression.ZSTD );
+    // no native library for this platform
+    Assume.assumeTrue( zstd != null );
+    checkRoundTrips( zstd );
+  }
+
+  @Test public void testMixedBlocks() throws Exception {
+    // some blocks compressed, others stored as they are
+    BlockCompression zlib = BlockCompression.forName( BlockCompression.ZLIB );
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    payload.write( BlockCompressionTest.compressible( 1000 ) );
+    payload.write( BlockCompressionTest.incompressible( 1000 ) );
+    payload.write( BlockCompressionTest.compressible( 1000 ) );
+
+    byte[] bytes = compress( zlib, payload.toByteArray(), 1000 );
+    assertArrayEquals( payload.toByteArray(),
+        ChunkedInputStreamTest.readAll( new CompressedChunkedInputStream( new ByteArrayInputStream( bytes ), zlib ) ) );
+  }
+
+  @Test public void testSingleByteReads() throws Exception {
+    BlockCompression zlib = BlockCompression.forName( BlockCompression.ZLIB );
+    byte[] payload = BlockCompressionTest.compressible( 300 );
+    InputStream in = new CompressedChunkedInputStream( new ByteArrayInputStream( compress( zlib, payload, 100 ) ), zlib );
+    for ( byte b : payload ) {
+      assertEquals( b & 0xff, in.read() );
+    }
+    assertEquals( -1, in.read() );
+  }
+
+  @Test public void testStopsAtTheTerminator() throws Exception {
+    BlockCompression zlib = BlockCompression.forName( BlockCompression.ZLIB );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write( compress( zlib, BlockCompressionTest.compressible( 5000 ), 1000 ) );
+    out.write( 42 );
+    InputStream underlying = new ByteArrayInputStream( out.toByteArray() );
+
+    CompressedChunkedInputStream in = new CompressedChunkedInputStream( underlying, zlib );
+    in.read( new byte[10] );
+    in.close();
+    assertEquals( 42, underlying.read() );
+  }
+
+  @Test public void testCorruptBlockFails() throws Exception {
+    BlockCompression zlib = BlockCompression.forName( BlockCompression.ZLIB );
+    byte[] bytes = compress( zlib, BlockCompressionTest.compressible( 5000 ), 5000 );
+    // keep the chunk length, uncompressed size and terminator, but scramble the compressed block
+    byte[] corrupt = bytes.clone();
+    for ( int i = 8; i < corrupt.length - 4; i++ ) {
+      corrupt[i] ^= 0x55;
+    }
+
+    try {
+      ChunkedInputStreamTest.readAll( new CompressedChunkedInputStream( new ByteArrayInputStream( corrupt ), zlib ) );
+      fail( "Corrupt block should have failed" );
+    } catch ( IOException ex ) {
+      // expected
+    }
+  }
+
+  @Test public void testChunkTooShortForTheHeaderFails() throws Exception {
+    BlockCompression zlib = BlockCompression.forName( BlockCompression.ZLIB );
+    byte[] bytes = { 0, 0, 0, 2, 1, 2, 0, 0, 0, 0 };
+    try {
+      ChunkedInputStreamTest.readAll( new CompressedChunkedInputStream( new ByteArrayInputStream( bytes ), zlib ) );
+      fail( "Chunk without room for the block size should have failed" );
+    } catch ( IOException ex ) {
+      // expected
+    }
+  }
+
+  protected static void checkRoundTrips( BlockCompression compression ) throws IOException {
+    int blockSize = CompressedChunkedOutputStream.DEFAULT_BLOCK_SIZE;
+    int[] lengths = { 0, 1, blockSize, blockSize * 2 + 17 };
+    for ( int length : lengths ) {
+      byte[] payload = BlockCompressionTest.compressible( length );
+      byte[] bytes = compress( compression, payload, blockSize );
+      if ( length > 1 ) {
+        assertTrue( bytes.length < length );
+      }
+      byte[] read =
+          ChunkedInputStreamTest.readAll( new CompressedChunkedInputStream( new ByteArrayInputStream( bytes ),
+              compression ) );
+      assertEquals( payload.length, read.length );
+      assertTrue( compression.getName() + " payload of " + length + " bytes", Arrays.equals( payload, read ) );
+    }
+  }
+
+  protected static byte[] compress( BlockCompression compression, byte[] payload, int blockSize )
+      throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressedChunkedOutputStream compressed = new CompressedChunkedOutputStream( out, compression, blockSize );
+    compressed.write( payload );
+    compressed.close();
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,111 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedChunkedOutputStreamTest {
+
+  protected BlockCompression m_zlib = BlockCompression.forName( BlockCompression.ZLIB );
+
+  @Test public void testIncompressibleBlockIsStoredAsIs() throws Exception {
+    byte[] block = BlockCompressionTest.incompressible( 1000 );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressedChunkedOutputStream compressed = new CompressedChunkedOutputStream( out, m_zlib );
+    compressed.write( block );
+    compressed.close();
+
+    DataInputStream in = new DataInputStream( new ByteArrayInputStream( out.toByteArray() ) );
+    assertEquals( block.length + 4, in.readInt() );
+    assertEquals( block.length, in.readInt() );
+    byte[] body = new byte[block.length];
+    in.readFully( body );
+    assertArrayEquals( block, body );
+    assertEquals( 0, in.readInt() );
+    assertEquals( -1, in.read() );
+  }
+
+  @Test public void testCompressibleBlockIsCompressed() throws Exception {
+    byte[] block = BlockCompressionTest.compressible( 100000 );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressedChunkedOutputStream compressed = new CompressedChunkedOutputStream( out, m_zlib );
+    compressed.write( block );
+    compressed.close();
+
+    DataInputStream in = new DataInputStream( new ByteArrayInputStream( out.toByteArray() ) );
+    int chunkLength = in.readInt();
+    assertTrue( chunkLength < block.length / 10 );
+    assertEquals( block.length, in.readInt() );
+    byte[] body = new byte[chunkLength - 4];
+    in.readFully( body );
+    byte[] decompressed = new byte[block.length];
+    m_zlib.decompress( body, 0, body.length, decompressed, block.length );
+    assertArrayEquals( block, decompressed );
+    assertEquals( 0, in.readInt() );
+  }
+
+  @Test public void testOneChunkPerBlock() throws Exception {
+    byte[] payload = BlockCompressionTest.compressible( 2500 );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressedChunkedOutputStream compressed = new CompressedChunkedOutputStream( out, m_zlib, 1000 );
+    compressed.write( payload );
+    compressed.close();
+
+    DataInputStream in = new DataInputStream( new ByteArrayInputStream( out.toByteArray() ) );
+    int[] blockSizes = { 1000, 1000, 500 };
+    for ( int blockSize : blockSizes ) {
+      int chunkLength = in.readInt();
+      assertEquals( blockSize, in.readInt() );
+      in.skipBytes( chunkLength - 4 );
+    }
+    assertEquals( 0, in.readInt() );
+    assertEquals( -1, in.read() );
+  }
+
+  @Test public void testEmptyPayloadIsJustTheTerminator() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new CompressedChunkedOutputStream( out, m_zlib ).close();
+
+    assertArrayEquals( new byte[] { 0, 0, 0, 0 }, out.toByteArray() );
+  }
+
+  @Test public void testAbortSendsTheMarker() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompressedChunkedOutputStream compressed = new CompressedChunkedOutputStream( out, m_zlib );
+    compressed.write( BlockCompressionTest.compressible( 100 ) );
+    compressed.abort();
+
+    byte[] marker = { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff };
+    assertArrayEquals( marker, Arrays.copyOf( out.toByteArray(), 4 ) );
+    assertEquals( 4, out.size() );
+  }
+}
@@ -0,0 +1,107 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class CorrelatingCommandCodecTest {
+
+  protected MessagePackCommandCodec m_inner = new MessagePackCommandCodec();
+
+  protected CorrelatingCommandCodec m_codec = new CorrelatingCommandCodec( m_inner );
+
+  @Test public void testName() {
+    assertEquals( MessagePackCommandCodec.NAME, m_codec.getName() );
+  }
+
+  @Test public void testCommandsGetIncreasingIds() throws Exception {
+    for ( int i = 1; i <= 3; i++ ) {
+      Map<String, Object> sent = m_inner.decode( m_codec.encode( command() ) );
+      assertEquals( i, sent.get( ServerUtils.REQUEST_ID_KEY ) );
+    }
+  }
+
+  @Test public void testResponsesToOutstandingCommands() throws Exception {
+    m_codec.encode( command() );
+    m_codec.encode( command() );
+
+    // a command can have several responses
+    assertEquals( "ok", m_codec.decode( response( 1 ) ).get( "response" ) );
+    m_codec.decode( response( 1 ) );
+    m_codec.decode( response( 2 ) );
+    m_codec.decode( response( 2 ) );
+  }
+
+  @Test public void testLateResponseToAnEarlierCommandIsRefused() throws Exception {
+    // the first command was abandoned, and the second answered
+    m_codec.encode( command() );
+    m_codec.encode( command() );
+    m_codec.decode( response( 2 ) );
+
+    checkRefused( response( 1 ) );
+  }
+
+  @Test public void testResponseToACommandNeverSentIsRefused() throws Exception {
+    m_codec.encode( command() );
+
+    checkRefused( response( 2 ) );
+    checkRefused( response( 0 ) );
+  }
+
+  @Test public void testResponsesWithoutAnIdAreAccepted() throws Exception {
+    m_codec.encode( command() );
+
+    Map<String, Object> response = new LinkedHashMap<String, Object>();
+    response.put( "response", "ok" );
+    assertEquals( response, m_codec.decode( m_inner.encode( response ) ) );
+  }
+
+  protected void checkRefused( byte[] response ) {
+    try {
+      m_codec.decode( response );
+      fail( "Response should have been refused" );
+    } catch ( IOException ex ) {
+      // expected
+    }
+  }
+
+  protected static Map<String, Object> command() {
+    Map<String, Object> command = new LinkedHashMap<String, Object>();
+    command.put( "command", "ping" );
+    return command;
+  }
+
+  protected byte[] response( long requestId ) throws IOException {
+    Map<String, Object> response = new LinkedHashMap<String, Object>();
+    response.put( "response", "ok" );
+    response.put( ServerUtils.REQUEST_ID_KEY, requestId );
+    return m_inner.encode( response );
+  }
+}
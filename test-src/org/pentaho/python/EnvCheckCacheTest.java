@@ -0,0 +1,105 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EnvCheckCacheTest {
+
+  protected File m_dir;
+
+  @Before public void setUp() throws Exception {
+    m_dir = File.createTempFile( "env-check", "" );
+    m_dir.delete();
+  }
+
+  @After public void tearDown() throws Exception {
+    if ( m_dir.isDirectory() ) {
+      FileUtils.deleteDirectory( m_dir );
+    } else {
+      m_dir.delete();
+    }
+  }
+
+  @Test public void testEmptyCache() {
+    EnvCheckCache cache = new EnvCheckCache( new File( m_dir, "cache.properties" ) );
+
+    assertEquals( "", cache.fingerprints() );
+    assertFalse( cache.contains( "abc" ) );
+  }
+
+  @Test public void testAddedEnvironmentsAreRemembered() {
+    File file = new File( m_dir, "cache.properties" );
+    EnvCheckCache cache = new EnvCheckCache( file );
+    cache.add( "abc", "/usr/bin/python3 3.6.9" );
+    cache.add( "def", "/opt/conda/bin/python 3.7.3" );
+
+    assertTrue( cache.contains( "abc" ) );
+    assertTrue( cache.contains( "def" ) );
+    assertFalse( cache.contains( "ghi" ) );
+    assertEquals( new HashSet<String>( Arrays.asList( "abc", "def" ) ),
+        new HashSet<String>( Arrays.asList( cache.fingerprints().split( "," ) ) ) );
+
+    // by other processes too
+    assertTrue( new EnvCheckCache( file ).contains( "abc" ) );
+  }
+
+  @Test public void testNoTemporaryFilesAreLeftBehind() {
+    EnvCheckCache cache = new EnvCheckCache( new File( m_dir, "cache.properties" ) );
+    cache.add( "abc", "python" );
+    cache.add( "abc", "python again" );
+
+    assertEquals( Arrays.asList( "cache.properties" ), Arrays.asList( m_dir.list() ) );
+  }
+
+  @Test public void testUnwritableCacheIsIgnored() throws Exception {
+    // the cache's directory can't be created, as there is a file in the way
+    FileUtils.writeStringToFile( m_dir, "not a directory" );
+    EnvCheckCache cache = new EnvCheckCache( new File( m_dir, "cache.properties" ) );
+    cache.add( "abc", "python" );
+
+    assertFalse( cache.contains( "abc" ) );
+  }
+
+  @Test public void testMalformedCacheIsTreatedAsEmpty() throws Exception {
+    File file = new File( m_dir, "cache.properties" );
+    FileUtils.writeStringToFile( file, "abc=\\u00zz\n" );
+    EnvCheckCache cache = new EnvCheckCache( file );
+
+    assertFalse( cache.contains( "abc" ) );
+    // and is replaced by the next environment to pass
+    cache.add( "def", "python" );
+    assertTrue( cache.contains( "def" ) );
+  }
+}
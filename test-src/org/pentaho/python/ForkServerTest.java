@@ -0,0 +1,90 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.python;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ForkServerTest {
+
+  protected ByteArrayOutputStream m_requests = new ByteArrayOutputStream();
+
+  protected Process m_process = mock( Process.class );
+
+  @Test public void testEachForkIsALineOfArguments() throws Exception {
+    ForkServer forkServer = forkServer( "1234\n4321\n" );
+
+    assertEquals( 1234, forkServer.fork( "unix:/tmp/cpython-1.sock", false ) );
+    assertEquals( 4321, forkServer.fork( "40001", true ) );
+    assertEquals( "unix:/tmp/cpython-1.sock\t\n40001\tdebug\n", m_requests.toString( "UTF-8" ) );
+  }
+
+  @Test public void testStoppedForkServer() throws Exception {
+    ForkServer forkServer = forkServer( "" );
+
+    try {
+      forkServer.fork( "40001", false );
+      fail( "Expected the fork to fail" );
+    } catch ( IOException ex ) {
+      assertTrue( ex.getMessage().contains( "stopped" ) );
+    }
+  }
+
+  @Test public void testUnexpectedReply() throws Exception {
+    ForkServer forkServer = forkServer( "Traceback (most recent call last):\n" );
+
+    try {
+      forkServer.fork( "40001", false );
+      fail( "Expected the fork to fail" );
+    } catch ( IOException ex ) {
+      assertTrue( ex.getMessage().contains( "Traceback" ) );
+    }
+  }
+
+  @Test public void testShutdownStopsTheProcess() throws Exception {
+    ForkServer forkServer = forkServer( "" );
+
+    forkServer.shutdown();
+    verify( m_process ).destroy();
+  }
+
+  /**
+   * Create a fork server whose process gives the given replies
+   */
+  protected ForkServer forkServer( String replies ) throws Exception {
+    when( m_process.getOutputStream() ).thenReturn( m_requests );
+    when( m_process.getInputStream() ).thenReturn( new ByteArrayInputStream( replies.getBytes( "UTF-8" ) ) );
+    return new ForkServer( m_process );
+  }
+}
@@ -0,0 +1,234 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class MessagePackCommandCodecTest {
+
+  protected MessagePackCommandCodec m_codec = new MessagePackCommandCodec();
+
+  @Test public void testRoundTrip() throws Exception {
+    Map<String, Object> nested = new LinkedHashMap<String, Object>();
+    nested.put( "list", Arrays.<Object>asList( 1, "two", 3.5, null ) );
+    nested.put( "empty", new ArrayList<Object>() );
+
+    Map<String, Object> command = new LinkedHashMap<String, Object>();
+    command.put( "command", "execute_script" );
+    command.put( "int", -5 );
+    command.put( "long", 1L << 40 );
+    command.put( "double", -0.125 );
+    command.put( "true", true );
+    command.put( "false", false );
+    command.put( "null", null );
+    command.put( "nested", nested );
+    command.put( "script", "print('\u00e9\u20ac')" );
+
+    Map<String, Object> decoded = m_codec.decode( m_codec.encode( command ) );
+    assertEquals( command, decoded );
+    // keys keep their order
+    assertEquals( new ArrayList<String>( command.keySet() ), new ArrayList<String>( decoded.keySet() ) );
+  }
+
+  @Test public void testBinaryRoundTrip() throws Exception {
+    for ( int length : new int[] { 0, 255, 256, 65536 } ) {
+      byte[] value = ChunkedOutputStreamTest.payload( length );
+      assertArrayEquals( value, (byte[]) roundTrip( value ) );
+    }
+  }
+
+  @Test public void testStringMarkers() throws Exception {
+    assertArrayEquals( new byte[] { (byte) 0xa0 }, encodeValue( "" ) );
+    assertEquals( 0xbf, encodeValue( repeat( 31 ) )[0] & 0xff );
+    assertHeader( new int[] { 0xd9, 32 }, encodeValue( repeat( 32 ) ) );
+    assertHeader( new int[] { 0xd9, 255 }, encodeValue( repeat( 255 ) ) );
+    assertHeader( new int[] { 0xda, 1, 0 }, encodeValue( repeat( 256 ) ) );
+    assertHeader( new int[] { 0xda, 0xff, 0xff }, encodeValue( repeat( 65535 ) ) );
+    assertHeader( new int[] { 0xdb, 0, 1, 0, 0 }, encodeValue( repeat( 65536 ) ) );
+
+    for ( int length : new int[] { 0, 31, 32, 255, 256, 65535, 65536 } ) {
+      assertEquals( repeat( length ), roundTrip( repeat( length ) ) );
+    }
+  }
+
+  @Test public void testStringLengthIsInBytes() throws Exception {
+    // 16 two byte characters don't fit a fixstr
+    StringBuilder value = new StringBuilder();
+    for ( int i = 0; i < 16; i++ ) {
+      value.append( '\u00e9' );
+    }
+    assertHeader( new int[] { 0xd9, 32 }, encodeValue( value.toString() ) );
+    assertEquals( value.toString(), roundTrip( value.toString() ) );
+  }
+
+  @Test public void testIntegerMarkers() throws Exception {
+    assertHeader( new int[] { 0x00 }, encodeValue( 0 ) );
+    assertHeader( new int[] { 0x7f }, encodeValue( 127 ) );
+    assertHeader( new int[] { 0xd2, 0, 0, 0, 0x80 }, encodeValue( 128 ) );
+    assertHeader( new int[] { 0xff }, encodeValue( -1 ) );
+    assertHeader( new int[] { 0xe0 }, encodeValue( -32 ) );
+    assertHeader( new int[] { 0xd2, 0xff, 0xff, 0xff, 0xdf }, encodeValue( -33 ) );
+    assertHeader( new int[] { 0xd2, 0x7f, 0xff, 0xff, 0xff }, encodeValue( Integer.MAX_VALUE ) );
+    assertHeader( new int[] { 0xd3, 0, 0, 0, 0, 0x80, 0, 0, 0 }, encodeValue( Integer.MAX_VALUE + 1L ) );
+
+    Object[] values = { 0, 127, 128, -1, -32, -33, Integer.MIN_VALUE, Integer.MAX_VALUE };
+    for ( Object value : values ) {
+      assertEquals( value, roundTrip( value ) );
+    }
+    // integers that fit decode to Integer, whatever they were sent as
+    assertEquals( 5, roundTrip( 5L ) );
+    assertEquals( Long.MIN_VALUE, roundTrip( Long.MIN_VALUE ) );
+    assertEquals( Long.MAX_VALUE, roundTrip( Long.MAX_VALUE ) );
+  }
+
+  @Test public void testDecodesEveryIntegerWidth() throws Exception {
+    // as written by the python server
+    assertEquals( 255, decodeValue( 0xcc, 0xff ) );
+    assertEquals( 65535, decodeValue( 0xcd, 0xff, 0xff ) );
+    assertEquals( 4294967295L, decodeValue( 0xce, 0xff, 0xff, 0xff, 0xff ) );
+    assertEquals( 7, decodeValue( 0xcf, 0, 0, 0, 0, 0, 0, 0, 7 ) );
+    assertEquals( -128, decodeValue( 0xd0, 0x80 ) );
+    assertEquals( -32768, decodeValue( 0xd1, 0x80, 0x00 ) );
+    assertEquals( -2, decodeValue( 0xd2, 0xff, 0xff, 0xff, 0xfe ) );
+    assertEquals( -2, decodeValue( 0xd3, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0xfe ) );
+    assertEquals( 1.5, decodeValue( 0xca, 0x3f, 0xc0, 0, 0 ) );
+  }
+
+  @Test public void testUint64BeyondLongIsRefused() throws Exception {
+    try {
+      decodeValue( 0xcf, 0x80, 0, 0, 0, 0, 0, 0, 0 );
+      fail( "uint64 beyond the range of a long should have been refused" );
+    } catch ( IOException ex ) {
+      // expected
+    }
+  }
+
+  @Test public void testContainerMarkers() throws Exception {
+    assertHeader( new int[] { 0x9f }, encodeValue( list( 15 ) ) );
+    assertHeader( new int[] { 0xdc, 0, 16 }, encodeValue( list( 16 ) ) );
+    assertHeader( new int[] { 0xdd, 0, 1, 0, 0 }, encodeValue( list( 65536 ) ) );
+    assertHeader( new int[] { 0x8f }, encodeValue( map( 15 ) ) );
+    assertHeader( new int[] { 0xde, 0, 16 }, encodeValue( map( 16 ) ) );
+
+    for ( int size : new int[] { 0, 15, 16, 65536 } ) {
+      assertEquals( list( size ), roundTrip( list( size ) ) );
+      assertEquals( map( size ), roundTrip( map( size ) ) );
+    }
+  }
+
+  @Test public void testMalformedInputIsRefused() throws Exception {
+    byte[][] malformed = {
+      // truncated
+      { (byte) 0x82, (byte) 0xa1, 'k' },
+      // not a map
+      { (byte) 0x91, 1 },
+      // ext type
+      { (byte) 0x81, (byte) 0xa1, 'k', (byte) 0xd4, 1, 1 },
+      {}
+    };
+    for ( byte[] bytes : malformed ) {
+      try {
+        m_codec.decode( bytes );
+        fail( "Malformed input " + Arrays.toString( bytes ) + " should have been refused" );
+      } catch ( IOException ex ) {
+        // expected
+      }
+    }
+  }
+
+  @Test public void testNil() throws Exception {
+    assertHeader( new int[] { 0xc0 }, encodeValue( null ) );
+    assertNull( roundTrip( null ) );
+  }
+
+  /**
+   * Encode a value as the only entry of a command, and return just the bytes of the value
+   */
+  protected byte[] encodeValue( Object value ) throws IOException {
+    Map<String, Object> command = new LinkedHashMap<String, Object>();
+    command.put( "k", value );
+    byte[] bytes = m_codec.encode( command );
+    return Arrays.copyOfRange( bytes, 3, bytes.length );
+  }
+
+  /**
+   * Decode the bytes of a value, as the only entry of a response
+   */
+  protected Object decodeValue( int... valueBytes ) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write( 0x81 );
+    out.write( 0xa1 );
+    out.write( 'k' );
+    for ( int b : valueBytes ) {
+      out.write( b );
+    }
+    return m_codec.decode( out.toByteArray() ).get( "k" );
+  }
+
+  protected Object roundTrip( Object value ) throws IOException {
+    Map<String, Object> command = new LinkedHashMap<String, Object>();
+    command.put( "k", value );
+    return m_codec.decode( m_codec.encode( command ) ).get( "k" );
+  }
+
+  protected static void assertHeader( int[] expected, byte[] actual ) {
+    for ( int i = 0; i < expected.length; i++ ) {
+      assertEquals( "byte " + i, expected[i], actual[i] & 0xff );
+    }
+  }
+
+  protected static String repeat( int length ) {
+    char[] chars = new char[length];
+    Arrays.fill( chars, 'x' );
+    return new String( chars );
+  }
+
+  protected static List<Object> list( int size ) {
+    List<Object> list = new ArrayList<Object>();
+    for ( int i = 0; i < size; i++ ) {
+      list.add( i );
+    }
+    return list;
+  }
+
+  protected static Map<String, Object> map( int size ) {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    for ( int i = 0; i < size; i++ ) {
+      map.put( "key" + i, i );
+    }
+    return map;
+  }
+}
@@ -0,0 +1,439 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PythonSessionPoolTest {
+
+  /**
+   * Acquires a session on a thread of its own, and releases it straight away if asked to
+   */
+  protected static class Acquirer extends Thread {
+    protected final PythonSessionPool m_pool;
+    protected final Object m_requester = new Object();
+    protected final long m_timeoutMillis;
+    protected final PythonSessionPool.StopCheck m_stopCheck;
+    protected final boolean m_release;
+    protected final List<Object> m_order;
+    protected volatile PythonSession m_session;
+    protected volatile SessionException m_exception;
+
+    protected Acquirer( PythonSessionPool pool, long timeoutMillis, PythonSessionPool.StopCheck stopCheck,
+        boolean release, List<Object> order ) {
+      m_pool = pool;
+      m_timeoutMillis = timeoutMillis;
+      m_stopCheck = stopCheck;
+      m_release = release;
+      m_order = order;
+    }
+
+    @Override public void run() {
+      try {
+        m_session = m_pool.acquire( m_requester, m_timeoutMillis, m_stopCheck );
+        if ( m_order != null ) {
+          m_order.add( this );
+        }
+        if ( m_release ) {
+          m_pool.release( m_requester );
+        }
+      } catch ( SessionException ex ) {
+        m_exception = ex;
+      }
+    }
+  }
+
+  protected List<PythonSession> m_started = Collections.synchronizedList( new ArrayList<PythonSession>() );
+
+  protected PythonSessionPool m_pool;
+
+  @After public void tearDown() {
+    if ( m_pool != null ) {
+      m_pool.shutdown();
+    }
+  }
+
+  @Test public void testStartsTheMinimumStraightAway() throws Exception {
+    m_pool = pool( 2, 4 );
+
+    assertEquals( 2, m_pool.size() );
+    assertEquals( 2, m_started.size() );
+  }
+
+  @Test public void testRequestersArePinnedToTheirSession() throws Exception {
+    m_pool = pool( 1, 2 );
+    Object first = new Object();
+    Object second = new Object();
+
+    PythonSession firstSession = m_pool.acquire( first );
+    m_pool.release( first );
+    // the free session is pinned to the first requester, and another can be started
+    PythonSession secondSession = m_pool.acquire( second );
+    m_pool.release( second );
+    assertFalse( firstSession == secondSession );
+    assertEquals( 2, m_started.size() );
+
+    assertSame( firstSession, m_pool.acquire( first ) );
+    m_pool.release( first );
+    assertSame( secondSession, m_pool.acquire( second ) );
+    m_pool.release( second );
+    assertFalse( m_pool.getNamespace( first ).equals( m_pool.getNamespace( second ) ) );
+  }
+
+  @Test public void testRequestersShareSessionsAtTheMaximum() throws Exception {
+    m_pool = pool( 1, 1 );
+    Object first = new Object();
+    Object second = new Object();
+
+    PythonSession session = m_pool.acquire( first );
+    m_pool.release( first );
+    assertSame( session, m_pool.acquire( second ) );
+    m_pool.release( second );
+    assertEquals( 1, m_started.size() );
+    // but not python state
+    assertFalse( m_pool.getNamespace( first ).equals( m_pool.getNamespace( second ) ) );
+  }
+
+  @Test public void testNamespaceIsKeptUntilTheRequesterIsForgotten() throws Exception {
+    m_pool = pool( 1, 1 );
+    Object requester = new Object();
+    assertNull( m_pool.getNamespace( requester ) );
+
+    PythonSession session = m_pool.acquire( requester );
+    String namespace = m_pool.getNamespace( requester );
+    assertNotNull( namespace );
+    assertEquals( namespace, session.m_leaseNamespace );
+    m_pool.release( requester );
+    m_pool.acquire( requester );
+    assertEquals( namespace, m_pool.getNamespace( requester ) );
+    m_pool.release( requester );
+
+    m_pool.forget( requester );
+    assertNull( m_pool.getNamespace( requester ) );
+    m_pool.acquire( requester );
+    assertFalse( namespace.equals( m_pool.getNamespace( requester ) ) );
+  }
+
+  @Test public void testHolderGetsItsSessionAgain() throws Exception {
+    m_pool = pool( 1, 1 );
+    Object requester = new Object();
+
+    PythonSession session = m_pool.acquire( requester );
+    assertSame( session, m_pool.acquire( requester ) );
+  }
+
+  @Test public void testOtherRequesterOnTheSameThreadWaitsForItsOwnSession() throws Exception {
+    m_pool = pool( 1, 1 );
+    Object first = new Object();
+    Object second = new Object();
+
+    PythonSession session = m_pool.acquire( first );
+    try {
+      m_pool.acquire( second, 100, null );
+      fail( "The session held by the first requester should not have been leased to the second" );
+    } catch ( SessionException ex ) {
+      // expected
+    }
+    assertEquals( 1, m_pool.getLeaseStats( second ).m_timeouts );
+    assertEquals( m_pool.getNamespace( first ), session.m_leaseNamespace );
+
+    // once released, the session is leased to the second requester in its own namespace
+    m_pool.release( first );
+    assertSame( session, m_pool.acquire( second, 100, null ) );
+    assertEquals( m_pool.getNamespace( second ), session.m_leaseNamespace );
+    assertFalse( m_pool.getNamespace( first ).equals( m_pool.getNamespace( second ) ) );
+
+    // and a stray release by the first requester does not free it for a third
+    m_pool.release( first );
+    try {
+      m_pool.acquire( new Object(), 100, null );
+      fail( "The session held by the second requester should not have been leased to a third" );
+    } catch ( SessionException ex ) {
+      // expected
+    }
+  }
+
+  @Test public void testRequestersOnTheSameThreadGetSessionsOfTheirOwn() throws Exception {
+    m_pool = pool( 1, 2 );
+    Object first = new Object();
+    Object second = new Object();
+
+    PythonSession firstSession = m_pool.acquire( first );
+    PythonSession secondSession = m_pool.acquire( second, 1000, null );
+    assertFalse( firstSession == secondSession );
+    assertEquals( m_pool.getNamespace( first ), firstSession.m_leaseNamespace );
+    assertEquals( m_pool.getNamespace( second ), secondSession.m_leaseNamespace );
+  }
+
+  @Test public void testWaitTimesOut() throws Exception {
+    m_pool = pool( 1, 1 );
+    m_pool.acquire( new Object() );
+
+    Acquirer waiter = new Acquirer( m_pool, 100, null, true, null );
+    waiter.start();
+    waiter.join( 5000 );
+    assertNull( waiter.m_session );
+    assertNotNull( waiter.m_exception );
+    assertEquals( 1, m_pool.getLeaseStats( waiter.m_requester ).m_timeouts );
+    assertEquals( 0, waitingCount() );
+  }
+
+  @Test public void testStoppedRequesterGivesUp() throws Exception {
+    m_pool = pool( 1, 1 );
+    m_pool.acquire( new Object() );
+
+    PythonSessionPool.StopCheck stopped = new PythonSessionPool.StopCheck() {
+      @Override public boolean isStopped() {
+        return true;
+      }
+    };
+    Acquirer waiter = new Acquirer( m_pool, 0, stopped, true, null );
+    waiter.start();
+    waiter.join( 5000 );
+    assertFalse( waiter.isAlive() );
+    assertNotNull( waiter.m_exception );
+    assertEquals( 0, waitingCount() );
+  }
+
+  @Test public void testWaitersAreServedInTheOrderTheyArrived() throws Exception {
+    m_pool = pool( 1, 1 );
+    Object holder = new Object();
+    m_pool.acquire( holder );
+
+    List<Object> order = Collections.synchronizedList( new ArrayList<Object>() );
+    List<Acquirer> waiters = new ArrayList<Acquirer>();
+    for ( int i = 0; i < 5; i++ ) {
+      Acquirer waiter = new Acquirer( m_pool, 5000, null, true, order );
+      waiter.start();
+      waitForWaiters( i + 1 );
+      waiters.add( waiter );
+    }
+
+    m_pool.release( holder );
+    for ( Acquirer waiter : waiters ) {
+      waiter.join( 5000 );
+      assertNull( waiter.m_exception );
+    }
+    assertEquals( waiters, order );
+  }
+
+  @Test public void testLeaseOfADeadThreadIsTakenBack() throws Exception {
+    m_pool = pool( 1, 1 );
+    // acquires and never releases
+    Acquirer holder = new Acquirer( m_pool, 0, null, false, null );
+    holder.start();
+    holder.join( 5000 );
+    assertNotNull( holder.m_session );
+
+    assertSame( holder.m_session, m_pool.acquire( new Object(), 5000, null ) );
+  }
+
+  @Test public void testDeadSessionIsReplaced() throws Exception {
+    m_pool = pool( 1, 1 );
+    Object requester = new Object();
+    PythonSession session = m_pool.acquire( requester );
+    String namespace = m_pool.getNamespace( requester );
+    m_pool.release( requester );
+
+    when( session.isAlive() ).thenReturn( false );
+    PythonSession replacement = m_pool.acquire( requester );
+    assertFalse( session == replacement );
+    verify( session ).discard();
+    assertEquals( 1, m_pool.size() );
+    // python state went with the old server
+    assertFalse( namespace.equals( m_pool.getNamespace( requester ) ) );
+  }
+
+  @Test public void testForgottenRequesterGetsANewNamespace() throws Exception {
+    m_pool = pool( 1, 1 );
+    Object requester = new Object();
+    m_pool.acquire( requester );
+    String namespace = m_pool.getNamespace( requester );
+    m_pool.release( requester );
+
+    m_pool.forget( requester );
+    assertNull( m_pool.getNamespace( requester ) );
+    m_pool.acquire( requester );
+    assertFalse( namespace.equals( m_pool.getNamespace( requester ) ) );
+  }
+
+  @Test public void testLeaseStats() throws Exception {
+    m_pool = pool( 1, 1 );
+    Object requester = new Object();
+    for ( int i = 0; i < 3; i++ ) {
+      m_pool.acquire( requester );
+      Thread.sleep( 5 );
+      m_pool.release( requester );
+    }
+    // releasing without a lease does nothing
+    m_pool.release( requester );
+
+    PythonSessionPool.LeaseStats stats = m_pool.getLeaseStats( requester );
+    assertEquals( 3, stats.m_leases );
+    assertEquals( 0, stats.m_timeouts );
+    assertTrue( stats.m_holdNanos >= 15000000L );
+    assertTrue( stats.m_maxWaitNanos <= stats.m_waitNanos );
+  }
+
+  @Test public void testTimeWaitingForASessionIsRecorded() throws Exception {
+    m_pool = pool( 1, 1 );
+    Object holder = new Object();
+    m_pool.acquire( holder );
+
+    Acquirer waiter = new Acquirer( m_pool, 5000, null, true, null );
+    waiter.start();
+    waitForWaiters( 1 );
+    Thread.sleep( 50 );
+    m_pool.release( holder );
+    waiter.join( 5000 );
+    assertNull( waiter.m_exception );
+
+    PythonSessionPool.LeaseStats stats = m_pool.getLeaseStats( waiter.m_requester );
+    assertEquals( 1, stats.m_leases );
+    assertTrue( stats.m_waitNanos >= 50000000L );
+    assertEquals( stats.m_waitNanos, stats.m_maxWaitNanos );
+  }
+
+  @Test public void testLeaseStatsAreACopy() throws Exception {
+    m_pool = pool( 1, 1 );
+    Object requester = new Object();
+    m_pool.acquire( requester );
+
+    PythonSessionPool.LeaseStats stats = m_pool.getLeaseStats( requester );
+    stats.m_leases = 42;
+    assertEquals( 1, m_pool.getLeaseStats( requester ).m_leases );
+    // the hold time is only added once the lease ends
+    assertEquals( 0, m_pool.getLeaseStats( requester ).m_holdNanos );
+  }
+
+  @Test public void testLeaseStatsToString() throws Exception {
+    PythonSessionPool.LeaseStats stats = new PythonSessionPool.LeaseStats();
+    stats.m_leases = 2;
+    stats.m_waitNanos = 3000000L;
+    stats.m_maxWaitNanos = 2000000L;
+    stats.m_holdNanos = 7000000L;
+    assertEquals( "2 leases, waited 3ms (longest 2ms), held 7ms", stats.toString() );
+
+    stats.m_timeouts = 1;
+    assertEquals( "2 leases, waited 3ms (longest 2ms), held 7ms, gave up 1 times", stats.toString() );
+  }
+
+  @Test public void testStopCheckIsAskedWhileWaiting() throws Exception {
+    m_pool = pool( 1, 1 );
+    m_pool.acquire( new Object() );
+
+    final AtomicBoolean stop = new AtomicBoolean();
+    PythonSessionPool.StopCheck stopCheck = new PythonSessionPool.StopCheck() {
+      @Override public boolean isStopped() {
+        return stop.get();
+      }
+    };
+    Acquirer waiter = new Acquirer( m_pool, 0, stopCheck, true, null );
+    waiter.start();
+    waitForWaiters( 1 );
+    assertTrue( waiter.isAlive() );
+
+    stop.set( true );
+    waiter.join( 5000 );
+    assertFalse( waiter.isAlive() );
+    assertNotNull( waiter.m_exception );
+    assertEquals( 0, waitingCount() );
+  }
+
+  @Test public void testPrestart() throws Exception {
+    m_pool = pool( 1, 3 );
+    m_pool.prestart( 5 );
+
+    assertEquals( 3, m_pool.size() );
+  }
+
+  @Test public void testPrestartOnlyStartsTheExtraSessions() throws Exception {
+    m_pool = pool( 1, 3 );
+    m_pool.prestart( 2 );
+    m_pool.prestart( 2 );
+
+    assertEquals( 2, m_pool.size() );
+    assertEquals( 2, m_started.size() );
+  }
+
+  @Test public void testShutdownStopsEverySession() throws Exception {
+    m_pool = pool( 2, 2 );
+    m_pool.acquire( new Object() );
+    m_pool.shutdown();
+
+    assertEquals( 0, m_pool.size() );
+    for ( PythonSession session : m_started ) {
+      verify( session ).shutdown();
+    }
+  }
+
+  /**
+   * Create a pool whose sessions are mocks, recorded in m_started
+   */
+  protected PythonSessionPool pool( int minSessions, int maxSessions ) throws IOException {
+    final List<PythonSession> started = m_started;
+    return new PythonSessionPool( "python", null, minSessions, maxSessions, 0, null ) {
+      @Override protected PythonSession newSession() {
+        PythonSession session = mock( PythonSession.class );
+        when( session.isAlive() ).thenReturn( true );
+        started.add( session );
+        return session;
+      }
+    };
+  }
+
+  protected int waitingCount() {
+    m_pool.m_lock.lock();
+    try {
+      return m_pool.m_waiters.size();
+    } finally {
+      m_pool.m_lock.unlock();
+    }
+  }
+
+  protected void waitForWaiters( int count ) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while ( waitingCount() < count ) {
+      assertTrue( "Timed out waiting for " + count + " waiters", System.currentTimeMillis() < deadline );
+      Thread.sleep( 5 );
+    }
+  }
+}
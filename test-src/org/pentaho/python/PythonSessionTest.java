@@ -0,0 +1,438 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.python;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.pentaho.di.core.logging.LogChannelInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PythonSessionTest {
+
+  protected ByteArrayOutputStream m_responses = new ByteArrayOutputStream();
+
+  protected ByteArrayOutputStream m_sent = new ByteArrayOutputStream();
+
+  protected File m_root;
+
+  @After public void tearDown() throws Exception {
+    if ( m_root != null ) {
+      FileUtils.deleteDirectory( m_root );
+    }
+  }
+
+  @Test public void testKettleVariablesAreSentOnceWhileUnchanged() throws Exception {
+    PythonSession session = session( 1 );
+    Map<String, String> vars = vars( "Internal.Step.Name", "Python" );
+
+    session.setKettleVariables( vars );
+    session.setKettleVariables( new HashMap<String, String>( vars ) );
+
+    List<Map<String, Object>> sent = sent();
+    assertEquals( 1, sent.size() );
+    assertEquals( ServerUtils.SET_KETTLE_VARS_COMMAND, sent.get( 0 ).get( ServerUtils.COMMAND_KEY ) );
+    assertEquals( vars, sent.get( 0 ).get( ServerUtils.KETTLE_VARS_KEY ) );
+  }
+
+  @Test public void testChangedKettleVariablesAreSentAgain() throws Exception {
+    PythonSession session = session( 2 );
+    Map<String, String> vars = vars( "Internal.Step.Name", "Python" );
+
+    session.setKettleVariables( vars );
+    // changing the caller's map is noticed too
+    vars.put( "Internal.Step.Name", "Python 2" );
+    session.setKettleVariables( vars );
+    session.setKettleVariables( vars );
+
+    List<Map<String, Object>> sent = sent();
+    assertEquals( 2, sent.size() );
+    assertEquals( vars, sent.get( 1 ).get( ServerUtils.KETTLE_VARS_KEY ) );
+  }
+
+  @Test public void testKettleVariablesAreSentToEachNamespace() throws Exception {
+    PythonSession session = session( 5 );
+    Map<String, String> vars = vars( "Internal.Step.Name", "Python" );
+
+    inNamespace( session, "ns0" );
+    session.setKettleVariables( vars );
+    inNamespace( session, "ns1" );
+    session.setKettleVariables( vars );
+    inNamespace( session, "ns0" );
+    session.setKettleVariables( vars );
+
+    List<String> commands = commands( sent() );
+    assertEquals( 5, commands.size() );
+    assertEquals( ServerUtils.SET_NAMESPACE_COMMAND, commands.get( 0 ) );
+    assertEquals( ServerUtils.SET_KETTLE_VARS_COMMAND, commands.get( 1 ) );
+    assertEquals( ServerUtils.SET_NAMESPACE_COMMAND, commands.get( 2 ) );
+    assertEquals( ServerUtils.SET_KETTLE_VARS_COMMAND, commands.get( 3 ) );
+    assertEquals( ServerUtils.SET_NAMESPACE_COMMAND, commands.get( 4 ) );
+  }
+
+  @Test public void testNamespaceIsOnlySwitchedWhenItChanges() throws Exception {
+    PythonSession session = session( 2 );
+
+    inNamespace( session, "ns0" );
+    inNamespace( session, "ns0" );
+    inNamespace( session, null );
+    inNamespace( session, null );
+
+    List<Map<String, Object>> sent = sent();
+    assertEquals( 2, sent.size() );
+    assertEquals( ServerUtils.SET_NAMESPACE_COMMAND, sent.get( 0 ).get( ServerUtils.COMMAND_KEY ) );
+    assertEquals( "ns0", sent.get( 0 ).get( ServerUtils.NAMESPACE_KEY ) );
+    // back to the default namespace
+    assertEquals( ServerUtils.SET_NAMESPACE_COMMAND, sent.get( 1 ).get( ServerUtils.COMMAND_KEY ) );
+    assertFalse( sent.get( 1 ).containsKey( ServerUtils.NAMESPACE_KEY ) );
+  }
+
+  @Test public void testDroppingTheCurrentNamespace() throws Exception {
+    PythonSession session = session( 4 );
+
+    inNamespace( session, "ns0" );
+    session.dropNamespace( "ns1" );
+    assertEquals( "ns0", session.m_namespace );
+    // python switches back to the default namespace when the current one is dropped
+    session.dropNamespace( "ns0" );
+    assertNull( session.m_namespace );
+    inNamespace( session, "ns0" );
+
+    List<Map<String, Object>> sent = sent();
+    assertEquals( 4, sent.size() );
+    assertEquals( "ns1", sent.get( 1 ).get( ServerUtils.NAMESPACE_KEY ) );
+    assertEquals( ServerUtils.DROP_NAMESPACE_COMMAND, sent.get( 2 ).get( ServerUtils.COMMAND_KEY ) );
+    assertEquals( ServerUtils.SET_NAMESPACE_COMMAND, sent.get( 3 ).get( ServerUtils.COMMAND_KEY ) );
+  }
+
+  @Test public void testScriptIsRegisteredOncePerNamespace() throws Exception {
+    respond();
+    respond( ServerUtils.SCRIPT_ID_KEY, "script1" );
+    respond( ServerUtils.SCRIPT_OUT_KEY, "out", ServerUtils.SCRIPT_ERROR_KEY, "" );
+    respond();
+    respond( ServerUtils.SCRIPT_ID_KEY, "script2" );
+    PythonSession session = session();
+
+    inNamespace( session, "ns0" );
+    assertEquals( "script1", session.registerScript( "x = 1" ) );
+    assertEquals( "script1", session.registerScript( "x = 1" ) );
+    assertEquals( "out", session.executeScriptById( "script1" ).get( 0 ) );
+    inNamespace( session, "ns1" );
+    assertEquals( "script2", session.registerScript( "x = 1" ) );
+
+    List<Map<String, Object>> sent = sent();
+    assertEquals( 5, sent.size() );
+    assertEquals( ServerUtils.REGISTER_SCRIPT_COMMAND, sent.get( 1 ).get( ServerUtils.COMMAND_KEY ) );
+    assertEquals( "x = 1\n", sent.get( 1 ).get( ServerUtils.SCRIPT_KEY ) );
+    assertEquals( ServerUtils.EXECUTE_SCRIPT_BY_ID_COMMAND, sent.get( 2 ).get( ServerUtils.COMMAND_KEY ) );
+    assertEquals( "script1", sent.get( 2 ).get( ServerUtils.SCRIPT_ID_KEY ) );
+    assertEquals( ServerUtils.REGISTER_SCRIPT_COMMAND, sent.get( 4 ).get( ServerUtils.COMMAND_KEY ) );
+  }
+
+  @Test public void testDroppingANamespaceForgetsItsScripts() throws Exception {
+    respond();
+    respond( ServerUtils.SCRIPT_ID_KEY, "script1" );
+    respond();
+    respond();
+    respond( ServerUtils.SCRIPT_ID_KEY, "script2" );
+    PythonSession session = session();
+
+    inNamespace( session, "ns0" );
+    session.registerScript( "x = 1" );
+    session.dropNamespace( "ns0" );
+    assertTrue( session.m_scriptIds.isEmpty() );
+    inNamespace( session, "ns0" );
+    // python dropped the compiled script with the namespace, so it is registered again
+    assertEquals( "script2", session.registerScript( "x = 1" ) );
+
+    List<String> commands = commands( sent() );
+    assertEquals( ServerUtils.DROP_NAMESPACE_COMMAND, commands.get( 2 ) );
+    assertEquals( ServerUtils.REGISTER_SCRIPT_COMMAND, commands.get( 4 ) );
+  }
+
+  @Test public void testModulesArePreloaded() throws Exception {
+    respond( ServerUtils.FAILED_MODULES_KEY, new ArrayList<String>() );
+    PythonSession session = session();
+
+    System.setProperty( PythonSession.CPYTHON_PRELOAD_MODULES_PROPERTY_KEY, "numpy, pandas,," );
+    try {
+      session.preloadModules( session.m_log );
+    } finally {
+      System.clearProperty( PythonSession.CPYTHON_PRELOAD_MODULES_PROPERTY_KEY );
+    }
+
+    List<Map<String, Object>> sent = sent();
+    assertEquals( 1, sent.size() );
+    assertEquals( ServerUtils.PRELOAD_MODULES_COMMAND, sent.get( 0 ).get( ServerUtils.COMMAND_KEY ) );
+    assertEquals( Arrays.asList( "numpy", "pandas" ), sent.get( 0 ).get( ServerUtils.MODULES_KEY ) );
+    verify( session.m_log, never() ).logBasic( anyString() );
+  }
+
+  @Test public void testModulesThatFailToPreloadAreLogged() throws Exception {
+    respond( ServerUtils.FAILED_MODULES_KEY, Arrays.asList( "nosuchmodule" ) );
+    PythonSession session = session();
+
+    System.setProperty( PythonSession.CPYTHON_PRELOAD_MODULES_PROPERTY_KEY, "nosuchmodule" );
+    try {
+      session.preloadModules( session.m_log );
+    } finally {
+      System.clearProperty( PythonSession.CPYTHON_PRELOAD_MODULES_PROPERTY_KEY );
+    }
+
+    verify( session.m_log ).logBasic( "Python could not import: [nosuchmodule]" );
+  }
+
+  @Test public void testNothingIsPreloadedByDefault() throws Exception {
+    PythonSession session = session();
+
+    session.preloadModules( session.m_log );
+    assertTrue( sent().isEmpty() );
+  }
+
+  @Test public void testEnvironmentThatPassedIsRemembered() throws Exception {
+    EnvCheckCache cache = mock( EnvCheckCache.class );
+    Map<String, Object> pidAck = pidAck( "fp1", "" );
+
+    PythonSession.checkEnvironment( pidAck, "python3", cache );
+    verify( cache ).add( "fp1", "python3" );
+
+    when( cache.contains( "fp1" ) ).thenReturn( true );
+    PythonSession.checkEnvironment( pidAck, "python3", cache );
+    verify( cache, times( 1 ) ).add( anyString(), anyString() );
+    // or not, if there is no cache
+    PythonSession.checkEnvironment( pidAck, "python3", null );
+  }
+
+  @Test public void testEnvironmentWithProblemsIsRejected() throws Exception {
+    EnvCheckCache cache = mock( EnvCheckCache.class );
+
+    try {
+      PythonSession.checkEnvironment( pidAck( "fp1", "Library \"pandas\" is not available\n" ), "python3", cache );
+      fail( "Expected the environment check to fail" );
+    } catch ( PythonSession.EnvironmentCheckException ex ) {
+      assertEquals( "Library \"pandas\" is not available\n", ex.getMessage() );
+    }
+    verify( cache, never() ).add( anyString(), anyString() );
+  }
+
+  @Test public void testScriptsHash() throws Exception {
+    String hash = PythonSession.hashScripts( scripts( "abc" ) );
+
+    assertEquals( "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", hash );
+    assertEquals( hash, PythonSession.hashScripts( scripts( "abc" ) ) );
+    assertFalse( hash.equals( PythonSession.hashScripts( scripts( "abd" ) ) ) );
+  }
+
+  @Test public void testScriptsAreInstalledOnceUnderTheirHash() throws Exception {
+    List<byte[]> scripts = scripts( "# check", "# server" );
+    File installed = PythonSession.installPyScripts( scripts, root(), null );
+
+    String hash = PythonSession.hashScripts( scripts );
+    assertEquals( new File( m_root, "pentaho-cpython-" + hash.substring( 0, 16 ) ), installed );
+    assertEquals( "# server", FileUtils.readFileToString( new File( installed, "pyServer.py" ) ) );
+    assertTrue( PythonSession.isTrustedInstall( installed, hash, owner() ) );
+
+    File marker = new File( installed, "marker" );
+    assertTrue( marker.createNewFile() );
+    assertEquals( installed, PythonSession.installPyScripts( scripts, m_root, null ) );
+    // reused rather than installed again
+    assertTrue( marker.exists() );
+    // and nothing left behind
+    assertEquals( 1, m_root.list().length );
+  }
+
+  @Test public void testChangedInstallIsReplaced() throws Exception {
+    List<byte[]> scripts = scripts( "# check", "# server" );
+    File installed = PythonSession.installPyScripts( scripts, root(), null );
+    FileUtils.writeStringToFile( new File( installed, "pyServer.py" ), "import os" );
+
+    assertFalse( PythonSession.isTrustedInstall( installed, PythonSession.hashScripts( scripts ), owner() ) );
+    assertEquals( installed, PythonSession.installPyScripts( scripts, m_root, null ) );
+    assertEquals( "# server", FileUtils.readFileToString( new File( installed, "pyServer.py" ) ) );
+  }
+
+  @Test public void testInstallOthersCanWriteToIsNotTrusted() throws Exception {
+    List<byte[]> scripts = scripts( "# check", "# server" );
+    File installed = PythonSession.installPyScripts( scripts, root(), null );
+    Path server = new File( installed, "pyServer.py" ).toPath();
+    Assume.assumeNotNull( Files.getFileAttributeView( server, PosixFileAttributeView.class ) );
+
+    Set<PosixFilePermission> permissions = Files.getPosixFilePermissions( server );
+    permissions.add( PosixFilePermission.OTHERS_WRITE );
+    Files.setPosixFilePermissions( server, permissions );
+    assertFalse( PythonSession.isPrivate( server, owner() ) );
+    assertFalse( PythonSession.isTrustedInstall( installed, PythonSession.hashScripts( scripts ), owner() ) );
+  }
+
+  @Test public void testFilesOfOtherOwnersAndLinksAreNotPrivate() throws Exception {
+    File file = new File( root(), "file" );
+    assertTrue( file.createNewFile() );
+    assertTrue( PythonSession.isPrivate( file.toPath(), owner() ) );
+
+    assertFalse( PythonSession.isPrivate( file.toPath(), mock( UserPrincipal.class ) ) );
+    Path link = new File( m_root, "link" ).toPath();
+    try {
+      Files.createSymbolicLink( link, file.toPath() );
+    } catch ( UnsupportedOperationException ex ) {
+      return;
+    }
+    try {
+      assertFalse( PythonSession.isPrivate( link, owner() ) );
+    } finally {
+      // commons-io would follow the link
+      Files.delete( link );
+    }
+  }
+
+  @Test public void testPythonStringLiteral() {
+    assertEquals( "'/tmp/py'", PythonSession.pythonStringLiteral( "/tmp/py" ) );
+    assertEquals( "'C:\\\\Users\\\\o\\'neil'", PythonSession.pythonStringLiteral( "C:\\Users\\o'neil" ) );
+  }
+
+  /**
+   * Create a session whose server answers the given number of commands with a plain ok
+   */
+  protected PythonSession session( int oks ) throws Exception {
+    for ( int i = 0; i < oks; i++ ) {
+      respond();
+    }
+    return session();
+  }
+
+  /**
+   * Create a session whose server gives the responses queued so far
+   */
+  protected PythonSession session() {
+    return new PythonSession( new ByteArrayInputStream( m_responses.toByteArray() ), m_sent,
+        mock( LogChannelInterface.class ) );
+  }
+
+  /**
+   * @return a new, empty directory to install scripts into, deleted after the test
+   */
+  protected File root() throws Exception {
+    m_root = Files.createTempDirectory( "cpython" ).toFile();
+    return m_root;
+  }
+
+  /**
+   * @return the user that owns the files the test creates
+   */
+  protected UserPrincipal owner() throws Exception {
+    return Files.getOwner( m_root.toPath() );
+  }
+
+  protected static List<byte[]> scripts( String... contents ) throws Exception {
+    List<byte[]> scripts = new ArrayList<byte[]>();
+    for ( String script : contents ) {
+      scripts.add( script.getBytes( "UTF-8" ) );
+    }
+    return scripts;
+  }
+
+  /**
+   * Build a server handshake response reporting the given environment check
+   */
+  protected static Map<String, Object> pidAck( String fingerprint, String envCheck ) {
+    Map<String, Object> pidAck = new HashMap<String, Object>();
+    pidAck.put( ServerUtils.RESPONSE_KEY, ServerUtils.PID_RESPONSE_KEY );
+    pidAck.put( ServerUtils.ENV_FINGERPRINT_KEY, fingerprint );
+    pidAck.put( ServerUtils.ENV_CHECK_KEY, envCheck );
+    return pidAck;
+  }
+
+  /**
+   * Queue an ok response with the given keys and values
+   */
+  protected void respond( Object... keysAndValues ) throws Exception {
+    Map<String, Object> response = new HashMap<String, Object>();
+    for ( int i = 0; i < keysAndValues.length; i += 2 ) {
+      response.put( keysAndValues[i].toString(), keysAndValues[i + 1] );
+    }
+    response.put( ServerUtils.RESPONSE_KEY, ServerUtils.OK_KEY );
+    ServerUtils.writeDelimitedToOutputStream( ServerUtils.JSON_CODEC.encode( response ), m_responses );
+  }
+
+  /**
+   * @return the commands the session has sent
+   */
+  protected List<Map<String, Object>> sent() throws Exception {
+    List<Map<String, Object>> sent = new ArrayList<Map<String, Object>>();
+    InputStream in = new ByteArrayInputStream( m_sent.toByteArray() );
+    while ( in.available() > 0 ) {
+      sent.add( ServerUtils.JSON_CODEC.decode( ServerUtils.readDelimitedFromInputStream( in ) ) );
+    }
+    return sent;
+  }
+
+  protected static List<String> commands( List<Map<String, Object>> sent ) {
+    List<String> commands = new ArrayList<String>();
+    for ( Map<String, Object> command : sent ) {
+      commands.add( command.get( ServerUtils.COMMAND_KEY ).toString() );
+    }
+    return commands;
+  }
+
+  protected static void inNamespace( PythonSession session, String namespace ) throws Exception {
+    session.m_leaseNamespace = namespace;
+    session.switchNamespace();
+  }
+
+  protected static Map<String, String> vars( String... namesAndValues ) {
+    Map<String, String> vars = new LinkedHashMap<String, String>();
+    for ( int i = 0; i < namesAndValues.length; i += 2 ) {
+      vars.put( namesAndValues[i], namesAndValues[i + 1] );
+    }
+    return vars;
+  }
+}
@@ -0,0 +1,160 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.python;
+
+import org.junit.Test;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ServerUtilsTest {
+
+  protected static final String CAFE = "caf\u00e9 \u65e5\u672c";
+
+  /**
+   * Gives up its bytes one at a time, as a socket may
+   */
+  protected static class TrickleInputStream extends ByteArrayInputStream {
+    protected TrickleInputStream( byte[] bytes ) {
+      super( bytes );
+    }
+
+    @Override public synchronized int read( byte[] b, int off, int len ) {
+      return super.read( b, off, Math.min( len, 1 ) );
+    }
+  }
+
+  @SuppressWarnings( "unchecked" )
+  @Test public void testFieldNamesAreSentAsIs() throws Exception {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( new ValueMetaString( CAFE ) );
+
+    Map<String, Object> message = ServerUtils.createMetadataMessage( "df", meta );
+    List<Map<String, String>> fields = (List<Map<String, String>>) message.get( ServerUtils.FIELDS_KEY );
+    assertEquals( CAFE, fields.get( 0 ).get( ServerUtils.FIELD_NAME_KEY ) );
+    assertFalse( message.containsKey( ServerUtils.BASE64_ENCODING_KEY ) );
+  }
+
+  @Test public void testCommandsAreRawUtf8() throws Exception {
+    Map<String, Object> command = new HashMap<String, Object>();
+    command.put( ServerUtils.SCRIPT_KEY, CAFE );
+
+    byte[] encoded = ServerUtils.JSON_CODEC.encode( command );
+    assertTrue( contains( encoded, CAFE.getBytes( ServerUtils.UTF8 ) ) );
+    assertEquals( CAFE, ServerUtils.JSON_CODEC.decode( encoded ).get( ServerUtils.SCRIPT_KEY ) );
+  }
+
+  @Test public void testRowsAreRawUtf8() throws Exception {
+    RowMetaInterface meta = new RowMeta();
+    meta.addValueMeta( new ValueMetaString( "name" ) );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    ServerUtils.writeRowsAsCSV( meta, Collections.singletonList( new Object[] { CAFE } ), out );
+    assertTrue( contains( out.toByteArray(), CAFE.getBytes( ServerUtils.UTF8 ) ) );
+  }
+
+  @Test public void testUtf8BinaryStringsArePassedThrough() {
+    assertTrue( ServerUtils.isUtf8BinaryString( ColumnFrameEncoderTest.lazy( new ValueMetaString( "s" ) ) ) );
+    assertFalse( ServerUtils.isUtf8BinaryString( new ValueMetaString( "s" ) ) );
+
+    ValueMetaInterface trimmed = ColumnFrameEncoderTest.lazy( new ValueMetaString( "s" ) );
+    trimmed.setTrimType( ValueMetaInterface.TRIM_TYPE_BOTH );
+    assertFalse( ServerUtils.isUtf8BinaryString( trimmed ) );
+
+    ValueMetaInterface storageTrimmed = ColumnFrameEncoderTest.lazy( new ValueMetaString( "s" ) );
+    storageTrimmed.getStorageMetadata().setTrimType( ValueMetaInterface.TRIM_TYPE_LEFT );
+    assertFalse( ServerUtils.isUtf8BinaryString( storageTrimmed ) );
+
+    ValueMetaInterface padded = ColumnFrameEncoderTest.lazy( new ValueMetaString( "s" ) );
+    padded.setOutputPaddingEnabled( true );
+    assertFalse( ServerUtils.isUtf8BinaryString( padded ) );
+
+    ValueMetaInterface latin1 = ColumnFrameEncoderTest.lazy( new ValueMetaString( "s" ) );
+    latin1.getStorageMetadata().setStringEncoding( "ISO-8859-1" );
+    assertFalse( ServerUtils.isUtf8BinaryString( latin1 ) );
+    latin1.getStorageMetadata().setStringEncoding( "no such encoding" );
+    assertFalse( ServerUtils.isUtf8BinaryString( latin1 ) );
+  }
+
+  @Test public void testMessagesAreReadWhole() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] first = CAFE.getBytes( ServerUtils.UTF8 );
+    ServerUtils.writeDelimitedToOutputStream( first, out );
+    ServerUtils.writeDelimitedToOutputStream( new byte[] { 1 }, out );
+
+    // including the size, however few bytes each read returns
+    InputStream in = new TrickleInputStream( out.toByteArray() );
+    assertEquals( CAFE, new String( ServerUtils.readDelimitedFromInputStream( in ), ServerUtils.UTF8 ) );
+    assertEquals( 1, ServerUtils.readDelimitedFromInputStream( in ).length );
+    assertEquals( -1, in.read() );
+  }
+
+  @Test public void testTruncatedMessageFails() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ServerUtils.writeDelimitedToOutputStream( CAFE.getBytes( ServerUtils.UTF8 ), out );
+    byte[] bytes = out.toByteArray();
+
+    checkTruncated( bytes, 2 );
+    checkTruncated( bytes, bytes.length - 1 );
+  }
+
+  protected static void checkTruncated( byte[] bytes, int length ) {
+    byte[] truncated = new byte[length];
+    System.arraycopy( bytes, 0, truncated, 0, length );
+    try {
+      ServerUtils.readDelimitedFromInputStream( new TrickleInputStream( truncated ) );
+      fail( "Read a message truncated to " + length + " bytes" );
+    } catch ( IOException ex ) {
+      // expected
+    }
+  }
+
+  protected static boolean contains( byte[] bytes, byte[] part ) {
+    for ( int i = 0; i + part.length <= bytes.length; i++ ) {
+      boolean match = true;
+      for ( int j = 0; j < part.length && match; j++ ) {
+        match = bytes[i + j] == part[j];
+      }
+      if ( match ) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,144 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+package org.pentaho.python;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SharedMemoryFileTest {
+
+  protected File m_file;
+
+  @Before public void setUp() throws Exception {
+    // the streams work on any file, so the tests don't depend on a shared memory directory
+    m_file = File.createTempFile( "pdi-cpython-test", ".arrow" );
+  }
+
+  @After public void tearDown() {
+    m_file.delete();
+  }
+
+  @Test public void testRoundTrip() throws Exception {
+    byte[] payload = ChunkedOutputStreamTest.payload( 100000 );
+    write( payload );
+
+    assertEquals( payload.length, m_file.length() );
+    assertArrayEquals( payload, read( payload.length ) );
+  }
+
+  @Test public void testEmptyFile() throws Exception {
+    write( new byte[0] );
+
+    assertEquals( 0, m_file.length() );
+    assertEquals( 0, read( 0 ).length );
+  }
+
+  @Test public void testRoundTripAcrossWindows() throws Exception {
+    byte[] block = ChunkedOutputStreamTest.payload( 1024 * 1024 + 3 );
+    int numBlocks = SharedMemoryFile.WINDOW_SIZE / block.length + 1;
+    SharedMemoryFile.MappedOutputStream out = new SharedMemoryFile.MappedOutputStream( m_file );
+    try {
+      for ( int i = 0; i < numBlocks; i++ ) {
+        out.write( block );
+      }
+      out.write( 42 );
+      assertEquals( (long) block.length * numBlocks + 1, out.size() );
+    } finally {
+      out.close();
+    }
+    assertTrue( m_file.length() > SharedMemoryFile.WINDOW_SIZE );
+
+    InputStream in = new SharedMemoryFile.MappedInputStream( m_file, m_file.length() );
+    try {
+      byte[] readBlock = new byte[block.length];
+      for ( int i = 0; i < numBlocks; i++ ) {
+        ArrowFrameDecoder.readFully( in, readBlock, readBlock.length );
+        // assertArrayEquals is slow over this much data
+        assertTrue( "block " + i, Arrays.equals( block, readBlock ) );
+      }
+      assertEquals( 42, in.read() );
+      assertEquals( -1, in.read() );
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test public void testReadsNoMoreThanTheGivenSize() throws Exception {
+    byte[] payload = ChunkedOutputStreamTest.payload( 1000 );
+    write( payload );
+
+    assertArrayEquals( Arrays.copyOf( payload, 10 ), read( 10 ) );
+    // a size beyond the end of the file is capped at the file's length
+    assertArrayEquals( payload, read( 5000 ) );
+  }
+
+  @Test public void testCloseTwice() throws Exception {
+    SharedMemoryFile.MappedOutputStream out = new SharedMemoryFile.MappedOutputStream( m_file );
+    out.write( 1 );
+    out.close();
+    out.close();
+
+    assertEquals( 1, m_file.length() );
+  }
+
+  @Test public void testCreateFile() throws Exception {
+    Assume.assumeTrue( SharedMemoryFile.isAvailable() );
+
+    File file = SharedMemoryFile.createFile();
+    try {
+      assertEquals( new File( SharedMemoryFile.SHARED_MEMORY_DIR ), file.getParentFile() );
+      assertEquals( 0, file.length() );
+    } finally {
+      file.delete();
+    }
+  }
+
+  protected void write( byte[] payload ) throws Exception {
+    SharedMemoryFile.MappedOutputStream out = new SharedMemoryFile.MappedOutputStream( m_file );
+    try {
+      out.write( payload );
+      assertEquals( payload.length, out.size() );
+    } finally {
+      out.close();
+    }
+  }
+
+  protected byte[] read( long size ) throws Exception {
+    InputStream in = new SharedMemoryFile.MappedInputStream( m_file, size );
+    try {
+      return ChunkedInputStreamTest.readAll( in );
+    } finally {
+      in.close();
+    }
+  }
+}
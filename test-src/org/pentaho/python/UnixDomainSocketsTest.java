@@ -0,0 +1,147 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.python;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class UnixDomainSocketsTest {
+
+  protected File m_dir;
+
+  @After public void tearDown() {
+    if ( m_dir != null ) {
+      for ( File file : m_dir.listFiles() ) {
+        file.delete();
+      }
+      m_dir.delete();
+    }
+  }
+
+  @Test public void testMessagesBothWays() throws Exception {
+    assumeTrue( UnixDomainSockets.isAvailable() );
+    m_dir = Files.createTempDirectory( "pdi-cpython-test" ).toFile();
+    File socketFile = new File( m_dir, UnixDomainSockets.SOCKET_FILE_NAME );
+
+    ServerSocketChannel server = UnixDomainSockets.openServerChannel( socketFile );
+    try {
+      assertTrue( socketFile.exists() );
+      SocketChannel client = connect( socketFile );
+      SocketChannel accepted = server.accept();
+      try {
+        // larger than a single channel transfer
+        byte[] message = payload( UnixDomainSockets.MAX_TRANSFER_SIZE * 3 + 17 );
+        checkTransfer( message, new UnixDomainSockets.ChannelOutputStream( client ),
+            new UnixDomainSockets.ChannelInputStream( accepted ) );
+        checkTransfer( new byte[] { 42 }, new UnixDomainSockets.ChannelOutputStream( accepted ),
+            new UnixDomainSockets.ChannelInputStream( client ) );
+      } finally {
+        client.close();
+        accepted.close();
+      }
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test public void testBindingToAnExistingFileFails() throws Exception {
+    assumeTrue( UnixDomainSockets.isAvailable() );
+    m_dir = Files.createTempDirectory( "pdi-cpython-test" ).toFile();
+    File socketFile = new File( m_dir, UnixDomainSockets.SOCKET_FILE_NAME );
+    assertTrue( socketFile.createNewFile() );
+
+    try {
+      UnixDomainSockets.openServerChannel( socketFile ).close();
+      fail( "Bound to a file that already exists" );
+    } catch ( IOException ex ) {
+      // expected
+    }
+  }
+
+  @Test public void testChannelStreams() throws Exception {
+    // the streams work with any blocking channel
+    Pipe pipe = Pipe.open();
+    byte[] message = payload( UnixDomainSockets.MAX_TRANSFER_SIZE + 1 );
+    checkTransfer( message, new UnixDomainSockets.ChannelOutputStream( pipe.sink() ),
+        new UnixDomainSockets.ChannelInputStream( pipe.source() ) );
+
+    pipe.sink().close();
+    assertEquals( -1, new UnixDomainSockets.ChannelInputStream( pipe.source() ).read() );
+  }
+
+  /**
+   * Write a length delimited message on a thread of its own (so that the writer can't block the reader), and check
+   * that it is read back whole
+   */
+  protected static void checkTransfer( final byte[] message, final OutputStream out, InputStream in )
+      throws Exception {
+    final IOException[] failure = new IOException[1];
+    Thread writer = new Thread() {
+      @Override public void run() {
+        try {
+          ServerUtils.writeDelimitedToOutputStream( message, out );
+        } catch ( IOException ex ) {
+          failure[0] = ex;
+        }
+      }
+    };
+    writer.start();
+    byte[] read = ServerUtils.readDelimitedFromInputStream( in );
+    writer.join( 10000 );
+    if ( failure[0] != null ) {
+      throw failure[0];
+    }
+    assertTrue( Arrays.equals( message, read ) );
+  }
+
+  protected static SocketChannel connect( File socketFile ) throws Exception {
+    SocketAddress address =
+        (SocketAddress) Class.forName( "java.net.UnixDomainSocketAddress" ).getMethod( "of", String.class )
+            .invoke( null, socketFile.getAbsolutePath() );
+    return (SocketChannel) SocketChannel.class.getMethod( "open", SocketAddress.class ).invoke( null, address );
+  }
+
+  protected static byte[] payload( int size ) {
+    byte[] payload = new byte[size];
+    new Random( 1 ).nextBytes( payload );
+    return payload;
+  }
+}
@@ -0,0 +1,95 @@
+/*! ******************************************************************************
+ *
+ * Pentaho Data Science
+ *
+ * Copyright (c) 2002-2017 Hitachi Vantara. All rights reserved.
+ *
+ *******************************************************************************
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ ******************************************************************************/
+
+
+package org.pentaho.python;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WatchedInputStreamTest {
+
+  @Test public void testWaitingReadIsTimed() throws Exception {
+    PipedOutputStream python = new PipedOutputStream();
+    final WatchedInputStream in = new WatchedInputStream( new PipedInputStream( python ) );
+    assertEquals( 0, in.waitingMillis() );
+
+    Thread reader = new Thread() {
+      @Override public void run() {
+        try {
+          in.read();
+        } catch ( IOException e ) {
+          // checked below
+        }
+      }
+    };
+    reader.start();
+    long deadline = System.currentTimeMillis() + 5000;
+    while ( in.waitingMillis() < 50 ) {
+      assertTrue( "Timed out waiting for the read to block", System.currentTimeMillis() < deadline );
+      Thread.sleep( 5 );
+    }
+
+    python.write( 1 );
+    python.flush();
+    reader.join( 5000 );
+    assertEquals( 0, in.waitingMillis() );
+    assertFalse( in.hasFailed() );
+  }
+
+  @Test public void testEndOfStreamIsAFailure() throws Exception {
+    WatchedInputStream in = new WatchedInputStream( new ByteArrayInputStream( new byte[] { 1, 2 } ) );
+
+    assertEquals( 2, in.read( new byte[4], 0, 4 ) );
+    assertFalse( in.hasFailed() );
+    assertEquals( 0, in.read( new byte[4], 0, 0 ) );
+    assertFalse( in.hasFailed() );
+    assertEquals( -1, in.read() );
+    assertTrue( in.hasFailed() );
+  }
+
+  @Test public void testReadErrorIsAFailure() throws Exception {
+    WatchedInputStream in = new WatchedInputStream( new InputStream() {
+      @Override public int read() throws IOException {
+        throw new IOException( "Connection reset" );
+      }
+    } );
+
+    try {
+      in.read();
+      fail( "Expected the read to fail" );
+    } catch ( IOException ex ) {
+      assertTrue( in.hasFailed() );
+    }
+    assertEquals( 0, in.waitingMillis() );
+  }
+}
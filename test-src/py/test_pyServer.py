@@ -0,0 +1,533 @@
+##
+##   This program is free software: you can redistribute it and/or modify
+##   it under the terms of the GNU General Public License as published by
+##   the Free Software Foundation, either version 3 of the License, or
+##   (at your option) any later version.
+##
+##   This program is distributed in the hope that it will be useful,
+##   but WITHOUT ANY WARRANTY; without even the implied warranty of
+##   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+##   GNU General Public License for more details.
+##
+##   You should have received a copy of the GNU General Public License
+##   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+##
+
+# Tests for the parts of pyServer that don't need numpy or pandas. Run with
+#   python -m unittest discover -s test-src/py
+
+import io
+import json
+import os
+import socket
+import struct
+import subprocess
+import sys
+import tempfile
+import types
+import unittest
+
+sys.path.insert(0, os.path.join(os.path.dirname(os.path.abspath(__file__)),
+                                '..', '..', 'resources', 'py'))
+import pyCheck
+import pyServer
+
+# pyServer captures stdout and stderr when it is imported
+sys.stdout = sys.__stdout__
+sys.stderr = sys.__stderr__
+
+# the libraries that pyServer imports once the environment has been checked
+LIBRARIES = ['numpy', 'pandas', 'matplotlib', 'matplotlib.pyplot']
+
+
+class ServerTestCase(unittest.TestCase):
+    # talks to the server functions over a socket pair, as Kettle would
+
+    def setUp(self):
+        self.client, pyServer._global_connection = socket.socketpair()
+        self.client.settimeout(10)
+
+    def tearDown(self):
+        self.client.close()
+        pyServer._global_connection.close()
+        pyServer._global_connection = None
+        pyServer._global_env = pyServer._global_default_env
+        pyServer._global_env.clear()
+        pyServer._global_namespace = None
+        pyServer._global_namespaces.clear()
+        pyServer._global_scripts.clear()
+        pyServer._global_script_ids.clear()
+
+    def send(self, data):
+        self.client.sendall(struct.pack('>L', len(data)) + data)
+
+    def response(self):
+        size = struct.unpack('>L', self.receive(4))[0]
+        return json.loads(self.receive(size).decode('utf-8'))
+
+    def receive(self, size):
+        data = b''
+        while len(data) < size:
+            chunk = self.client.recv(size - len(data))
+            self.assertTrue(chunk, 'the server closed the connection')
+            data += chunk
+        return data
+
+    def command(self, function, **message):
+        function(message)
+        return self.response()
+
+
+class TrickleConnection(object):
+    # gives up the bytes of a socket one at a time
+
+    def __init__(self, connection):
+        self.connection = connection
+
+    def recv(self, size):
+        return self.connection.recv(1)
+
+    def sendall(self, data):
+        self.connection.sendall(data)
+
+    def close(self):
+        self.connection.close()
+
+
+class EnvironmentCheckTest(unittest.TestCase):
+    # check_environment() with pyCheck and the libraries it imports replaced
+
+    def setUp(self):
+        self.saved = dict((name, getattr(pyServer, name)) for name in
+                          ['np', 'pd', 'matplotlib', 'plt'])
+        self.saved_check = pyCheck.check_environment
+        self.saved_fingerprint = pyCheck.fingerprint
+        self.saved_modules = dict((name, sys.modules.get(name)) for name in
+                                  LIBRARIES)
+        self.saved_checked = os.environ.pop('PENTAHO_CPYTHON_CHECKED', None)
+        self.checks = 0
+        self.problems = ''
+        pyCheck.check_environment = self.check
+        pyCheck.fingerprint = lambda: 'fp1'
+        for name in LIBRARIES:
+            sys.modules[name] = types.ModuleType(name)
+        sys.modules['matplotlib'].pyplot = sys.modules['matplotlib.pyplot']
+
+    def tearDown(self):
+        for name, value in self.saved.items():
+            setattr(pyServer, name, value)
+        pyCheck.check_environment = self.saved_check
+        pyCheck.fingerprint = self.saved_fingerprint
+        for name, module in self.saved_modules.items():
+            if module is None:
+                del sys.modules[name]
+            else:
+                sys.modules[name] = module
+        if self.saved_checked is None:
+            os.environ.pop('PENTAHO_CPYTHON_CHECKED', None)
+        else:
+            os.environ['PENTAHO_CPYTHON_CHECKED'] = self.saved_checked
+        pyServer._global_env_checked = None
+
+    def check(self):
+        self.checks += 1
+        return self.problems
+
+    def test_passing_check_imports_the_libraries(self):
+        self.assertEqual(('fp1', ''), pyServer.check_environment())
+
+        self.assertEqual(1, self.checks)
+        self.assertIs(sys.modules['numpy'], pyServer.np)
+        self.assertIs(sys.modules['matplotlib.pyplot'], pyServer.plt)
+
+    def test_failing_check_imports_nothing(self):
+        self.problems = 'Library "pandas" is not available\n'
+
+        self.assertEqual(('fp1', self.problems), pyServer.check_environment())
+        self.assertIsNone(pyServer.np)
+        self.assertIsNone(pyServer.pd)
+
+    def test_checked_environment_is_not_checked_again(self):
+        os.environ['PENTAHO_CPYTHON_CHECKED'] = 'fp0,fp1'
+
+        self.assertEqual(('fp1', ''), pyServer.check_environment())
+        self.assertEqual(0, self.checks)
+        self.assertIs(sys.modules['pandas'], pyServer.pd)
+
+    def test_other_environments_are_checked(self):
+        os.environ['PENTAHO_CPYTHON_CHECKED'] = 'fp0'
+
+        pyServer.check_environment()
+        self.assertEqual(1, self.checks)
+
+    def test_forked_server_uses_the_fork_servers_result(self):
+        pyServer._global_env_checked = ('fp9', '')
+
+        self.assertEqual(('fp9', ''), pyServer.check_environment())
+        self.assertEqual(0, self.checks)
+
+
+class ReceiveMessageTest(ServerTestCase):
+
+    def test_multi_byte_characters_split_across_receives(self):
+        text = u'caf\u00e9 \u65e5\u672c'
+        self.send(json.dumps({'name': text}, ensure_ascii=False).encode('utf-8'))
+        pyServer._global_connection = TrickleConnection(
+            pyServer._global_connection)
+
+        self.assertEqual({'name': text}, pyServer.receive_message(True))
+
+    def test_reads_exactly_one_message(self):
+        self.send(b'{"command": "first"}')
+        self.send(b'{"command": "second"}')
+
+        self.assertEqual('first', pyServer.receive_message(True)['command'])
+        self.assertEqual('second', pyServer.receive_message(True)['command'])
+
+    def test_plain_message(self):
+        self.send(u'caf\u00e9'.encode('utf-8'))
+
+        self.assertEqual(u'caf\u00e9', pyServer.receive_message(False))
+
+    def test_truncated_message(self):
+        self.client.sendall(struct.pack('>L', 10) + b'{"a"')
+        self.client.shutdown(socket.SHUT_WR)
+
+        self.assertRaises(IOError, pyServer.receive_message, True)
+
+
+class ConnectTest(unittest.TestCase):
+
+    def check_connect(self, family, bind_address, address):
+        listener = socket.socket(family, socket.SOCK_STREAM)
+        try:
+            listener.bind(bind_address)
+            listener.listen(1)
+            if family == socket.AF_INET:
+                address = str(listener.getsockname()[1])
+            connection = pyServer.connect(address)
+            accepted = listener.accept()[0]
+            try:
+                connection.sendall(b'ping')
+                self.assertEqual(b'ping', accepted.recv(4))
+            finally:
+                connection.close()
+                accepted.close()
+        finally:
+            listener.close()
+
+    @unittest.skipUnless(hasattr(socket, 'AF_UNIX'), 'no unix sockets')
+    def test_unix_domain_socket(self):
+        directory = tempfile.mkdtemp()
+        path = os.path.join(directory, 'pyServer.sock')
+        try:
+            self.check_connect(socket.AF_UNIX, path, 'unix:' + path)
+        finally:
+            os.remove(path)
+            os.rmdir(directory)
+
+    def test_tcp(self):
+        self.check_connect(socket.AF_INET, ('localhost', 0), None)
+
+
+class SendBytesTest(ServerTestCase):
+
+    def test_small_and_large_messages(self):
+        for size in [0, 10, 65535, 65536, 70000]:
+            data = b'x' * size
+            pyServer.send_bytes(data)
+            self.assertEqual(size, struct.unpack('>L', self.receive(4))[0])
+            self.assertEqual(data, self.receive(size))
+
+
+try:
+    import numpy
+    import pandas
+except ImportError:
+    numpy = None
+    pandas = None
+
+
+def column_strings(values):
+    # strings laid out as in a column block: int32 offsets, then utf-8 data
+    data = b''
+    offsets = [0]
+    for value in values:
+        data += value.encode('utf-8')
+        offsets.append(len(data))
+    return struct.pack('<%dl' % len(offsets), *offsets) + data
+
+
+def dictionary_block(added, codes):
+    return (struct.pack('<cBl', b'c', 0, len(added)) + column_strings(added)
+            + struct.pack('<%dl' % len(codes), *codes))
+
+
+@unittest.skipUnless(pandas is not None, 'needs numpy and pandas')
+class DictionaryColumnTest(unittest.TestCase):
+
+    def setUp(self):
+        pyServer.np = numpy
+        pyServer.pd = pandas
+
+    def test_dictionary_blocks_become_a_categorical(self):
+        frame = (struct.pack('<l', 3) + dictionary_block(['a', 'b'], [0, 1, -1])
+                 + struct.pack('<l', 2) + dictionary_block(['c'], [2, 0])
+                 + struct.pack('<l', 0))
+
+        frame = pyServer.read_column_frame(io.BytesIO(frame), ['s'])
+        column = frame['s']
+        self.assertEqual('category', str(column.dtype))
+        self.assertEqual(['a', 'b', 'c'], list(column.cat.categories))
+        self.assertEqual(['a', 'b', 'c', 'a'],
+                         list(column.iloc[[0, 1, 3, 4]]))
+        self.assertTrue(pandas.isnull(column.iloc[2]))
+
+    def test_switch_to_plain_strings(self):
+        frame = (struct.pack('<l', 2) + dictionary_block(['a'], [0, -1])
+                 + struct.pack('<l', 2) + struct.pack('<cB', b's', 0)
+                 + column_strings(['x', 'y'])
+                 + struct.pack('<l', 0))
+
+        frame = pyServer.read_column_frame(io.BytesIO(frame), ['s'])
+        column = frame['s']
+        self.assertEqual('object', str(column.dtype))
+        self.assertEqual('a', column.iloc[0])
+        self.assertTrue(pandas.isnull(column.iloc[1]))
+        self.assertEqual(['x', 'y'], list(column.iloc[2:]))
+
+    def test_categorical_is_sent_as_a_dictionary(self):
+        frame = pandas.DataFrame(
+            {'s': pandas.Categorical(['y', 'x', None, 'y'])})
+        sink = io.BytesIO()
+
+        pyServer.write_column_frame(frame, False, sink)
+        expected = (struct.pack('<l', 4)
+                    + dictionary_block(['x', 'y'], [1, 0, -1, 1])
+                    + struct.pack('<l', 0))
+        self.assertEqual(expected, sink.getvalue())
+        self.assertEqual([{'name': 's', 'type': 'string'}],
+                         pyServer.frame_to_column_fields_list(frame, False))
+
+
+@unittest.skipUnless(pandas is not None, 'needs numpy and pandas')
+class NumericTextColumnTest(unittest.TestCase):
+
+    def setUp(self):
+        pyServer.np = numpy
+        pyServer.pd = pandas
+
+    def read_column(self, block_type, nulls, text):
+        block = struct.pack('<cB', block_type, 0 if nulls is None else 1)
+        if nulls is not None:
+            block += nulls
+        block += struct.pack('<l', len(text)) + text
+        frame = (struct.pack('<l', len(text.split())) + block
+                 + struct.pack('<l', 0))
+        return pyServer.read_column_frame(io.BytesIO(frame), ['n'])['n']
+
+    def test_long_text(self):
+        column = self.read_column(b'L', None, b'12 007 -3 ')
+
+        self.assertEqual('int64', str(column.dtype))
+        self.assertEqual([12, 7, -3], list(column))
+
+    def test_long_text_with_missing_values(self):
+        # the second row is missing
+        column = self.read_column(b'L', b'\x40', b'12 0 -3 ')
+
+        self.assertEqual('float64', str(column.dtype))
+        self.assertEqual(12.0, column.iloc[0])
+        self.assertTrue(numpy.isnan(column.iloc[1]))
+        self.assertEqual(-3.0, column.iloc[2])
+
+    def test_double_text(self):
+        column = self.read_column(b'D', None, b'1.5 -2 3. .25 ')
+
+        self.assertEqual([1.5, -2.0, 3.0, 0.25], list(column))
+
+
+class NamespaceTest(ServerTestCase):
+
+    def execute(self, script):
+        response = self.command(pyServer.execute_script, script=script)
+        self.assertEqual('', response['script_error'])
+        return response['script_out']
+
+    def test_namespaces_have_their_own_variables(self):
+        self.command(pyServer.set_namespace, namespace='ns0')
+        self.execute('x = 1\n')
+        self.command(pyServer.set_namespace, namespace='ns1')
+        self.assertEqual('False\n', self.execute("print('x' in globals())\n"))
+        self.execute('x = 2\n')
+
+        self.command(pyServer.set_namespace, namespace='ns0')
+        self.assertEqual('1\n', self.execute('print(x)\n'))
+        self.command(pyServer.set_namespace)
+        self.assertNotIn('x', pyServer._global_default_env)
+
+    def test_dropping_the_current_namespace(self):
+        self.command(pyServer.set_namespace, namespace='ns0')
+        self.execute('x = 1\n')
+        env = pyServer._global_env
+
+        response = self.command(pyServer.drop_namespace, namespace='ns0')
+        self.assertEqual('ok', response['response'])
+        self.assertEqual({}, env)
+        self.assertIs(pyServer._global_default_env, pyServer._global_env)
+        self.assertIsNone(pyServer._global_namespace)
+        # a dropped namespace starts again empty
+        self.command(pyServer.set_namespace, namespace='ns0')
+        self.assertEqual('False\n', self.execute("print('x' in globals())\n"))
+
+    def test_dropping_another_namespace(self):
+        self.command(pyServer.set_namespace, namespace='ns0')
+        self.command(pyServer.set_namespace, namespace='ns1')
+
+        self.command(pyServer.drop_namespace, namespace='ns0')
+        self.assertEqual('ns1', pyServer._global_namespace)
+        self.assertEqual(['ns1'], list(pyServer._global_namespaces.keys()))
+        # as is one that never existed
+        response = self.command(pyServer.drop_namespace, namespace='ns9')
+        self.assertEqual('ok', response['response'])
+
+
+class ScriptRegistryTest(ServerTestCase):
+
+    def register(self, script):
+        response = self.command(pyServer.register_script, script=script)
+        self.assertEqual('ok', response['response'])
+        return response['script_id']
+
+    def test_execute_by_id(self):
+        script_id = self.register('x = 41\nx += 1\nprint(x)\n')
+
+        response = self.command(pyServer.execute_script_by_id,
+                                script_id=script_id)
+        self.assertEqual('ok', response['response'])
+        self.assertEqual('42\n', response['script_out'])
+        self.assertEqual('', response['script_error'])
+        # the code object is kept, so it runs again
+        self.command(pyServer.execute_script_by_id, script_id=script_id)
+        self.assertEqual(42, pyServer._global_env['x'])
+
+    def test_same_text_gets_the_same_id(self):
+        script_id = self.register('x = 1\n')
+
+        self.assertEqual(script_id, self.register('x = 1\n'))
+        self.assertNotEqual(script_id, self.register('x = 2\n'))
+        self.assertEqual(2, len(pyServer._global_scripts))
+
+    def test_compile_error(self):
+        response = self.command(pyServer.register_script, script='x = (\n')
+
+        self.assertEqual('error', response['response'])
+        self.assertIn('SyntaxError', response['error_message'])
+        self.assertEqual({}, pyServer._global_scripts)
+
+    def test_unknown_id(self):
+        response = self.command(pyServer.execute_script_by_id,
+                                script_id='script99')
+
+        self.assertEqual('error', response['response'])
+
+    def test_scripts_are_dropped_with_their_namespace(self):
+        self.command(pyServer.set_namespace, namespace='ns0')
+        dropped = self.register('x = 1\n')
+        self.command(pyServer.set_namespace, namespace='ns1')
+        kept = self.register('x = 1\n')
+        self.assertNotEqual(dropped, kept)
+
+        self.command(pyServer.drop_namespace, namespace='ns0')
+        self.assertEqual([kept], list(pyServer._global_scripts.keys()))
+        response = self.command(pyServer.execute_script_by_id,
+                                script_id=dropped)
+        self.assertEqual('error', response['response'])
+        # ids are not reused
+        self.command(pyServer.set_namespace, namespace='ns0')
+        self.assertNotIn(self.register('x = 1\n'), [dropped, kept])
+
+
+class PreloadModulesTest(ServerTestCase):
+
+    def test_modules_are_imported(self):
+        sys.modules.pop('colorsys', None)
+
+        response = self.command(pyServer.preload_modules,
+                                modules=['colorsys'])
+        self.assertEqual('ok', response['response'])
+        self.assertEqual([], response['failed_modules'])
+        self.assertIn('colorsys', sys.modules)
+
+    def test_failed_modules_are_reported(self):
+        response = self.command(pyServer.preload_modules,
+                                modules=['no_such_module', 'json'])
+
+        self.assertEqual('ok', response['response'])
+        self.assertEqual(['no_such_module'], response['failed_modules'])
+
+
+@unittest.skipUnless(hasattr(os, 'fork'), 'needs os.fork')
+class ForkServerTest(unittest.TestCase):
+    # runs the fork server as Kettle does, and has it fork a server that
+    # connects back to the test
+
+    def setUp(self):
+        scripts = os.path.join(os.path.dirname(os.path.abspath(__file__)),
+                               '..', '..', 'resources', 'py')
+        start = ('import sys; sys.path.insert(0, %r); import pyServer; '
+                 'pyServer.main()' % scripts)
+        self.fork_server = subprocess.Popen(
+            [sys.executable, '-c', start, '', '', 'forkserver'],
+            stdin=subprocess.PIPE, stdout=subprocess.PIPE,
+            universal_newlines=True)
+        self.listener = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+        self.listener.bind(('localhost', 0))
+        self.listener.listen(1)
+        self.listener.settimeout(60)
+
+    def tearDown(self):
+        self.listener.close()
+        if self.fork_server.poll() is None:
+            self.fork_server.kill()
+        self.fork_server.stdin.close()
+        self.fork_server.stdout.close()
+        self.fork_server.wait()
+
+    def fork(self, *args):
+        self.fork_server.stdin.write('\t'.join(args) + '\n')
+        self.fork_server.stdin.flush()
+        return int(self.fork_server.stdout.readline())
+
+    def test_forked_server_connects_and_reports_its_pid(self):
+        pid = self.fork(str(self.listener.getsockname()[1]), '')
+
+        connection, _ = self.listener.accept()
+        try:
+            connection.settimeout(60)
+            size = struct.unpack('>L', self.receive(connection, 4))[0]
+            response = json.loads(
+                self.receive(connection, size).decode('utf-8'))
+        finally:
+            # the forked server exits when Kettle goes
+            connection.close()
+        self.assertEqual('pid_response', response['response'])
+        self.assertEqual(pid, response['pid'])
+        self.assertIn('env_check', response)
+
+    def test_fork_server_exits_when_kettle_goes(self):
+        self.fork_server.stdin.close()
+
+        self.assertEqual(0, self.fork_server.wait(60))
+
+    def receive(self, connection, size):
+        data = b''
+        while len(data) < size:
+            chunk = connection.recv(size - len(data))
+            self.assertTrue(chunk, 'the server closed the connection')
+            data += chunk
+        return data
+
+
+if __name__ == '__main__':
+    unittest.main()